@@ -9,13 +9,17 @@
   (:require [somnium.congomongo :as mongo]
             [somnium.congomongo.config :as mongo-config]
             [workers.client :as workers]
+            [workers.results :as results]
             [clojure.contrib.logging :as log]
             [lamina.core :as l])
   (:import [es.uvigo.ei.sing.dare.domain IBackend Maybe IBackendBuilder
-            ExecutionTimeExceededException ExecutionFailedException]
+            ExecutionTimeExceededException ExecutionFailedException
+            ExecutionState ExecutionState$Status]
            [es.uvigo.ei.sing.dare.entities
-            Robot PeriodicalExecution ExecutionPeriod ExecutionPeriod$Unit ExecutionResult]
+            Robot PeriodicalExecution ExecutionPeriod ExecutionPeriod$Unit ExecutionResult
+            ResultLines ResultLines$IChunkLoader]
            [java.util UUID List Map Collection]
+           [java.security MessageDigest]
            [org.joda.time DateTime]
            [com.mongodb DB]))
 
@@ -207,27 +211,70 @@ key `key`."
 (defn create-execution-result
   "Build a DARE-domain `ExecutionResult` from params."
   ^ExecutionResult
-  [code optionalRobotCode creationTime executionTimeMilliseconds inputs resultLines]
+  [code optionalRobotCode creationTime executionTimeMilliseconds inputs
+   ^ResultLines resultLines]
   (ExecutionResult. code
                     creationTime
                     optionalRobotCode
                     executionTimeMilliseconds
                     inputs
-                    (into-array String resultLines)))
+                    resultLines))
+
+;; The lines of a result are either in the document itself, at
+;; `:resultLines`, or in chunks described by its `:resultSummary`, see
+;; `workers.results`. The chunks are loaded when the lines are
+;; traversed, maybe after the request that retrieved the document has
+;; finished, so the connection is kept by the loader. The `:sha1` of the
+;; summary, or the `:resultSha1` for the lines in the document, is the
+;; content hash of the lines, so it's known without loading them.
+(defn chunk-loader
+  "A loader of the chunks of the result described by `summary`."
+  [summary]
+  (let [conn mongo-config/*mongo-config*]
+    (reify ResultLines$IChunkLoader
+      (load [this chunk-index]
+        (mongo/with-mongo conn
+          (results/load-chunk summary chunk-index))))))
+
+(defn result-lines
+  "The `ResultLines` of the result stored at `map-from-mongo`."
+  ^ResultLines
+  [map-from-mongo]
+  (if-let [{:keys [lines chunkSize ^String sha1] :as summary} (:resultSummary map-from-mongo)]
+    (ResultLines/chunked (int lines) (int chunkSize) sha1 (chunk-loader summary))
+    (ResultLines/of ^List (vec (:resultLines map-from-mongo))
+                    ^String (:resultSha1 map-from-mongo))))
+
+(defn completed?
+  "An execution has completed if its result has been stored."
+  [execution]
+  (or (contains? execution :resultLines)
+      (contains? execution :resultSummary)))
+
+(defn with-input-times
+  "The `result` with the milliseconds each input took, stored by the
+worker at `:inputTimesMilliseconds` if the inputs were executed on
+their own."
+  ^ExecutionResult
+  [^ExecutionResult result map-from-mongo]
+  (if-let [times (seq (:inputTimesMilliseconds map-from-mongo))]
+    (.withInputTimes result (long-array (map #(.longValue ^Number %) times)))
+    result))
 
 (defn to-execution-result
   "Build a DARE-domain `ExecutionResult` from a suitable mongo
 document."
   [map-from-mongo]
   (when map-from-mongo
-    (->> map-from-mongo
-         ((juxt :_id
-                :optionalRobotCode
-                (date-time-at :creationTime)
-                (at-key :executionTimeMilliseconds #(.longValue %))
-                :inputs
-                :resultLines))
-         (apply create-execution-result))))
+    (-> (->> map-from-mongo
+             ((juxt :_id
+                    :optionalRobotCode
+                    (date-time-at :creationTime)
+                    (at-key :executionTimeMilliseconds #(.longValue %))
+                    :inputs
+                    result-lines))
+             (apply create-execution-result))
+        (with-input-times map-from-mongo))))
 
 (defn create-periodical
   "Build a DARE-domain `PeriodicalExecution` from params."
@@ -287,13 +334,15 @@ collection to the corresponding domain entity"
 
 (defn insert-execution-at-initial-state!
   "An execution is inserted at its initial state, i.e., it still
-  doesn't have its results."
-  [^Robot robot inputs]
+  doesn't have its results. The `memo-key` is stored if given, so the
+  execution can be found by `find-fresh-execution`."
+  [^Robot robot inputs & [memo-key]]
   (let [code (new-unique-code)]
-    (save! executions-coll {:_id code
-                            :inputs (vec inputs)
-                            :creationTime (now-ms)
-                            :optionalRobotCode (.getCode robot)})
+    (save! executions-coll (merge {:_id code
+                                   :inputs (vec inputs)
+                                   :creationTime (now-ms)
+                                   :optionalRobotCode (.getCode robot)}
+                                  (when memo-key {:memoKey memo-key})))
     code))
 
 (defn common-request-part
@@ -301,16 +350,50 @@ collection to the corresponding domain entity"
   executions and standard ones"
   [^Robot robot inputs]
   {:inputs (vec inputs)
+   :robot-code (.getCode robot)
    :robotXML (.getTransformerInXML robot)})
 
 (defn submit-execution-for-robot!
   "It submits an execution for the given `robot`"
-  [workers-handler ^Robot robot inputs]
-  (let [code (insert-execution-at-initial-state! robot inputs)]
+  [workers-handler ^Robot robot inputs & [memo-key]]
+  (let [code (insert-execution-at-initial-state! robot inputs memo-key)]
     (workers/send-request! workers-handler (assoc (common-request-part robot inputs)
                                              :result-code code))
     code))
 
+(defn insert-executions-at-initial-state!
+  "The same as `insert-execution-at-initial-state!` for several
+  executions of the same robot, one for each of the `inputs-sets`,
+  with the `memo-keys` in the same order if given. They are inserted
+  at once. It returns their codes in the same order."
+  [^Robot robot inputs-sets & [memo-keys]]
+  (let [creation-time (now-ms)
+        executions (doall
+                    (map (fn [inputs memo-key]
+                           (merge {:_id (new-unique-code)
+                                   :inputs (vec inputs)
+                                   :creationTime creation-time
+                                   :optionalRobotCode (.getCode robot)}
+                                  (when memo-key {:memoKey memo-key})))
+                         inputs-sets
+                         (or memo-keys (repeat nil))))]
+    (when (seq executions)
+      (mongo/mass-insert! executions-coll executions))
+    (map :_id executions)))
+
+(defn submit-executions-for-robot!
+  "It submits several executions for the given `robot`. The requests
+  are pipelined to the workers."
+  [workers-handler ^Robot robot inputs-sets & [memo-keys]]
+  (let [codes (insert-executions-at-initial-state! robot inputs-sets memo-keys)]
+    (when (seq codes)
+      (workers/send-requests! workers-handler
+                              (map (fn [code inputs]
+                                     (assoc (common-request-part robot inputs)
+                                       :result-code code))
+                                   codes inputs-sets)))
+    codes))
+
 ;; ### Submit Executions for Periodical Executions
 
 (defn- next-execution
@@ -445,16 +528,333 @@ next `expiring-on-next-ms` milliseconds."
                   :timeout (ExecutionTimeExceededException. message)))))
 
 (defn execution-or-none
-  "It returns a value if the the execution has resultLines (it has
-  completed). Otherwise returns none, unless it has timed out."
+  "It returns a value if the the execution has its result stored (it
+  has completed). Otherwise returns none, unless it has timed out."
   [execution]
-  (if (:resultLines execution)
+  (if (completed? execution)
     (Maybe/value (to-execution-result execution))
     (do
       (check-no-execution-time-exceeded #(:creationTime execution)
                                         *time-allowed-for-execution-ms*)
       (Maybe/none))))
 
+(defn execution-state
+  "It returns the `ExecutionState` of the execution document. The
+  errors thrown by `check-no-error-on-execution` and
+  `execution-or-none` are kept in the state instead."
+  [execution]
+  (let [code (:_id execution)]
+    (try
+      (check-no-error-on-execution execution)
+      (let [result (execution-or-none execution)]
+        (if (.hasValue result)
+          (ExecutionState/completed (.getValue result))
+          (ExecutionState/pending code)))
+      (catch ExecutionFailedException e
+        (ExecutionState/failed code (.getMessage e)))
+      (catch ExecutionTimeExceededException e
+        (ExecutionState/timedOut code (.getMessage e))))))
+
+(def ^{:doc "The fields of an execution document `status-of` needs."}
+  status-fields [:creationTime :error :executionTimeMilliseconds])
+
+(defn status-of
+  "It returns the `ExecutionState$Status` of an execution document
+  fetched with at least the `status-fields`."
+  [execution]
+  (if-let [{:keys [type]} (:error execution)]
+    (case (keyword type)
+      :error ExecutionState$Status/FAILED
+      :timeout ExecutionState$Status/TIMED_OUT)
+    (cond
+     (contains? execution :executionTimeMilliseconds) ExecutionState$Status/COMPLETED
+     (> (now-ms) (+ (:creationTime execution) *time-allowed-for-execution-ms*))
+     ExecutionState$Status/TIMED_OUT
+     :else ExecutionState$Status/PENDING)))
+
+(defn execution-status
+  "It returns the `ExecutionState$Status` of the execution with `code`,
+  or nil if it doesn't exist. Only the fields needed to tell it are
+  fetched: the result isn't. The workers set the
+  `:executionTimeMilliseconds` along the result, so it tells that the
+  execution has completed."
+  [code]
+  (when-let [found (find-unique executions-coll code
+                                :only status-fields)]
+    (status-of found)))
+
+(defn result-content-hash
+  "It returns a `Maybe` with the content hash of the result lines of
+  the execution with `code`, or nil if it doesn't exist. Only the hash
+  stored along the result and the fields needed to tell the status are
+  fetched. The results stored before the hash was are retrieved to
+  compute it."
+  [code]
+  (when-let [found (find-unique executions-coll code
+                                :only [:creationTime :error
+                                       :executionTimeMilliseconds
+                                       :resultSha1 :resultSummary.sha1])]
+    (check-no-error-on-execution found)
+    (if (contains? found :executionTimeMilliseconds)
+      (Maybe/value (or (:resultSha1 found)
+                       (get-in found [:resultSummary :sha1])
+                       (.getResultContentHash
+                        ^ExecutionResult
+                        (to-execution-result
+                         (find-unique executions-coll code)))))
+      (do
+        (check-no-execution-time-exceeded #(:creationTime found)
+                                          *time-allowed-for-execution-ms*)
+        (Maybe/none)))))
+
+(defn periodical-last-modified
+  "The time the periodical execution with `code` was last modified:
+  when its last execution was completed or, if none, when it was
+  created. It's nil if it doesn't exist. Neither the inputs nor the
+  last result are fetched."
+  ^DateTime
+  [code]
+  (when-let [found (find-unique periodicals-coll code
+                                :only [:creationTime :lastExecution.creationTime])]
+    (DateTime. (or (get-in found [:lastExecution :creationTime])
+                   (:creationTime found)))))
+
+(defn retrieve-executions
+  "It retrieves the states of the executions with the given codes
+  using a single query. The codes not found are not included in the
+  returned map."
+  [execution-codes]
+  (let [found (mongo/fetch executions-coll
+                           :where {:_id {:$in (vec (distinct execution-codes))}})]
+    (into {} (for [each found]
+               [(:_id each) (execution-state each)]))))
+
+;; ### Memoization of Executions
+
+;; The same robot is often submitted with the same inputs within
+;; minutes. If the backend has a `:memoization`, an execution submitted
+;; less than `ttl-ms` ago for the same robot and inputs, completed or
+;; still running, is returned instead of sending a new one to the
+;; workers. Failed or timed out executions are never reused. The
+;; executions are only shared by the submissions of the same robot,
+;; since they belong to it: deleting the robot deletes them.
+
+(defn memoization
+  "The memoization of a backend: the freshness required and the
+  counters of hits and misses."
+  [ttl-ms]
+  {:ttl-ms ttl-ms :hits (atom 0) :misses (atom 0)})
+
+(defn memoization-stats
+  "The counters of the memoization of `backend`, or nil if it's
+  disabled."
+  [backend]
+  (when-let [{:keys [ttl-ms hits misses]} (:memoization backend)]
+    (let [hits @hits
+          misses @misses
+          total (+ hits misses)]
+      {:ttl-ms ttl-ms
+       :hits hits
+       :misses misses
+       :hit-rate (if (zero? total) 0.0 (double (/ hits total)))})))
+
+(defn memo-key
+  "It identifies the executions of the same robot with the same inputs:
+  the SHA-1 of the robot code, its XML and the inputs as an hexadecimal
+  string."
+  [^Robot robot inputs]
+  (let [digest (MessageDigest/getInstance "SHA-1")]
+    (.update digest (.getBytes (pr-str [(.getCode robot)
+                                        (.getTransformerInXML robot)
+                                        (vec inputs)])
+                               "UTF-8"))
+    (apply str (map #(format "%02x" (bit-and % 0xff)) (.digest digest)))))
+
+(defn find-fresh-execution
+  "The code of the most recent execution with `memo-key` created less
+  than `ttl-ms` ago, unless it has failed or timed out."
+  [memo-key ttl-ms]
+  (when-let [latest (first (mongo/fetch executions-coll
+                                        :where {:memoKey memo-key
+                                                :creationTime {:$gte (- (now-ms) ttl-ms)}}
+                                        :only (conj status-fields :_id)
+                                        :sort {:creationTime -1}
+                                        :limit 1))]
+    (when (#{ExecutionState$Status/PENDING ExecutionState$Status/COMPLETED}
+           (status-of latest))
+      (:_id latest))))
+
+(defn submit-memoized-execution!
+  "It submits an execution for the given `robot` unless a fresh one
+  exists, see `find-fresh-execution`. Without memoization it's the
+  same as `submit-execution-for-robot!`."
+  [backend ^Robot robot inputs]
+  (if-let [{:keys [ttl-ms hits misses]} (:memoization backend)]
+    (let [key (memo-key robot inputs)]
+      (if-let [code (find-fresh-execution key ttl-ms)]
+        (do (swap! hits inc)
+            code)
+        (do (swap! misses inc)
+            (submit-execution-for-robot! (:workers backend) robot inputs key))))
+    (submit-execution-for-robot! (:workers backend) robot inputs)))
+
+(defn submit-memoized-executions!
+  "The same as `submit-memoized-execution!` for several executions of
+  `robot`, one for each of the `inputs-sets` with the `memo-keys` in
+  the same order. The ones without a fresh execution are submitted
+  together, see `submit-executions-for-robot!`. It returns their codes
+  in the same order."
+  [backend ^Robot robot inputs-sets memo-keys]
+  (let [{:keys [ttl-ms hits misses] :as memoization} (:memoization backend)
+        inputs-sets (vec inputs-sets)
+        memo-keys (vec memo-keys)
+        found (vec (for [key memo-keys]
+                     (when memoization (find-fresh-execution key ttl-ms))))
+        missing (vec (keep-indexed #(when-not %2 %1) found))
+        submitted (zipmap missing
+                          (submit-executions-for-robot!
+                           (:workers backend) robot (map inputs-sets missing)
+                           (when memoization (map memo-keys missing))))]
+    (when memoization
+      (swap! hits + (- (count found) (count missing)))
+      (swap! misses + (count missing)))
+    (vec (map-indexed #(or %2 (submitted %1)) found))))
+
+;; ### Coalescing of Executions in Flight
+
+;; Several clients can submit the same robot with the same inputs at
+;; the same moment. Only one of them sends the execution to the
+;; workers, the rest receive its code while it's pending. The
+;; executions in flight are kept in the `:coalescing` of the backend
+;; by their `memo-key`.
+
+(defn coalescing
+  "The executions in flight of a backend and the counter of the
+  submissions that have been attached to one of them."
+  []
+  {:in-flight (atom {}) :coalesced (atom 0)})
+
+(defn coalescing-stats
+  "The counters of the coalescing of `backend`, or nil if it's
+  disabled."
+  [backend]
+  (when-let [{:keys [in-flight coalesced]} (:coalescing backend)]
+    {:in-flight (count @in-flight)
+     :coalesced @coalesced}))
+
+(defn- pending?
+  [code]
+  (= ExecutionState$Status/PENDING (execution-status code)))
+
+(defn- remove-in-flight!
+  "It removes `entry` from `in-flight`, unless it has been replaced."
+  [in-flight key entry]
+  (swap! in-flight #(if (identical? entry (get % key))
+                      (dissoc % key)
+                      %)))
+
+(defn- claim!
+  "It puts a new entry for `key` in `in-flight` unless there is one
+  already. It returns the entry for `key` and whether it's the new
+  one."
+  [in-flight key]
+  (let [mine {:code (promise) :since (now-ms)}
+        current (-> (swap! in-flight #(if (contains? % key)
+                                        %
+                                        (assoc % key mine)))
+                    (get key))]
+    [current (identical? current mine)]))
+
+(defn single-flight!
+  "It returns the code of the execution in flight for `key` if it's
+  still pending. Otherwise `submit` is called to obtain a new one. The
+  concurrent calls for the same `key` wait for the one calling
+  `submit` and share its execution."
+  [{:keys [in-flight coalesced]} key submit]
+  (loop []
+    (let [[current own] (claim! in-flight key)]
+      (if own
+        (let [code (try
+                     (submit)
+                     (catch Throwable e
+                       (remove-in-flight! in-flight key current)
+                       (deliver (:code current) nil)
+                       (throw e)))]
+          (deliver (:code current) code)
+          code)
+        (let [code @(:code current)]
+          (if (and code (pending? code))
+            (do (swap! coalesced inc)
+                code)
+            (do (remove-in-flight! in-flight key current)
+                (recur))))))))
+
+(defn single-flight-all!
+  "The same as `single-flight!` for several `keys` at once. The keys
+  without an execution in flight are given, without repetitions, to a
+  single call of `submit-all`, that returns their codes in the same
+  order. All the keys are claimed before waiting for the ones claimed
+  by other calls, so the batches sharing keys don't wait for each
+  other. It returns the codes for `keys` in the same order."
+  [{:keys [in-flight coalesced] :as coalescing} keys submit-all]
+  (let [claims (into {} (for [key (distinct keys)]
+                          [key (claim! in-flight key)]))
+        entry-of #(first (claims %))
+        mine (vec (filter #(second (claims %)) (distinct keys)))
+        abandon! (fn [key]
+                   (remove-in-flight! in-flight key (entry-of key))
+                   (deliver (:code (entry-of key)) nil))
+        codes (try
+                (zipmap mine (submit-all mine))
+                (catch Throwable e
+                  (dorun (map abandon! mine))
+                  (throw e)))]
+    (doseq [key mine]
+      (deliver (:code (entry-of key)) (codes key)))
+    (vec (for [key keys]
+           (or (codes key)
+               (let [code @(:code (entry-of key))]
+                 (if (and code (pending? code))
+                   (do (swap! coalesced inc)
+                       code)
+                   (do (remove-in-flight! in-flight key (entry-of key))
+                       (single-flight! coalescing key
+                                       #(first (submit-all [key])))))))))))
+
+(defn prune-in-flight!
+  "It removes the executions in flight submitted more than
+  `max-time-ms` ago. They can't be pending anymore."
+  [{:keys [in-flight]} max-time-ms]
+  (let [oldest-allowed (- (now-ms) max-time-ms)]
+    (doseq [[key {:keys [since] :as entry}] @in-flight
+            :when (< since oldest-allowed)]
+      (remove-in-flight! in-flight key entry))))
+
+(defn submit-coalesced-execution!
+  "It submits an execution for the given `robot` unless the same one is
+  in flight. Without coalescing it's the same as
+  `submit-memoized-execution!`."
+  [backend ^Robot robot inputs]
+  (if-let [coalescing (:coalescing backend)]
+    (single-flight! coalescing (memo-key robot inputs)
+                    #(submit-memoized-execution! backend robot inputs))
+    (submit-memoized-execution! backend robot inputs)))
+
+(defn submit-coalesced-executions!
+  "It submits several executions of `robot`, one for each of the
+  `inputs-sets`, with the same coalescing and memoization as
+  `submit-coalesced-execution!`. The ones that must be executed are
+  submitted together. It returns their codes in the same order."
+  [backend ^Robot robot inputs-sets]
+  (let [inputs-sets (vec inputs-sets)
+        keys (vec (map #(memo-key robot %) inputs-sets))
+        inputs-by-key (zipmap keys inputs-sets)
+        submit-all #(submit-memoized-executions!
+                     backend robot (map inputs-by-key %) %)]
+    (if-let [coalescing (:coalescing backend)]
+      (single-flight-all! coalescing keys submit-all)
+      (submit-all keys))))
+
 (defn new-periodical!
   "It saves the given periodical and schedules its first execution."
   [backend ^PeriodicalExecution periodicalExecution]
@@ -481,6 +881,9 @@ closed too."
 ;; 1. `conn`: the result of `mongo/make-connection`.
 ;; 2. `workers`: used to communicate with the workers.
 ;; 3. `closed`: an atom that is put to true when closing this object.
+;;
+;; Optionally it can have a `:memoization` and a `:coalescing`, see
+;; `memoization` and `coalescing`.
 (defrecord Backend [conn workers closed]
   IBackend
   (^void
@@ -497,14 +900,20 @@ closed too."
    submitExecution [this ^Robot robot ^List inputs]
    (on this
      (save! robots-coll robot)
-     (submit-execution-for-robot! (:workers this) robot inputs)))
+     (submit-coalesced-execution! this robot inputs)))
 
   (^String
    submitExecutionForExistentRobot [this ^String existentRobotCode ^List inputs]
    (on this
      (let [robot (.find this existentRobotCode)]
        (assert ((complement nil?) robot))
-       (submit-execution-for-robot! (:workers this) robot inputs))))
+       (submit-coalesced-execution! this robot inputs))))
+
+  (^List
+   submitExecutions [this ^String existentRobotCode ^List inputsSets]
+   (on this
+     (when-let [robot (.find this existentRobotCode)]
+       (submit-coalesced-executions! this robot inputsSets))))
 
   (^Maybe
     retrieveExecution
@@ -514,24 +923,52 @@ closed too."
        (check-no-error-on-execution found)
        (execution-or-none found))))
 
+  (^Map
+    retrieveExecutions
+    [this ^Collection executionCodes]
+    (on this
+      (retrieve-executions executionCodes)))
+
   (^void
     save [this ^PeriodicalExecution periodicalExecution]
     (on this
       (new-periodical! this periodicalExecution)))
 
+  (^ExecutionState$Status
+    executionStatus
+    [this ^String executionCode]
+    (on this
+      (execution-status executionCode)))
+
+  (^Maybe
+    retrieveResultContentHash
+    [this ^String executionCode]
+    (on this
+      (result-content-hash executionCode)))
+
   (^PeriodicalExecution
    findPeriodicalExecution [this ^String code]
     (on this
       (find-unique->domain periodicals-coll code)))
 
+  (^DateTime
+   periodicalLastModified [this ^String code]
+    (on this
+      (periodical-last-modified code)))
+
   (^void
     deleteExecution [this ^String code]
     (on this
-      (mongo/destroy! executions-coll {:_id code})))
+      (mongo/destroy! executions-coll {:_id code})
+      (results/delete-results-of! [code])))
 
   (^void
     deleteRobot [this ^String code]
     (on this
+      (let [owned-by-robot #(map :_id (mongo/fetch %1 :where %2 :only [:_id]))]
+        (results/delete-results-of!
+         (concat (owned-by-robot executions-coll {:optionalRobotCode code})
+                 (owned-by-robot periodicals-coll {:robotCode code}))))
       (mongo/destroy! robots-coll {:_id code})
       (mongo/destroy! executions-coll {:optionalRobotCode code})
       (mongo/destroy! periodicals-coll {:robotCode code})))
@@ -539,7 +976,8 @@ closed too."
   (^void
     deletePeriodical [this ^String code]
     (on this
-      (mongo/destroy! periodicals-coll {:_id code})))
+      (mongo/destroy! periodicals-coll {:_id code})
+      (results/delete-results-of! [code])))
 
   (^void
     close [this]
@@ -683,6 +1121,44 @@ when their time comes."
     (on backend
         (unschedule-timedout! *time-allowed-for-periodical-execution-ms*))))
 
+;; Each five minutes the counters of the submissions are logged.
+(def ^{:dynamic true} *polling-interval-for-submission-stats* (* 5 60 1000))
+
+(defn- log-submission-stats
+  [backend]
+  (while-backend-not-closed {:task-name "logging submission stats"
+                             :backend backend
+                             :period *polling-interval-for-submission-stats*}
+    (log/info (str "memoization: " (memoization-stats backend)
+                   ", coalescing: " (coalescing-stats backend)))))
+
+;; Each minute the executions in flight that can't be pending anymore
+;; are forgotten.
+(def ^{:dynamic true} *polling-interval-for-pruning-in-flight* (* 1 60 1000))
+
+(defn- prune-in-flight-executions
+  [backend]
+  (while-backend-not-closed {:task-name "pruning executions in flight"
+                             :backend backend
+                             :period *polling-interval-for-pruning-in-flight*}
+    (prune-in-flight! (:coalescing backend) *time-allowed-for-execution-ms*)))
+
+;; Each five minutes the chunks of the results replaced by a newer
+;; result of their periodical execution are removed, once they have
+;; been discarded for `*grace-for-discarded-results-ms*`.
+(def ^{:dynamic true} *polling-interval-for-discarded-results* (* 5 60 1000))
+
+(def ^{:dynamic true} *grace-for-discarded-results-ms*
+  results/default-discard-grace-ms)
+
+(defn- sweep-discarded-results
+  [backend]
+  (while-backend-not-closed {:task-name "sweeping discarded results"
+                             :backend backend
+                             :period *polling-interval-for-discarded-results*}
+    (on backend
+        (results/sweep-discarded! *grace-for-discarded-results-ms*))))
+
 ;; ### Backend Creation
 
 (defn add-indexes!
@@ -691,7 +1167,9 @@ when their time comes."
   (on backend
     (mongo/add-index! periodicals-coll
                       {:scheduled 1 :next-execution-ms 1 :robotCode 1})
-    (mongo/add-index! executions-coll {:optionalRobotCode 1})))
+    (mongo/add-index! executions-coll {:optionalRobotCode 1})
+    (mongo/add-index! executions-coll {:memoKey 1 :creationTime 1})
+    (results/add-indexes!)))
 
 (defn- only-defined [map]
   (->> (filter second map)
@@ -702,17 +1180,27 @@ when their time comes."
   "Create the backend and launch the background operations.
 
   The write concern is set to strict so write operations at MongoDB
-  are at least written to memory."
-  [& {:keys [host port db]}]
+  are at least written to memory. The identical executions in flight
+  are coalesced. If `memoization-ttl-ms` is positive, the executions
+  are memoized for that time."
+  [& {:keys [host port db memoization-ttl-ms]}]
   (let [mongo-connection
         (mongo/make-connection db
                                (only-defined {:host host :port port}))
         _ (mongo/set-write-concern mongo-connection :strict)]
     (let [workers-handler (create-workers-handler mongo-connection)
-          backend (Backend. mongo-connection workers-handler (atom false))
+          backend (let [backend (assoc (Backend. mongo-connection workers-handler
+                                                 (atom false))
+                                  :coalescing (coalescing))]
+                    (if (and memoization-ttl-ms (pos? memoization-ttl-ms))
+                      (assoc backend :memoization (memoization memoization-ttl-ms))
+                      backend))
           submitter (submit-periodical-executions backend)
           cleaner (clean-scheduled-but-not-completed backend)
-          poller (poll-new-workers backend)]
+          poller (poll-new-workers backend)
+          stats-logger (log-submission-stats backend)
+          pruner (prune-in-flight-executions backend)
+          sweeper (sweep-discarded-results backend)]
       (add-indexes! backend)
       (log/info (str "Backend started. Connected to " host
                      " on " port + " with database " db))
@@ -726,14 +1214,17 @@ when their time comes."
           (vals m)))
 
 ;; An implementation of IBackendBuilder that provides parameters to
-;; create-backend.
+;; create-backend. The "memoization-ttl-ms" parameter is optional.
 (defrecord BackendBuilder []
   IBackendBuilder
   (^IBackend build [this ^Map parameters]
-    (let [{:keys [mongo-host mongo-port mongo-db]}
+    (let [{:keys [mongo-host mongo-port mongo-db memoization-ttl-ms]}
           (keywordize parameters)]
       (create-backend :host mongo-host
                       :port (Integer/parseInt (str mongo-port))
-                      :db mongo-db)))
+                      :db mongo-db
+                      :memoization-ttl-ms (when memoization-ttl-ms
+                                            (Long/parseLong
+                                             (str memoization-ttl-ms))))))
   (^Collection getParametersNeeded [this]
-    ["mongo-host" "mongo-port" "mongo-db"]))
+    ["mongo-host" "mongo-port" "mongo-db" "memoization-ttl-ms"]))
@@ -2,23 +2,26 @@
   (:require [somnium.congomongo :as mongo]
             [workers.server :as server]
             [workers.client :as client]
+            [workers.results :as results]
             [lamina.core :as l])
   (:use [backend.core] :reload)
   (:use clojure.test
         robert.hooke)
   (:import [es.uvigo.ei.sing.dare.entities
-            Robot PeriodicalExecution ExecutionPeriod ExecutionPeriod$Unit ExecutionResult]
-           [es.uvigo.ei.sing.dare.domain IBackend Maybe ExecutionTimeExceededException ExecutionFailedException]
+            Robot PeriodicalExecution ExecutionPeriod ExecutionPeriod$Unit ExecutionResult
+            ResultLines]
+           [es.uvigo.ei.sing.dare.domain IBackend Maybe ExecutionTimeExceededException ExecutionFailedException
+            ExecutionState ExecutionState$Status]
            backend.core.Backend))
 
 (def *backend*)
 
 (def input-causing-error (str "input-causing-error" (rand-int 100)))
 
-(defn send-exception-on-input-causing-error [f robot inputs]
+(defn send-exception-on-input-causing-error [f robot-code robot inputs]
   (when (some #{input-causing-error} inputs)
     (throw (Exception. "Stubbed error")))
-  (f robot inputs))
+  (f robot-code robot inputs))
 
 (add-hook #'server/execute-robot send-exception-on-input-causing-error)
 
@@ -48,7 +51,7 @@
 (def create-server (partial server/local-setup :test))
 
 (defn erase-all-data! []
-  (doseq [coll [:periodical-executions :robots :executions]]
+  (doseq [coll [:periodical-executions :robots :executions results/chunks-coll]]
     (mongo/destroy! coll {})))
 
 (defn backend-fixture [f]
@@ -125,6 +128,128 @@
       (let [code (submit-execution input-causing-reduced-timeout)]
         (is (thrown? ExecutionTimeExceededException (wait-for-result code)))))))
 
+(deftest submitting-several-executions-at-once
+  (let [robot (Robot/createFromMinilanguage "url")
+        _ (.save *backend* robot)
+        inputs-sets [["http://www.esei.uvigo.es"] ["http://www.uvigo.es"]]
+        codes (.submitExecutions *backend* (.getCode robot) inputs-sets)
+        wait-for-result #(l/wait-for-result
+                          (poll-for-execution-result *backend* %) 8000)]
+    (testing "a code is returned for each execution"
+      (is (= 2 (count codes)))
+      (is (= 2 (count (set codes)))))
+    (testing "each execution receives its inputs"
+      (is (= inputs-sets
+             (map #(vec (.getInputs (wait-for-result %))) codes))))
+    (testing "nil is returned if the robot doesn't exist"
+      (is (nil? (.submitExecutions *backend* (new-unique-code) inputs-sets))))))
+
+(deftest identical-executions-are-memoized
+  (let [without-coalescing (dissoc *backend* :coalescing)
+        backend (assoc without-coalescing :memoization (memoization 60000))
+        robot (Robot/createFromMinilanguage "url")
+        _ (.save backend robot)
+        submit (fn [backend inputs]
+                 (.submitExecutionForExistentRobot backend (.getCode robot) inputs))
+        code (submit backend ["http://www.esei.uvigo.es"])]
+    (testing "the same robot with the same inputs returns the same execution"
+      (is (= code (submit backend ["http://www.esei.uvigo.es"]))))
+    (testing "other inputs are executed again"
+      (is (not= code (submit backend ["http://www.uvigo.es"]))))
+    (testing "the hits and misses are counted"
+      (is (= {:hits 1 :misses 2 :hit-rate (/ 1.0 3)}
+             (select-keys (memoization-stats backend) [:hits :misses :hit-rate]))))
+    (testing "without memoization every submission is executed"
+      (is (nil? (memoization-stats without-coalescing)))
+      (is (not= code (submit without-coalescing ["http://www.esei.uvigo.es"]))))
+    (testing "the failed executions are not reused"
+      (mongo/update! :executions {:_id code} {:$set {:error {:type "error"
+                                                             :message "failed"}}})
+      (is (not= code (submit backend ["http://www.esei.uvigo.es"]))))
+    (testing "the executions of other robots aren't reused, so deleting them
+              doesn't delete the executions of this one"
+      (let [other (Robot/createFromMinilanguage "url")
+            _ (.save backend other)
+            code (submit backend ["http://www.uvigo.es/other"])
+            other-code (.submitExecutionForExistentRobot
+                        backend (.getCode other) ["http://www.uvigo.es/other"])]
+        (is (not= code other-code))
+        (.deleteRobot backend (.getCode other))
+        (is (find-unique :executions code))))
+    (testing "the executions older than the ttl are not reused"
+      (let [backend (assoc without-coalescing :memoization (memoization 1))]
+        (Thread/sleep 10)
+        (is (not= code (submit backend ["http://www.esei.uvigo.es"])))))))
+
+(deftest concurrent-identical-submissions-are-coalesced
+  (let [backend *backend*
+        coalescing (coalescing)
+        robot (Robot/createFromMinilanguage "url")
+        submitted (atom 0)
+        submit (fn []
+                 (swap! submitted inc)
+                 (Thread/sleep 100)
+                 (insert-execution-at-initial-state! robot []))
+        single-flight #(on backend (single-flight! coalescing "key" submit))
+        codes (->> (repeatedly 10 #(future (single-flight)))
+                   (doall)
+                   (map deref))]
+    (testing "only one of them is submitted"
+      (is (= 1 @submitted))
+      (is (= 1 (count (set codes))))
+      (is (= {:in-flight 1 :coalesced 9}
+             (coalescing-stats {:coalescing coalescing}))))
+    (testing "once it isn't pending, a new one is submitted"
+      (mongo/update! :executions {:_id (first codes)}
+                     {:$set {:resultLines [] :executionTimeMilliseconds 1}})
+      (is (not= (first codes) (single-flight)))
+      (is (= 2 @submitted)))
+    (testing "the old ones are pruned"
+      (prune-in-flight! coalescing -1)
+      (is (= 0 (:in-flight (coalescing-stats {:coalescing coalescing})))))))
+
+(deftest batch-submissions-are-memoized-and-coalesced
+  (let [backend (assoc *backend* :memoization (memoization 60000))
+        robot (Robot/createFromMinilanguage "url")
+        _ (.save backend robot)
+        code (.submitExecutionForExistentRobot backend (.getCode robot)
+                                               ["http://www.esei.uvigo.es"])
+        codes (.submitExecutions backend (.getCode robot)
+                                 [["http://www.esei.uvigo.es"]
+                                  ["http://www.uvigo.es"]
+                                  ["http://www.uvigo.es"]])]
+    (testing "an execution submitted alone is reused"
+      (is (= code (first codes))))
+    (testing "the same inputs in a batch share their execution"
+      (is (= (second codes) (nth codes 2)))
+      (is (not= code (second codes))))
+    (testing "a later single submission reuses the batch execution"
+      (is (= (second codes)
+             (.submitExecutionForExistentRobot backend (.getCode robot)
+                                               ["http://www.uvigo.es"]))))))
+
+(deftest concurrent-batches-sharing-keys-are-coalesced
+  (let [backend *backend*
+        coalescing (coalescing)
+        robot (Robot/createFromMinilanguage "url")
+        submitted (atom [])
+        submit-all (fn [keys]
+                     (swap! submitted into keys)
+                     (Thread/sleep 100)
+                     (doall (for [_ keys]
+                              (insert-execution-at-initial-state! robot []))))
+        batch #(on backend (single-flight-all! coalescing % submit-all))
+        [first-codes second-codes] (->> [["a" "b" "a"] ["b" "c"]]
+                                        (map (fn [keys] (future (batch keys))))
+                                        (doall)
+                                        (map deref))]
+    (testing "each key is submitted once"
+      (is (= #{"a" "b" "c"} (set @submitted)))
+      (is (= 3 (count @submitted))))
+    (testing "the codes are given in the order of the keys"
+      (is (= (first first-codes) (nth first-codes 2)))
+      (is (= (second first-codes) (first second-codes))))))
+
 (deftest retrieving-a-not-existent-execution-returns-nil
   (is (nil? (.retrieveExecution *backend* (new-unique-code)))))
 
@@ -152,6 +277,117 @@
            (.getOptionalRobotCode execution-result) (.getCode robot)
            (.getResultLines execution-result) result-lines))))
 
+(deftest the-result-lines-can-be-stored-in-chunks
+  (let [robot (Robot/createFromMinilanguage "url")
+        code (insert-execution-at-initial-state! robot [])
+        result-lines (vec (map #(str "line\n" %) (range 25)))
+        fields (results/store-lines! (results/result-store 10) code result-lines)
+        _ (mongo/update! :executions {:_id code}
+                         {:$set (assoc fields :executionTimeMilliseconds 1000)})
+        execution (find-unique :executions code)]
+    (testing "only the summary is kept in the execution"
+      (is (not (contains? execution :resultLines)))
+      (is (= {:lines 25 :chunks 3 :chunkSize 10}
+             (select-keys (:resultSummary execution) [:lines :chunks :chunkSize])))
+      (is (= 3 (mongo/fetch-count results/chunks-coll :where {:owner code}))))
+    (testing "the lines are loaded from the chunks"
+      (is (= result-lines
+             (vec (.getResultLines (.getValue (.retrieveExecution *backend* code)))))))
+    (testing "the content hash is the stored one"
+      (is (= (.getContentHash (ResultLines/of ^java.util.List result-lines))
+             (.getResultContentHash (.getValue (.retrieveExecution *backend* code))))))
+    (testing "the chunks are deleted along the execution"
+      (.deleteExecution *backend* code)
+      (is (= 0 (mongo/fetch-count results/chunks-coll :where {:owner code}))))))
+
+(deftest the-chunks-of-a-discarded-result-are-kept-for-a-while
+  (let [store (results/result-store 10)
+        fields (results/store-lines! store (new-unique-code) ["a" "b"])
+        summary (:resultSummary fields)]
+    (results/discard-lines! store fields)
+    (testing "they can still be loaded"
+      (is (= ["a" "b"] (results/load-chunk summary 0))))
+    (testing "they're removed once the grace period has passed"
+      (results/sweep-discarded! (* 60 1000))
+      (is (= ["a" "b"] (results/load-chunk summary 0)))
+      (results/sweep-discarded! 0)
+      (is (thrown? IllegalStateException (results/load-chunk summary 0))))))
+
+(deftest several-executions-can-be-retrieved-at-once
+  (let [robot (Robot/createFromMinilanguage "url")
+        [pending completed failed] (repeatedly 3 #(insert-execution-at-initial-state! robot []))
+        missing (new-unique-code)
+        _ (mongo/update! :executions {:_id completed} {:$set {:resultLines ["one"]
+                                                              :executionTimeMilliseconds 1000}})
+        _ (mongo/update! :executions {:_id failed} {:$set {:error {:type "error"
+                                                                   :message "failed"}}})
+        states (.retrieveExecutions *backend* [pending completed failed missing])
+        status-of #(.getStatus ^ExecutionState (get states %))]
+    (testing "the codes not found are not included"
+      (is (= #{pending completed failed} (set (keys states)))))
+    (are [code status] (= status (status-of code))
+         pending ExecutionState$Status/PENDING
+         completed ExecutionState$Status/COMPLETED
+         failed ExecutionState$Status/FAILED)
+    (is (= ["one"] (.getResultLines (.getResult (get states completed)))))
+    (is (= "failed" (.getErrorMessage (get states failed))))))
+
+(deftest the-status-of-an-execution-can-be-retrieved-alone
+  (let [robot (Robot/createFromMinilanguage "url")
+        [pending completed failed] (repeatedly 3 #(insert-execution-at-initial-state! robot []))
+        _ (mongo/update! :executions {:_id completed} {:$set {:resultLines ["one"]
+                                                              :executionTimeMilliseconds 1000}})
+        _ (mongo/update! :executions {:_id failed} {:$set {:error {:type "timeout"
+                                                                   :message "timed out"}}})]
+    (are [code status] (= status (.executionStatus *backend* code))
+         pending ExecutionState$Status/PENDING
+         completed ExecutionState$Status/COMPLETED
+         failed ExecutionState$Status/TIMED_OUT
+         (new-unique-code) nil)
+    (testing "it agrees with the state retrieved along the result"
+      (let [states (.retrieveExecutions *backend* [pending completed failed])]
+        (doseq [code [pending completed failed]]
+          (is (= (.getStatus ^ExecutionState (get states code))
+                 (.executionStatus *backend* code))))))))
+
+(deftest the-content-hash-of-a-result-can-be-retrieved-alone
+  (let [robot (Robot/createFromMinilanguage "url")
+        [pending inline chunked] (repeatedly 3 #(insert-execution-at-initial-state! robot []))
+        result-lines ["one" "two"]
+        expected (.getContentHash (ResultLines/of ^java.util.List result-lines))
+        store! (fn [code store]
+                 (mongo/update! :executions {:_id code}
+                                {:$set (assoc (results/store-lines! store code result-lines)
+                                         :executionTimeMilliseconds 1000)}))]
+    (store! inline (results/result-store 0))
+    (store! chunked (results/result-store 10))
+    (is (nil? (.retrieveResultContentHash *backend* (new-unique-code))))
+    (is (not (.hasValue (.retrieveResultContentHash *backend* pending))))
+    (testing "the hash is stored along the lines"
+      (is (= expected (:resultSha1 (find-unique :executions inline)))))
+    (doseq [code [inline chunked]]
+      (is (= expected (.getValue (.retrieveResultContentHash *backend* code))))
+      (is (= expected (.getResultContentHash
+                       (.getValue (.retrieveExecution *backend* code))))))))
+
+(deftest the-last-modification-of-a-periodical-can-be-retrieved-alone
+  (let [robot (Robot/createFromMinilanguage "url")
+        _ (.save *backend* robot)
+        periodical (.createPeriodical robot (ExecutionPeriod. 1 ExecutionPeriod$Unit/DAYS)
+                                      ["http://www.esei.uvigo.es"])
+        code (.getCode periodical)]
+    (save! :periodical-executions periodical)
+    (is (nil? (.periodicalLastModified *backend* (new-unique-code))))
+    (testing "without last execution it's the creation time"
+      (is (= (.getMillis (.getCreationTime periodical))
+             (.getMillis (.periodicalLastModified *backend* code)))))
+    (testing "with last execution it's when it was completed"
+      (mongo/update! :periodical-executions {:_id code}
+                     {:$set {:lastExecution {:resultLines ["one"]
+                                             :executionTimeMilliseconds 1000
+                                             :creationTime 1234}}})
+      (is (= 1234 (.getMillis (.periodicalLastModified *backend* code)))))))
+
 (deftest finding-a-non-existent-periodical-execution-returns-nil
   (is (nil? (.findPeriodicalExecution *backend* (new-unique-code)))))
 
@@ -0,0 +1,41 @@
+package es.uvigo.ei.sing.dare.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Loads the files used as input by the benchmarks. They're kept along the
+ * benchmark classes so no network access is needed.
+ */
+public class Fixtures {
+
+    public static String read(String name) {
+        InputStream stream = Fixtures.class.getResourceAsStream(name);
+        if (stream == null) {
+            throw new IllegalArgumentException("fixture not found: " + name);
+        }
+        StringBuilder result = new StringBuilder();
+        char[] buffer = new char[4096];
+        try {
+            Reader reader = new InputStreamReader(stream, "UTF-8");
+            try {
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    result.append(buffer, 0, read);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result.toString();
+    }
+
+    private Fixtures() {
+        // utility class, not instantiable
+    }
+
+}
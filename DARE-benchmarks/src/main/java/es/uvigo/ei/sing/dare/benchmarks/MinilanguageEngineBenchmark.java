@@ -0,0 +1,99 @@
+package es.uvigo.ei.sing.dare.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import es.uvigo.ei.sing.dare.entities.Robot;
+import es.uvigo.ei.sing.dare.util.XMLUtil;
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+import es.uvigo.ei.sing.stringeditor.StepBudget;
+import es.uvigo.ei.sing.stringeditor.Transformer;
+
+/**
+ * Compares the JRuby engine and the native one evaluating minilanguage
+ * programs and converting robot XML back to the minilanguage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MinilanguageEngineBenchmark {
+
+    public static final String SIMPLE = "url | xpath('//a/@href') | patternMatcher('(http://.*)')";
+
+    // JMH doesn't allow line breaks in the params
+    public static final String COMPLEX = "url | "
+            + "pipe{ patternMatcher(:pattern => 'bar') | url}.repeat?{ "
+            + "patternMatcher(:pattern => 'foo') } | "
+            + "branch(:BRANCH_DUPLICATED, :SCATTERED) { "
+            + "decorator(:head => '<p>', :tail => '</p>'); "
+            + "replacer(:sourceRE => 'e', :dest => 'a') } | "
+            + "appender(:append => 'bar')";
+
+    @Param({ SIMPLE, COMPLEX })
+    public String program;
+
+    private Minilanguage jruby;
+
+    private Minilanguage nativeEngine;
+
+    private Document robotXML;
+
+    @Setup(Level.Trial)
+    public void createEngines() {
+        jruby = new Minilanguage(Engine.JRUBY);
+        nativeEngine = new Minilanguage(Engine.NATIVE);
+        robotXML = XMLUtil.toDocument(Robot.createFromMinilanguage(
+                nativeEngine, program).getTransformerInXML());
+    }
+
+    @TearDown(Level.Trial)
+    public void terminateEngines() {
+        jruby.terminate();
+        nativeEngine.terminate();
+    }
+
+    @Benchmark
+    public Transformer evalWithJRuby() {
+        return jruby.eval(program);
+    }
+
+    @Benchmark
+    public Transformer evalWithJRubyAndBudget() {
+        return jruby.eval(program, new StepBudget(
+                StepBudget.DEFAULT_MAX_EVALUATION_STEPS));
+    }
+
+    @Benchmark
+    public Transformer evalNatively() {
+        return nativeEngine.eval(program);
+    }
+
+    @Benchmark
+    public String xmlToLanguageWithJRuby() {
+        return jruby.xmlToLanguage(robotXML);
+    }
+
+    @Benchmark
+    public String xmlToLanguageNatively() {
+        return nativeEngine.xmlToLanguage(robotXML);
+    }
+
+}
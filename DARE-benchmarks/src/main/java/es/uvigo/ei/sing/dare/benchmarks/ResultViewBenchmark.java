@@ -0,0 +1,76 @@
+package es.uvigo.ei.sing.dare.benchmarks;
+
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
+
+/**
+ * Measures the serialization of execution results, as done when they're
+ * returned by the REST API.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultViewBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int lines;
+
+    private RobotExecutionResultView view;
+
+    private Marshaller marshaller;
+
+    @Setup(Level.Trial)
+    public void prepare() throws JAXBException {
+        List<String> resultLines = new ArrayList<String>(lines);
+        for (int i = 0; i < lines; i++) {
+            resultLines.add("http://www.example.com/items/" + i);
+        }
+        view = new RobotExecutionResultView(
+                URI.create("http://localhost/api/robot/code"), new DateTime(),
+                1000, Collections.singletonList("http://www.example.com"),
+                resultLines);
+        // the context is created once, like the JAXB provider does
+        marshaller = JAXBContext.newInstance(RobotExecutionResultView.class)
+                .createMarshaller();
+    }
+
+    @Benchmark
+    public String asJSON() {
+        return view.asJSON().toString();
+    }
+
+    @Benchmark
+    public String asXML() throws JAXBException {
+        StringWriter result = new StringWriter();
+        marshaller.marshal(view, result);
+        return result.toString();
+    }
+
+}
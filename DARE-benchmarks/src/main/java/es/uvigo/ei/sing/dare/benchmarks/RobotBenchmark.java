@@ -0,0 +1,80 @@
+package es.uvigo.ei.sing.dare.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import es.uvigo.ei.sing.dare.entities.Robot;
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+
+/**
+ * Measures the creation of robots, both from the minilanguage and from XML,
+ * and their execution over a local HTML page.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RobotBenchmark {
+
+    /**
+     * Robots that don't retrieve anything, so they can be executed over the
+     * HTML fixture given as input.
+     */
+    @Param({ "xpath('//a/@href') | patternMatcher('(http://.*)')",
+            "patternMatcher('<td>([^<]*EUR)</td>') | replacer(:sourceRE => ' EUR', :dest => '')" })
+    public String program;
+
+    private Minilanguage minilanguage;
+
+    private Robot robot;
+
+    private String robotXML;
+
+    private List<String> inputs;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        minilanguage = new Minilanguage();
+        robot = Robot.createFromMinilanguage(minilanguage, program);
+        robotXML = robot.getTransformerInXML();
+        inputs = Collections.singletonList(Fixtures.read("catalog.html"));
+    }
+
+    @TearDown(Level.Trial)
+    public void terminate() {
+        minilanguage.terminate();
+    }
+
+    @Benchmark
+    public Robot createFromMinilanguage() {
+        return Robot.createFromMinilanguage(minilanguage, program);
+    }
+
+    @Benchmark
+    public Robot createFromXML() {
+        return Robot.createFromXML(robotXML);
+    }
+
+    @Benchmark
+    public String[] execute() {
+        return robot.execute(inputs);
+    }
+
+}
@@ -0,0 +1,56 @@
+package es.uvigo.ei.sing.dare.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import es.uvigo.ei.sing.dare.entities.Robot;
+import es.uvigo.ei.sing.dare.util.XMLUtil;
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+/**
+ * Measures the parsing and printing of robot XML.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLUtilBenchmark {
+
+    private String robotXML;
+
+    private Document robotDocument;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        Minilanguage minilanguage = new Minilanguage(Engine.NATIVE);
+        robotXML = Robot.createFromMinilanguage(minilanguage,
+                MinilanguageEngineBenchmark.COMPLEX).getTransformerInXML();
+        robotDocument = XMLUtil.toDocument(robotXML);
+    }
+
+    @Benchmark
+    public Document toDocument() {
+        return XMLUtil.toDocument(robotXML);
+    }
+
+    @Benchmark
+    public String toXMLString() {
+        return XMLUtil.toString(robotDocument);
+    }
+
+}
@@ -0,0 +1,288 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import es.uvigo.ei.sing.dare.domain.ExecutionState.Status;
+import es.uvigo.ei.sing.dare.entities.ExecutionResult;
+
+/**
+ * Allows to wait for the completion of an execution without querying the
+ * {@link IBackend} repeatedly. The executions are run by other processes that
+ * write their results to the storage, so the pending executions are checked
+ * by a single background thread: all of them are retrieved at once with
+ * {@link IBackend#retrieveExecutions(java.util.Collection)} each check
+ * period, no matter how many callers are waiting for them. The callers
+ * waiting are woken up as soon as a check finds that the execution has
+ * completed, has failed or no longer exists.
+ * <p>
+ * Each caller waiting blocks its thread, so at most <code>maxWaiters</code>
+ * callers are allowed to wait at the same time. Beyond that {@link #await}
+ * returns immediately as if the execution hadn't completed in time.
+ */
+public class ExecutionCompletionNotifier {
+
+    private static final Log LOG = LogFactory
+            .getLog(ExecutionCompletionNotifier.class);
+
+    public static final int DEFAULT_MAX_WAITERS = 100;
+
+    private static class Watch {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // guarded by the watches lock
+        private int waiters = 0;
+
+        private volatile Maybe<ExecutionResult> result;
+
+        private volatile Exception error;
+
+        void finish(Maybe<ExecutionResult> result, Exception error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        Maybe<ExecutionResult> outcome()
+                throws ExecutionTimeExceededException,
+                ExecutionFailedException {
+            if (error instanceof ExecutionTimeExceededException) {
+                throw (ExecutionTimeExceededException) error;
+            }
+            if (error instanceof ExecutionFailedException) {
+                throw (ExecutionFailedException) error;
+            }
+            return result;
+        }
+    }
+
+    private final IBackend backend;
+
+    private final int maxWaiters;
+
+    private final Map<String, Watch> watches = new HashMap<String, Watch>();
+
+    // guarded by the watches lock
+    private int waiting = 0;
+
+    // guarded by the watches lock
+    private long rejected = 0;
+
+    private final ScheduledExecutorService checker = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r, "execution-completion");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+
+    public ExecutionCompletionNotifier(IBackend backend, long checkPeriod,
+            TimeUnit unit) {
+        this(backend, checkPeriod, unit, DEFAULT_MAX_WAITERS);
+    }
+
+    public ExecutionCompletionNotifier(IBackend backend, long checkPeriod,
+            TimeUnit unit, int maxWaiters) {
+        Validate.notNull(backend);
+        Validate.isTrue(checkPeriod > 0, "checkPeriod must be positive");
+        Validate.notNull(unit);
+        Validate.isTrue(maxWaiters >= 0, "maxWaiters can't be negative");
+        this.backend = backend;
+        this.maxWaiters = maxWaiters;
+        checker.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    checkPending();
+                } catch (Throwable e) {
+                    LOG.error("unexpected error checking executions", e);
+                }
+            }
+        }, checkPeriod, checkPeriod, unit);
+    }
+
+    /**
+     * The same as {@link IBackend#retrieveExecution(String)}, but if the
+     * execution hasn't completed yet it waits for it up to
+     * <code>timeout</code>. If there are already <code>maxWaiters</code>
+     * callers waiting it doesn't wait.
+     *
+     * @return <code>null</code> if there is no execution for
+     *         <code>executionCode</code>. A {@link Maybe} without value if
+     *         the execution hasn't completed in the given time or it couldn't
+     *         wait for it.
+     */
+    public Maybe<ExecutionResult> await(String executionCode, long timeout,
+            TimeUnit unit) throws ExecutionTimeExceededException,
+            ExecutionFailedException {
+        Validate.notNull(executionCode);
+        Validate.notNull(unit);
+        Maybe<ExecutionResult> current = retrieveIfNotPending(executionCode);
+        if (current == null || current.hasValue() || timeout <= 0) {
+            return current;
+        }
+        Watch watch = register(executionCode);
+        if (watch == null) {
+            return Maybe.none();
+        }
+        try {
+            if (!watch.done.await(timeout, unit)) {
+                return Maybe.none();
+            }
+            return watch.outcome();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Maybe.none();
+        } finally {
+            unregister(executionCode, watch);
+        }
+    }
+
+    /**
+     * The execution is only retrieved once its status isn't pending, so
+     * asking for an execution that hasn't completed doesn't read it.
+     */
+    private Maybe<ExecutionResult> retrieveIfNotPending(String executionCode)
+            throws ExecutionTimeExceededException, ExecutionFailedException {
+        Status status = backend.executionStatus(executionCode);
+        if (status == null) {
+            return null;
+        }
+        if (status == Status.PENDING) {
+            return Maybe.none();
+        }
+        return backend.retrieveExecution(executionCode);
+    }
+
+    /**
+     * @return the number of executions being waited for
+     */
+    public int getPending() {
+        synchronized (watches) {
+            return watches.size();
+        }
+    }
+
+    /**
+     * @return the number of callers waiting
+     */
+    public int getWaiting() {
+        synchronized (watches) {
+            return waiting;
+        }
+    }
+
+    /**
+     * @return the number of callers that couldn't wait because there were
+     *         already <code>maxWaiters</code> waiting
+     */
+    public long getRejected() {
+        synchronized (watches) {
+            return rejected;
+        }
+    }
+
+    /**
+     * Stops checking the pending executions. The callers still waiting are
+     * woken up as if their executions hadn't completed.
+     */
+    public void close() {
+        checker.shutdownNow();
+        synchronized (watches) {
+            for (Watch each : watches.values()) {
+                each.finish(Maybe.<ExecutionResult> none(), null);
+            }
+            watches.clear();
+        }
+    }
+
+    /**
+     * @return <code>null</code> if there are already <code>maxWaiters</code>
+     *         callers waiting
+     */
+    private Watch register(String executionCode) {
+        synchronized (watches) {
+            if (waiting >= maxWaiters) {
+                rejected++;
+                return null;
+            }
+            waiting++;
+            Watch result = watches.get(executionCode);
+            if (result == null) {
+                result = new Watch();
+                watches.put(executionCode, result);
+            }
+            result.waiters++;
+            return result;
+        }
+    }
+
+    private void unregister(String executionCode, Watch watch) {
+        synchronized (watches) {
+            waiting--;
+            watch.waiters--;
+            if (watch.waiters == 0 && watches.get(executionCode) == watch) {
+                watches.remove(executionCode);
+            }
+        }
+    }
+
+    private void checkPending() {
+        List<String> pending;
+        synchronized (watches) {
+            pending = new ArrayList<String>(watches.keySet());
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, ExecutionState> states;
+        try {
+            states = backend.retrieveExecutions(pending);
+        } catch (RuntimeException e) {
+            LOG.warn("error checking " + pending.size() + " executions", e);
+            return;
+        }
+        for (String each : pending) {
+            ExecutionState state = states.get(each);
+            if (state == null || state.getStatus() != Status.PENDING) {
+                finish(each, state);
+            }
+        }
+    }
+
+    private void finish(String executionCode, ExecutionState state) {
+        Maybe<ExecutionResult> result = null;
+        Exception error = null;
+        try {
+            result = state == null ? null : state.asMaybe();
+        } catch (ExecutionTimeExceededException e) {
+            error = e;
+        } catch (ExecutionFailedException e) {
+            error = e;
+        }
+        Watch watch;
+        synchronized (watches) {
+            watch = watches.remove(executionCode);
+        }
+        if (watch != null) {
+            watch.finish(result, error);
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import org.apache.commons.lang.Validate;
+
+import es.uvigo.ei.sing.dare.entities.ExecutionResult;
+
+/**
+ * The state of an execution as found when retrieving several at once with
+ * {@link IBackend#retrieveExecutions(java.util.Collection)}. Since an error
+ * in one of them can't be thrown, it's kept here instead.
+ */
+public class ExecutionState {
+
+    public enum Status {
+        PENDING, COMPLETED, FAILED, TIMED_OUT;
+
+        public String asString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    public static ExecutionState pending(String code) {
+        return new ExecutionState(code, Status.PENDING, null, null);
+    }
+
+    public static ExecutionState completed(ExecutionResult result) {
+        Validate.notNull(result);
+        return new ExecutionState(result.getCode(), Status.COMPLETED, result,
+                null);
+    }
+
+    public static ExecutionState failed(String code, String errorMessage) {
+        return new ExecutionState(code, Status.FAILED, null, errorMessage);
+    }
+
+    public static ExecutionState timedOut(String code, String errorMessage) {
+        return new ExecutionState(code, Status.TIMED_OUT, null, errorMessage);
+    }
+
+    private final String code;
+
+    private final Status status;
+
+    private final ExecutionResult result;
+
+    private final String errorMessage;
+
+    private ExecutionState(String code, Status status,
+            ExecutionResult result, String errorMessage) {
+        Validate.notNull(code);
+        this.code = code;
+        this.status = status;
+        this.result = result;
+        this.errorMessage = errorMessage;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return <code>null</code> unless the execution has completed
+     */
+    public ExecutionResult getResult() {
+        return result;
+    }
+
+    /**
+     * @return <code>null</code> unless the execution has failed or timed out
+     */
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @return the same as {@link IBackend#retrieveExecution(String)} would
+     *         return for this state
+     */
+    public Maybe<ExecutionResult> asMaybe()
+            throws ExecutionTimeExceededException, ExecutionFailedException {
+        switch (status) {
+        case COMPLETED:
+            return Maybe.value(result);
+        case FAILED:
+            throw new ExecutionFailedException(errorMessage);
+        case TIMED_OUT:
+            throw new ExecutionTimeExceededException(errorMessage);
+        default:
+            return Maybe.none();
+        }
+    }
+
+}
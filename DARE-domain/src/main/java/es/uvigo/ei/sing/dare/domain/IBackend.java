@@ -1,7 +1,11 @@
 package es.uvigo.ei.sing.dare.domain;
 
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
 
 import es.uvigo.ei.sing.dare.entities.ExecutionResult;
 import es.uvigo.ei.sing.dare.entities.PeriodicalExecution;
@@ -52,6 +56,23 @@ public interface IBackend extends Closeable {
      */
     public String submitExecutionForExistentRobot(String existentRobotCode, List<String> inputs);
 
+    /**
+     * Submits several executions of an existent robot at once, one for each
+     * list of inputs. It's equivalent to calling
+     * {@link IBackend#submitExecutionForExistentRobot(String, List)} for each
+     * one, but the executions are stored and dispatched together.
+     *
+     * @param existentRobotCode
+     * @param inputsSets
+     *            the inputs for each execution
+     * @return the codes of the executions, in the same order as
+     *         <code>inputsSets</code>. <code>null</code> if the robot doesn't
+     *         exist.
+     * @see IBackend#retrieveExecution(String)
+     */
+    public List<String> submitExecutions(String existentRobotCode,
+            List<List<String>> inputsSets);
+
     /**
      * Returns a fulfilled {@link ExecutionResult} if it has been completed,
      * i.e., a {@link Maybe} with a value. Otherwise a {@link Maybe} without an
@@ -66,6 +87,43 @@ public interface IBackend extends Closeable {
     Maybe<ExecutionResult> retrieveExecution(String executionCode)
             throws ExecutionTimeExceededException, ExecutionFailedException;
 
+    /**
+     * Retrieves the state of several executions at once. Unlike
+     * {@link IBackend#retrieveExecution(String)} the errors are not thrown,
+     * they're kept in the {@link ExecutionState} of each execution.
+     *
+     * @param executionCodes
+     * @return the state of each execution found keyed by its code. The codes
+     *         without execution are not included.
+     */
+    Map<String, ExecutionState> retrieveExecutions(
+            Collection<String> executionCodes);
+
+    /**
+     * Retrieves only the status of an execution. Its result is not read, so
+     * it's cheap enough to be called each time an execution is polled. The
+     * result of a completed execution can be retrieved afterwards with
+     * {@link IBackend#retrieveExecution(String)}.
+     *
+     * @param executionCode
+     * @return <code>null</code> if there is no execution for executionCode.
+     */
+    ExecutionState.Status executionStatus(String executionCode);
+
+    /**
+     * Retrieves the {@link ExecutionResult#getResultContentHash() content
+     * hash} of the result lines of an execution. It's stored along the
+     * result, so neither the result nor its lines are read. It allows to
+     * tell if a result known by a client is still the same before
+     * retrieving it with {@link IBackend#retrieveExecution(String)}.
+     *
+     * @param executionCode
+     * @return <code>null</code> if there is no execution for executionCode.
+     *         A {@link Maybe} without value if it hasn't completed.
+     */
+    Maybe<String> retrieveResultContentHash(String executionCode)
+            throws ExecutionTimeExceededException, ExecutionFailedException;
+
     void save(PeriodicalExecution periodicalExecution);
 
     /**
@@ -77,6 +135,17 @@ public interface IBackend extends Closeable {
      */
     PeriodicalExecution findPeriodicalExecution(String code);
 
+    /**
+     * The last time the periodical execution with <code>code</code> changed:
+     * when its last execution was completed or, if it hasn't been executed
+     * yet, when it was created. Neither its inputs nor its last result are
+     * read.
+     *
+     * @param code
+     * @return <code>null</code> if not found
+     */
+    DateTime periodicalLastModified(String code);
+
     /**
      * Removes from the storage the execution with code <code>code</code>
      *
@@ -0,0 +1,176 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.AllPermission;
+import java.security.CodeSource;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+import es.uvigo.ei.sing.stringeditor.TransformerXML;
+
+/**
+ * The program run by each process of a {@link SandboxedMinilanguageParser}.
+ * It reads minilanguage programs from the standard input and writes the
+ * robots they define in XML form to the standard output.
+ *
+ * Each message is an int with the length of the content followed by the
+ * content in UTF-8. A response is preceded by a status byte. Once ready, the
+ * process writes {@link #READY}.
+ *
+ * If the evaluation of a program consumes more than the CPU time given as
+ * first argument, the process halts with {@link #CPU_TIME_EXCEEDED} as exit
+ * code. If it runs out of memory it responds {@link #MEMORY_EXCEEDED} and
+ * halts.
+ *
+ * Each program is evaluated by a new engine, since a program can change the
+ * Ruby runtime for the ones evaluated after it. The next engine is created
+ * once the response has been written.
+ *
+ * A {@link SecurityManager} is installed before evaluating any program, so
+ * the programs run with the permissions given by {@link Minilanguage} to the
+ * Ruby code, as they do in a JVM with a security manager, and can't access
+ * files, run commands or open connections.
+ */
+public class MinilanguageParserProcess {
+
+    static final byte READY = 0;
+
+    static final byte PARSED = 1;
+
+    static final byte INVALID = 2;
+
+    static final byte MEMORY_EXCEEDED = 3;
+
+    static final int CPU_TIME_EXCEEDED = 75;
+
+    static final String ENCODING = "UTF-8";
+
+    // evaluated before being ready, so the first request doesn't pay the
+    // warm up
+    private static final String WARM_UP_PROGRAM = "url | patternMatcher('(a)')";
+
+    private static final long CPU_CHECK_INTERVAL_MILLIS = 10;
+
+    static String read(DataInputStream input) throws IOException {
+        byte[] content = new byte[input.readInt()];
+        input.readFully(content);
+        return new String(content, ENCODING);
+    }
+
+    static void write(DataOutputStream output, String content)
+            throws IOException {
+        byte[] bytes = content.getBytes(ENCODING);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static volatile long evaluationStartCpuNanos = -1;
+
+    public static void main(String[] args) throws IOException {
+        final long cpuTimeLimitNanos = Long.parseLong(args[0]);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                System.in));
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(System.out));
+        // the programs can't write to the stream used for the responses
+        System.setOut(new PrintStream(System.err, true));
+        installSecurityManager();
+        Minilanguage minilanguage = new Minilanguage();
+        minilanguage.eval(WARM_UP_PROGRAM);
+        minilanguage.terminate();
+        minilanguage = new Minilanguage();
+        watchCpuTime(Thread.currentThread(), cpuTimeLimitNanos);
+        output.writeByte(READY);
+        output.flush();
+        while (true) {
+            String program;
+            try {
+                program = read(input);
+            } catch (EOFException e) {
+                return;
+            }
+            try {
+                evaluationStartCpuNanos = cpuTime(Thread.currentThread());
+                String xml = TransformerXML.toXML(minilanguage.eval(program));
+                evaluationStartCpuNanos = -1;
+                output.writeByte(PARSED);
+                write(output, xml);
+            } catch (OutOfMemoryError e) {
+                evaluationStartCpuNanos = -1;
+                output.writeByte(MEMORY_EXCEEDED);
+                write(output, "");
+                output.flush();
+                Runtime.getRuntime().halt(1);
+            } catch (Throwable e) {
+                evaluationStartCpuNanos = -1;
+                output.writeByte(INVALID);
+                write(output, String.valueOf(e.getMessage()));
+            }
+            output.flush();
+            minilanguage.terminate();
+            minilanguage = new Minilanguage();
+        }
+    }
+
+    /**
+     * The code of the application is granted all permissions. The programs
+     * are evaluated in a context restricted to the ones needed by JRuby,
+     * that isn't affected by the policy.
+     */
+    private static void installSecurityManager() {
+        Policy.setPolicy(new Policy() {
+
+            @Override
+            public PermissionCollection getPermissions(CodeSource codesource) {
+                Permissions result = new Permissions();
+                result.add(new AllPermission());
+                return result;
+            }
+
+            @Override
+            public void refresh() {
+            }
+        });
+        System.setSecurityManager(new SecurityManager());
+    }
+
+    private static long cpuTime(Thread thread) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads.isThreadCpuTimeSupported() ? threads
+                .getThreadCpuTime(thread.getId()) : 0;
+    }
+
+    private static void watchCpuTime(final Thread evaluator,
+            final long limitNanos) {
+        Thread watcher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    long start = evaluationStartCpuNanos;
+                    if (start >= 0 && cpuTime(evaluator) - start > limitNanos) {
+                        Runtime.getRuntime().halt(CPU_TIME_EXCEEDED);
+                    }
+                    try {
+                        Thread.sleep(CPU_CHECK_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "cpu-time-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+}
@@ -0,0 +1,378 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+
+/**
+ * A pool of reusable {@link Minilanguage} engines. Creating an engine is
+ * expensive since a new Ruby runtime must be booted, so the engines are
+ * borrowed and given back instead of being thrown away after each use.
+ *
+ * At least <code>minIdle</code> engines are kept ready: they're created in
+ * the background when the pool is built and whenever an engine is discarded.
+ * No more than <code>maxSize</code> engines exist at the same time. The idle
+ * engines exceeding <code>minIdle</code> that haven't been used for
+ * <code>idleTimeout</code> are discarded.
+ *
+ * An engine is retired after <code>maxUses</code> uses. A program can change
+ * the Ruby runtime of the engine, e.g. reopening classes or defining globals,
+ * and {@link Minilanguage#reset()} doesn't undo it. So by default each engine
+ * evaluates a single program and a new one is booted in the background to
+ * replace it. A greater <code>maxUses</code> must only be used if the
+ * programs are trusted.
+ */
+public class MinilanguagePool {
+
+    private static final Log LOG = LogFactory.getLog(MinilanguagePool.class);
+
+    public static final int DEFAULT_MAX_USES = 1;
+
+    private static class Idle {
+
+        private final Minilanguage minilanguage;
+
+        private final long idleSince = System.currentTimeMillis();
+
+        Idle(Minilanguage minilanguage) {
+            this.minilanguage = minilanguage;
+        }
+    }
+
+    private final int minIdle;
+
+    private final int maxSize;
+
+    private final long idleTimeoutMillis;
+
+    private final int maxUses;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    // the most recently used engines are at the head
+    private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+    private final Map<Minilanguage, Integer> uses = new IdentityHashMap<Minilanguage, Integer>();
+
+    // engines created or being created, either idle or borrowed
+    private int total = 0;
+
+    private boolean closed = false;
+
+    private final ScheduledExecutorService maintainer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r, "minilanguage-pool");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+
+    public MinilanguagePool(int minIdle, int maxSize, long idleTimeout,
+            TimeUnit unit) {
+        this(minIdle, maxSize, idleTimeout, unit, DEFAULT_MAX_USES);
+    }
+
+    public MinilanguagePool(int minIdle, int maxSize, long idleTimeout,
+            TimeUnit unit, int maxUses) {
+        Validate.isTrue(minIdle >= 0, "minIdle cannot be negative");
+        Validate.isTrue(maxSize > 0, "maxSize must be positive");
+        Validate.isTrue(minIdle <= maxSize, "minIdle cannot exceed maxSize");
+        Validate.isTrue(idleTimeout > 0, "idleTimeout must be positive");
+        Validate.notNull(unit);
+        Validate.isTrue(maxUses > 0, "maxUses must be positive");
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        this.maxUses = maxUses;
+        long checkPeriod = Math.max(1, idleTimeoutMillis / 2);
+        maintainer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    evictExpired();
+                    warmUp();
+                } catch (Throwable e) {
+                    LOG.error("unexpected error maintaining the pool", e);
+                }
+            }
+        }, 0, checkPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows an engine, waiting for one to be available if the pool has
+     * reached its maximum size. It must be given back with
+     * {@link #giveBack(Minilanguage)} or {@link #invalidate(Minilanguage)}.
+     *
+     * @throws TimeoutException
+     *             if no engine became available in the given time
+     */
+    public Minilanguage borrow(long timeout, TimeUnit unit)
+            throws TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (true) {
+                checkNotClosed();
+                if (!idle.isEmpty()) {
+                    return idle.removeFirst().minilanguage;
+                }
+                if (total < maxSize) {
+                    total++;
+                    break;
+                }
+                if (remaining <= 0) {
+                    throw new TimeoutException("no minilanguage available");
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        return create();
+    }
+
+    /**
+     * Returns to the pool an engine that can be safely reused.
+     */
+    public void giveBack(Minilanguage minilanguage) {
+        Validate.notNull(minilanguage);
+        boolean retire;
+        lock.lock();
+        try {
+            int timesUsed = incrementUses(minilanguage);
+            retire = closed || timesUsed >= maxUses;
+            if (retire) {
+                discarded(minilanguage);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (retire) {
+            terminate(minilanguage);
+            scheduleWarmUp();
+            return;
+        }
+        minilanguage.reset();
+        lock.lock();
+        try {
+            idle.addFirst(new Idle(minilanguage));
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards an engine that cannot be reused, for example because its
+     * evaluation has been aborted.
+     */
+    public void invalidate(Minilanguage minilanguage) {
+        Validate.notNull(minilanguage);
+        lock.lock();
+        try {
+            discarded(minilanguage);
+        } finally {
+            lock.unlock();
+        }
+        terminate(minilanguage);
+        scheduleWarmUp();
+    }
+
+    /**
+     * @return the number of engines ready to be borrowed
+     */
+    public int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of engines existing, either idle or borrowed
+     */
+    public int getTotal() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Discards the idle engines and stops the background maintenance. The
+     * engines borrowed are discarded when given back.
+     */
+    public void close() {
+        LinkedList<Idle> toTerminate;
+        lock.lock();
+        try {
+            closed = true;
+            toTerminate = new LinkedList<Idle>(idle);
+            for (Idle each : idle) {
+                discarded(each.minilanguage);
+            }
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        maintainer.shutdownNow();
+        for (Idle each : toTerminate) {
+            terminate(each.minilanguage);
+        }
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("the pool has been closed");
+        }
+    }
+
+    private Minilanguage create() {
+        try {
+            return new Minilanguage();
+        } catch (RuntimeException e) {
+            lock.lock();
+            try {
+                total--;
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private int incrementUses(Minilanguage minilanguage) {
+        Integer previous = uses.get(minilanguage);
+        int result = previous == null ? 1 : previous + 1;
+        uses.put(minilanguage, result);
+        return result;
+    }
+
+    // must be called holding the lock
+    private void discarded(Minilanguage minilanguage) {
+        uses.remove(minilanguage);
+        total--;
+        available.signal();
+    }
+
+    private void terminate(Minilanguage minilanguage) {
+        try {
+            minilanguage.terminate();
+        } catch (Throwable e) {
+            LOG.warn("error terminating minilanguage", e);
+        }
+    }
+
+    private void scheduleWarmUp() {
+        if (closed) {
+            return;
+        }
+        maintainer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    warmUp();
+                } catch (Throwable e) {
+                    LOG.error("unexpected error warming up the pool", e);
+                }
+            }
+        });
+    }
+
+    private void evictExpired() {
+        LinkedList<Minilanguage> expired = new LinkedList<Minilanguage>();
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            // the least recently used are at the tail
+            Iterator<Idle> iterator = idle.descendingIterator();
+            while (iterator.hasNext() && idle.size() > minIdle) {
+                Idle each = iterator.next();
+                if (now - each.idleSince < idleTimeoutMillis) {
+                    break;
+                }
+                iterator.remove();
+                discarded(each.minilanguage);
+                expired.add(each.minilanguage);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Minilanguage each : expired) {
+            terminate(each);
+        }
+        if (!expired.isEmpty()) {
+            LOG.debug("evicted " + expired.size() + " idle minilanguages");
+        }
+    }
+
+    private void warmUp() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || total >= maxSize) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            Minilanguage created = create();
+            boolean kept;
+            lock.lock();
+            try {
+                kept = !closed;
+                if (kept) {
+                    idle.addFirst(new Idle(created));
+                    available.signal();
+                } else {
+                    discarded(created);
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!kept) {
+                terminate(created);
+                return;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,529 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import static es.uvigo.ei.sing.dare.util.StringUtil.quote;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang.Validate;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+
+/**
+ * Parses minilanguage programs in separate JVMs, so a program that never
+ * ends or consumes too much memory can be aborted by killing its process
+ * instead of stopping a thread shared with the rest of the application.
+ *
+ * <code>processes</code> processes running {@link MinilanguageParserProcess}
+ * are kept ready, each one with at most <code>maxMemoryMB</code> of heap.
+ * They're started in the background when the parser is built and whenever a
+ * process is discarded, and they're reused by the following requests, so the
+ * parsing latency is close to the in-process one. A process is discarded if
+ * it's aborted and retired after <code>maxUses</code> uses.
+ *
+ * A program is aborted if its evaluation consumes more than
+ * <code>cpuTimeLimit</code> of CPU time or if the response doesn't arrive in
+ * the timeout given to {@link #parse(String, long, TimeUnit)}.
+ */
+public class SandboxedMinilanguageParser {
+
+    private static final Log LOG = LogFactory
+            .getLog(SandboxedMinilanguageParser.class);
+
+    public static final int DEFAULT_MAX_MEMORY_MB = 128;
+
+    public static final int DEFAULT_MAX_USES = 1000;
+
+    private static final long MAX_WAIT_FOR_PROCESS_MILLIS = 10 * 1000;
+
+    private class ParserProcess {
+
+        private final Process process;
+
+        private final DataOutputStream requests;
+
+        private final DataInputStream responses;
+
+        private int uses = 0;
+
+        ParserProcess() throws IOException {
+            process = new ProcessBuilder(command).start();
+            requests = new DataOutputStream(new BufferedOutputStream(
+                    process.getOutputStream()));
+            responses = new DataInputStream(new BufferedInputStream(
+                    process.getInputStream()));
+            logErrorOutput(process);
+            byte ready = responses.readByte();
+            if (ready != MinilanguageParserProcess.READY) {
+                destroy();
+                throw new IOException("unexpected response: " + ready);
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+
+        /**
+         * @return the exit code or <code>null</code> if it's still running
+         */
+        Integer exitCode() {
+            try {
+                return process.exitValue();
+            } catch (IllegalThreadStateException e) {
+                return null;
+            }
+        }
+    }
+
+    private final int processes;
+
+    private final int maxMemoryMB;
+
+    private final long cpuTimeLimitNanos;
+
+    private final int maxUses;
+
+    private final List<String> command;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final LinkedList<ParserProcess> idle = new LinkedList<ParserProcess>();
+
+    // processes started or being started, either idle or in use
+    private int total = 0;
+
+    private boolean closed = false;
+
+    private final AtomicLong started = new AtomicLong();
+
+    private final AtomicLong parsed = new AtomicLong();
+
+    private final AtomicLong aborted = new AtomicLong();
+
+    // starts the processes, which takes seconds
+    private final ExecutorService maintainer = Executors
+            .newSingleThreadExecutor(daemonThreads("sandboxed-parser"));
+
+    // kills the processes exceeding the timeout, so they aren't delayed by
+    // the processes being started
+    private final ScheduledExecutorService killer = Executors
+            .newSingleThreadScheduledExecutor(
+                    daemonThreads("sandboxed-parser-timeout"));
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, name);
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    public SandboxedMinilanguageParser(int processes, int maxMemoryMB,
+            long cpuTimeLimit, TimeUnit unit) {
+        this(processes, maxMemoryMB, cpuTimeLimit, unit, DEFAULT_MAX_USES);
+    }
+
+    public SandboxedMinilanguageParser(int processes, int maxMemoryMB,
+            long cpuTimeLimit, TimeUnit unit, int maxUses) {
+        Validate.isTrue(processes > 0, "processes must be positive");
+        Validate.isTrue(maxMemoryMB > 0, "maxMemoryMB must be positive");
+        Validate.isTrue(cpuTimeLimit > 0, "cpuTimeLimit must be positive");
+        Validate.notNull(unit);
+        Validate.isTrue(maxUses > 0, "maxUses must be positive");
+        this.processes = processes;
+        this.maxMemoryMB = maxMemoryMB;
+        this.cpuTimeLimitNanos = unit.toNanos(cpuTimeLimit);
+        this.maxUses = maxUses;
+        this.command = buildCommand();
+        scheduleWarmUp();
+    }
+
+    private List<String> buildCommand() {
+        List<String> result = new ArrayList<String>();
+        result.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        result.add("-Xmx" + maxMemoryMB + "m");
+        if (securityManagerMustBeAllowed()) {
+            result.add("-Djava.security.manager=allow");
+        }
+        String engine = System.getProperty(Minilanguage.ENGINE_PROPERTY);
+        if (engine != null) {
+            result.add("-D" + Minilanguage.ENGINE_PROPERTY + "=" + engine);
+        }
+        result.add("-cp");
+        result.add(classpath());
+        result.add(MinilanguageParserProcess.class.getName());
+        result.add(Long.toString(cpuTimeLimitNanos));
+        return result;
+    }
+
+    /**
+     * Since Java 18 {@link System#setSecurityManager(SecurityManager)} fails
+     * unless it's allowed when starting the JVM. The <code>allow</code>
+     * value is understood since Java 12, before it would be taken as the
+     * name of a {@link SecurityManager} class.
+     */
+    private static boolean securityManagerMustBeAllowed() {
+        String version = System.getProperty("java.specification.version");
+        try {
+            return !version.startsWith("1.")
+                    && Integer.parseInt(version.split("\\.")[0]) >= 12;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * In an application server the classes aren't in the classpath of the
+     * JVM, but in the one of the class loader of the application.
+     */
+    private static String classpath() {
+        Set<String> entries = new LinkedHashSet<String>();
+        for (ClassLoader each = SandboxedMinilanguageParser.class
+                .getClassLoader(); each != null; each = each.getParent()) {
+            if (each instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) each).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        entries.add(toPath(url));
+                    }
+                }
+            }
+        }
+        for (String each : System.getProperty("java.class.path").split(
+                File.pathSeparator)) {
+            if (!each.isEmpty()) {
+                entries.add(each);
+            }
+        }
+        StringBuilder result = new StringBuilder();
+        for (String each : entries) {
+            if (result.length() > 0) {
+                result.append(File.pathSeparator);
+            }
+            result.append(each);
+        }
+        return result.toString();
+    }
+
+    private static String toPath(URL url) {
+        try {
+            return new File(url.toURI()).getPath();
+        } catch (URISyntaxException e) {
+            return url.getPath();
+        }
+    }
+
+    private static void logErrorOutput(final Process process) {
+        Thread logger = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getErrorStream()));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        LOG.debug("parser process: " + line);
+                    }
+                } catch (IOException e) {
+                    // the process has finished
+                }
+            }
+        }, "sandboxed-parser-output");
+        logger.setDaemon(true);
+        logger.start();
+    }
+
+    /**
+     * Evaluates a minilanguage program in one of the processes.
+     *
+     * @return the robot defined by <code>program</code> in XML form
+     * @throws IllegalArgumentException
+     *             if the program is not valid or it needs more memory than
+     *             allowed
+     * @throws TimeoutException
+     *             if the evaluation took more than the timeout or consumed
+     *             more CPU time than allowed
+     * @throws RejectedExecutionException
+     *             if no process became available in a reasonable time
+     */
+    public String parse(String program, long timeout, TimeUnit unit)
+            throws TimeoutException {
+        Validate.notNull(program);
+        ParserProcess process = borrow();
+        boolean reusable = false;
+        final AtomicBoolean killed = new AtomicBoolean(false);
+        final ParserProcess toKill = process;
+        ScheduledFuture<?> kill = killer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                killed.set(true);
+                toKill.destroy();
+            }
+        }, timeout, unit);
+        try {
+            MinilanguageParserProcess.write(process.requests, program);
+            process.requests.flush();
+            byte status = process.responses.readByte();
+            String content = MinilanguageParserProcess
+                    .read(process.responses);
+            kill.cancel(false);
+            switch (status) {
+            case MinilanguageParserProcess.PARSED:
+                reusable = !killed.get();
+                parsed.incrementAndGet();
+                return content;
+            case MinilanguageParserProcess.INVALID:
+                reusable = !killed.get();
+                throw new IllegalArgumentException(quote(program)
+                        + "is wrong");
+            case MinilanguageParserProcess.MEMORY_EXCEEDED:
+                aborted.incrementAndGet();
+                throw new IllegalArgumentException(quote(program)
+                        + " needs more memory than allowed");
+            default:
+                throw new IllegalStateException("unexpected response: "
+                        + status);
+            }
+        } catch (IOException e) {
+            kill.cancel(false);
+            if (killed.get() || cpuTimeExceeded(process)) {
+                aborted.incrementAndGet();
+                throw new TimeoutException("the parsing of "
+                        + quote(program) + " has been aborted");
+            }
+            throw new RuntimeException(e);
+        } finally {
+            if (reusable) {
+                giveBack(process);
+            } else {
+                discard(process);
+            }
+        }
+    }
+
+    private static boolean cpuTimeExceeded(ParserProcess process) {
+        try {
+            return process.process.waitFor() == MinilanguageParserProcess.CPU_TIME_EXCEEDED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private ParserProcess borrow() {
+        long remaining = TimeUnit.MILLISECONDS
+                .toNanos(MAX_WAIT_FOR_PROCESS_MILLIS);
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException(
+                            "the parser has been closed");
+                }
+                if (!idle.isEmpty()) {
+                    return idle.removeFirst();
+                }
+                if (remaining <= 0) {
+                    throw new RejectedExecutionException(
+                            "no minilanguage parser process available");
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void giveBack(ParserProcess process) {
+        process.uses++;
+        if (process.uses >= maxUses || process.exitCode() != null) {
+            discard(process);
+            return;
+        }
+        boolean destroy;
+        lock.lock();
+        try {
+            destroy = closed;
+            if (destroy) {
+                total--;
+            } else {
+                idle.addFirst(process);
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (destroy) {
+            process.destroy();
+        }
+    }
+
+    private void discard(ParserProcess process) {
+        process.destroy();
+        lock.lock();
+        try {
+            total--;
+        } finally {
+            lock.unlock();
+        }
+        scheduleWarmUp();
+    }
+
+    private void scheduleWarmUp() {
+        try {
+            maintainer.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        warmUp();
+                    } catch (Throwable e) {
+                        LOG.error("unexpected error starting parser processes",
+                                e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    private void warmUp() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || total >= processes) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            ParserProcess created;
+            try {
+                created = new ParserProcess();
+                started.incrementAndGet();
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    total--;
+                } finally {
+                    lock.unlock();
+                }
+                LOG.error("error starting a parser process", e);
+                return;
+            }
+            giveBack(created);
+        }
+    }
+
+    /**
+     * @return the number of processes ready to parse
+     */
+    public int getIdle() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getProcesses() {
+        return processes;
+    }
+
+    public int getMaxMemoryMB() {
+        return maxMemoryMB;
+    }
+
+    /**
+     * @return the number of processes started since the parser was built
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    public long getParsed() {
+        return parsed.get();
+    }
+
+    /**
+     * @return the number of evaluations aborted for exceeding the time or
+     *         the memory allowed
+     */
+    public long getAborted() {
+        return aborted.get();
+    }
+
+    /**
+     * Stops the idle processes. The processes in use are stopped when their
+     * evaluation finishes.
+     */
+    public void close() {
+        List<ParserProcess> toDestroy;
+        lock.lock();
+        try {
+            closed = true;
+            toDestroy = new ArrayList<ParserProcess>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        maintainer.shutdownNow();
+        killer.shutdownNow();
+        for (ParserProcess each : toDestroy) {
+            each.destroy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SandboxedMinilanguageParser[processes=" + processes
+                + ", idle=" + getIdle() + ", started=" + getStarted()
+                + ", parsed=" + getParsed() + ", aborted=" + getAborted()
+                + "]";
+    }
+
+}
@@ -1,7 +1,6 @@
 package es.uvigo.ei.sing.dare.entities;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -36,7 +35,9 @@ public class ExecutionResult {
 
     private final long executionTimeMilliseconds;
 
-    private final List<String> resultLines;
+    private final ResultLines resultLines;
+
+    private final List<Long> inputTimesMilliseconds;
 
     private ExecutionResult(String code, String createdFromCode,
             long executionTimeMilliseconds, List<String> inputs,
@@ -48,6 +49,26 @@ public class ExecutionResult {
     public ExecutionResult(String code, DateTime creationTime,
             String optionalRobotCode, long executionTimeMilliseconds,
             List<String> inputs, String[] resultLines) {
+        this(code, creationTime, optionalRobotCode, executionTimeMilliseconds,
+                inputs, ResultLines.of(resultLines));
+    }
+
+    /**
+     * @param resultLines
+     *            they're kept as they are, so they can be loaded lazily. See
+     *            {@link ResultLines#chunked(int, int, ResultLines.IChunkLoader)}
+     */
+    public ExecutionResult(String code, DateTime creationTime,
+            String optionalRobotCode, long executionTimeMilliseconds,
+            List<String> inputs, ResultLines resultLines) {
+        this(code, creationTime, optionalRobotCode, executionTimeMilliseconds,
+                inputs, resultLines, Collections.<Long> emptyList());
+    }
+
+    private ExecutionResult(String code, DateTime creationTime,
+            String optionalRobotCode, long executionTimeMilliseconds,
+            List<String> inputs, ResultLines resultLines,
+            List<Long> inputTimesMilliseconds) {
         Validate.notNull(code);
         Validate.notNull(creationTime);
         Validate.isTrue(executionTimeMilliseconds >= 0);
@@ -59,8 +80,8 @@ public class ExecutionResult {
         this.executionTimeMilliseconds = executionTimeMilliseconds;
         this.inputs = Collections
                 .unmodifiableList(new ArrayList<String>(inputs));
-        this.resultLines = Collections.unmodifiableList(Arrays
-                .asList(resultLines));
+        this.resultLines = resultLines;
+        this.inputTimesMilliseconds = inputTimesMilliseconds;
     }
 
     public String getCode() {
@@ -87,10 +108,39 @@ public class ExecutionResult {
         return resultLines;
     }
 
+    /**
+     * @see ResultLines#getContentHash()
+     */
+    public String getResultContentHash() {
+        return resultLines.getContentHash();
+    }
+
+    /**
+     * @return the milliseconds the execution for each input took, in the
+     *         order of the inputs. It's empty if the inputs weren't executed
+     *         on their own.
+     */
+    public List<Long> getInputTimesMilliseconds() {
+        return inputTimesMilliseconds;
+    }
+
     public ExecutionResult withExecutionTime(long executionTime) {
-        return new ExecutionResult(this.code, this.optionalRobotCode,
-                executionTime, this.inputs,
-                this.resultLines.toArray(new String[0]));
+        return new ExecutionResult(this.code, new DateTime(),
+                this.optionalRobotCode, executionTime, this.inputs,
+                this.resultLines, this.inputTimesMilliseconds);
+    }
+
+    public ExecutionResult withInputTimes(long... inputTimesMilliseconds) {
+        Validate.isTrue(inputTimesMilliseconds.length == 0
+                || inputTimesMilliseconds.length == inputs.size());
+        List<Long> times = new ArrayList<Long>();
+        for (long each : inputTimesMilliseconds) {
+            times.add(each);
+        }
+        return new ExecutionResult(this.code, this.creationTime,
+                this.optionalRobotCode, this.executionTimeMilliseconds,
+                this.inputs, this.resultLines, Collections
+                        .unmodifiableList(times));
     }
 
 }
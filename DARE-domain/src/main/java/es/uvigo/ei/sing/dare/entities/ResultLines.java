@@ -0,0 +1,238 @@
+package es.uvigo.ei.sing.dare.entities;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * The result lines of an execution. They can be held in memory or be split in
+ * fixed size chunks that are loaded on demand, so a big result doesn't need
+ * to be entirely in memory to be traversed.
+ *
+ * It's an unmodifiable list. The chunked implementation only keeps the last
+ * chunk loaded, so iterating over it sequentially loads each chunk once.
+ *
+ * The {@link #getContentHash() content hash} identifies the lines. The workers
+ * store it along the lines, so it can be known without loading them.
+ */
+public abstract class ResultLines extends AbstractList<String> implements
+        RandomAccess {
+
+    /**
+     * Loads the chunks of a result. It's called when the lines of a chunk are
+     * needed and its chunk is not the last loaded one.
+     */
+    public interface IChunkLoader {
+
+        /**
+         * @param chunkIndex
+         *            the index of the chunk, starting at zero
+         * @return the lines of the chunk. All the chunks except the last one
+         *         must have the chunk size lines.
+         */
+        List<String> load(int chunkIndex);
+    }
+
+    /**
+     * The lines are not copied, so the array must not be modified afterwards.
+     */
+    public static ResultLines of(String... lines) {
+        Validate.notNull(lines);
+        return new InMemory(Arrays.asList(lines), null);
+    }
+
+    /**
+     * The lines are not copied, so the list must not be modified afterwards.
+     */
+    public static ResultLines of(List<String> lines) {
+        Validate.notNull(lines);
+        if (lines instanceof ResultLines) {
+            return (ResultLines) lines;
+        }
+        return new InMemory(lines, null);
+    }
+
+    /**
+     * @param contentHash
+     *            the {@link #getContentHash()} of the lines stored along
+     *            them. <code>null</code> if it's not known, then it's
+     *            computed when asked for.
+     */
+    public static ResultLines of(List<String> lines, String contentHash) {
+        Validate.notNull(lines);
+        return new InMemory(lines, contentHash);
+    }
+
+    public static ResultLines chunked(int size, int chunkSize,
+            IChunkLoader loader) {
+        return chunked(size, chunkSize, null, loader);
+    }
+
+    /**
+     * @param contentHash
+     *            the {@link #getContentHash()} of the lines.
+     *            <code>null</code> if it's not known, then all the chunks are
+     *            loaded to compute it.
+     */
+    public static ResultLines chunked(int size, int chunkSize,
+            String contentHash, IChunkLoader loader) {
+        return new Chunked(size, chunkSize, contentHash, loader);
+    }
+
+    /**
+     * @return the number of chunks into which <code>size</code> lines are
+     *         split
+     */
+    public static int chunksCount(int size, int chunkSize) {
+        return size / chunkSize + (size % chunkSize == 0 ? 0 : 1);
+    }
+
+    private static class InMemory extends ResultLines {
+
+        private final List<String> lines;
+
+        InMemory(List<String> lines, String contentHash) {
+            super(contentHash);
+            this.lines = lines;
+        }
+
+        @Override
+        public String get(int index) {
+            return lines.get(index);
+        }
+
+        @Override
+        public int size() {
+            return lines.size();
+        }
+
+        @Override
+        public boolean isLoaded() {
+            return true;
+        }
+    }
+
+    private static class Chunked extends ResultLines {
+
+        private static class Chunk {
+
+            private final int index;
+
+            private final List<String> lines;
+
+            Chunk(int index, List<String> lines) {
+                this.index = index;
+                this.lines = lines;
+            }
+        }
+
+        private final int size;
+
+        private final int chunkSize;
+
+        private final IChunkLoader loader;
+
+        private volatile Chunk last;
+
+        Chunked(int size, int chunkSize, String contentHash,
+                IChunkLoader loader) {
+            super(contentHash);
+            Validate.isTrue(size >= 0);
+            Validate.isTrue(chunkSize > 0);
+            Validate.notNull(loader);
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.loader = loader;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("index: " + index
+                        + ", size: " + size);
+            }
+            return chunk(index / chunkSize).get(index % chunkSize);
+        }
+
+        private List<String> chunk(int chunkIndex) {
+            Chunk result = last;
+            if (result == null || result.index != chunkIndex) {
+                List<String> lines = loader.load(chunkIndex);
+                int expected = Math.min(chunkSize, size - chunkIndex
+                        * chunkSize);
+                if (lines == null || lines.size() != expected) {
+                    throw new IllegalStateException("the chunk " + chunkIndex
+                            + " should have " + expected + " lines");
+                }
+                result = new Chunk(chunkIndex, lines);
+                last = result;
+            }
+            return result.lines;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean isLoaded() {
+            return false;
+        }
+    }
+
+    private volatile String contentHash;
+
+    ResultLines(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * @return <code>true</code> if all the lines are in memory
+     */
+    public abstract boolean isLoaded();
+
+    /**
+     * The SHA-1 of the lines in hexadecimal. Each line is digested as its
+     * length in bytes, an int, followed by its bytes in UTF-8. It's the same
+     * encoding used by the workers for the chunks, so it doesn't depend on
+     * how the lines are stored.
+     */
+    public String getContentHash() {
+        String result = contentHash;
+        if (result == null) {
+            result = contentHash = computeContentHash(this);
+        }
+        return result;
+    }
+
+    private static String computeContentHash(List<String> lines) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String each : lines) {
+                byte[] bytes = each.getBytes("UTF-8");
+                int length = bytes.length;
+                digest.update(new byte[] { (byte) (length >>> 24),
+                        (byte) (length >>> 16), (byte) (length >>> 8),
+                        (byte) length });
+                digest.update(bytes);
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte each : digest.digest()) {
+                result.append(String.format("%02x", each & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
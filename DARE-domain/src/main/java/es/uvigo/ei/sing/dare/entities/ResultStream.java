@@ -0,0 +1,164 @@
+package es.uvigo.ei.sing.dare.entities;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+
+import es.uvigo.ei.sing.stringeditor.LineHandler;
+
+/**
+ * The result lines of an execution that is running in another thread. The
+ * lines are handed over through a bounded buffer: when it's full the
+ * execution waits until the lines are consumed, so a slow reader doesn't
+ * cause the whole result to be held in memory.
+ *
+ * It must be closed if it's not read until the end, so the execution is
+ * cancelled. An error in the execution is thrown by {@link #hasNext()}.
+ */
+public class ResultStream implements Iterator<String>, Closeable {
+
+    interface IProducer {
+
+        void produce(LineHandler handler);
+    }
+
+    private static final Object END = new Object();
+
+    private static final class Failure {
+
+        private final RuntimeException exception;
+
+        Failure(RuntimeException exception) {
+            this.exception = exception;
+        }
+    }
+
+    private final BlockingQueue<Object> buffer;
+
+    private volatile boolean closed = false;
+
+    private Object next;
+
+    private boolean finished = false;
+
+    ResultStream(ExecutorService executor, int capacity,
+            final IProducer producer) {
+        Validate.notNull(executor);
+        Validate.isTrue(capacity > 0, "capacity must be positive");
+        Validate.notNull(producer);
+        this.buffer = new ArrayBlockingQueue<Object>(capacity);
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                produceInto(producer);
+            }
+        });
+    }
+
+    private void produceInto(IProducer producer) {
+        Object last = END;
+        try {
+            producer.produce(new LineHandler() {
+
+                @Override
+                public void line(String line) {
+                    offer(line);
+                }
+            });
+        } catch (CancellationException e) {
+            return;
+        } catch (RuntimeException e) {
+            last = new Failure(e);
+        } catch (Error e) {
+            last = new Failure(new RuntimeException(e));
+        }
+        try {
+            offer(last);
+        } catch (CancellationException e) {
+            // nobody is reading
+        }
+    }
+
+    // It waits while the buffer is full, unless the stream is closed
+    private void offer(Object element) {
+        try {
+            while (!closed) {
+                if (buffer.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new CancellationException("the result stream has been closed");
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        Object element = take();
+        if (element == END) {
+            finished = true;
+            return false;
+        }
+        if (element instanceof Failure) {
+            finished = true;
+            throw ((Failure) element).exception;
+        }
+        next = element;
+        return true;
+    }
+
+    private Object take() {
+        if (closed) {
+            throw new IllegalStateException("the result stream is closed");
+        }
+        try {
+            return buffer.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = (String) next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the execution if it's still running. The lines not read are
+     * discarded.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        finished = true;
+        next = null;
+        buffer.clear();
+    }
+
+}
@@ -3,7 +3,6 @@ package es.uvigo.ei.sing.dare.entities;
 
 import static es.uvigo.ei.sing.dare.util.StringUtil.quote;
 
-import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
@@ -19,10 +18,17 @@ import org.apache.commons.lang.Validate;
 import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 
+import es.uvigo.ei.sing.dare.domain.SandboxedMinilanguageParser;
 import es.uvigo.ei.sing.dare.util.XMLUtil;
+import es.uvigo.ei.sing.stringeditor.BudgetExceededException;
+import es.uvigo.ei.sing.stringeditor.LineHandler;
 import es.uvigo.ei.sing.stringeditor.Minilanguage;
+import es.uvigo.ei.sing.stringeditor.MinilanguageDecompiler;
+import es.uvigo.ei.sing.stringeditor.ParallelRobotRunner;
+import es.uvigo.ei.sing.stringeditor.StepBudget;
 import es.uvigo.ei.sing.stringeditor.Transformer;
-import es.uvigo.ei.sing.stringeditor.Util;
+import es.uvigo.ei.sing.stringeditor.TransformerCache;
+import es.uvigo.ei.sing.stringeditor.TransformerXML;
 import es.uvigo.ei.sing.stringeditor.XMLInputOutput;
 
 public class Robot {
@@ -34,6 +40,13 @@ public class Robot {
                 transformerInMinilanguage, executor, timeout, timeUnit);
     }
 
+    /**
+     * The evaluation takes its steps from a budget of
+     * {@link StepBudget#DEFAULT_MAX_EVALUATION_STEPS}, so most runaway
+     * programs are aborted cooperatively with a
+     * {@link BudgetExceededException}. The timeout is still enforced for the
+     * rest.
+     */
     public static Robot createFromMinilanguage(final Minilanguage minilanguage,
             final String transformerInMinilanguage, ExecutorService executor,
             long timeout, TimeUnit timeUnit) throws TimeoutException {
@@ -44,7 +57,8 @@ public class Robot {
             public Robot call() throws Exception {
                 threadRef.set(Thread.currentThread());
                 return createFromMinilanguage(minilanguage,
-                        transformerInMinilanguage);
+                        transformerInMinilanguage, new StepBudget(
+                                StepBudget.DEFAULT_MAX_EVALUATION_STEPS));
             }
         });
         try {
@@ -71,6 +85,20 @@ public class Robot {
         }
     }
 
+    /**
+     * Evaluates the program in one of the processes of <code>parser</code>,
+     * so it can be aborted without stopping any thread of this JVM.
+     */
+    public static Robot createFromMinilanguage(
+            SandboxedMinilanguageParser parser,
+            String transformerInMinilanguage, long timeout, TimeUnit timeUnit)
+            throws TimeoutException {
+        String transformerInXML = parser.parse(transformerInMinilanguage,
+                timeout, timeUnit);
+        return new Robot(transformerInMinilanguage, transformerInXML,
+                new DateTime(), null);
+    }
+
     public static Robot createFromMinilanguage(String transformerInminilanguage) {
         return createFromMinilanguage(new Minilanguage(),
                 transformerInminilanguage);
@@ -78,24 +106,30 @@ public class Robot {
 
     public static Robot createFromMinilanguage(Minilanguage minilanguage,
             String transformerInminilanguage) {
+        return createFromMinilanguage(minilanguage, transformerInminilanguage,
+                null);
+    }
+
+    /**
+     * @param budget
+     *            the steps the evaluation can take. It can be
+     *            <code>null</code> for no limit.
+     * @throws BudgetExceededException
+     *             if the evaluation takes more steps than allowed
+     */
+    public static Robot createFromMinilanguage(Minilanguage minilanguage,
+            String transformerInminilanguage, StepBudget budget) {
         Transformer transformer;
         try {
-            transformer = minilanguage.eval(transformerInminilanguage);
+            transformer = minilanguage.eval(transformerInminilanguage, budget);
+        } catch (BudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             throw new IllegalArgumentException(quote(transformerInminilanguage)
                     + "is wrong");
         }
         return new Robot(transformerInminilanguage,
-                XMLUtil.toString(fromMinilanguageToXML(transformer)),
-                new DateTime(), null);
-    }
-
-    private static Document fromMinilanguageToXML(Transformer transformer) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        XMLInputOutput.writeTransformer(transformer, stream);
-
-        // using default charset for interpreting the bytes
-        return XMLUtil.toDocument(new String(stream.toByteArray()));
+                TransformerXML.toXML(transformer), new DateTime(), null);
     }
 
     public static Robot createFromXML(String robotXML) {
@@ -106,19 +140,9 @@ public class Robot {
         return createFrom(robotXML, XMLUtil.toString(robotXML));
     }
 
-    private static Minilanguage SAFELY_SHARED;
-
-    private static Minilanguage getMinilanguageAptToTranslateToXML() {
-        if (SAFELY_SHARED != null) {
-            return SAFELY_SHARED;
-        }
-        return SAFELY_SHARED = new Minilanguage();
-    }
-
     private static Robot createFrom(Document robotXML, String robotXMLAsString) {
         checkValidRobot(robotXML);
-        String minilanguage = getMinilanguageAptToTranslateToXML()
-                .xmlToLanguage(robotXML);
+        String minilanguage = MinilanguageDecompiler.toMinilanguage(robotXML);
         return new Robot(minilanguage, robotXMLAsString, new DateTime(),
                 minilanguage);
 
@@ -200,10 +224,51 @@ public class Robot {
         return new PeriodicalExecution(this, period, inputs);
     }
 
+    /**
+     * Executes the robot. If a {@link ParallelRobotRunner} is installed, the
+     * inputs or the branches are executed concurrently when possible.
+     */
     public String[] execute(List<String> inputs) {
+        return executeTimingInputs(inputs).getLines();
+    }
+
+    /**
+     * Like {@link #execute(List)} but also reporting the time each input took
+     * if the {@link ParallelRobotRunner} installed has executed them on their
+     * own.
+     */
+    public ParallelRobotRunner.Execution executeTimingInputs(List<String> inputs) {
         String[] asArray = inputs.toArray(new String[0]);
-        return Util.runRobot(XMLInputOutput.loadTransformer(XMLUtil
-                .toDocument(transformerInXML)), asArray);
+        return TransformerCache.shared().executeRobot(code, transformerInXML,
+                asArray);
+    }
+
+    /**
+     * Executes the robot giving each result line to the handler as soon as
+     * it's produced. The lines are not retained.
+     */
+    public void execute(List<String> inputs, LineHandler handler) {
+        String[] asArray = inputs.toArray(new String[0]);
+        TransformerCache.shared().runRobot(code, transformerInXML, handler,
+                asArray);
+    }
+
+    /**
+     * Executes the robot in the given executor. The result lines can be read
+     * from the returned stream while they're produced; at most
+     * <code>bufferCapacity</code> lines are kept waiting to be read.
+     */
+    public ResultStream executeStreaming(final List<String> inputs,
+            ExecutorService executor, int bufferCapacity) {
+        Validate.notNull(inputs);
+        return new ResultStream(executor, bufferCapacity,
+                new ResultStream.IProducer() {
+
+                    @Override
+                    public void produce(LineHandler handler) {
+                        execute(inputs, handler);
+                    }
+                });
     }
 
 }
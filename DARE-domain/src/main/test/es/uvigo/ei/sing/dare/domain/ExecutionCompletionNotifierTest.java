@@ -0,0 +1,334 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Test;
+
+import es.uvigo.ei.sing.dare.domain.ExecutionState.Status;
+import es.uvigo.ei.sing.dare.entities.ExecutionResult;
+import es.uvigo.ei.sing.dare.entities.PeriodicalExecution;
+import es.uvigo.ei.sing.dare.entities.Robot;
+
+public class ExecutionCompletionNotifierTest {
+
+    private static final Robot robot = Robot.createFromMinilanguage("url");
+
+    private static class FakeBackend implements IBackend {
+
+        private final AtomicInteger retrievals = new AtomicInteger();
+
+        private final AtomicInteger bulkRetrievals = new AtomicInteger();
+
+        private final AtomicInteger statusRetrievals = new AtomicInteger();
+
+        private final ConcurrentHashMap<String, Object> executions = new ConcurrentHashMap<String, Object>();
+
+        private static final Object PENDING = new Object();
+
+        void pending(String code) {
+            executions.put(code, PENDING);
+        }
+
+        void complete(String code, String... lines) {
+            executions.put(code, ExecutionResult.create(code, robot,
+                    Arrays.asList("input"), lines));
+        }
+
+        void fail(String code) {
+            executions.put(code, new ExecutionFailedException("failed"));
+        }
+
+        @Override
+        public Maybe<ExecutionResult> retrieveExecution(String executionCode)
+                throws ExecutionTimeExceededException,
+                ExecutionFailedException {
+            retrievals.incrementAndGet();
+            Object execution = executions.get(executionCode);
+            if (execution == null) {
+                return null;
+            }
+            if (execution == PENDING) {
+                return Maybe.none();
+            }
+            if (execution instanceof ExecutionFailedException) {
+                throw (ExecutionFailedException) execution;
+            }
+            return Maybe.value((ExecutionResult) execution);
+        }
+
+        @Override
+        public Map<String, ExecutionState> retrieveExecutions(
+                Collection<String> executionCodes) {
+            bulkRetrievals.incrementAndGet();
+            Map<String, ExecutionState> result = new HashMap<String, ExecutionState>();
+            for (String each : executionCodes) {
+                Object execution = executions.get(each);
+                if (execution == PENDING) {
+                    result.put(each, ExecutionState.pending(each));
+                } else if (execution instanceof ExecutionFailedException) {
+                    result.put(each, ExecutionState.failed(each,
+                            ((Exception) execution).getMessage()));
+                } else if (execution != null) {
+                    result.put(each, ExecutionState
+                            .completed((ExecutionResult) execution));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Status executionStatus(String executionCode) {
+            statusRetrievals.incrementAndGet();
+            Object execution = executions.get(executionCode);
+            if (execution == null) {
+                return null;
+            }
+            if (execution == PENDING) {
+                return Status.PENDING;
+            }
+            return execution instanceof ExecutionFailedException ? Status.FAILED
+                    : Status.COMPLETED;
+        }
+
+        @Override
+        public Maybe<String> retrieveResultContentHash(String executionCode) {
+            return null;
+        }
+
+        @Override
+        public void save(Robot robot) {
+        }
+
+        @Override
+        public Robot find(String code) {
+            return null;
+        }
+
+        @Override
+        public String submitExecution(Robot robot, List<String> inputs) {
+            return null;
+        }
+
+        @Override
+        public String submitExecutionForExistentRobot(
+                String existentRobotCode, List<String> inputs) {
+            return null;
+        }
+
+        @Override
+        public List<String> submitExecutions(String existentRobotCode,
+                List<List<String>> inputsSets) {
+            return null;
+        }
+
+        @Override
+        public void save(PeriodicalExecution periodicalExecution) {
+        }
+
+        @Override
+        public PeriodicalExecution findPeriodicalExecution(String code) {
+            return null;
+        }
+
+        @Override
+        public DateTime periodicalLastModified(String code) {
+            return null;
+        }
+
+        @Override
+        public void deleteExecution(String code) {
+        }
+
+        @Override
+        public void deleteRobot(String code) {
+        }
+
+        @Override
+        public void deletePeriodical(String code) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private FakeBackend backend = new FakeBackend();
+
+    private ExecutionCompletionNotifier notifier = new ExecutionCompletionNotifier(
+            backend, 20, TimeUnit.MILLISECONDS);
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void close() {
+        notifier.close();
+        executor.shutdownNow();
+    }
+
+    private Future<Maybe<ExecutionResult>> awaitInBackground(
+            final String code, final long timeoutMillis) {
+        return executor.submit(new Callable<Maybe<ExecutionResult>>() {
+
+            @Override
+            public Maybe<ExecutionResult> call() throws Exception {
+                return notifier.await(code, timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void waitUntilPending(int pending) throws InterruptedException {
+        while (notifier.getPending() != pending) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void aCompletedExecutionIsReturnedImmediately() throws Exception {
+        backend.complete("a", "line");
+        Maybe<ExecutionResult> result = notifier.await("a", 10,
+                TimeUnit.SECONDS);
+        assertThat(result.getValue().getResultLines(),
+                equalTo(Arrays.asList("line")));
+        assertThat(notifier.getPending(), equalTo(0));
+    }
+
+    @Test
+    public void aPendingExecutionIsOnlyRetrievedOnceCompleted()
+            throws Exception {
+        backend.pending("a");
+        Future<Maybe<ExecutionResult>> waiting = awaitInBackground("a", 10000);
+        waitUntilPending(1);
+        assertThat(backend.statusRetrievals.get(), equalTo(1));
+        assertThat(backend.retrievals.get(), equalTo(0));
+        backend.complete("a", "line");
+        assertThat(waiting.get(5, TimeUnit.SECONDS).getValue()
+                .getResultLines(), equalTo(Arrays.asList("line")));
+    }
+
+    @Test
+    public void aNonExistentExecutionReturnsNull() throws Exception {
+        assertThat(notifier.await("missing", 10, TimeUnit.SECONDS),
+                nullValue());
+    }
+
+    @Test
+    public void ifTheExecutionDoesntCompleteInTimeNoneIsReturned()
+            throws Exception {
+        backend.pending("a");
+        assertTrue(notifier.await("a", 50, TimeUnit.MILLISECONDS).isNone());
+        assertThat(notifier.getPending(), equalTo(0));
+    }
+
+    @Test
+    public void theWaitersAreWokenUpWhenTheExecutionCompletes()
+            throws Exception {
+        backend.pending("a");
+        Future<Maybe<ExecutionResult>> first = awaitInBackground("a", 10000);
+        Future<Maybe<ExecutionResult>> second = awaitInBackground("a", 10000);
+        waitUntilPending(1);
+        backend.complete("a", "line");
+        assertThat(first.get(5, TimeUnit.SECONDS).getValue()
+                .getResultLines(), equalTo(Arrays.asList("line")));
+        assertThat(second.get(5, TimeUnit.SECONDS).getValue()
+                .getResultLines(), equalTo(Arrays.asList("line")));
+        assertThat(notifier.getPending(), equalTo(0));
+    }
+
+    @Test
+    public void anExecutionIsCheckedOnceForAllItsWaiters() throws Exception {
+        backend.pending("a");
+        for (int i = 0; i < 10; i++) {
+            awaitInBackground("a", 10000);
+        }
+        waitUntilPending(1);
+        // let all the waiters do their first retrieval
+        Thread.sleep(100);
+        int before = backend.retrievals.get();
+        int bulkBefore = backend.bulkRetrievals.get();
+        Thread.sleep(200);
+        // at most one query per check period, not one per waiter
+        assertThat(backend.retrievals.get(), equalTo(before));
+        assertTrue(backend.bulkRetrievals.get() - bulkBefore <= 200 / 20 + 1);
+    }
+
+    @Test
+    public void allThePendingExecutionsAreCheckedInASingleQuery()
+            throws Exception {
+        List<Future<Maybe<ExecutionResult>>> waiting = new ArrayList<Future<Maybe<ExecutionResult>>>();
+        for (int i = 0; i < 10; i++) {
+            backend.pending("" + i);
+            waiting.add(awaitInBackground("" + i, 10000));
+        }
+        waitUntilPending(10);
+        int before = backend.bulkRetrievals.get();
+        for (int i = 0; i < 10; i++) {
+            backend.complete("" + i, "line" + i);
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(waiting.get(i).get(5, TimeUnit.SECONDS).getValue()
+                    .getResultLines(), equalTo(Arrays.asList("line" + i)));
+        }
+        // not one query per execution
+        assertTrue(backend.bulkRetrievals.get() - before < 10);
+    }
+
+    @Test
+    public void beyondTheMaximumWaitersTheyDontWait() throws Exception {
+        notifier.close();
+        notifier = new ExecutionCompletionNotifier(backend, 20,
+                TimeUnit.MILLISECONDS, 2);
+        backend.pending("a");
+        backend.pending("b");
+        awaitInBackground("a", 10000);
+        awaitInBackground("b", 10000);
+        while (notifier.getWaiting() != 2) {
+            Thread.sleep(5);
+        }
+        long start = System.currentTimeMillis();
+        assertTrue(notifier.await("a", 10, TimeUnit.SECONDS).isNone());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertThat(notifier.getRejected(), equalTo(1L));
+        backend.complete("a", "line");
+        backend.complete("b", "line");
+        while (notifier.getWaiting() != 0) {
+            Thread.sleep(5);
+        }
+        assertThat(notifier.await("a", 10, TimeUnit.SECONDS).getValue()
+                .getResultLines(), equalTo(Arrays.asList("line")));
+    }
+
+    @Test(expected = ExecutionFailedException.class)
+    public void theFailureIsThrownToTheWaiters() throws Throwable {
+        backend.pending("a");
+        Future<Maybe<ExecutionResult>> waiting = awaitInBackground("a", 10000);
+        waitUntilPending(1);
+        backend.fail("a");
+        try {
+            waiting.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+}
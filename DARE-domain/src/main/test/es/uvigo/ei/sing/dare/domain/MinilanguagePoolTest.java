@@ -0,0 +1,100 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
+
+public class MinilanguagePoolTest {
+
+    private MinilanguagePool pool;
+
+    @After
+    public void closePool() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void aGivenBackMinilanguageIsReusedIfAllowed()
+            throws TimeoutException {
+        pool = new MinilanguagePool(0, 1, 1, TimeUnit.MINUTES, 2);
+        Minilanguage first = pool.borrow(10, TimeUnit.SECONDS);
+        pool.giveBack(first);
+        Minilanguage second = pool.borrow(10, TimeUnit.SECONDS);
+        assertThat(second, sameInstance(first));
+        assertThat(second.exec("patternMatcher('(\\d+)')", "a1"),
+                equalTo(new String[] { "1" }));
+    }
+
+    @Test
+    public void aProgramChangingTheRuntimeDoesntAffectTheNextOnes()
+            throws TimeoutException {
+        pool = new MinilanguagePool(0, 1, 1, TimeUnit.MINUTES);
+        Minilanguage first = pool.borrow(10, TimeUnit.SECONDS);
+        first.eval("::Language.class_eval { def patternMatcher(*args); url; end }\n"
+                + "url");
+        pool.giveBack(first);
+        Minilanguage second = pool.borrow(10, TimeUnit.SECONDS);
+        assertThat(second, not(sameInstance(first)));
+        assertThat(second.exec("patternMatcher('(\\d+)')", "a1"),
+                equalTo(new String[] { "1" }));
+    }
+
+    @Test
+    public void anInvalidatedMinilanguageIsNotReused() throws TimeoutException {
+        pool = new MinilanguagePool(0, 1, 1, TimeUnit.MINUTES);
+        Minilanguage first = pool.borrow(10, TimeUnit.SECONDS);
+        pool.invalidate(first);
+        Minilanguage second = pool.borrow(10, TimeUnit.SECONDS);
+        assertThat(second, not(sameInstance(first)));
+    }
+
+    @Test
+    public void noMoreThanTheMaximumSizeCanBeBorrowed() throws TimeoutException {
+        pool = new MinilanguagePool(0, 1, 1, TimeUnit.MINUTES);
+        pool.borrow(10, TimeUnit.SECONDS);
+        try {
+            pool.borrow(100, TimeUnit.MILLISECONDS);
+            fail("the pool should be exhausted");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertThat(pool.getTotal(), equalTo(1));
+    }
+
+    @Test
+    public void thePoolIsWarmedUpToTheMinimumIdle() throws InterruptedException {
+        pool = new MinilanguagePool(2, 3, 1, TimeUnit.MINUTES);
+        long deadline = System.currentTimeMillis() + 30000;
+        while (pool.getIdle() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(pool.getIdle(), equalTo(2));
+        assertThat(pool.getTotal(), equalTo(2));
+    }
+
+    @Test
+    public void theIdleMinilanguagesAboveTheMinimumAreEvicted()
+            throws Exception {
+        pool = new MinilanguagePool(0, 2, 200, TimeUnit.MILLISECONDS);
+        Minilanguage minilanguage = pool.borrow(10, TimeUnit.SECONDS);
+        pool.giveBack(minilanguage);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.getTotal() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(pool.getTotal(), equalTo(0));
+    }
+
+}
@@ -0,0 +1,141 @@
+package es.uvigo.ei.sing.dare.domain;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import es.uvigo.ei.sing.dare.entities.Robot;
+
+public class SandboxedMinilanguageParserTest {
+
+    private SandboxedMinilanguageParser parser;
+
+    @Before
+    public void createParser() {
+        parser = new SandboxedMinilanguageParser(1,
+                SandboxedMinilanguageParser.DEFAULT_MAX_MEMORY_MB, 2,
+                TimeUnit.SECONDS);
+    }
+
+    @After
+    public void closeParser() {
+        parser.close();
+    }
+
+    @Test
+    public void theRobotParsedIsTheSameAsInProcess() throws TimeoutException {
+        String program = "url | patternMatcher('(\\d+)')";
+        Robot robot = Robot.createFromMinilanguage(parser, program, 60,
+                TimeUnit.SECONDS);
+        assertThat(robot.getTransformerInXML(), equalTo(Robot
+                .createFromMinilanguage(program).getTransformerInXML()));
+        assertThat(robot.getTransformerInMinilanguage(), equalTo(program));
+    }
+
+    @Test
+    public void theProcessesAreReused() throws TimeoutException {
+        parser.parse("url", 60, TimeUnit.SECONDS);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            parser.parse("url | patternMatcher('(a)')", 60, TimeUnit.SECONDS);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertThat(parser.getStarted(), equalTo(1L));
+        assertThat(parser.getParsed(), equalTo(6L));
+    }
+
+    @Test
+    public void aProgramChangingTheRuntimeDoesntAffectTheNextOnes()
+            throws TimeoutException {
+        parser.parse("::Language.class_eval { def patternMatcher(*args); url; end }\n"
+                + "url", 60, TimeUnit.SECONDS);
+        String program = "patternMatcher('(\\d+)')";
+        Robot robot = Robot.createFromMinilanguage(parser, program, 60,
+                TimeUnit.SECONDS);
+        assertThat(robot.getTransformerInXML(), equalTo(Robot
+                .createFromMinilanguage(program).getTransformerInXML()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anInvalidProgramIsRejected() throws TimeoutException {
+        parser.parse("notValidMinilanguage", 60, TimeUnit.SECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aProgramReadingFilesIsRejected() throws TimeoutException {
+        parser.parse("File.read('/etc/passwd');url", 60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void aProgramCantRunCommands() throws Exception {
+        File created = File.createTempFile("sandboxed", ".txt");
+        created.delete();
+        try {
+            parser.parse("system('touch " + created.getPath() + "');url", 60,
+                    TimeUnit.SECONDS);
+        } catch (IllegalArgumentException e) {
+            // rejected
+        }
+        assertFalse(created.exists());
+    }
+
+    @Test
+    public void aProgramExceedingTheTimeIsAbortedAndTheProcessReplaced()
+            throws TimeoutException {
+        parser.parse("url", 60, TimeUnit.SECONDS);
+        try {
+            parser.parse("sleep(10);url", 500, TimeUnit.MILLISECONDS);
+            fail("it should have been aborted");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertThat(parser.getAborted(), equalTo(1L));
+        parser.parse("url", 60, TimeUnit.SECONDS);
+        assertThat(parser.getStarted(), equalTo(2L));
+    }
+
+    @Test
+    public void theTimeoutIsntDelayedByTheProcessesBeingStarted()
+            throws Exception {
+        parser.close();
+        parser = new SandboxedMinilanguageParser(2,
+                SandboxedMinilanguageParser.DEFAULT_MAX_MEMORY_MB, 2,
+                TimeUnit.SECONDS);
+        while (parser.getIdle() < 2) {
+            Thread.sleep(100);
+        }
+        for (int i = 0; i < 2; i++) {
+            // the first one is replaced while the second one is evaluated
+            long start = System.currentTimeMillis();
+            try {
+                parser.parse("sleep(10);url", 500, TimeUnit.MILLISECONDS);
+                fail("it should have been aborted");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            assertTrue(System.currentTimeMillis() - start < 1500);
+        }
+    }
+
+    @Test
+    public void aProgramExceedingTheCPUTimeIsAborted() {
+        try {
+            parser.parse("loop {};url", 60, TimeUnit.SECONDS);
+            fail("it should have been aborted");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertThat(parser.getAborted(), equalTo(1L));
+    }
+
+}
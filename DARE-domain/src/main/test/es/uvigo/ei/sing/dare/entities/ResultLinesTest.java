@@ -0,0 +1,124 @@
+package es.uvigo.ei.sing.dare.entities;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import es.uvigo.ei.sing.dare.entities.ResultLines.IChunkLoader;
+
+public class ResultLinesTest {
+
+    private static class CountingLoader implements IChunkLoader {
+
+        private final List<String> all;
+
+        private final int chunkSize;
+
+        private final List<Integer> loaded = new ArrayList<Integer>();
+
+        CountingLoader(List<String> all, int chunkSize) {
+            this.all = all;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public List<String> load(int chunkIndex) {
+            loaded.add(chunkIndex);
+            int from = chunkIndex * chunkSize;
+            return all.subList(from, Math.min(all.size(), from + chunkSize));
+        }
+    }
+
+    private static List<String> numbers(int count) {
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            result.add(String.valueOf(i));
+        }
+        return result;
+    }
+
+    @Test
+    public void theLinesInMemoryAreNotCopied() {
+        String[] lines = { "a", "b" };
+        ResultLines result = ResultLines.of(lines);
+        assertThat((List<String>) result, equalTo(Arrays.asList("a", "b")));
+        assertThat(result.isLoaded(), equalTo(true));
+        assertThat(ResultLines.of(result) == result, equalTo(true));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void theLinesCannotBeModified() {
+        ResultLines.of("a", "b").set(0, "c");
+    }
+
+    @Test
+    public void theChunksAreLoadedWhenNeeded() {
+        List<String> all = numbers(25);
+        CountingLoader loader = new CountingLoader(all, 10);
+        ResultLines lines = ResultLines.chunked(all.size(), 10, loader);
+        assertThat(lines.isLoaded(), equalTo(false));
+        assertThat(lines.size(), equalTo(25));
+        assertThat(loader.loaded.isEmpty(), equalTo(true));
+
+        assertThat(lines.get(12), equalTo("12"));
+        assertThat(loader.loaded, equalTo(Arrays.asList(1)));
+    }
+
+    @Test
+    public void iteratingLoadsEachChunkOnce() {
+        List<String> all = numbers(25);
+        CountingLoader loader = new CountingLoader(all, 10);
+        ResultLines lines = ResultLines.chunked(all.size(), 10, loader);
+        assertThat(new ArrayList<String>(lines), equalTo(all));
+        assertThat(loader.loaded, equalTo(Arrays.asList(0, 1, 2)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aChunkWithWrongSizeIsDetected() {
+        List<String> all = numbers(25);
+        ResultLines lines = ResultLines.chunked(30, 10, new CountingLoader(
+                all, 10));
+        lines.get(29);
+    }
+
+    @Test
+    public void theContentHashDoesntDependOnTheStorage() {
+        List<String> all = numbers(25);
+        assertThat(ResultLines.chunked(all.size(), 10,
+                new CountingLoader(all, 10)).getContentHash(),
+                equalTo(ResultLines.of(all).getContentHash()));
+        assertThat(ResultLines.of("a", "\u00f1").getContentHash(),
+                equalTo("b99446c7b357e9096bb52ad22adc703dd7bb69e6"));
+    }
+
+    @Test
+    public void aKnownContentHashDoesntLoadTheChunks() {
+        List<String> all = numbers(25);
+        CountingLoader loader = new CountingLoader(all, 10);
+        ResultLines lines = ResultLines.chunked(all.size(), 10, "hash",
+                loader);
+        assertThat(lines.getContentHash(), equalTo("hash"));
+        assertThat(loader.loaded.isEmpty(), equalTo(true));
+    }
+
+    @Test
+    public void theContentHashStoredAlongTheLinesInMemoryIsUsed() {
+        assertThat(ResultLines.of(numbers(3), "hash").getContentHash(),
+                equalTo("hash"));
+        assertThat(ResultLines.of(numbers(3), null).getContentHash(),
+                equalTo(ResultLines.of(numbers(3)).getContentHash()));
+    }
+
+    @Test
+    public void theChunksCountIsRoundedUp() {
+        assertThat(ResultLines.chunksCount(0, 10), equalTo(0));
+        assertThat(ResultLines.chunksCount(10, 10), equalTo(1));
+        assertThat(ResultLines.chunksCount(11, 10), equalTo(2));
+    }
+
+}
@@ -11,8 +11,13 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -22,7 +27,11 @@ import org.junit.Test;
 import org.w3c.dom.Document;
 
 import es.uvigo.ei.sing.dare.util.XMLUtil;
+import es.uvigo.ei.sing.stringeditor.BudgetExceededException;
+import es.uvigo.ei.sing.stringeditor.LineHandler;
 import es.uvigo.ei.sing.stringeditor.Minilanguage;
+import es.uvigo.ei.sing.stringeditor.ParallelRobotRunner;
+import es.uvigo.ei.sing.stringeditor.TransformerCache;
 
 public class RobotTest {
 
@@ -134,6 +143,160 @@ public class RobotTest {
         assertThat(robot, not(nullValue()));
     }
 
+    @Test(expected = BudgetExceededException.class)
+    public void aRobotTakingTooManyStepsToBeCreatedIsAborted()
+            throws TimeoutException {
+        Robot.createFromMinilanguage("while true\n x = 1\nend\nurl",
+                executor, 60, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void theCompiledTransformerIsReusedBetweenExecutions() {
+        Robot robot = Robot.createFromMinilanguage("patternMatcher('(\\d+)')");
+        TransformerCache cache = TransformerCache.shared();
+
+        String[] first = robot.execute(Arrays.asList("a1b22"));
+        long hitsBefore = cache.getHits();
+        String[] second = robot.execute(Arrays.asList("a1b22"));
+
+        assertThat(first, equalTo(new String[] { "1", "22" }));
+        assertThat(second, equalTo(first));
+        assertThat(cache.getHits(), equalTo(hitsBefore + 1));
+    }
+
+    @Test
+    public void theTimeOfEachInputIsReportedIfTheyAreExecutedOnTheirOwn()
+            throws Exception {
+        Robot robot = Robot.createFromMinilanguage("patternMatcher('(\\d+)')");
+        List<String> inputs = Arrays.asList("a1b22", "c333");
+        assertThat(robot.executeTimingInputs(inputs).getInputMillis().length,
+                equalTo(0));
+        ParallelRobotRunner runner = new ParallelRobotRunner(2);
+        ParallelRobotRunner.install(runner);
+        try {
+            ParallelRobotRunner.Execution execution = robot
+                    .executeTimingInputs(inputs);
+            assertThat(execution.getLines(), equalTo(new String[] { "1",
+                    "22", "333" }));
+            ExecutionResult result = ExecutionResult.create("code", robot,
+                    inputs, execution.getLines()).withInputTimes(
+                    execution.getInputMillis());
+            assertThat(result.getInputTimesMilliseconds().size(),
+                    equalTo(inputs.size()));
+            assertThat(result.withExecutionTime(10)
+                    .getInputTimesMilliseconds(), equalTo(result
+                    .getInputTimesMilliseconds()));
+        } finally {
+            ParallelRobotRunner.install(null);
+            runner.shutdown();
+        }
+    }
+
+    @Test
+    public void theSameRobotCanBeExecutedConcurrently() throws Exception {
+        final Robot robot = Robot
+                .createFromMinilanguage("patternMatcher('(\\d+)')");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+            for (int i = 0; i < 40; i++) {
+                final String number = String.valueOf(i);
+                results.add(pool.submit(new Callable<String[]>() {
+
+                    @Override
+                    public String[] call() throws Exception {
+                        return robot.execute(Arrays.asList("a" + number + "b"));
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertThat(results.get(i).get(),
+                        equalTo(new String[] { String.valueOf(i) }));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void theResultLinesCanBeHandledAsTheyAreProduced() {
+        Robot robot = Robot.createFromMinilanguage("patternMatcher('(\\d+)')");
+        final List<String> lines = new ArrayList<String>();
+        robot.execute(Arrays.asList("a1b22", "c333"), new LineHandler() {
+
+            @Override
+            public void line(String line) {
+                lines.add(line);
+            }
+        });
+        assertThat(lines, equalTo(Arrays.asList("1", "22", "333")));
+    }
+
+    @Test
+    public void theResultLinesCanBeReadFromAStream() {
+        Robot robot = Robot.createFromMinilanguage("patternMatcher('(\\d+)')");
+        StringBuilder input = new StringBuilder();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++) {
+            input.append("a").append(i);
+            expected.add(String.valueOf(i));
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ResultStream stream = robot.executeStreaming(
+                    Arrays.asList(input.toString()), executor, 2);
+            List<String> lines = new ArrayList<String>();
+            while (stream.hasNext()) {
+                lines.add(stream.next());
+            }
+            assertThat(lines, equalTo(expected));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closingTheStreamStopsTheExecution() throws Exception {
+        Robot robot = Robot.createFromMinilanguage("patternMatcher('(\\d+)')");
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            input.append("a").append(i);
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ResultStream stream = robot.executeStreaming(
+                    Arrays.asList(input.toString()), executor, 1);
+            assertThat(stream.next(), equalTo("0"));
+            stream.close();
+            assertThat(stream.hasNext(), equalTo(false));
+            executor.shutdown();
+            assertThat(executor.awaitTermination(5, TimeUnit.SECONDS),
+                    equalTo(true));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void theExecutionErrorsAreThrownWhileReadingTheStream() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ResultStream stream = new ResultStream(executor, 1,
+                    new ResultStream.IProducer() {
+
+                        @Override
+                        public void produce(LineHandler handler) {
+                            handler.line("first");
+                            throw new IllegalStateException("failed");
+                        }
+                    });
+            assertThat(stream.next(), equalTo("first"));
+            stream.hasNext();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     private static String readAsString(URL resource) {
         Reader inputStreamReader = null;
         try {
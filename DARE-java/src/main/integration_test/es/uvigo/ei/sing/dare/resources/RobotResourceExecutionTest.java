@@ -11,10 +11,14 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -27,10 +31,14 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
+import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
 
 import es.uvigo.ei.sing.dare.client.DARE;
+import es.uvigo.ei.sing.dare.client.ExecutionFuture;
+import es.uvigo.ei.sing.dare.configuration.Configuration;
 import es.uvigo.ei.sing.dare.configuration.ConfigurationStub;
 import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
 import es.uvigo.ei.sing.dare.resources.views.RobotJSONView;
@@ -129,6 +137,72 @@ public class RobotResourceExecutionTest {
                 equalTo(robotInMinilanguage));
     }
 
+    @Test
+    public void theResultLinesCanBePaged() {
+        MultivaluedMap<String, String> request = new MultivaluedMapImpl();
+        request.add("robot", "patternMatcher('(\\d)')");
+        request.add("input", "a1b2c3d4e5");
+        ClientResponse created = Client.create()
+                .resource("http://localhost:8080/")
+                .path(Configuration.ROBOT_BASE_PATH).path("execute")
+                .type(MediaType.APPLICATION_FORM_URLENCODED)
+                .post(ClientResponse.class, request);
+        String path = created.getLocation().getPath();
+        String code = path.substring(path.lastIndexOf('/') + 1);
+
+        assertThat(dare.getExecutionResult(code).getResultLines(),
+                equalTo(Arrays.asList("1", "2", "3", "4", "5")));
+        assertThat(dare.getExecutionResult(code, 1, 2).getResultLines(),
+                equalTo(Arrays.asList("2", "3")));
+        assertThat(dare.getExecutionResult(code, 4, 10).getResultLines(),
+                equalTo(Arrays.asList("5")));
+        assertTrue(dare.getExecutionResult(code, 10, 10).getResultLines()
+                .isEmpty());
+    }
+
+    @Test
+    public void theResultCanBeWaitedForInASingleRequest() {
+        MultivaluedMap<String, String> request = new MultivaluedMapImpl();
+        request.add("robot", "patternMatcher('(\\d)')");
+        request.add("input", "a1b2");
+        Client client = Client.create();
+        ClientResponse created = client.resource("http://localhost:8080/")
+                .path(Configuration.ROBOT_BASE_PATH).path("execute")
+                .type(MediaType.APPLICATION_FORM_URLENCODED)
+                .post(ClientResponse.class, request);
+
+        ClientResponse response = client.resource(created.getLocation())
+                .queryParam("wait", "30s")
+                .accept(MediaType.APPLICATION_XML_TYPE)
+                .get(ClientResponse.class);
+        assertThat(response.getStatus(), equalTo(200));
+        assertThat(response.getEntity(RobotExecutionResultView.class)
+                .getResultLines(), equalTo(Arrays.asList("1", "2")));
+    }
+
+    @Test
+    public void manyExecutionsCanBeDoneAsynchronously() throws Exception {
+        List<ExecutionFuture<RobotExecutionResultView>> futures = new ArrayList<ExecutionFuture<RobotExecutionResultView>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(dare.doExecutionAsync("patternMatcher('(\\d+)')",
+                    "a" + i));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertThat(futures.get(i).get(60, TimeUnit.SECONDS)
+                    .getResultLines(), equalTo(Arrays.asList("" + i)));
+        }
+    }
+
+    @Test
+    public void anInvalidWaitIsRejected() {
+        ClientResponse response = Client.create()
+                .resource("http://localhost:8080/")
+                .path(Configuration.EXECUTION_RESULT_BASE_URL)
+                .path("test-result").queryParam("wait", "soon")
+                .accept(acceptedType).get(ClientResponse.class);
+        assertThat(response.getStatus(), equalTo(400));
+    }
+
     private static final String linesPropertyName = "resultLines";
 
     private static final String executionTimePropertyName = "executionTime";
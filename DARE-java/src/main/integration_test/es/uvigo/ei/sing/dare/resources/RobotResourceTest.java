@@ -7,11 +7,18 @@ import static org.hamcrest.Matchers.greaterThan;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 
 import org.codehaus.jettison.json.JSONException;
@@ -21,12 +28,16 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.w3c.dom.Document;
 
+import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.ClientResponse.Status;
+import com.sun.jersey.api.client.UniformInterfaceException;
 
 import es.uvigo.ei.sing.dare.client.DARE;
+import es.uvigo.ei.sing.dare.client.ExecutionFuture;
 import es.uvigo.ei.sing.dare.entities.Robot;
 import es.uvigo.ei.sing.dare.entities.RobotTest;
+import es.uvigo.ei.sing.dare.resources.views.ExecutionStateView;
 import es.uvigo.ei.sing.dare.resources.views.PeriodicalExecutionView;
 import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
 import es.uvigo.ei.sing.dare.resources.views.RobotJSONView;
@@ -115,6 +126,62 @@ public class RobotResourceTest {
         jsonResponse.getLong("creationDateMillis");
     }
 
+    @Test
+    public void aRobotNotModifiedIsNotSentAgain() {
+        URI uri = postRobotCreation("url");
+        Client client = new Client();
+        ClientResponse json = client.resource(uri)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .get(ClientResponse.class);
+        EntityTag etag = json.getEntityTag();
+        assertThat(etag, notNullValue());
+        assertThat(etag.isWeak(), is(false));
+        ClientResponse notModified = client.resource(uri)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .header(HttpHeaders.IF_NONE_MATCH,
+                        "\"" + etag.getValue() + "\"")
+                .get(ClientResponse.class);
+        assertThat(notModified.getStatus(),
+                equalTo(Status.NOT_MODIFIED.getStatusCode()));
+        ClientResponse xml = client.resource(uri)
+                .accept(MediaType.APPLICATION_XML_TYPE)
+                .header(HttpHeaders.IF_NONE_MATCH,
+                        "\"" + etag.getValue() + "\"")
+                .get(ClientResponse.class);
+        assertThat(xml.getStatus(), equalTo(Status.OK.getStatusCode()));
+        assertThat(xml.getEntityTag().equals(etag), is(false));
+    }
+
+    @Test
+    public void aCompletedExecutionNotModifiedIsNotSentAgain() {
+        RobotJSONView robot = dare.createRobot("patternMatcher('(\\d)')");
+        URI uri = dare.submitExecutions(robot.getCode(),
+                Collections.singletonList(Collections.singletonList("a1")))
+                .get(0);
+        Client client = new Client();
+        ClientResponse completed = client.resource(uri)
+                .queryParam("wait", "60s")
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .get(ClientResponse.class);
+        assertThat(completed.getStatus(), equalTo(Status.OK.getStatusCode()));
+        EntityTag etag = completed.getEntityTag();
+        assertThat(etag, notNullValue());
+        ClientResponse notModified = client.resource(uri)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .header(HttpHeaders.IF_NONE_MATCH,
+                        "\"" + etag.getValue() + "\"")
+                .get(ClientResponse.class);
+        assertThat(notModified.getStatus(),
+                equalTo(Status.NOT_MODIFIED.getStatusCode()));
+        ClientResponse otherPage = client.resource(uri)
+                .queryParam("offset", "1")
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .header(HttpHeaders.IF_NONE_MATCH,
+                        "\"" + etag.getValue() + "\"")
+                .get(ClientResponse.class);
+        assertThat(otherPage.getStatus(), equalTo(Status.OK.getStatusCode()));
+    }
+
     @Test
     public void aCreatedRobotCanBeExecuted() {
         RobotJSONView robot = dare.createRobot("url");
@@ -136,6 +203,65 @@ public class RobotResourceTest {
                 equalTo(Status.NOT_FOUND.getStatusCode()));
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void severalExecutionsCanBeSubmittedInABatch() throws Exception {
+        RobotJSONView robot = dare.createRobot("patternMatcher('(\\d)')");
+        List<ExecutionFuture<RobotExecutionResultView>> results = dare
+                .executeRobotBatchAsync(robot.getCode(),
+                        Arrays.asList(Arrays.asList("a1"),
+                                Arrays.asList("b2", "c3")));
+        assertThat(results.size(), equalTo(2));
+        assertThat(results.get(0).get(60, TimeUnit.SECONDS)
+                .getResultLines(), equalTo(Arrays.asList("1")));
+        assertThat(results.get(1).get(60, TimeUnit.SECONDS)
+                .getResultLines(), equalTo(Arrays.asList("2", "3")));
+    }
+
+    @Test
+    public void submittingABatchForANotCreatedRobotReturnsNotFound() {
+        try {
+            dare.submitExecutions(UUID.randomUUID().toString(),
+                    Collections.singletonList(Collections
+                            .singletonList("a")));
+            fail("the robot doesn't exist");
+        } catch (UniformInterfaceException e) {
+            assertThat(e.getResponse().getStatus(),
+                    equalTo(Status.NOT_FOUND.getStatusCode()));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void theStatesOfSeveralExecutionsCanBeRetrievedAtOnce()
+            throws Exception {
+        RobotJSONView robot = dare.createRobot("patternMatcher('(\\d)')");
+        List<String> codes = new ArrayList<String>();
+        for (URI each : dare.submitExecutions(robot.getCode(),
+                Arrays.asList(Arrays.asList("a1"), Arrays.asList("b2")))) {
+            String path = each.getPath();
+            codes.add(path.substring(path.lastIndexOf('/') + 1));
+        }
+        String missing = UUID.randomUUID().toString();
+        codes.add(missing);
+
+        List<ExecutionStateView> states = dare.getExecutionStates(codes);
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (!(states.get(0).isCompleted() && states.get(1).isCompleted())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+            states = dare.getExecutionStates(codes);
+        }
+        assertThat(states.size(), equalTo(3));
+        assertThat(states.get(0).getResult().getResultLines(),
+                equalTo(Arrays.asList("1")));
+        assertThat(states.get(1).getResult().getResultLines(),
+                equalTo(Arrays.asList("2")));
+        assertThat(states.get(2).getCode(), equalTo(missing));
+        assertThat(states.get(2).getStatus(),
+                equalTo(ExecutionStateView.NOT_FOUND));
+    }
+
     @Test
     public void fromARobotAPeriodicalExecutionCanBeCreated() {
         RobotJSONView robot = dare.createRobot("url");
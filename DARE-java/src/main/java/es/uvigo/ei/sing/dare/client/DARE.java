@@ -1,13 +1,18 @@
 package es.uvigo.ei.sing.dare.client;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.core.UriBuilder;
 
 import org.apache.commons.lang.Validate;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.w3c.dom.Document;
 
@@ -20,6 +25,7 @@ import com.sun.jersey.api.client.filter.LoggingFilter;
 import com.sun.jersey.core.util.MultivaluedMapImpl;
 
 import es.uvigo.ei.sing.dare.configuration.Configuration;
+import es.uvigo.ei.sing.dare.resources.views.ExecutionStateView;
 import es.uvigo.ei.sing.dare.resources.views.PeriodicalExecutionView;
 import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
 import es.uvigo.ei.sing.dare.resources.views.RobotJSONView;
@@ -54,13 +60,34 @@ public class DARE {
     private final URI baseURI;
     private final MediaType mediaType;
 
+    private final int maxConcurrentRequests;
+    private final int maxExecutionsInFlight;
+
     public DARE(Client client, URI baseURI, MediaType mediaType) {
+        this(client, baseURI, mediaType,
+                URIPoller.DEFAULT_MAX_CONCURRENT_REQUESTS,
+                URIPoller.DEFAULT_MAX_EXECUTIONS_IN_FLIGHT);
+    }
+
+    /**
+     * @param maxConcurrentRequests
+     *            the maximum number of requests done at the same time by the
+     *            asynchronous methods
+     * @param maxExecutionsInFlight
+     *            the maximum number of executions submitted by the
+     *            asynchronous methods that can be running at the same time.
+     *            The rest are submitted when the previous ones complete.
+     */
+    public DARE(Client client, URI baseURI, MediaType mediaType,
+            int maxConcurrentRequests, int maxExecutionsInFlight) {
         Validate.notNull(client);
         Validate.notNull(baseURI);
         Validate.notNull(mediaType);
         this.client = client;
         this.baseURI = baseURI;
         this.mediaType = mediaType;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxExecutionsInFlight = maxExecutionsInFlight;
     }
 
     private URIPoller cachedPoller = null;
@@ -69,7 +96,9 @@ public class DARE {
         if (cachedPoller != null) {
             return cachedPoller;
         }
-        return cachedPoller = new URIPoller(client, mediaType);
+        return cachedPoller = new URIPoller(client, mediaType,
+                PollingPolicy.DEFAULT,
+                maxConcurrentRequests, maxExecutionsInFlight);
     }
 
     private WebResource getBaseRobot() {
@@ -147,6 +176,51 @@ public class DARE {
                 RobotExecutionResultView.class);
     }
 
+    /**
+     * Retrieves at most <code>limit</code> result lines, starting at
+     * <code>offset</code>. It allows to page through big results.
+     */
+    public RobotExecutionResultView getExecutionResult(
+            String executionResultCode, int offset, int limit) {
+        Validate.isTrue(offset >= 0 && limit >= 0,
+                "offset and limit can't be negative");
+        URI uri = UriBuilder.fromUri(baseURI)
+                .path(Configuration.EXECUTION_RESULT_BASE_URL).path("{code}")
+                .queryParam("offset", offset).queryParam("limit", limit)
+                .build(executionResultCode);
+        return getExecutionResult(uri, RobotExecutionResultView.class);
+    }
+
+    /**
+     * Retrieves the state of many executions in a single request. Their
+     * results are included if they have completed.
+     *
+     * @return a state for each of the <code>executionResultCodes</code>, in
+     *         the same order
+     */
+    public List<ExecutionStateView> getExecutionStates(
+            List<String> executionResultCodes) {
+        ClientResponse response = client.resource(baseURI)
+                .path(Configuration.EXECUTION_RESULT_BASE_URL).path("bulk")
+                .type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .post(ClientResponse.class,
+                        new JSONArray(executionResultCodes).toString());
+        checkSuccess(response);
+        try {
+            JSONArray results = response.getEntity(JSONObject.class)
+                    .getJSONArray("results");
+            List<ExecutionStateView> result = new ArrayList<ExecutionStateView>();
+            for (int i = 0; i < results.length(); i++) {
+                result.add(ExecutionStateView.fromJSON(results
+                        .getJSONObject(i)));
+            }
+            return result;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public ClientResponse createRobotAndReturnLocation(String robotInMinilanguage) {
         MultivaluedMap<String, String> map = new MultivaluedMapImpl();
         map.add("minilanguage", robotInMinilanguage);
@@ -293,6 +367,135 @@ public class DARE {
                 inputs);
     }
 
+    /**
+     * The same as {@link #doExecution(String, Class, String...)} but it
+     * doesn't block: the execution is submitted and its result polled in the
+     * background.
+     */
+    public <T> ExecutionFuture<T> doExecutionAsync(String robotInMinilanguage,
+            Class<T> returnType, String... inputs) {
+        final MultivaluedMap<String, String> request = fromInputs(inputs);
+        request.add("robot", robotInMinilanguage);
+        return submitAsync(getBaseRobot().path("execute"), request,
+                robotInMinilanguage, returnType);
+    }
+
+    public ExecutionFuture<RobotExecutionResultView> doExecutionAsync(
+            String robotInMinilanguage, String... inputs) {
+        return doExecutionAsync(robotInMinilanguage,
+                RobotExecutionResultView.class, inputs);
+    }
+
+    /**
+     * The same as {@link #executeRobot(String, Class, String...)} but it
+     * doesn't block: the execution is submitted and its result polled in the
+     * background.
+     */
+    public <T> ExecutionFuture<T> executeRobotAsync(String robotCode,
+            Class<T> returnType, String... inputs) {
+        return submitAsync(client.resource(getRobotURI(robotCode))
+                .path("execute"), fromInputs(inputs), robotCode, returnType);
+    }
+
+    public ExecutionFuture<RobotExecutionResultView> executeRobotAsync(
+            String robotCode, String... inputs) {
+        return executeRobotAsync(robotCode, RobotExecutionResultView.class,
+                inputs);
+    }
+
+    private <T> ExecutionFuture<T> submitAsync(final WebResource execute,
+            final MultivaluedMap<String, String> request, String robotKey,
+            final Class<T> returnType) {
+        Callable<ClientResponse> submission = new Callable<ClientResponse>() {
+
+            @Override
+            public ClientResponse call() throws Exception {
+                return execute.type(MediaType.APPLICATION_FORM_URLENCODED)
+                        .post(ClientResponse.class, request);
+            }
+        };
+        if (isReadFromJSON(returnType)) {
+            return fromJSON(getPoller().submitAndPoll(submission, robotKey,
+                    JSONObject.class, mediaType), returnType);
+        }
+        return getPoller().submitAndPoll(submission, robotKey, returnType,
+                mediaType);
+    }
+
+    /**
+     * Submits an execution of the robot for each of the
+     * <code>inputsSets</code> in a single request.
+     *
+     * @return the URIs of the results, in the same order as the
+     *         <code>inputsSets</code>
+     */
+    public List<URI> submitExecutions(String robotCode,
+            List<? extends List<String>> inputsSets) {
+        JSONArray body = new JSONArray();
+        for (List<String> each : inputsSets) {
+            body.put(new JSONArray(each));
+        }
+        ClientResponse response = client.resource(getRobotURI(robotCode))
+                .path("execute-batch").type(MediaType.APPLICATION_JSON_TYPE)
+                .accept(MediaType.APPLICATION_JSON_TYPE)
+                .post(ClientResponse.class, body.toString());
+        checkSuccess(response);
+        try {
+            JSONArray results = response.getEntity(JSONObject.class)
+                    .getJSONArray("results");
+            List<URI> result = new ArrayList<URI>();
+            for (int i = 0; i < results.length(); i++) {
+                result.add(URI.create(results.getString(i)));
+            }
+            return result;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The same as {@link #submitExecutions(String, List)} but the results are
+     * polled in the background.
+     */
+    public <T> List<ExecutionFuture<T>> executeRobotBatchAsync(
+            String robotCode, Class<T> returnType,
+            List<? extends List<String>> inputsSets) {
+        List<ExecutionFuture<T>> result = new ArrayList<ExecutionFuture<T>>();
+        for (URI each : submitExecutions(robotCode, inputsSets)) {
+            if (isReadFromJSON(returnType)) {
+                result.add(fromJSON(getPoller().async(each, robotCode,
+                        JSONObject.class, mediaType), returnType));
+            } else {
+                result.add(getPoller().async(each, robotCode, returnType,
+                        mediaType));
+            }
+        }
+        return result;
+    }
+
+    public List<ExecutionFuture<RobotExecutionResultView>> executeRobotBatchAsync(
+            String robotCode, List<? extends List<String>> inputsSets) {
+        return executeRobotBatchAsync(robotCode,
+                RobotExecutionResultView.class, inputsSets);
+    }
+
+    private boolean isReadFromJSON(Class<?> returnType) {
+        return RobotExecutionResultView.class.equals(returnType)
+                && MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType);
+    }
+
+    private <T> ExecutionFuture<T> fromJSON(ExecutionFuture<JSONObject> json,
+            final Class<T> returnType) {
+        return json.then(new ExecutionFuture.IConversion<JSONObject, T>() {
+
+            @Override
+            public T convert(JSONObject value) {
+                return returnType.cast(RobotExecutionResultView
+                        .fromJSON(value));
+            }
+        });
+    }
+
     private <T> T pollForExecutionResult(
             ClientResponse executionResultCreatedResponse, Class<T> returnType) {
         if (executionResultCreatedResponse.getClientResponseStatus().getStatusCode() >= 300) {
@@ -0,0 +1,198 @@
+package es.uvigo.ei.sing.dare.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * The result of a request done asynchronously by {@link URIPoller}. No thread
+ * is blocked while the result is not available, so the callers that don't
+ * want to block either can register a {@link ICallback} instead of calling
+ * {@link #get()}.
+ */
+public class ExecutionFuture<T> implements Future<T> {
+
+    /**
+     * It's called once the result is available. The callbacks are run by
+     * the thread completing the future, or by the thread adding them if the
+     * future is already done, so they shouldn't block.
+     */
+    public interface ICallback<T> {
+
+        void onSuccess(T result);
+
+        /**
+         * @param cause
+         *            a {@link CancellationException} if the future has been
+         *            cancelled
+         */
+        void onFailure(Throwable cause);
+    }
+
+    interface IConversion<A, B> {
+
+        B convert(A value);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    // the fields below are guarded by this
+
+    private List<ICallback<? super T>> callbacks = new ArrayList<ICallback<? super T>>();
+
+    private boolean finished = false;
+
+    private boolean cancelled = false;
+
+    private T result;
+
+    private Throwable failure;
+
+    ExecutionFuture() {
+    }
+
+    public void addCallback(ICallback<? super T> callback) {
+        Validate.notNull(callback);
+        synchronized (this) {
+            if (!finished) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    /**
+     * @return a future with the result of this one converted. Cancelling one
+     *         of them cancels the other.
+     */
+    <R> ExecutionFuture<R> then(
+            final IConversion<? super T, ? extends R> conversion) {
+        final ExecutionFuture<R> result = new ExecutionFuture<R>();
+        addCallback(new ICallback<T>() {
+
+            @Override
+            public void onSuccess(T value) {
+                try {
+                    result.complete(conversion.convert(value));
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                if (cause instanceof CancellationException) {
+                    result.cancel(false);
+                } else {
+                    result.fail(cause);
+                }
+            }
+        });
+        result.addCallback(new ICallback<R>() {
+
+            @Override
+            public void onSuccess(R value) {
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                if (cause instanceof CancellationException) {
+                    cancel(false);
+                }
+            }
+        });
+        return result;
+    }
+
+    boolean complete(T result) {
+        return finish(result, null, false);
+    }
+
+    boolean fail(Throwable failure) {
+        Validate.notNull(failure);
+        return finish(null, failure, false);
+    }
+
+    private boolean finish(T result, Throwable failure, boolean cancelled) {
+        List<ICallback<? super T>> toNotify;
+        synchronized (this) {
+            if (finished) {
+                return false;
+            }
+            this.finished = true;
+            this.result = result;
+            this.failure = failure;
+            this.cancelled = cancelled;
+            toNotify = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for (ICallback<? super T> each : toNotify) {
+            notify(each);
+        }
+        return true;
+    }
+
+    private void notify(ICallback<? super T> callback) {
+        if (cancelled) {
+            callback.onFailure(new CancellationException());
+        } else if (failure != null) {
+            callback.onFailure(failure);
+        } else {
+            callback.onSuccess(result);
+        }
+    }
+
+    /**
+     * The requests not sent yet are not sent. A request already sent is not
+     * interrupted, but its response is ignored.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(null, null, true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return finished;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return outcome();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return outcome();
+    }
+
+    private synchronized T outcome() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+}
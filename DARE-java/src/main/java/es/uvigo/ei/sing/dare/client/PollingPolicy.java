@@ -0,0 +1,129 @@
+package es.uvigo.ei.sing.dare.client;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Decides how long {@link URIPoller} waits before asking again for a resource
+ * that is not available yet.
+ *
+ * The first wait is the expected execution time if it's known, so a request
+ * isn't wasted asking for a result that can't be ready. Afterwards the waits
+ * grow exponentially up to <code>maxDelayMillis</code>. A random part of each
+ * wait, the <code>jitter</code>, is taken off so many executions submitted at
+ * the same time don't keep polling at the same time. A wait is never shorter
+ * than the Retry-After sent by the server.
+ */
+public class PollingPolicy {
+
+    public static final PollingPolicy DEFAULT = new PollingPolicy(100, 10000,
+            2, 0.5);
+
+    /**
+     * A policy that always waits <code>intervalMillis</code>, unless the
+     * server asks for more.
+     */
+    public static PollingPolicy fixed(long intervalMillis) {
+        return new PollingPolicy(intervalMillis, intervalMillis, 1, 0);
+    }
+
+    private static final Random random = new Random();
+
+    private final long minDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final double multiplier;
+
+    private final double jitter;
+
+    /**
+     * @param jitter
+     *            the fraction of each wait that is random, between 0 and 1
+     */
+    public PollingPolicy(long minDelayMillis, long maxDelayMillis,
+            double multiplier, double jitter) {
+        Validate.isTrue(minDelayMillis >= 0, "minDelayMillis can't be negative");
+        Validate.isTrue(maxDelayMillis >= minDelayMillis,
+                "maxDelayMillis can't be less than minDelayMillis");
+        Validate.isTrue(multiplier >= 1, "multiplier can't be less than 1");
+        Validate.isTrue(jitter >= 0 && jitter <= 1,
+                "jitter must be between 0 and 1");
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @param expectedMillis
+     *            the time the execution is expected to take or
+     *            <code>null</code> if it's unknown
+     * @return the base wait before the first poll
+     */
+    long firstDelay(Long expectedMillis) {
+        if (expectedMillis == null) {
+            return minDelayMillis;
+        }
+        return clamp(expectedMillis);
+    }
+
+    /**
+     * @return the base wait that follows <code>previousDelay</code>
+     */
+    long nextDelay(long previousDelay) {
+        return clamp((long) (Math.max(previousDelay, 1) * multiplier));
+    }
+
+    /**
+     * @param retryAfterMillis
+     *            the wait asked by the server or <code>null</code>
+     * @return the time to actually wait for the base <code>delay</code>
+     */
+    long withJitter(long delay, Long retryAfterMillis) {
+        long result = delay - (long) (delay * jitter * random.nextDouble());
+        if (retryAfterMillis != null) {
+            result = Math.max(result, retryAfterMillis);
+        }
+        return result;
+    }
+
+    private long clamp(long delay) {
+        return Math.min(maxDelayMillis, Math.max(minDelayMillis, delay));
+    }
+
+    /**
+     * Parses the value of a Retry-After header, either a number of seconds or
+     * an HTTP date.
+     *
+     * @return the milliseconds to wait or <code>null</code> if the value is
+     *         missing or invalid
+     */
+    static Long parseRetryAfter(String value, long nowMillis) {
+        if (value == null) {
+            return null;
+        }
+        String trimmed = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(trimmed) * 1000);
+        } catch (NumberFormatException e) {
+            // it may be a date
+        }
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(trimmed);
+            return Math.max(0, date.getTime() - nowMillis);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+}
@@ -1,11 +1,19 @@
 package es.uvigo.ei.sing.dare.client;
 
 import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response.Status;
@@ -14,66 +22,168 @@ import org.apache.commons.lang.Validate;
 
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.UniformInterfaceException;
 
+import es.uvigo.ei.sing.dare.resources.ExecutionResultResource;
+
+/**
+ * Retrieves resources that may not be available yet, i.e. the server answers
+ * {@link Status#NO_CONTENT}, asking for them again until they are.
+ *
+ * The time waited between two requests is decided by a {@link PollingPolicy}:
+ * by default it grows exponentially, it starts at the time taken by the
+ * previous executions of the same robot and it honours the Retry-After sent
+ * by the server.
+ *
+ * No thread waits between two requests: the next request is scheduled on a
+ * single scheduler thread shared by all the pollers, and the requests
+ * themselves are done by a pool of at most <code>maxConcurrentRequests</code>
+ * threads. So many resources can be polled at the same time without having a
+ * thread for each one.
+ *
+ * The executions submitted through
+ * {@link #submitAndPoll(Callable, Class, MediaType)} are limited to
+ * <code>maxExecutionsInFlight</code> at the same time. The submissions
+ * exceeding it are sent once the previous ones complete.
+ */
 public class URIPoller {
 
-    private static ExecutorService executor = Executors.newCachedThreadPool();
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+    public static final int DEFAULT_MAX_EXECUTIONS_IN_FLIGHT = 1000;
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, name);
+                result.setDaemon(true);
+                return result;
+            }
+        };
+    }
+
+    private static final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor(daemonThreads("dare-poller-scheduler"));
 
     private final Client client;
     private final MediaType requestedType;
 
-    private final int pollingIntervalMilliseconds;
+    private final PollingPolicy policy;
+
+    private final ExecutionTimes executionTimes = new ExecutionTimes();
+
+    private final ThreadPoolExecutor requests;
+
+    private final Semaphore executionSlots;
+
+    private final Queue<Submission<?>> waitingForSlot = new ConcurrentLinkedQueue<Submission<?>>();
 
     public URIPoller(Client client) {
         this(client, MediaType.APPLICATION_XML_TYPE);
     }
 
     public URIPoller(Client client, MediaType defaultRequestedType) {
-        this(client, defaultRequestedType, 1000);
+        this(client, defaultRequestedType, PollingPolicy.DEFAULT,
+                DEFAULT_MAX_CONCURRENT_REQUESTS,
+                DEFAULT_MAX_EXECUTIONS_IN_FLIGHT);
     }
 
     public URIPoller(Client client, MediaType defaultRequestedType,
             int pollingIntervalMilliseconds) {
+        this(client, defaultRequestedType, PollingPolicy
+                .fixed(pollingIntervalMilliseconds),
+                DEFAULT_MAX_CONCURRENT_REQUESTS,
+                DEFAULT_MAX_EXECUTIONS_IN_FLIGHT);
+    }
+
+    public URIPoller(Client client, MediaType defaultRequestedType,
+            PollingPolicy policy, int maxConcurrentRequests,
+            int maxExecutionsInFlight) {
         Validate.notNull(client);
         Validate.notNull(defaultRequestedType);
+        Validate.notNull(policy);
+        Validate.isTrue(maxConcurrentRequests > 0,
+                "maxConcurrentRequests must be positive");
+        Validate.isTrue(maxExecutionsInFlight > 0,
+                "maxExecutionsInFlight must be positive");
         this.client = client;
         this.requestedType = defaultRequestedType;
-        this.pollingIntervalMilliseconds = pollingIntervalMilliseconds;
+        this.policy = policy;
+        this.requests = new ThreadPoolExecutor(maxConcurrentRequests,
+                maxConcurrentRequests, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<Runnable>(),
+                daemonThreads("dare-poller-request"));
+        this.requests.allowCoreThreadTimeOut(true);
+        this.executionSlots = new Semaphore(maxExecutionsInFlight);
     }
 
-    public <T> Future<T> async(URI uriToExecution, Class<T> resultType) {
+    public <T> ExecutionFuture<T> async(URI uriToExecution, Class<T> resultType) {
         return async(uriToExecution, resultType, requestedType);
     }
 
-    public <T> Future<T> async(final URI uriToExecution,
-            final Class<T> resultType,
-            final MediaType acceptedType) {
+    public <T> ExecutionFuture<T> async(URI uriToExecution,
+            Class<T> resultType, MediaType acceptedType) {
+        return async(uriToExecution, null, resultType, acceptedType);
+    }
+
+    /**
+     * The same as {@link #async(URI, Class, MediaType)} for the result of an
+     * execution already submitted. The first poll is delayed as explained in
+     * {@link #submitAndPoll(Callable, String, Class, MediaType)}.
+     *
+     * @param robotKey
+     *            it identifies the robot executed. It can be
+     *            <code>null</code>.
+     */
+    public <T> ExecutionFuture<T> async(URI uriToExecution, String robotKey,
+            Class<T> resultType, MediaType acceptedType) {
         Validate.notNull(resultType);
         Validate.notNull(uriToExecution);
         Validate.notNull(acceptedType);
-        return executor.submit(new Callable<T>() {
+        ExecutionFuture<T> result = new ExecutionFuture<T>();
+        new Polling<T>(result, uriToExecution, resultType, acceptedType,
+                robotKey).pollFirst();
+        return result;
+    }
 
-            @Override
-            public T call() throws Exception {
-                ClientResponse clientResponse = doGet(uriToExecution,
-                        acceptedType);
-                while (clientResponse.getStatus() == Status.NO_CONTENT
-                        .getStatusCode()) {
-                    Thread.sleep(pollingIntervalMilliseconds);
-                    clientResponse = doGet(uriToExecution, acceptedType);
-                }
-                if (resultType.equals(ClientResponse.class)) {
-                    return resultType.cast(clientResponse);
-                }
-                return clientResponse.getEntity(resultType);
-            }
+    /**
+     * Sends the request done by <code>submission</code>, that creates an
+     * execution, and polls the location of the response until the execution
+     * has completed.
+     *
+     * If the submission or the retrieval of the result isn't successful, the
+     * future fails with an {@link UniformInterfaceException}, unless the
+     * <code>resultType</code> is {@link ClientResponse}. In that case the
+     * response is returned.
+     */
+    public <T> ExecutionFuture<T> submitAndPoll(
+            Callable<ClientResponse> submission, Class<T> resultType,
+            MediaType acceptedType) {
+        return submitAndPoll(submission, null, resultType, acceptedType);
+    }
 
-            private ClientResponse doGet(final URI uriToExecution,
-                    final MediaType acceptedType) {
-                return client.resource(uriToExecution)
-                        .accept(acceptedType).get(ClientResponse.class);
-            }
-        });
+    /**
+     * The same as {@link #submitAndPoll(Callable, Class, MediaType)}, but the
+     * time taken by the execution is remembered under <code>robotKey</code>,
+     * e.g. the code of the robot executed. The first poll of the following
+     * executions with the same key is delayed until they are expected to
+     * have completed.
+     */
+    public <T> ExecutionFuture<T> submitAndPoll(
+            Callable<ClientResponse> submission, String robotKey,
+            Class<T> resultType, MediaType acceptedType) {
+        Validate.notNull(submission);
+        Validate.notNull(resultType);
+        Validate.notNull(acceptedType);
+        Submission<T> result = new Submission<T>(submission, robotKey,
+                resultType, acceptedType);
+        waitingForSlot.add(result);
+        startWaitingSubmissions();
+        return result.future;
     }
 
     public <T> T retrieve(URI uriToExecution, Class<T> resultType) {
@@ -82,7 +192,8 @@ public class URIPoller {
 
     public <T> T retrieve(URI uriToExecution, Class<T> resultType,
             MediaType requestedType) {
-        Future<T> async = async(uriToExecution, resultType, requestedType);
+        ExecutionFuture<T> async = async(uriToExecution, resultType,
+                requestedType);
         try {
             return async.get();
         } catch (InterruptedException e) {
@@ -92,4 +203,244 @@ public class URIPoller {
         }
     }
 
+    private class Submission<T> implements
+            ExecutionFuture.ICallback<Object> {
+
+        private final ExecutionFuture<T> future = new ExecutionFuture<T>();
+
+        private final Callable<ClientResponse> submission;
+
+        private final Class<T> resultType;
+
+        private final MediaType acceptedType;
+
+        private final String historyKey;
+
+        Submission(Callable<ClientResponse> submission, String historyKey,
+                Class<T> resultType, MediaType acceptedType) {
+            this.submission = submission;
+            this.historyKey = historyKey;
+            this.resultType = resultType;
+            this.acceptedType = acceptedType;
+        }
+
+        // it's called once an execution slot has been acquired
+        void start() {
+            if (future.isDone()) {
+                // cancelled while waiting
+                executionSlots.release();
+                return;
+            }
+            future.addCallback(this);
+            request(future, new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    submitted(submission.call());
+                    return null;
+                }
+            });
+        }
+
+        private void submitted(ClientResponse response) {
+            if (response.getStatus() < 300) {
+                new Polling<T>(future, response.getLocation(), resultType,
+                        acceptedType, historyKey).pollFirst();
+            } else if (resultType.equals(ClientResponse.class)) {
+                future.complete(resultType.cast(response));
+            } else {
+                future.fail(new UniformInterfaceException(response));
+            }
+        }
+
+        @Override
+        public void onSuccess(Object result) {
+            slotReleased();
+        }
+
+        @Override
+        public void onFailure(Throwable cause) {
+            slotReleased();
+        }
+    }
+
+    private void slotReleased() {
+        executionSlots.release();
+        startWaitingSubmissions();
+    }
+
+    private void startWaitingSubmissions() {
+        while (!waitingForSlot.isEmpty() && executionSlots.tryAcquire()) {
+            Submission<?> next = waitingForSlot.poll();
+            if (next == null) {
+                executionSlots.release();
+            } else {
+                next.start();
+            }
+        }
+    }
+
+    private class Polling<T> {
+
+        private final ExecutionFuture<T> future;
+
+        private final URI uri;
+
+        private final Class<T> resultType;
+
+        private final MediaType acceptedType;
+
+        private final String historyKey;
+
+        // the base wait before the last poll, negative if there was none
+        private long delay = -1;
+
+        Polling(ExecutionFuture<T> future, URI uri, Class<T> resultType,
+                MediaType acceptedType, String historyKey) {
+            this.future = future;
+            this.uri = uri;
+            this.resultType = resultType;
+            this.acceptedType = acceptedType;
+            this.historyKey = historyKey;
+        }
+
+        void pollFirst() {
+            if (historyKey == null) {
+                pollNow();
+            } else {
+                Long expected = executionTimes.expected(historyKey);
+                pollAfter(policy.firstDelay(expected), null);
+            }
+        }
+
+        private void pollNow() {
+            request(future, new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    received(client.resource(uri).accept(acceptedType)
+                            .get(ClientResponse.class));
+                    return null;
+                }
+            });
+        }
+
+        private void received(ClientResponse clientResponse) {
+            if (future.isDone()) {
+                // cancelled or failed while the request was in progress
+                clientResponse.close();
+                return;
+            }
+            if (clientResponse.getStatus() == Status.NO_CONTENT
+                    .getStatusCode()) {
+                Long retryAfter = PollingPolicy.parseRetryAfter(clientResponse
+                        .getHeaders().getFirst(RETRY_AFTER_HEADER), System
+                        .currentTimeMillis());
+                clientResponse.close();
+                pollAfter(delay < 0 ? policy.firstDelay(null) : policy
+                        .nextDelay(delay), retryAfter);
+                return;
+            }
+            if (historyKey != null) {
+                recordExecutionTime(clientResponse);
+            }
+            if (resultType.equals(ClientResponse.class)) {
+                if (!future.complete(resultType.cast(clientResponse))) {
+                    clientResponse.close();
+                }
+            } else if (clientResponse.getStatus() != Status.OK
+                    .getStatusCode()) {
+                future.fail(new UniformInterfaceException(clientResponse));
+            } else {
+                future.complete(clientResponse.getEntity(resultType));
+            }
+        }
+
+        // the time waited is not used instead, since it depends on the
+        // previous waits
+        private void recordExecutionTime(ClientResponse clientResponse) {
+            String reported = clientResponse.getHeaders().getFirst(
+                    ExecutionResultResource.EXECUTION_TIME_HEADER);
+            if (clientResponse.getStatus() != Status.OK.getStatusCode()
+                    || reported == null) {
+                return;
+            }
+            try {
+                executionTimes.record(historyKey, Long.parseLong(reported));
+            } catch (NumberFormatException e) {
+                // ignored
+            }
+        }
+
+        private void pollAfter(long baseDelay, Long retryAfter) {
+            delay = baseDelay;
+            scheduler.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    pollNow();
+                }
+            }, policy.withJitter(baseDelay, retryAfter),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The average time taken by the executions of each robot, so the first
+     * poll of its next executions can be done when they're expected to have
+     * completed. Only the most recently used robots are remembered.
+     */
+    private static class ExecutionTimes {
+
+        private static final int MAX_REMEMBERED = 1000;
+
+        private final Map<String, Long> averages = new LinkedHashMap<String, Long>(
+                16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_REMEMBERED;
+            }
+        };
+
+        synchronized Long expected(String key) {
+            return averages.get(key);
+        }
+
+        synchronized void record(String key, long executionTime) {
+            Long previous = averages.get(key);
+            // the recent executions weigh more
+            averages.put(key, previous == null ? executionTime : previous
+                    + (executionTime - previous) / 4);
+        }
+    }
+
+    // the request is not done if the future has been cancelled meanwhile
+    private void request(final ExecutionFuture<?> future,
+            final Callable<Void> request) {
+        if (future.isDone()) {
+            return;
+        }
+        try {
+            requests.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    try {
+                        request.call();
+                    } catch (Throwable e) {
+                        future.fail(e);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+    }
+
 }
@@ -2,17 +2,23 @@ package es.uvigo.ei.sing.dare.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URL;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
-import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
@@ -37,34 +43,110 @@ public class XMLUtil {
         xmlPrinterFactory = TransformerFactory.newInstance();
     }
 
-    public static Document toDocument(String xmlAsString) {
+    // Creating builders and transformers is expensive, so each thread keeps
+    // its own. They're not thread safe but they can be reused once reset.
+    // The factories aren't thread safe either, so their access is
+    // synchronized.
+
+    private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>() {
+
+        @Override
+        protected DocumentBuilder initialValue() {
+            synchronized (builderFactory) {
+                try {
+                    return builderFactory.newDocumentBuilder();
+                } catch (ParserConfigurationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    };
+
+    private static final ThreadLocal<Transformer> printers = new ThreadLocal<Transformer>() {
+
+        @Override
+        protected Transformer initialValue() {
+            synchronized (xmlPrinterFactory) {
+                try {
+                    return xmlPrinterFactory.newTransformer();
+                } catch (TransformerConfigurationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    };
+
+    private static DocumentBuilder borrowBuilder() {
+        DocumentBuilder result = builders.get();
+        // if a builder is reentered it's not shared, a new one is used
+        builders.remove();
+        return result;
+    }
+
+    private static void giveBack(DocumentBuilder builder) {
+        builder.reset();
+        builders.set(builder);
+    }
+
+    private static Transformer borrowPrinter() {
+        Transformer result = printers.get();
+        printers.remove();
+        return result;
+    }
+
+    private static void giveBack(Transformer printer) {
+        printer.reset();
+        printers.set(printer);
+    }
+
+    private static Document parse(InputSource source) {
+        DocumentBuilder builder = borrowBuilder();
         try {
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
-            return builder
-                    .parse(new InputSource(new StringReader(xmlAsString)));
+            return builder.parse(source);
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            giveBack(builder);
         }
     }
 
+    public static Document toDocument(String xmlAsString) {
+        return toDocument(new StringReader(xmlAsString));
+    }
+
+    /**
+     * Parses the XML read from the provided stream. The encoding is
+     * detected from the XML declaration. The stream is not closed.
+     */
+    public static Document toDocument(InputStream input) {
+        return parse(new InputSource(input));
+    }
+
+    /**
+     * Parses the XML read from the provided reader. The reader is not
+     * closed.
+     */
+    public static Document toDocument(Reader reader) {
+        return parse(new InputSource(reader));
+    }
+
     public static Document fromRootDocumentElement(Element robot) {
+        DocumentBuilder builder = borrowBuilder();
         try {
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
             Document result = builder.newDocument();
             result.appendChild(result.adoptNode(robot));
             return result;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } finally {
+            giveBack(builder);
         }
     }
 
     public static Document toDocument(URL resource) {
         InputStream input = null;
         try {
-            DocumentBuilder builder = builderFactory.newDocumentBuilder();
             input = resource.openStream();
-            return builder.parse(input);
-        } catch (Exception e) {
+            return toDocument(input);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         } finally {
             if (input != null) {
@@ -79,15 +161,37 @@ public class XMLUtil {
     }
 
     public static String toString(Document xml) {
+        StringWriter result = new StringWriter();
+        write(xml, result);
+        return result.toString();
+    }
+
+    /**
+     * Writes the XML to the provided stream encoded in UTF-8. The stream is
+     * not closed.
+     */
+    public static void write(Document xml, OutputStream output) {
+        write(xml, new StreamResult(output), "UTF-8");
+    }
+
+    /**
+     * Writes the XML to the provided writer. The writer is not closed.
+     */
+    public static void write(Document xml, Writer writer) {
+        write(xml, new StreamResult(writer), null);
+    }
+
+    private static void write(Document xml, Result target, String encoding) {
+        Transformer printer = borrowPrinter();
         try {
-            Transformer newTransformer = xmlPrinterFactory.newTransformer();
-            Source source = new DOMSource(xml);
-            StringWriter result = new StringWriter();
-            Result target = new StreamResult(result);
-            newTransformer.transform(source, target);
-            return result.toString();
-        } catch (Exception e) {
+            if (encoding != null) {
+                printer.setOutputProperty(OutputKeys.ENCODING, encoding);
+            }
+            printer.transform(new DOMSource(xml), target);
+        } catch (TransformerException e) {
             throw new RuntimeException(e);
+        } finally {
+            giveBack(printer);
         }
     }
 
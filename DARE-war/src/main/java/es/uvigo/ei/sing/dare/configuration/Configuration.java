@@ -1,14 +1,22 @@
 package es.uvigo.ei.sing.dare.configuration;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletContext;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import es.uvigo.ei.sing.dare.domain.ExecutionCompletionNotifier;
 import es.uvigo.ei.sing.dare.domain.IBackend;
-import es.uvigo.ei.sing.dare.domain.MinilanguageProducer;
+import es.uvigo.ei.sing.dare.domain.MinilanguagePool;
+import es.uvigo.ei.sing.dare.domain.SandboxedMinilanguageParser;
 
 public abstract class Configuration {
 
+    private static final Log LOG = LogFactory.getLog(Configuration.class);
+
     public static final String PERIODICAL_EXECUTION_BASE_PATH = "periodical";
 
     public static final String ROBOT_BASE_PATH = "robot";
@@ -37,6 +45,16 @@ public abstract class Configuration {
         return configuration;
     }
 
+    /**
+     * @return the {@link Configuration} that was associated with the context
+     *         or <code>null</code> if there was none
+     */
+    public static Configuration dissociate(ServletContext context) {
+        Configuration result = getFromAttribute(context);
+        context.removeAttribute(Configuration.class.getName());
+        return result;
+    }
+
     private static Configuration getFromAttribute(ServletContext context) {
         return (Configuration) context.getAttribute(Configuration.class
                 .getName());
@@ -46,6 +64,34 @@ public abstract class Configuration {
 
     public abstract ExecutorService getRobotParserExecutor();
 
-    public abstract MinilanguageProducer getMinilanguageProducer();
+    public abstract MinilanguagePool getMinilanguagePool();
+
+    /**
+     * @return the parser used to evaluate the robots in separate processes
+     *         or <code>null</code> if they're evaluated in this JVM using
+     *         {@link #getMinilanguagePool()}
+     */
+    public abstract SandboxedMinilanguageParser getSandboxedParser();
+
+    public abstract ExecutionCompletionNotifier getCompletionNotifier();
+
+    /**
+     * Stops the threads and processes used and closes the backend. The
+     * configuration can't be used afterwards.
+     */
+    public void close() {
+        getRobotParserExecutor().shutdownNow();
+        getCompletionNotifier().close();
+        getMinilanguagePool().close();
+        SandboxedMinilanguageParser sandboxedParser = getSandboxedParser();
+        if (sandboxedParser != null) {
+            sandboxedParser.close();
+        }
+        try {
+            getBackend().close();
+        } catch (IOException e) {
+            LOG.warn("error closing the backend", e);
+        }
+    }
 
 }
@@ -21,9 +21,12 @@ import org.apache.commons.logging.LogFactory;
 
 import backend.core.BackendBuilder;
 import clojure.lang.RT;
+import es.uvigo.ei.sing.dare.domain.ExecutionCompletionNotifier;
 import es.uvigo.ei.sing.dare.domain.IBackend;
 import es.uvigo.ei.sing.dare.domain.IBackendBuilder;
-import es.uvigo.ei.sing.dare.domain.MinilanguageProducer;
+import es.uvigo.ei.sing.dare.domain.MinilanguagePool;
+import es.uvigo.ei.sing.dare.domain.SandboxedMinilanguageParser;
+import es.uvigo.ei.sing.stringeditor.ParallelRobotRunner;
 
 @WebListener
 public class ConfigurationBootstrapper implements ServletContextListener {
@@ -59,12 +62,48 @@ public class ConfigurationBootstrapper implements ServletContextListener {
 
                 final int processors = Runtime.getRuntime()
                         .availableProcessors();
-                Object m = lookup(context, "max-queue-minilanguage-parsing");
-                final int maxWaiting = m != null ? Integer.parseInt(m
-                        .toString()) : 100;
-                LOG.info("max-queue-minilanguage-parsing: " + maxWaiting);
-                final MinilanguageProducer producer = new MinilanguageProducer(
-                        10);
+                final int maxWaiting = lookupInt(context,
+                        "max-queue-minilanguage-parsing", 100);
+                final int poolMax = lookupInt(context,
+                        "minilanguage-pool-max", 2 * processors);
+                final int poolMin = Math.min(poolMax,
+                        lookupInt(context, "minilanguage-pool-min", processors));
+                final int poolIdleSeconds = lookupInt(context,
+                        "minilanguage-pool-idle-seconds", 300);
+                final MinilanguagePool pool = new MinilanguagePool(poolMin,
+                        poolMax, poolIdleSeconds, TimeUnit.SECONDS);
+                final int parserProcesses = lookupInt(context,
+                        "minilanguage-parser-processes", processors);
+                final int parserMemoryMB = lookupInt(context,
+                        "minilanguage-parser-memory-mb",
+                        SandboxedMinilanguageParser.DEFAULT_MAX_MEMORY_MB);
+                final int parserCpuTimeMillis = lookupInt(context,
+                        "minilanguage-parser-cpu-time-ms", 1000);
+                // the robots are evaluated in separate processes, so a
+                // runaway program doesn't force stopping a thread of the
+                // parser executor. With 0 they're evaluated in this JVM
+                final SandboxedMinilanguageParser sandboxedParser = parserProcesses > 0 ? new SandboxedMinilanguageParser(
+                        parserProcesses, parserMemoryMB, parserCpuTimeMillis,
+                        TimeUnit.MILLISECONDS)
+                        : null;
+                final int completionCheckMillis = lookupInt(context,
+                        "completion-check-interval-ms", 500);
+                final int completionMaxWaiters = lookupInt(context,
+                        "completion-max-waiters",
+                        ExecutionCompletionNotifier.DEFAULT_MAX_WAITERS);
+                final ExecutionCompletionNotifier notifier = new ExecutionCompletionNotifier(
+                        backend, completionCheckMillis, TimeUnit.MILLISECONDS,
+                        completionMaxWaiters);
+                final int robotParallelism = lookupInt(context,
+                        "robot-parallelism", 0);
+                final int robotInputsPerHost = lookupInt(context,
+                        "robot-inputs-per-host",
+                        ParallelRobotRunner.DEFAULT_MAX_INPUTS_PER_HOST);
+                if (robotParallelism > 0
+                        && ParallelRobotRunner.installed() == null) {
+                    ParallelRobotRunner.install(new ParallelRobotRunner(
+                            robotParallelism, robotInputsPerHost));
+                }
                 return new Configuration() {
                     // since parsing the robot doesn't use IO, only use a pool
                     // with not more threads than number of processors
@@ -83,8 +122,18 @@ public class ConfigurationBootstrapper implements ServletContextListener {
                     }
 
                     @Override
-                    public MinilanguageProducer getMinilanguageProducer() {
-                        return producer;
+                    public MinilanguagePool getMinilanguagePool() {
+                        return pool;
+                    }
+
+                    @Override
+                    public SandboxedMinilanguageParser getSandboxedParser() {
+                        return sandboxedParser;
+                    }
+
+                    @Override
+                    public ExecutionCompletionNotifier getCompletionNotifier() {
+                        return notifier;
                     }
                 };
             }
@@ -116,6 +165,15 @@ public class ConfigurationBootstrapper implements ServletContextListener {
         }
     }
 
+    private static int lookupInt(Context context, String name,
+            int defaultValue) {
+        Object value = lookup(context, name);
+        int result = value != null ? Integer.parseInt(value.toString())
+                : defaultValue;
+        LOG.info(name + ": " + result);
+        return result;
+    }
+
     private static Object lookup(Context context, String name) {
         try {
             return context.lookup(name);
@@ -135,5 +193,17 @@ public class ConfigurationBootstrapper implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        Configuration configuration = Configuration.dissociate(sce
+                .getServletContext());
+        if (configuration != null) {
+            configuration.close();
+        }
+        // uninstalled so a redeploy installs a new one instead of reusing
+        // the stopped runner
+        ParallelRobotRunner runner = ParallelRobotRunner.installed();
+        ParallelRobotRunner.install(null);
+        if (runner != null) {
+            runner.shutdown();
+        }
     }
 }
@@ -1,6 +1,7 @@
 package es.uvigo.ei.sing.dare.configuration;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -12,12 +13,18 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.joda.time.DateTime;
+
+import es.uvigo.ei.sing.dare.domain.ExecutionCompletionNotifier;
 import es.uvigo.ei.sing.dare.domain.ExecutionFailedException;
+import es.uvigo.ei.sing.dare.domain.ExecutionState;
 import es.uvigo.ei.sing.dare.domain.ExecutionTimeExceededException;
 import es.uvigo.ei.sing.dare.domain.IBackend;
 import es.uvigo.ei.sing.dare.domain.Maybe;
-import es.uvigo.ei.sing.dare.domain.MinilanguageProducer;
+import es.uvigo.ei.sing.dare.domain.MinilanguagePool;
+import es.uvigo.ei.sing.dare.domain.SandboxedMinilanguageParser;
 import es.uvigo.ei.sing.dare.domain.TimeTracker;
 import es.uvigo.ei.sing.dare.domain.TimeTracker.IExecutionResultBuilder;
 import es.uvigo.ei.sing.dare.entities.ExecutionPeriod;
@@ -25,6 +32,7 @@ import es.uvigo.ei.sing.dare.entities.ExecutionPeriod.Unit;
 import es.uvigo.ei.sing.dare.entities.ExecutionResult;
 import es.uvigo.ei.sing.dare.entities.PeriodicalExecution;
 import es.uvigo.ei.sing.dare.entities.Robot;
+import es.uvigo.ei.sing.stringeditor.ParallelRobotRunner;
 
 public class ConfigurationStub extends Configuration {
 
@@ -59,7 +67,8 @@ public class ConfigurationStub extends Configuration {
 
     private ExecutorService executor = Executors.newCachedThreadPool();
 
-    private MinilanguageProducer producer = new MinilanguageProducer(4);
+    private MinilanguagePool pool = new MinilanguagePool(2, 4, 5,
+            TimeUnit.MINUTES);
 
     private final IBackend store = new IBackend() {
 
@@ -120,6 +129,20 @@ public class ConfigurationStub extends Configuration {
             return enqueRobotExection(robot, inputs);
         }
 
+        @Override
+        public List<String> submitExecutions(String existentRobotCode,
+                List<List<String>> inputsSets) {
+            Robot robot = find(existentRobotCode);
+            if (robot == null) {
+                return null;
+            }
+            List<String> result = new ArrayList<String>();
+            for (List<String> each : inputsSets) {
+                result.add(enqueRobotExection(robot, each));
+            }
+            return result;
+        }
+
         private Callable<ExecutionResult> resultCreation(final String code,
                 final Robot robot, final List<String> inputs) {
             return new Callable<ExecutionResult>() {
@@ -138,9 +161,11 @@ public class ConfigurationStub extends Configuration {
                                 throw new ExecutionFailedException(
                                         INPUT_THAT_ALWAYS_CAUSES_ERROR);
                             }
-                            final String[] result = robot.execute(inputs);
+                            ParallelRobotRunner.Execution execution = robot
+                                    .executeTimingInputs(inputs);
                             return ExecutionResult.create(code, robot, inputs,
-                                    result);
+                                    execution.getLines()).withInputTimes(
+                                    execution.getInputMillis());
                         }
 
                     };
@@ -186,6 +211,46 @@ public class ConfigurationStub extends Configuration {
             return Maybe.none();
         }
 
+        @Override
+        public Map<String, ExecutionState> retrieveExecutions(
+                Collection<String> executionCodes) {
+            Map<String, ExecutionState> result = new HashMap<String, ExecutionState>();
+            for (String each : executionCodes) {
+                try {
+                    Maybe<ExecutionResult> found = retrieveExecution(each);
+                    if (found != null) {
+                        result.put(each, found.hasValue() ? ExecutionState
+                                .completed(found.getValue()) : ExecutionState
+                                .pending(each));
+                    }
+                } catch (ExecutionTimeExceededException e) {
+                    result.put(each,
+                            ExecutionState.timedOut(each, e.getMessage()));
+                } catch (ExecutionFailedException e) {
+                    result.put(each, ExecutionState.failed(each, e.getMessage()));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public ExecutionState.Status executionStatus(String executionCode) {
+            ExecutionState state = retrieveExecutions(
+                    Arrays.asList(executionCode)).get(executionCode);
+            return state == null ? null : state.getStatus();
+        }
+
+        @Override
+        public Maybe<String> retrieveResultContentHash(String executionCode)
+                throws ExecutionTimeExceededException,
+                ExecutionFailedException {
+            Maybe<ExecutionResult> found = retrieveExecution(executionCode);
+            if (found == null || !found.hasValue()) {
+                return found == null ? null : Maybe.<String> none();
+            }
+            return Maybe.value(found.getValue().getResultContentHash());
+        }
+
         @Override
         public PeriodicalExecution findPeriodicalExecution(String code) {
             if (periodicalsByCode.containsKey(code)) {
@@ -194,6 +259,17 @@ public class ConfigurationStub extends Configuration {
             return null;
         }
 
+        @Override
+        public DateTime periodicalLastModified(String code) {
+            PeriodicalExecution found = findPeriodicalExecution(code);
+            if (found == null) {
+                return null;
+            }
+            ExecutionResult lastExecution = found.getLastExecutionResult();
+            return lastExecution != null ? lastExecution.getCreationTime()
+                    : found.getCreationTime();
+        }
+
         @Override
         public void save(PeriodicalExecution periodicalExecution) {
             periodicalsByCode.put(periodicalExecution.getCode(),
@@ -221,6 +297,9 @@ public class ConfigurationStub extends Configuration {
 
     };
 
+    private ExecutionCompletionNotifier notifier = new ExecutionCompletionNotifier(
+            store, 100, TimeUnit.MILLISECONDS);
+
     public IBackend getBackend() {
         return store;
     }
@@ -231,8 +310,18 @@ public class ConfigurationStub extends Configuration {
     }
 
     @Override
-    public MinilanguageProducer getMinilanguageProducer() {
-        return producer;
+    public MinilanguagePool getMinilanguagePool() {
+        return pool;
+    }
+
+    @Override
+    public SandboxedMinilanguageParser getSandboxedParser() {
+        return null;
+    }
+
+    @Override
+    public ExecutionCompletionNotifier getCompletionNotifier() {
+        return notifier;
     }
 
 }
@@ -1,14 +1,87 @@
 package es.uvigo.ei.sing.dare.resources;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+
 import javax.ws.rs.core.CacheControl;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 public class CacheUtil {
 
-    public static Response cacheImmutable(Object result) {
+    public static Response cacheImmutable(Object result, EntityTag etag) {
+        return Response.ok(result).cacheControl(immutable()).tag(etag).build();
+    }
+
+    /**
+     * Evaluates the preconditions of <code>request</code> against
+     * <code>etag</code>. It must be called before building the entity, so a
+     * conditional request for a representation that hasn't changed doesn't
+     * load it.
+     *
+     * @return the response to send if the preconditions are not met, e.g. a
+     *         304 for a GET with a matching If-None-Match. Otherwise
+     *         <code>null</code>.
+     */
+    public static Response notModified(Request request, EntityTag etag) {
+        ResponseBuilder response = request.evaluatePreconditions(etag);
+        if (response == null) {
+            return null;
+        }
+        return response.cacheControl(immutable()).tag(etag).build();
+    }
+
+    /**
+     * A strong entity tag: the SHA-1 of the <code>parts</code> the
+     * representation is built from. A strong tag can only be shared by
+     * byte-identical representations, so the parts must include everything
+     * the representation depends on, including its format. The elements of a
+     * {@link Collection} part are digested one by one.
+     */
+    public static EntityTag contentTag(Object... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (Object each : parts) {
+                if (each instanceof Collection<?>) {
+                    Collection<?> collection = (Collection<?>) each;
+                    update(digest, collection.size() + "");
+                    for (Object element : collection) {
+                        update(digest, String.valueOf(element));
+                    }
+                } else {
+                    update(digest, String.valueOf(each));
+                }
+            }
+            StringBuilder result = new StringBuilder();
+            for (byte each : digest.digest()) {
+                result.append(String.format("%02x", each & 0xff));
+            }
+            return new EntityTag(result.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // each value is preceded by its length, so the boundaries between the
+    // parts are part of the digest too
+    private static void update(MessageDigest digest, String value) {
+        try {
+            byte[] bytes = value.getBytes("UTF-8");
+            digest.update((bytes.length + ":").getBytes("UTF-8"));
+            digest.update(bytes);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static CacheControl immutable() {
         CacheControl cacheControl = CacheControl.valueOf("public");
         cacheControl.setMaxAge(90 * 24 * 3600); // 90 days
-        return Response.ok(result).cacheControl(cacheControl).build();
+        return cacheControl;
     }
 
 }
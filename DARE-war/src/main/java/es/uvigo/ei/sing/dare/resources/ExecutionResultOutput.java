@@ -0,0 +1,216 @@
+package es.uvigo.ei.sing.dare.resources;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.List;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.commons.lang.Validate;
+import org.joda.time.DateTime;
+
+import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
+
+/**
+ * Writes an execution result as it's being sent, without building a
+ * {@link RobotExecutionResultView} first. The result lines are written one by
+ * one, so if they're loaded lazily only the ones being written need to be in
+ * memory.
+ *
+ * The documents written are the same ones produced for a
+ * {@link RobotExecutionResultView}, by JAXB or its <code>asJSON</code> method,
+ * so the clients can read them the same way.
+ */
+final class ExecutionResultOutput implements StreamingOutput {
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory
+            .newInstance();
+
+    private enum Format {
+        XML, JSON
+    }
+
+    static ExecutionResultOutput asXML(URI createdFrom,
+            DateTime creationTime, long executionTime, List<String> inputs,
+            List<String> resultLines) {
+        return new ExecutionResultOutput(Format.XML, createdFrom,
+                creationTime, executionTime, inputs, resultLines);
+    }
+
+    static ExecutionResultOutput asJSON(URI createdFrom,
+            DateTime creationTime, long executionTime, List<String> inputs,
+            List<String> resultLines) {
+        return new ExecutionResultOutput(Format.JSON, createdFrom,
+                creationTime, executionTime, inputs, resultLines);
+    }
+
+    private final Format format;
+
+    private final URI createdFrom;
+
+    private final DateTime creationTime;
+
+    private final long executionTime;
+
+    private final List<String> inputs;
+
+    private final List<String> resultLines;
+
+    private ExecutionResultOutput(Format format, URI createdFrom,
+            DateTime creationTime, long executionTime, List<String> inputs,
+            List<String> resultLines) {
+        Validate.notNull(creationTime);
+        Validate.notNull(inputs);
+        Validate.notNull(resultLines);
+        this.format = format;
+        this.createdFrom = createdFrom;
+        this.creationTime = creationTime;
+        this.executionTime = executionTime;
+        this.inputs = inputs;
+        this.resultLines = resultLines;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException,
+            WebApplicationException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output,
+                ENCODING));
+        if (format == Format.JSON) {
+            writeJSON(writer);
+        } else {
+            writeXML(writer);
+        }
+        writer.flush();
+    }
+
+    // ### XML
+
+    private void writeXML(Writer writer) throws IOException {
+        try {
+            writeXML(outputFactory.createXMLStreamWriter(writer));
+        } catch (XMLStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private void writeXML(XMLStreamWriter xml) throws XMLStreamException {
+        xml.writeStartDocument(ENCODING, "1.0");
+        xml.writeStartElement("result");
+        writeElements(xml, "resultLines", "line", resultLines);
+        writeElement(xml, "executionTime", String.valueOf(executionTime));
+        writeElement(xml, "creationDateMillis", String.valueOf(creationTime
+                .getMillis()));
+        if (createdFrom != null) {
+            writeElement(xml, "createdFrom", createdFrom.toString());
+        }
+        writeElements(xml, "inputs", "input", inputs);
+        xml.writeEndElement();
+        xml.writeEndDocument();
+        xml.flush();
+    }
+
+    private static void writeElement(XMLStreamWriter xml, String name,
+            String value) throws XMLStreamException {
+        xml.writeStartElement(name);
+        xml.writeCharacters(value);
+        xml.writeEndElement();
+    }
+
+    private static void writeElements(XMLStreamWriter xml, String wrapper,
+            String name, List<String> values) throws XMLStreamException {
+        xml.writeStartElement(wrapper);
+        for (String each : values) {
+            writeElement(xml, name, each);
+        }
+        xml.writeEndElement();
+    }
+
+    // ### JSON
+
+    private void writeJSON(Writer writer) throws IOException {
+        writer.write("{\"resultLines\":");
+        writeArray(writer, resultLines);
+        writer.write(",\"executionTime\":");
+        writer.write(String.valueOf(executionTime));
+        writer.write(",\"creationDateMillis\":");
+        writer.write(String.valueOf(creationTime.getMillis()));
+        writer.write(",\"createdFrom\":");
+        if (createdFrom == null) {
+            writer.write("null");
+        } else {
+            writeString(writer, createdFrom.toString());
+        }
+        writer.write(",\"inputs\":");
+        writeArray(writer, inputs);
+        writer.write("}");
+    }
+
+    private static void writeArray(Writer writer, List<String> values)
+            throws IOException {
+        writer.write('[');
+        boolean first = true;
+        for (String each : values) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writeString(writer, each);
+        }
+        writer.write(']');
+    }
+
+    // It escapes the same characters as Jettison's JSONObject.quote
+    private static void writeString(Writer writer, String value)
+            throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                writer.write('\\');
+                writer.write(c);
+                break;
+            case '\b':
+                writer.write("\\b");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\f':
+                writer.write("\\f");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            default:
+                if (c < ' ') {
+                    String hex = Integer.toHexString(c);
+                    writer.write("\\u");
+                    for (int j = hex.length(); j < 4; j++) {
+                        writer.write('0');
+                    }
+                    writer.write(hex);
+                } else {
+                    writer.write(c);
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+}
@@ -3,32 +3,77 @@ package es.uvigo.ei.sing.dare.resources;
 import static es.uvigo.ei.sing.dare.configuration.Configuration.EXECUTION_RESULT_BASE_URL;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletContext;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
 import es.uvigo.ei.sing.dare.configuration.Configuration;
 import es.uvigo.ei.sing.dare.domain.ExecutionFailedException;
+import es.uvigo.ei.sing.dare.domain.ExecutionState;
 import es.uvigo.ei.sing.dare.domain.ExecutionTimeExceededException;
 import es.uvigo.ei.sing.dare.domain.IBackend;
 import es.uvigo.ei.sing.dare.domain.Maybe;
 import es.uvigo.ei.sing.dare.entities.ExecutionResult;
+import es.uvigo.ei.sing.dare.resources.views.ExecutionStateView;
 import es.uvigo.ei.sing.dare.resources.views.RobotExecutionResultView;
 
 @Path(EXECUTION_RESULT_BASE_URL)
 public class ExecutionResultResource {
 
+    public static final String TOTAL_RESULT_LINES_HEADER = "X-Total-Result-Lines";
+
+    public static final String EXECUTION_TIME_HEADER = "X-Execution-Time-Milliseconds";
+
+    public static final String INPUT_TIMES_HEADER = "X-Input-Times-Milliseconds";
+
+    /**
+     * The seconds a client is asked to wait before asking again for an
+     * execution that hasn't completed.
+     */
+    public static final int RETRY_AFTER_SECONDS = 1;
+
+    /**
+     * The longest time a request can wait for an execution to complete.
+     */
+    public static final long MAX_WAIT_MILLISECONDS = 60 * 1000;
+
+    /**
+     * The most executions that can be retrieved in a single request.
+     */
+    public static final int MAX_BULK_SIZE = 1000;
+
+    private static final Pattern WAIT_PATTERN = Pattern
+            .compile("(\\d+)(ms|s|m)?");
+
     public static URI buildURIFor(UriInfo uriInfo,
             ExecutionResult executionResult) {
         return buildURIFor(uriInfo, executionResult.getCode());
@@ -46,6 +91,9 @@ public class ExecutionResultResource {
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private HttpHeaders headers;
+
     private Configuration getConfiguration() {
         return Configuration.from(context);
     }
@@ -62,33 +110,109 @@ public class ExecutionResultResource {
         return Response.ok().build();
     }
 
+    /**
+     * The result lines can be paged with the <code>offset</code> and
+     * <code>limit</code> parameters. The total number of lines is sent in the
+     * {@link #TOTAL_RESULT_LINES_HEADER} header and the time the execution
+     * took in the {@link #EXECUTION_TIME_HEADER} one. If the inputs were
+     * executed on their own, the time each one took is sent, separated by
+     * commas, in the {@link #INPUT_TIMES_HEADER} header.
+     *
+     * If the execution hasn't completed, the response is sent once it
+     * completes or after the time specified by the <code>wait</code>
+     * parameter, e.g. <code>30s</code>, <code>500ms</code> or
+     * <code>1m</code>. A number without unit is taken as seconds. It can't be
+     * longer than {@link #MAX_WAIT_MILLISECONDS}. Without <code>wait</code>
+     * the response is sent immediately, as it is when too many requests are
+     * already waiting. A response without content includes a Retry-After
+     * header.
+     */
     @GET
     @Produces({ MediaType.APPLICATION_XML, MediaType.TEXT_XML })
     @Path("{executionResultCode}")
-    public Response retrieve(
-            @PathParam("executionResultCode") String executionResultCode) {
-        return CacheUtil.cacheImmutable(retrieveExecution(executionResultCode));
+    public Response retrieve(@Context Request request,
+            @PathParam("executionResultCode") String executionResultCode,
+            @QueryParam("offset") @DefaultValue("0") int offset,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("wait") String wait) {
+        checkRange(offset, limit);
+        Response notModified = notModified(request, "xml",
+                executionResultCode, offset, limit);
+        if (notModified != null) {
+            return notModified;
+        }
+        ExecutionResult result = retrieveExecution(executionResultCode,
+                parseWait(wait));
+        List<String> lines = range(result.getResultLines(), offset, limit);
+        EntityTag etag = resultTag("xml", result.getCode(), offset, limit,
+                result.getResultContentHash());
+        return withHeaders(CacheUtil.cacheImmutable(ExecutionResultOutput
+                .asXML(getCreatedFrom(result), result.getCreationTime(),
+                        result.getExecutionTimeMilliseconds(),
+                        result.getInputs(), lines), etag), result);
+    }
+
+    /**
+     * A completed execution never changes, so its code and the content hash
+     * of its lines identify it.
+     */
+    private static EntityTag resultTag(String format, String code,
+            int offset, Integer limit, String contentHash) {
+        return CacheUtil.contentTag(format, code, offset, limit, contentHash);
+    }
+
+    /**
+     * The preconditions of a conditional request are evaluated before
+     * retrieving the execution, with the content hash the backend stores
+     * along the result, so a request that isn't modified doesn't read the
+     * result nor its lines.
+     *
+     * @return the response to send if the preconditions are not met.
+     *         Otherwise <code>null</code>, also if the execution doesn't
+     *         exist or hasn't completed.
+     */
+    private Response notModified(Request request, String format,
+            String executionResultCode, int offset, Integer limit) {
+        if (!isConditional()) {
+            return null;
+        }
+        try {
+            Maybe<String> contentHash = getStore().retrieveResultContentHash(
+                    executionResultCode);
+            if (contentHash == null || !contentHash.hasValue()) {
+                return null;
+            }
+            return CacheUtil.notModified(request, resultTag(format,
+                    executionResultCode, offset, limit, contentHash
+                            .getValue()));
+        } catch (ExecutionTimeExceededException e) {
+            throw errorResponse(e.getMessage());
+        } catch (ExecutionFailedException e) {
+            throw errorResponse(e.getMessage());
+        }
+    }
+
+    private boolean isConditional() {
+        return headers.getRequestHeader(HttpHeaders.IF_NONE_MATCH) != null
+                || headers.getRequestHeader(HttpHeaders.IF_MATCH) != null;
     }
 
-    private RobotExecutionResultView retrieveExecution(
-            String executionResultCode) {
+    private ExecutionResult retrieveExecution(String executionResultCode,
+            long waitMilliseconds) {
         try {
-            Maybe<ExecutionResult> possibleResult = getStore()
-                    .retrieveExecution(executionResultCode);
+            // without wait the notifier only checks its status, so polling a
+            // pending execution doesn't retrieve it
+            Maybe<ExecutionResult> possibleResult = getConfiguration()
+                    .getCompletionNotifier().await(executionResultCode,
+                            waitMilliseconds, TimeUnit.MILLISECONDS);
             if (possibleResult == null) {
                 throw new WebApplicationException(Status.NOT_FOUND);
             }
             if (possibleResult.isNone()) {// not completed
-                throw new WebApplicationException(Status.NO_CONTENT);
+                throw new WebApplicationException(Response.noContent()
+                        .header("Retry-After", RETRY_AFTER_SECONDS).build());
             }
-            ExecutionResult result = possibleResult.getValue();
-            URI createdFrom = getCreatedFrom(result);
-            RobotExecutionResultView entity = new RobotExecutionResultView(createdFrom,
-                    result.getCreationTime(),
-                    result.getExecutionTimeMilliseconds(),
-                    result.getInputs(),
-                    result.getResultLines());
-            return entity;
+            return possibleResult.getValue();
         } catch (ExecutionTimeExceededException e) {
             throw errorResponse(e.getMessage());
         } catch (ExecutionFailedException e) {
@@ -96,6 +220,123 @@ public class ExecutionResultResource {
         }
     }
 
+    /**
+     * Retrieves many executions in a single request. The body is a JSON array
+     * with the codes of the executions. The response has a
+     * <code>results</code> array with an {@link ExecutionStateView} for each
+     * code in the same order. The codes that don't exist get a
+     * {@link ExecutionStateView#NOT_FOUND} status.
+     */
+    @POST
+    @Path("bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response retrieveMany(String codesJSON) {
+        List<String> codes = parseCodes(codesJSON);
+        Map<String, ExecutionState> states = getStore().retrieveExecutions(
+                codes);
+        JSONArray results = new JSONArray();
+        for (String each : codes) {
+            results.put(asView(each, states.get(each)).asJSON());
+        }
+        try {
+            return Response.ok(new JSONObject().put("results", results))
+                    .build();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<String> parseCodes(String json) {
+        try {
+            JSONArray array = new JSONArray(json);
+            if (array.length() > MAX_BULK_SIZE) {
+                throw badRequest("can't retrieve more than " + MAX_BULK_SIZE
+                        + " executions at once");
+            }
+            List<String> result = new ArrayList<String>();
+            for (int i = 0; i < array.length(); i++) {
+                result.add(array.getString(i));
+            }
+            return result;
+        } catch (JSONException e) {
+            throw badRequest("the body must be an array of execution codes: "
+                    + e.getMessage());
+        }
+    }
+
+    private ExecutionStateView asView(String code, ExecutionState state) {
+        if (state == null) {
+            return new ExecutionStateView(code, ExecutionStateView.NOT_FOUND,
+                    null, null);
+        }
+        ExecutionResult result = state.getResult();
+        return new ExecutionStateView(code, state.getStatus().asString(),
+                result == null ? null : new RobotExecutionResultView(
+                        getCreatedFrom(result), result.getCreationTime(),
+                        result.getExecutionTimeMilliseconds(),
+                        result.getInputs(), result.getResultLines()),
+                state.getErrorMessage());
+    }
+
+    static long parseWait(String wait) {
+        if (wait == null) {
+            return 0;
+        }
+        Matcher matcher = WAIT_PATTERN.matcher(wait.trim());
+        if (!matcher.matches() || matcher.group(1).length() > 9) {
+            throw badRequest("wait must be a number of seconds, "
+                    + "optionally followed by ms, s or m");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2);
+        long result;
+        if ("ms".equals(unit)) {
+            result = amount;
+        } else if ("m".equals(unit)) {
+            result = TimeUnit.MINUTES.toMillis(amount);
+        } else {
+            result = TimeUnit.SECONDS.toMillis(amount);
+        }
+        return Math.min(result, MAX_WAIT_MILLISECONDS);
+    }
+
+    private static WebApplicationException badRequest(String message) {
+        return new WebApplicationException(Response
+                .status(Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN)
+                .entity(message).build());
+    }
+
+    private static void checkRange(int offset, Integer limit) {
+        if (offset < 0 || (limit != null && limit < 0)) {
+            throw badRequest("offset and limit can't be negative");
+        }
+    }
+
+    private static List<String> range(List<String> lines, int offset,
+            Integer limit) {
+        int from = Math.min(offset, lines.size());
+        int to = limit == null ? lines.size() : (int) Math.min(
+                (long) from + limit, lines.size());
+        if (from == 0 && to == lines.size()) {
+            return lines;
+        }
+        return lines.subList(from, to);
+    }
+
+    private static Response withHeaders(Response response,
+            ExecutionResult result) {
+        response.getMetadata().putSingle(TOTAL_RESULT_LINES_HEADER,
+                result.getResultLines().size());
+        response.getMetadata().putSingle(EXECUTION_TIME_HEADER,
+                result.getExecutionTimeMilliseconds());
+        if (!result.getInputTimesMilliseconds().isEmpty()) {
+            response.getMetadata().putSingle(INPUT_TIMES_HEADER,
+                    StringUtils.join(result.getInputTimesMilliseconds(), ","));
+        }
+        return response;
+    }
+
     WebApplicationException errorResponse(String errorMessage) {
         return new WebApplicationException(Response
                 .status(Status.INTERNAL_SERVER_ERROR)
@@ -110,9 +351,25 @@ public class ExecutionResultResource {
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("{executionResultCode}")
-    public Response retrieveAsJSON(
-            @PathParam("executionResultCode") String executionResultCode) {
-        return CacheUtil.cacheImmutable(retrieveExecution(executionResultCode)
-                .asJSON());
+    public Response retrieveAsJSON(@Context Request request,
+            @PathParam("executionResultCode") String executionResultCode,
+            @QueryParam("offset") @DefaultValue("0") int offset,
+            @QueryParam("limit") Integer limit,
+            @QueryParam("wait") String wait) {
+        checkRange(offset, limit);
+        Response notModified = notModified(request, "json",
+                executionResultCode, offset, limit);
+        if (notModified != null) {
+            return notModified;
+        }
+        ExecutionResult result = retrieveExecution(executionResultCode,
+                parseWait(wait));
+        List<String> lines = range(result.getResultLines(), offset, limit);
+        EntityTag etag = resultTag("json", result.getCode(), offset, limit,
+                result.getResultContentHash());
+        return withHeaders(CacheUtil.cacheImmutable(ExecutionResultOutput
+                .asJSON(getCreatedFrom(result), result.getCreationTime(),
+                        result.getExecutionTimeMilliseconds(),
+                        result.getInputs(), lines), etag), result);
     }
 }
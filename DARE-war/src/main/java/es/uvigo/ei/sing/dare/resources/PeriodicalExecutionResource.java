@@ -68,29 +68,42 @@ public class PeriodicalExecutionResource {
     public Response retrievePeriodicalExecution(
             @Context Request request,
             @PathParam("periodical-execution-code") String periodicalExecutionCode) {
+        ResponseBuilder notModified = evaluatePreconditions(request,
+                periodicalExecutionCode);
+        if (notModified != null) {
+            return notModified.build();
+        }
         PeriodicalExecutionView entity = retrieve(periodicalExecutionCode);
-        return responseWithExpiresAndEtag(request, entity);
+        return responseWithExpiresAndEtag(entity, entity);
     }
 
-    private Response responseWithExpiresAndEtag(Request request,
-            PeriodicalExecutionView entity) {
-        return responseWithExpiresAndEtag(request, entity, entity);
+    /**
+     * Only the last modification time of the periodical execution is
+     * retrieved, so a conditional request for a periodical execution that
+     * hasn't changed doesn't load its last result.
+     */
+    private ResponseBuilder evaluatePreconditions(Request request,
+            String periodicalExecutionCode) {
+        DateTime lastModification = getConfiguration().getBackend()
+                .periodicalLastModified(periodicalExecutionCode);
+        if (lastModification == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+        return request.evaluatePreconditions(etagFor(lastModification));
     }
 
-    private Response responseWithExpiresAndEtag(Request request,
+    private Response responseWithExpiresAndEtag(
             PeriodicalExecutionView entity, Object variantReturned) {
-        EntityTag etag = calculateEtag(entity);
-        ResponseBuilder response = request.evaluatePreconditions(etag);
-        if (response != null) {
-            return response.build();
-        }
-        return Response.ok(variantReturned).tag(etag)
+        return Response.ok(variantReturned).tag(calculateEtag(entity))
                 .expires(expirationDate(entity))
                 .build();
     }
 
     private EntityTag calculateEtag(PeriodicalExecutionView periodical) {
-        DateTime lastModification = getLastModificationTime(periodical);
+        return etagFor(getLastModificationTime(periodical));
+    }
+
+    private static EntityTag etagFor(DateTime lastModification) {
         return new EntityTag(lastModification.getMillis() + "", true);
     }
 
@@ -142,9 +155,14 @@ public class PeriodicalExecutionResource {
     public Response retrievePeriodicalExecutionAsJSON(
             @Context Request request,
             @PathParam("periodical-execution-code") String periodicalExecutionCode) {
+        ResponseBuilder notModified = evaluatePreconditions(request,
+                periodicalExecutionCode);
+        if (notModified != null) {
+            return notModified.build();
+        }
         PeriodicalExecutionView periodicalExecutionView = retrieve(periodicalExecutionCode);
-        return responseWithExpiresAndEtag(request, periodicalExecutionView,
-                retrieve(periodicalExecutionCode).asJSON());
+        return responseWithExpiresAndEtag(periodicalExecutionView,
+                periodicalExecutionView.asJSON());
     }
 
     @DELETE
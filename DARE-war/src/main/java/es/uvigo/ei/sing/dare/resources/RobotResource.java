@@ -1,7 +1,9 @@
 package es.uvigo.ei.sing.dare.resources;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -16,27 +18,40 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 import javax.ws.rs.core.UriInfo;
 
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
 import org.w3c.dom.Document;
 
 import es.uvigo.ei.sing.dare.configuration.Configuration;
 import es.uvigo.ei.sing.dare.domain.IBackend;
-import es.uvigo.ei.sing.dare.domain.MinilanguageProducer;
+import es.uvigo.ei.sing.dare.domain.MinilanguagePool;
+import es.uvigo.ei.sing.dare.domain.SandboxedMinilanguageParser;
 import es.uvigo.ei.sing.dare.entities.ExecutionPeriod;
 import es.uvigo.ei.sing.dare.entities.PeriodicalExecution;
 import es.uvigo.ei.sing.dare.entities.Robot;
 import es.uvigo.ei.sing.dare.resources.views.RobotJSONView;
 import es.uvigo.ei.sing.dare.resources.views.RobotXMLView;
 import es.uvigo.ei.sing.dare.util.XMLUtil;
+import es.uvigo.ei.sing.stringeditor.BudgetExceededException;
+import es.uvigo.ei.sing.stringeditor.Minilanguage;
 
 @Path(Configuration.ROBOT_BASE_PATH)
 public class RobotResource {
 
+    /**
+     * The maximum number of executions that can be submitted in a batch.
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
     public static URI buildURIFor(UriInfo uriInfo, Robot robot) {
         return buildURIFor(uriInfo, robot.getCode());
     }
@@ -72,18 +87,67 @@ public class RobotResource {
     }
 
     private Robot parseRobot(String miniLanguage) {
+        Configuration conf = getConfiguration();
+        SandboxedMinilanguageParser sandboxedParser = conf.getSandboxedParser();
+        if (sandboxedParser != null) {
+            return parseRobot(sandboxedParser, miniLanguage);
+        }
+        MinilanguagePool pool = conf.getMinilanguagePool();
+        Minilanguage minilanguage = borrowFrom(pool);
+        // if the evaluation has been aborted the engine is not reusable
+        boolean reusable = false;
+        try {
+            Robot result = Robot.createFromMinilanguage(minilanguage,
+                    miniLanguage, conf.getRobotParserExecutor(), 1,
+                    TimeUnit.SECONDS);
+            reusable = true;
+            return result;
+        } catch (IllegalArgumentException e) {
+            reusable = true;
+            throw new WebApplicationException(e, Status.BAD_REQUEST);
+        } catch (BudgetExceededException e) {
+            throw new WebApplicationException(Response
+                    .status(Status.BAD_REQUEST)
+                    .entity("The minilanguage takes too many steps to parse: "
+                            + e.getMessage()).build());
+        } catch (TimeoutException e) {
+            throw new WebApplicationException(Response.serverError()
+                            .entity("Max time(1 second) to parse the minilanguage exceeded. ")
+                            .build());
+        } finally {
+            if (reusable) {
+                pool.giveBack(minilanguage);
+            } else {
+                pool.invalidate(minilanguage);
+            }
+        }
+    }
+
+    private Robot parseRobot(SandboxedMinilanguageParser parser,
+            String miniLanguage) {
         try {
-            Configuration conf = getConfiguration();
-            MinilanguageProducer producer = conf.getMinilanguageProducer();
-            return Robot.createFromMinilanguage(producer.newMinilanguage(),
-                    miniLanguage, conf.getRobotParserExecutor(),
-                    1, TimeUnit.SECONDS);
+            return Robot.createFromMinilanguage(parser, miniLanguage, 1,
+                    TimeUnit.SECONDS);
         } catch (IllegalArgumentException e) {
             throw new WebApplicationException(e, Status.BAD_REQUEST);
         } catch (TimeoutException e) {
             throw new WebApplicationException(Response.serverError()
                             .entity("Max time(1 second) to parse the minilanguage exceeded. ")
                             .build());
+        } catch (RejectedExecutionException e) {
+            throw new WebApplicationException(Response
+                    .status(Status.SERVICE_UNAVAILABLE)
+                    .entity("No minilanguage parser available. ").build());
+        }
+    }
+
+    private Minilanguage borrowFrom(MinilanguagePool pool) {
+        try {
+            return pool.borrow(10, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new WebApplicationException(Response
+                    .status(Status.SERVICE_UNAVAILABLE)
+                    .entity("No minilanguage parser available. ").build());
         }
     }
 
@@ -116,23 +180,45 @@ public class RobotResource {
     @GET
     @Path("{code}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Response viewAsJSON(@PathParam("code") String robotCode) {
+    public Response viewAsJSON(@Context Request request,
+            @PathParam("code") String robotCode) {
         Robot robot = find(robotCode);
+        EntityTag etag = robotTag("json", robot);
+        Response notModified = CacheUtil.notModified(request, etag);
+        if (notModified != null) {
+            return notModified;
+        }
         RobotJSONView result = new RobotJSONView(robot.getCode(),
                 robot.getCreationTime(), robot.getTransformerInXML(),
                 robot.getTransformerInMinilanguage());
-        return CacheUtil.cacheImmutable(result);
+        return CacheUtil.cacheImmutable(result, etag);
     }
 
     @GET
     @Path("{code}")
     @Produces({ MediaType.APPLICATION_XML, MediaType.TEXT_XML })
-    public Response viewAsXML(@PathParam("code") String robotCode) {
+    public Response viewAsXML(@Context Request request,
+            @PathParam("code") String robotCode) {
         Robot robot = find(robotCode);
+        EntityTag etag = robotTag("xml", robot);
+        Response notModified = CacheUtil.notModified(request, etag);
+        if (notModified != null) {
+            return notModified;
+        }
         return CacheUtil.cacheImmutable(new RobotXMLView(robot.getCode(), robot
                 .getCreationTime(), robot.getTransformerInMinilanguage(),
                 XMLUtil.toDocument(robot
-                        .getTransformerInXML())));
+                        .getTransformerInXML())), etag);
+    }
+
+    /**
+     * The views of a robot are built from its content, that never changes
+     * once created. The tag of each format is different.
+     */
+    private static EntityTag robotTag(String format, Robot robot) {
+        return CacheUtil.contentTag(format, robot.getCode(), robot
+                .getCreationTime().getMillis(), robot
+                .getTransformerInMinilanguage(), robot.getTransformerInXML());
     }
 
     @DELETE
@@ -163,6 +249,67 @@ public class RobotResource {
         return redirectToResult(resultCode);
     }
 
+    /**
+     * Submits several executions of the robot at once. The request body is a
+     * JSON array with the inputs of each execution, e.g.
+     * <code>[["input1", "input2"], ["input3"]]</code>. The response has the
+     * URIs of the results in the same order:
+     * <code>{"results": ["uri1", "uri2"]}</code>.
+     */
+    @POST
+    @Path("{code}/execute-batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response executeBatchOnAlreadyExistentRobot(
+            @PathParam("code") String robotCode, String inputsSetsJSON) {
+        List<List<String>> inputsSets = parseInputsSets(inputsSetsJSON);
+        List<String> resultCodes = getBackend().submitExecutions(robotCode,
+                inputsSets);
+        if (resultCodes == null) {
+            throw new WebApplicationException(Status.NOT_FOUND);
+        }
+        JSONArray results = new JSONArray();
+        for (String each : resultCodes) {
+            results.put(ExecutionResultResource.buildURIFor(uriInfo, each)
+                    .toString());
+        }
+        try {
+            return Response.ok(new JSONObject().put("results", results))
+                    .build();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<List<String>> parseInputsSets(String json) {
+        try {
+            JSONArray sets = new JSONArray(json);
+            if (sets.length() > MAX_BATCH_SIZE) {
+                throw badRequest("a batch can't have more than "
+                        + MAX_BATCH_SIZE + " executions");
+            }
+            List<List<String>> result = new ArrayList<List<String>>();
+            for (int i = 0; i < sets.length(); i++) {
+                JSONArray inputs = sets.getJSONArray(i);
+                List<String> each = new ArrayList<String>();
+                for (int j = 0; j < inputs.length(); j++) {
+                    each.add(inputs.getString(j));
+                }
+                result.add(each);
+            }
+            return result;
+        } catch (JSONException e) {
+            throw badRequest("the body must be an array of arrays of inputs: "
+                    + e.getMessage());
+        }
+    }
+
+    private static WebApplicationException badRequest(String message) {
+        return new WebApplicationException(Response
+                .status(Status.BAD_REQUEST).type(MediaType.TEXT_PLAIN)
+                .entity(message).build());
+    }
+
     @POST
     @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
     @Path("execute")
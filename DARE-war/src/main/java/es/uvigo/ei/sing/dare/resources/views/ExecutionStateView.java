@@ -0,0 +1,87 @@
+package es.uvigo.ei.sing.dare.resources.views;
+
+import org.apache.commons.lang.Validate;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+/**
+ * The state of one of the executions retrieved at once. The
+ * <code>result</code> is only present if the execution has completed and the
+ * <code>error</code> if it has failed or timed out.
+ */
+public class ExecutionStateView {
+
+    public static final String NOT_FOUND = "not-found";
+
+    public static final String PENDING = "pending";
+
+    public static final String COMPLETED = "completed";
+
+    private final String code;
+
+    private final String status;
+
+    private final RobotExecutionResultView result;
+
+    private final String error;
+
+    public ExecutionStateView(String code, String status,
+            RobotExecutionResultView result, String error) {
+        Validate.notNull(code);
+        Validate.notNull(status);
+        this.code = code;
+        this.status = status;
+        this.result = result;
+        this.error = error;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public boolean isCompleted() {
+        return COMPLETED.equals(status);
+    }
+
+    public RobotExecutionResultView getResult() {
+        return result;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public JSONObject asJSON() {
+        JSONObject object = new JSONObject();
+        try {
+            object.put("code", code);
+            object.put("status", status);
+            if (result != null) {
+                object.put("result", result.asJSON());
+            }
+            if (error != null) {
+                object.put("error", error);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        return object;
+    }
+
+    public static ExecutionStateView fromJSON(JSONObject object) {
+        try {
+            JSONObject result = object.optJSONObject("result");
+            return new ExecutionStateView(object.getString("code"),
+                    object.getString("status"),
+                    result == null ? null : RobotExecutionResultView
+                            .fromJSON(result), object.optString("error", null));
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -25,7 +25,14 @@
 (defn is-production-option [[key value]]
   (let [as-string (unkeywordize key)]
     (or (.startsWith as-string "mongo-")
-        (and (.startsWith as-string "max-queue") value))))
+        (and (or (.startsWith as-string "max-queue")
+                 (.startsWith as-string "minilanguage-pool")
+                 (.startsWith as-string "minilanguage-parser-")
+                 (.startsWith as-string "memoization-")
+                 (.startsWith as-string "completion-")
+                 (.startsWith as-string "robot-parallelism")
+                 (.startsWith as-string "robot-inputs-per-host"))
+             value))))
 
 (defn get-production-options [options]
   (->> options
@@ -88,6 +95,31 @@
         :default "test"]
        ["--max-queue-minilanguage-parsing" "Not required. The number of robots
        creation requests than can be waiting for being parsed"]
+       ["--minilanguage-pool-min" "Not required. The number of minilanguage
+       parsers kept ready"]
+       ["--minilanguage-pool-max" "Not required. The maximum number of
+       minilanguage parsers"]
+       ["--minilanguage-pool-idle-seconds" "Not required. The seconds an
+       unused minilanguage parser is kept"]
+       ["--minilanguage-parser-processes" "Not required. The robots are
+       parsed in this number of separate JVMs, by default the number of
+       processors. With 0 they're parsed in this JVM"]
+       ["--minilanguage-parser-memory-mb" "Not required. The maximum heap of
+       each parser process"]
+       ["--minilanguage-parser-cpu-time-ms" "Not required. The CPU time a
+       program can consume in a parser process"]
+       ["--memoization-ttl-ms" "Not required. If given, submitting a robot
+       with the same inputs again within these milliseconds returns the
+       previous execution"]
+       ["--completion-check-interval-ms" "Not required. The milliseconds
+       between the checks of the executions being waited for"]
+       ["--completion-max-waiters" "Not required. The requests that can be
+       waiting at once for the completion of an execution"]
+       ["--robot-parallelism" "Not required. If given, the independent
+       branches of the robots are executed concurrently using this number of
+       threads"]
+       ["--robot-inputs-per-host" "Not required. The inputs that are URLs
+       of the same host executed at once"]
        ["-h" "--help" "Print this help" :flag true :default false]))
 
 (defn -main [& args]
@@ -217,6 +217,52 @@ available an exception is thrown."
         result)
       (throw (RuntimeException. "No healthy worker found!")))))
 
+;; Sending many requests one by one with `send-request!` would wait
+;; for each response before sending the next one. Instead they are
+;; pipelined: all of them are sent without waiting and the responses
+;; are collected afterwards. Since each request waits at most 500 ms
+;; from the moment its response is awaited, and the responses arrive
+;; meanwhile, the whole batch takes about the time of a single
+;; request.
+(defn- assign-to-workers
+  "It pairs each request with a worker, distributing them round-robin
+among the `healthy` workers. The least busy ones come first."
+  [requests healthy]
+  (map vector requests (cycle healthy)))
+
+(defn- wait-for-response
+  "It waits for the response to a request sent with `async-send`. It
+returns nil if there is no response in time."
+  [channel timeout]
+  (try
+    (wait-for-result channel timeout)
+    (catch Throwable e
+      nil)))
+
+(defn send-requests!
+  "It sends several requests to the healthy workers without waiting
+for each response before sending the next. The requests not accepted
+by the worker they were assigned to are sent again with
+`send-request!`, so they are tried with the other workers. It returns
+the responses in the same order as the requests. If no worker is
+available an exception is thrown."
+  [{:keys [get-healthy update-current-petitions!] :as workers-handler} requests]
+  (let [healthy (get-healthy)]
+    (when (empty? healthy)
+      (throw (RuntimeException. "No healthy workers")))
+    (let [sent (doall
+                (for [[request [spec client]] (assign-to-workers requests healthy)]
+                  [request spec (async-send request 500 client)]))]
+      (doall
+       (for [[request spec channel] sent]
+         (let [{:keys [accepted current-petitions] :as result}
+               (wait-for-response channel 500)]
+           (if accepted
+             (do
+               (update-current-petitions! spec current-petitions)
+               result)
+             (send-request! workers-handler request))))))))
+
 ;; ### Shutdown
 
 (defn- close-connections!
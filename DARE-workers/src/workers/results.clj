@@ -0,0 +1,187 @@
+;; ### Result store
+
+;; The lines produced by an execution can be many more than the
+;; metadata of the execution. Keeping them in the same document makes
+;; big results hit the MongoDB document size limit and makes every
+;; lookup of the execution transfer all of them.
+;;
+;; A `ResultStore` decides where the lines of a result are kept. It
+;; returns the fields to be stored in the document of the execution,
+;; that are enough to read the lines afterwards with `chunk-loader` or
+;; `:resultLines`.
+(ns workers.results
+  (:require [somnium.congomongo :as mongo])
+  (:import [java.io ByteArrayInputStream ByteArrayOutputStream
+            DataInputStream DataOutputStream OutputStream]
+           [java.security DigestOutputStream MessageDigest]
+           [java.util UUID]
+           [java.util.zip GZIPInputStream GZIPOutputStream]))
+
+(def chunks-coll :result-chunks)
+
+(def default-chunk-size 1000)
+
+(defprotocol ResultStore
+  (store-lines! [store owner-code lines]
+    "Stores the `lines` of a result of the execution or periodical
+  execution with code `owner-code`. It returns the fields to be set on
+  the document of the execution.")
+  (discard-lines! [store fields]
+    "Removes the lines stored along the `fields` returned by
+  `store-lines!`, once they aren't referenced anymore. They may still
+  be being read, so they can be kept until `sweep-discarded!`
+  removes them."))
+
+;; Each line is written as its length in bytes followed by its UTF-8
+;; bytes, so the lines can contain any character. The SHA-1 of the
+;; lines written this way is their content hash, the same
+;; `ResultLines` computes.
+
+(defn- encode-line
+  [^DataOutputStream output ^String line]
+  (let [bytes (.getBytes line "UTF-8")]
+    (.writeInt output (alength bytes))
+    (.write output bytes)))
+
+(defn- hex [^bytes bytes]
+  (apply str (map #(format "%02x" (bit-and % 0xff)) bytes)))
+
+(defn lines-sha1
+  "The content hash of `lines` in hexadecimal."
+  [lines]
+  (let [digest (MessageDigest/getInstance "SHA-1")
+        discarded (proxy [OutputStream] []
+                    (write
+                      ([b])
+                      ([b off len])))]
+    (with-open [output (DataOutputStream.
+                        (DigestOutputStream. discarded digest))]
+      (doseq [line lines]
+        (encode-line output line)))
+    (hex (.digest digest))))
+
+;; The lines are kept in the document of the execution, as they were
+;; always stored, along their content hash at `:resultSha1`.
+(defrecord InlineStore []
+  ResultStore
+  (store-lines! [store owner-code lines]
+    {:resultLines (vec lines)
+     :resultSha1 (lines-sha1 lines)})
+  (discard-lines! [store fields]))
+
+;; #### Chunks
+
+;; The chunks are compressed with GZIP.
+
+(defn encode-chunk
+  "It returns the compressed bytes for `lines`. The uncompressed bytes
+are given to `digest` too."
+  ^bytes [lines ^MessageDigest digest]
+  (let [plain (ByteArrayOutputStream.)
+        compressed (ByteArrayOutputStream.)]
+    (with-open [output (DataOutputStream. plain)]
+      (doseq [line lines]
+        (encode-line output line)))
+    (let [bytes (.toByteArray plain)]
+      (.update digest bytes)
+      (with-open [output (GZIPOutputStream. compressed)]
+        (.write output bytes)))
+    (.toByteArray compressed)))
+
+(defn decode-chunk
+  "The `count` lines contained in the compressed `bytes`."
+  [^bytes bytes count]
+  (with-open [input (DataInputStream.
+                     (GZIPInputStream. (ByteArrayInputStream. bytes)))]
+    (vec (repeatedly count
+                     #(let [line (byte-array (.readInt input))]
+                        (.readFully input line)
+                        (String. line "UTF-8"))))))
+
+(defn chunk-id
+  [result-id index]
+  (str result-id "/" index))
+
+;; The lines are split in chunks of `chunk-size` lines stored in the
+;; `chunks-coll` collection. Only the summary is kept in the document
+;; of the execution, under `:resultSummary`: the number of lines and
+;; chunks, the chunk size and the SHA-1 of the lines. Each result has
+;; its own id, so the result of a periodical execution can be replaced
+;; while the previous one is being read. The chunks of a discarded
+;; result are only marked with the time they were discarded at
+;; `:discardedAt`, since a reader may still be loading them lazily.
+;; They're removed by `sweep-discarded!` once the grace period has
+;; passed.
+(defrecord ChunkedStore [chunk-size]
+  ResultStore
+  (store-lines! [store owner-code lines]
+    (let [result-id (.toString (UUID/randomUUID))
+          digest (MessageDigest/getInstance "SHA-1")
+          chunks (doall
+                  (map-indexed
+                   (fn [index chunk]
+                     {:_id (chunk-id result-id index)
+                      :result result-id
+                      :owner owner-code
+                      :index index
+                      :lines (count chunk)
+                      :data (encode-chunk chunk digest)})
+                   (partition-all chunk-size lines)))]
+      (doseq [batch (partition-all 16 chunks)]
+        (mongo/mass-insert! chunks-coll batch))
+      {:resultSummary {:id result-id
+                       :lines (reduce + 0 (map :lines chunks))
+                       :chunks (count chunks)
+                       :chunkSize chunk-size
+                       :bytes (reduce + 0 (map #(alength ^bytes (:data %)) chunks))
+                       :sha1 (hex (.digest digest))}}))
+  (discard-lines! [store fields]
+    (when-let [result-id (get-in fields [:resultSummary :id])]
+      (mongo/update! chunks-coll {:result result-id}
+                     {:$set {:discardedAt (System/currentTimeMillis)}}
+                     :upsert false :multiple true))))
+
+(defn result-store
+  "The store for `chunk-size`. Zero or nil keeps the lines in the
+  document of the execution."
+  [chunk-size]
+  (if (and chunk-size (pos? chunk-size))
+    (ChunkedStore. chunk-size)
+    (InlineStore.)))
+
+(def ^{:dynamic true :doc "The store used for the results of this worker."}
+  *result-store* (result-store default-chunk-size))
+
+(defn load-chunk
+  "The lines of the chunk at `index` of the result described by
+`summary`, the `:resultSummary` of an execution."
+  [{:keys [id]} index]
+  (if-let [found (mongo/fetch-one chunks-coll
+                                  :where {:_id (chunk-id id index)}
+                                  :only [:lines :data])]
+    (decode-chunk (:data found) (:lines found))
+    (throw (IllegalStateException.
+            (str "the chunk " index " of the result " id " doesn't exist")))))
+
+(def ^{:doc "How long the chunks of a discarded result are kept, so
+  the readers that retrieved it before can finish loading them."}
+  default-discard-grace-ms (* 10 60 1000))
+
+(defn sweep-discarded!
+  "Removes the chunks discarded more than `grace-ms` ago."
+  [grace-ms]
+  (mongo/destroy! chunks-coll
+                  {:discardedAt {:$lte (- (System/currentTimeMillis) grace-ms)}}))
+
+(defn delete-results-of!
+  "Removes the chunks of the results of the given executions or
+  periodical executions."
+  [owner-codes]
+  (when (seq owner-codes)
+    (mongo/destroy! chunks-coll {:owner {:$in (vec owner-codes)}})))
+
+(defn add-indexes!
+  []
+  (mongo/add-index! chunks-coll [:owner])
+  (mongo/add-index! chunks-coll [:result])
+  (mongo/add-index! chunks-coll [:discardedAt]))
@@ -8,12 +8,14 @@
   (:require [aleph.tcp :as tcp]
             [lamina.connections :as c]
             [somnium.congomongo :as mongo]
+            [workers.results :as results]
             [clojure.contrib.logging :as log]
             [clj-stacktrace.repl :as stacktrace])
   (:import [java.util concurrent.Executors UUID]
+           [java.io File]
            [java.net InetSocketAddress InetAddress NetworkInterface]
-           [es.uvigo.ei.sing.dare.util XMLUtil]
-           [es.uvigo.ei.sing.stringeditor Util XMLInputOutput])
+           [es.uvigo.ei.sing.stringeditor HTTPClientPool HTTPResponseCache
+            ParallelRobotRunner StepBudget TransformerCache Util])
   (:gen-class))
 
 
@@ -46,13 +48,32 @@ directly to the topmost level of the document."
                              :scheduled false)
     fields))
 
+(defn previous-result-fields
+  "The fields describing the result of the last execution of a
+periodical execution, if any."
+  [code]
+  (:lastExecution (mongo/fetch-one :periodical-executions
+                                   :where {:_id code}
+                                   :only [:lastExecution.resultSummary])))
+
+;; The `:resultLines` are stored by `results/*result-store*`, the
+;; execution document only gets the fields it returns. The result a
+;; periodical execution replaces is discarded afterwards. Its lines
+;; are kept for a while, since the requests that retrieved it before
+;; may still be loading them.
 (defn db-execution-completed!
   "Updating the MongoDB database with the produced result."
-  [collection code next-execution-ms & {:as updated-fields}]
-  (db-update! collection code
-              {:$set (adapt-updated-fields
-                      collection next-execution-ms updated-fields)
-               :$unset {:error 1}}))
+  [collection code next-execution-ms & {:keys [resultLines] :as updated-fields}]
+  (let [previous (when (= collection :periodical-executions)
+                   (previous-result-fields code))
+        stored (results/store-lines! results/*result-store* code resultLines)]
+    (db-update! collection code
+                {:$set (adapt-updated-fields
+                        collection next-execution-ms
+                        (merge (dissoc updated-fields :resultLines) stored))
+                 :$unset {:error 1}})
+    (when previous
+      (results/discard-lines! results/*result-store* previous))))
 
 (defn db-execution-error!
   "Updating the MongoDB with the produced error."
@@ -75,15 +96,149 @@ times in milliseconds to right now."
     (throw (InterruptedException.)))
   x)
 
+;; The compiled transformers are kept in a bounded LRU cache, so a robot
+;; executed repeatedly is only parsed once. It's created when starting
+;; the worker, since its size depends on the parameters.
+(def transformer-cache)
+
+(defn transformer-cache-stats
+  "The counters of `transformer-cache`."
+  []
+  {:size (.size transformer-cache)
+   :hits (.getHits transformer-cache)
+   :misses (.getMisses transformer-cache)
+   :evictions (.getEvictions transformer-cache)})
+
+(defn- megabytes [n]
+  (* (long n) 1024 1024))
+
+;; The pages retrieved by the robots are kept in a cache honouring the
+;; HTTP caching headers, so the same page requested by several
+;; executions is only downloaded again once it's stale, and often just
+;; revalidated. It's kept in memory up to a size and optionally on disk
+;; too. A memory size of zero disables it. The pages with only a
+;; Last-Modified header are revalidated each time unless a maximum
+;; heuristic freshness is given.
+(defn install-http-cache!
+  "Installs the `HTTPResponseCache` used by the robots' url
+transformers. The sizes are given in megabytes."
+  ([memory-mb dir disk-mb]
+     (install-http-cache! memory-mb dir disk-mb 0))
+  ([memory-mb dir disk-mb max-heuristic-seconds]
+     (when (pos? memory-mb)
+       (HTTPResponseCache/install
+        (HTTPResponseCache. (megabytes memory-mb) (when dir (File. dir))
+                            (if dir (megabytes disk-mb) 0)
+                            (* 1000 (long max-heuristic-seconds)))))))
+
+(defn http-cache-stats
+  "The counters of the installed `HTTPResponseCache` or nil if there is
+none."
+  []
+  (when-let [cache (HTTPResponseCache/installed)]
+    {:size (.size cache)
+     :memory-bytes (.getMemoryBytes cache)
+     :disk-bytes (.getDiskBytes cache)
+     :hits (.getHits cache)
+     :revalidations (.getRevalidations cache)
+     :misses (.getMisses cache)
+     :evictions (.getEvictions cache)}))
+
+(def ^{:doc "How long an idle connection to a host is kept open."}
+  http-idle-connection-timeout-ms (* 60 1000))
+
+;; The pages are retrieved through a pool of connections kept alive,
+;; so a robot retrieving many pages of the same host doesn't pay the
+;; TCP and TLS setup each time. The connections to each host are
+;; limited, so the executions running at once don't overload it.
+(defn install-http-client-pool!
+  "Installs the `HTTPClientPool` used by the robots' url transformers."
+  [max-connections-per-host max-connections]
+  (HTTPClientPool/install
+   (HTTPClientPool. max-connections-per-host max-connections
+                    http-idle-connection-timeout-ms)))
+
+(defn http-client-pool-stats
+  "The counters of the installed `HTTPClientPool` or nil if there is
+none."
+  []
+  (when-let [pool (HTTPClientPool/installed)]
+    {:connections-open (.getConnectionsOpen pool)
+     :active-requests (.getActiveRequests pool)
+     :max-connections-per-host (.getMaxConnectionsPerHost pool)
+     :max-connections (.getMaxTotalConnections pool)
+     :requests (.getRequests pool)
+     :failures (.getFailures pool)
+     :gzipped (.getGzipped pool)
+     :bytes-received (.getBytesReceived pool)
+     :bytes-decoded (.getBytesDecoded pool)}))
+
+;; The independent branches of a robot and the pages it retrieves can
+;; be run concurrently. If the output for each input only depends on
+;; that input, the robot is executed for each input on its own
+;; instead, with at most `max-inputs-per-host` inputs of the same host
+;; at once. The threads used for that are shared by all the executions
+;; of this worker. Zero parallelism executes the robots sequentially.
+(defn install-parallel-robot-runner!
+  "Installs the `ParallelRobotRunner` used by `execute-robot`."
+  [parallelism max-inputs-per-host]
+  (when (pos? parallelism)
+    (ParallelRobotRunner/install
+     (ParallelRobotRunner. parallelism max-inputs-per-host))))
+
+(defn parallel-robot-runner-stats
+  "The counters of the installed `ParallelRobotRunner` or nil if there
+is none."
+  []
+  (when-let [runner (ParallelRobotRunner/installed)]
+    {:parallelism (.getParallelism runner)
+     :parallel-executions (.getParallelExecutions runner)
+     :sequential-executions (.getSequentialExecutions runner)
+     :per-input-executions (.getPerInputExecutions runner)
+     :inputs-executed (.getInputsExecuted runner)
+     :inputs-millis (.getInputsMillis runner)
+     :max-input-millis (.getMaxInputMillis runner)
+     :tasks (.getTasks runner)
+     :queued (.getQueued runner)}))
+
+;; Each execution takes its steps, the strings given to the
+;; transformers of the robot, from a budget of
+;; `*max-steps-for-execution*`. A runaway robot is aborted by the
+;; thread running it with a `BudgetExceededException` instead of
+;; depending on the interruption done on timeout. Zero doesn't limit
+;; them.
+(def ^{:dynamic true} *max-steps-for-execution*
+  StepBudget/DEFAULT_MAX_EXECUTION_STEPS)
+
+(defn ^StepBudget step-budget
+  "A new budget for an execution or nil if they aren't limited."
+  []
+  (when (pos? *max-steps-for-execution*)
+    (StepBudget. *max-steps-for-execution*)))
+
 (defn execute-robot
-  "Do the robot execution. For that we create a transformer and run it
-using an utility class from aAUTOMATOR."
-  [robotXML inputs]
-  (-> (XMLUtil/toDocument robotXML)
-      (check-for-interruption)
-      (XMLInputOutput/loadTransformer)
-      (check-for-interruption)
-      (Util/runRobot (into-array String inputs))))
+  "Do the robot execution. For that we retrieve a transformer from
+`transformer-cache` and run it using the installed
+`ParallelRobotRunner` or, if there is none, an utility class from
+aAUTOMATOR. It returns the result lines and, if the inputs have been
+executed on their own, the milliseconds each one took."
+  [robot-code robotXML inputs]
+  (let [transformer (-> (.get transformer-cache robot-code robotXML)
+                        (check-for-interruption))
+        inputs (into-array String inputs)
+        budget (step-budget)]
+    (if-let [runner (ParallelRobotRunner/installed)]
+      (let [execution (.execute runner transformer budget inputs)]
+        [(.getLines execution) (seq (.getInputMillis execution))])
+      ;; the pages retrieved by the execution share their cookies, as
+      ;; the runner does
+      (let [previous-cookies (HTTPClientPool/startExecution)]
+        (try
+          [(if budget
+             (.runRobot budget transformer inputs)
+             (Util/runRobot transformer inputs)) nil]
+          (finally
+           (HTTPClientPool/endExecution previous-cookies)))))))
 
 (defn exception-message
   "Extract a properly formatted string from the stack trace."
@@ -148,7 +303,8 @@ that will do the execution. It needs besides the robotXML and the
 inputs to be executed with, either a `result-code` or a
 `periodical-code`. In the latter case a `next-execution-ms` value is
 required too."
-  [{:keys [inputs robotXML result-code periodical-code next-execution-ms]}]
+  [{:keys [inputs robotXML robot-code result-code periodical-code
+           next-execution-ms]}]
   {:pre [(sequential? inputs) (string? robotXML)
          (or result-code (and periodical-code next-execution-ms))
          (not (and result-code periodical-code))]}
@@ -166,17 +322,19 @@ required too."
      (->
       (fn []
         (let [start-execution-time (System/currentTimeMillis)
-              result-array (execute-robot robotXML inputs)
+              [result-array input-times] (execute-robot robot-code robotXML inputs)
               [all-time real-execution-time] (millis-elapsed-since
                                               submit-time start-execution-time)
               next-execution-ms (+ all-time (or next-execution-ms 0))]
           (fn []
-            (db-execution-completed! collection-to-update
-                                     code
-                                     next-execution-ms
-                                     :resultLines (seq result-array)
-                                     :executionTimeMilliseconds all-time
-                                     :realExecutionTime real-execution-time)
+            (apply db-execution-completed! collection-to-update
+                   code
+                   next-execution-ms
+                   :resultLines (seq result-array)
+                   :executionTimeMilliseconds all-time
+                   :realExecutionTime real-execution-time
+                   (when input-times
+                     [:inputTimesMilliseconds input-times]))
             (log/info (str "execution completed for: " name)))))
       (with-timeout-handling (partial on-error :timeout))
       (with-error-handling on-exception)
@@ -328,7 +486,11 @@ the error is returned instead."
         (executor-receiver request)
         (send current-petitions inc))
       (enqueue response (pr-str {:accepted true
-                                 :current-petitions @current-petitions})))
+                                 :current-petitions @current-petitions
+                                 :transformer-cache (transformer-cache-stats)
+                                 :http-cache (http-cache-stats)
+                                 :http-client-pool (http-client-pool-stats)
+                                 :parallel-robot-runner (parallel-robot-runner-stats)})))
     (catch Throwable e
       (log/error (str "Error processing: " raw-request) e)
       (enqueue response (pr-str {:accepted false
@@ -458,14 +620,42 @@ thread."
    * It also adds a shutdown hook so if the program is
    terminated via a kill signal instead of the shutdown method the
    registered workers are removed too."
-  [dbhost db-port db port ip-to-register-on threads-number]
+  [dbhost db-port db port ip-to-register-on threads-number
+   & {:keys [transformer-cache-size http-cache-memory-mb http-cache-dir
+             http-cache-disk-mb http-cache-max-heuristic-seconds
+             http-max-connections-per-host
+             http-max-connections robot-parallelism robot-inputs-per-host
+             robot-max-steps result-chunk-size]
+      :or {http-cache-memory-mb 64 http-cache-disk-mb 1024
+           http-cache-max-heuristic-seconds 0 robot-parallelism 0
+           robot-inputs-per-host ParallelRobotRunner/DEFAULT_MAX_INPUTS_PER_HOST
+           http-max-connections-per-host HTTPClientPool/DEFAULT_MAX_CONNECTIONS_PER_HOST
+           http-max-connections HTTPClientPool/DEFAULT_MAX_TOTAL_CONNECTIONS}}]
   (defonce automator-executor (Executors/newFixedThreadPool (or threads-number 20)))
+  ;; installed before any robot is compiled, so the compiled ones use them
+  (when-not (HTTPClientPool/installed)
+    (install-http-client-pool! http-max-connections-per-host
+                               http-max-connections))
+  (when-not (HTTPResponseCache/installed)
+    (install-http-cache! http-cache-memory-mb http-cache-dir http-cache-disk-mb
+                         http-cache-max-heuristic-seconds))
+  (when-not (ParallelRobotRunner/installed)
+    (install-parallel-robot-runner! robot-parallelism robot-inputs-per-host))
+  (when robot-max-steps
+    (alter-var-root #'*max-steps-for-execution* (constantly robot-max-steps)))
+  (when result-chunk-size
+    (alter-var-root #'results/*result-store*
+                    (constantly (results/result-store result-chunk-size))))
+  (defonce transformer-cache (TransformerCache.
+                              (or transformer-cache-size
+                                  TransformerCache/DEFAULT_MAX_SIZE)))
   (let [conn (mongo/make-connection db :host dbhost :port db-port)
         tcp-server (server conn port)
         tcp-server (add-connection-info tcp-server conn)]
     (try
       (mongo/with-mongo conn
         (mongo/add-index! :workers [:server-id])
+        (results/add-indexes!)
         (mongo/set-write-concern conn :strict)
         (if-let [ip (or ip-to-register-on (guess-external-local-ip))]
           (mongo/update! :workers
@@ -493,6 +683,27 @@ thread."
        ["-p" "--port" "The port this worker will listen to for requests"
         :default 40100 :parse-fn #(Integer. %)]
        ["--threads-number" :default 20 :parse-fn #(Integer. %)]
+       ["--transformer-cache-size" "The maximum number of compiled robots kept"
+        :default TransformerCache/DEFAULT_MAX_SIZE :parse-fn #(Integer. %)]
+       ["--http-cache-memory-mb" "The megabytes of retrieved pages kept in memory. 0 disables the cache"
+        :default 64 :parse-fn #(Integer. %)]
+       ["--http-cache-dir" "A directory where the retrieved pages are kept too" :default nil]
+       ["--http-cache-disk-mb" "The megabytes of retrieved pages kept in --http-cache-dir"
+        :default 1024 :parse-fn #(Integer. %)]
+       ["--http-cache-max-heuristic-seconds" "The seconds at most a page with only a Last-Modified header is used without revalidating it, a tenth of the time since it was modified. 0 revalidates them always"
+        :default 0 :parse-fn #(Integer. %)]
+       ["--http-max-connections-per-host" "The connections to the same host kept open at most"
+        :default HTTPClientPool/DEFAULT_MAX_CONNECTIONS_PER_HOST :parse-fn #(Integer. %)]
+       ["--http-max-connections" "The connections kept open at most"
+        :default HTTPClientPool/DEFAULT_MAX_TOTAL_CONNECTIONS :parse-fn #(Integer. %)]
+       ["--robot-parallelism" "The threads running the branches and pages of the robots concurrently. 0 runs them sequentially"
+        :default 0 :parse-fn #(Integer. %)]
+       ["--robot-inputs-per-host" "The inputs that are URLs of the same host executed at once"
+        :default ParallelRobotRunner/DEFAULT_MAX_INPUTS_PER_HOST :parse-fn #(Integer. %)]
+       ["--robot-max-steps" "The strings given to the transformers of a robot before aborting its execution. 0 doesn't limit them"
+        :default StepBudget/DEFAULT_MAX_EXECUTION_STEPS :parse-fn #(Long. %)]
+       ["--result-chunk-size" "The lines of each compressed chunk in which the results are stored. 0 keeps them in the execution document"
+        :default results/default-chunk-size :parse-fn #(Integer. %)]
        ["--ip-to-run-on" "The ip on which to register the worker" :default nil]
        ["-h" "--help" "Print this help" :flag true :default false]))
 
@@ -500,11 +711,27 @@ thread."
   "Main method"
   [& args]
   (let [[{:keys [mongo-host mongo-port mongo-db port threads-number ip-to-run-on
-                 help]} _ help-banner] (parse-args args)]
+                 transformer-cache-size http-cache-memory-mb http-cache-dir
+                 http-cache-disk-mb http-cache-max-heuristic-seconds
+                 http-max-connections-per-host
+                 http-max-connections robot-parallelism robot-inputs-per-host
+                 robot-max-steps result-chunk-size help]} _ help-banner]
+        (parse-args args)]
     (cond
      help (println help-banner)
      :else
-     (run mongo-host mongo-port mongo-db port ip-to-run-on threads-number))))
+     (run mongo-host mongo-port mongo-db port ip-to-run-on threads-number
+          :transformer-cache-size transformer-cache-size
+          :http-cache-memory-mb http-cache-memory-mb
+          :http-cache-dir http-cache-dir
+          :http-cache-disk-mb http-cache-disk-mb
+          :http-cache-max-heuristic-seconds http-cache-max-heuristic-seconds
+          :http-max-connections-per-host http-max-connections-per-host
+          :http-max-connections http-max-connections
+          :robot-parallelism robot-parallelism
+          :robot-inputs-per-host robot-inputs-per-host
+          :robot-max-steps robot-max-steps
+          :result-chunk-size result-chunk-size))))
 
 (defn local-setup
   "Used to launch a worker inside the same process."
@@ -0,0 +1,22 @@
+package es.uvigo.ei.sing.stringeditor;
+
+/**
+ * Thrown when the evaluation of a minilanguage program or the execution of a
+ * robot takes more steps than its {@link StepBudget} allows.
+ */
+public class BudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long maxSteps;
+
+    public BudgetExceededException(long maxSteps) {
+        super("the maximum of " + maxSteps + " steps has been exceeded");
+        this.maxSteps = maxSteps;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+}
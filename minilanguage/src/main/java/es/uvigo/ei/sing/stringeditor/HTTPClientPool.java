@@ -0,0 +1,424 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.cookie.CookiePolicy;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * The client used by {@link PooledURLRetriever} to retrieve pages. The
+ * connections are kept alive and reused by the following requests to the
+ * same host, up to <code>maxConnectionsPerHost</code> per host and
+ * <code>maxTotalConnections</code> in total; a request waits for a free
+ * connection if the limit has been reached. The connections idle for more
+ * than <code>idleTimeoutMillis</code> are closed. The responses are
+ * requested compressed with gzip.
+ *
+ * The requests are done with the same settings {@link HTTPUtils} uses: the
+ * same User-Agent, the same cookie policy and https accepting any
+ * certificate. The cookies are kept for each robot execution, between
+ * {@link #startExecution()} and {@link #endExecution(HttpState)}, so the
+ * requests from different executions don't share them. Outside an execution
+ * they aren't kept between requests.
+ *
+ * It's safe to use it from any number of threads.
+ */
+public class HTTPClientPool {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private static volatile HTTPClientPool installed;
+
+    private static HTTPClientPool defaultPool;
+
+    /**
+     * From now on the <code>url</code> transformers read by
+     * {@link TransformerXML} use <code>pool</code>. It can be
+     * <code>null</code> to stop using it.
+     */
+    public static void install(HTTPClientPool pool) {
+        installed = pool;
+    }
+
+    /**
+     * @return the pool installed or <code>null</code> if there is none
+     */
+    public static HTTPClientPool installed() {
+        return installed;
+    }
+
+    /**
+     * @return the pool installed or, if there is none, one with the default
+     *         limits created on demand
+     */
+    static synchronized HTTPClientPool installedOrDefault() {
+        HTTPClientPool result = installed;
+        if (result != null) {
+            return result;
+        }
+        if (defaultPool == null) {
+            defaultPool = new HTTPClientPool(DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                    DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+        }
+        return defaultPool;
+    }
+
+    private static final String USER_AGENT_PROPERTY = "httpclient.useragent";
+
+    static {
+        useHTTPUtilsSettings();
+    }
+
+    /**
+     * {@link HTTPUtils} registers the https protocol accepting any
+     * certificate and sets the default User-Agent when it creates its first
+     * client. A request without host makes it create one and fails before
+     * connecting.
+     */
+    private static void useHTTPUtilsSettings() {
+        try {
+            HTTPUtils.getURLBody("", new StringBuffer());
+        } catch (IOException e) {
+            // expected
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    // the cookies of the robot execution in progress in each thread
+    private static final ThreadLocal<HttpState> EXECUTION_COOKIES = new ThreadLocal<HttpState>();
+
+    /**
+     * From now on the requests done by the current thread share their
+     * cookies, until {@link #endExecution(HttpState)} is called with the
+     * returned value. The threads running parts of the same execution must
+     * {@link #joinExecution(HttpState) join} it.
+     *
+     * @return the cookies of the execution in progress in this thread before,
+     *         if any
+     */
+    public static HttpState startExecution() {
+        return joinExecution(new HttpState());
+    }
+
+    /**
+     * @param previous
+     *            the value returned by {@link #startExecution()} or
+     *            {@link #joinExecution(HttpState)}
+     */
+    public static void endExecution(HttpState previous) {
+        if (previous == null) {
+            EXECUTION_COOKIES.remove();
+        } else {
+            EXECUTION_COOKIES.set(previous);
+        }
+    }
+
+    /**
+     * From now on the requests done by the current thread use the cookies of
+     * the execution <code>cookies</code> belong to. It can be
+     * <code>null</code> to stop keeping them.
+     *
+     * @return the cookies used by this thread before, to be given to
+     *         {@link #endExecution(HttpState)}
+     */
+    public static HttpState joinExecution(HttpState cookies) {
+        HttpState result = EXECUTION_COOKIES.get();
+        EXECUTION_COOKIES.set(cookies);
+        return result;
+    }
+
+    /**
+     * @return the cookies of the execution in progress in the current thread
+     *         or <code>null</code> if there is none
+     */
+    public static HttpState executionCookies() {
+        return EXECUTION_COOKIES.get();
+    }
+
+    /**
+     * @return whether the requests done by the current thread send cookies,
+     *         so their responses may depend on them
+     */
+    static boolean sendsCookies() {
+        HttpState cookies = EXECUTION_COOKIES.get();
+        return cookies != null && cookies.getCookies().length > 0;
+    }
+
+    /**
+     * A response already read.
+     */
+    static final class Response {
+
+        private final GetMethod get;
+
+        private final byte[] body;
+
+        private Response(GetMethod get, byte[] body) {
+            this.get = get;
+            this.body = body;
+        }
+
+        int getStatus() {
+            return get.getStatusCode();
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        String getCharset() {
+            return get.getResponseCharSet();
+        }
+
+        /**
+         * @return the value of the header or <code>null</code> if it isn't
+         *         present
+         */
+        String header(String name) {
+            Header result = get.getResponseHeader(name);
+            return result != null ? result.getValue() : null;
+        }
+    }
+
+    private final MultiThreadedHttpConnectionManager manager = new MultiThreadedHttpConnectionManager();
+
+    private final HttpClient client = new HttpClient(manager);
+
+    private final IdleConnectionTimeoutThread idleCloser = new IdleConnectionTimeoutThread();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong gzipped = new AtomicLong();
+
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    private final AtomicLong bytesDecoded = new AtomicLong();
+
+    public HTTPClientPool(int maxConnectionsPerHost, int maxTotalConnections,
+            long idleTimeoutMillis) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException(
+                    "maxConnectionsPerHost must be positive: "
+                            + maxConnectionsPerHost);
+        }
+        if (maxTotalConnections < maxConnectionsPerHost) {
+            throw new IllegalArgumentException(
+                    "maxTotalConnections can't be less than maxConnectionsPerHost: "
+                            + maxTotalConnections);
+        }
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "idleTimeoutMillis must be positive: " + idleTimeoutMillis);
+        }
+        manager.getParams().setDefaultMaxConnectionsPerHost(
+                maxConnectionsPerHost);
+        manager.getParams().setMaxTotalConnections(maxTotalConnections);
+        manager.getParams().setStaleCheckingEnabled(true);
+        String proxyHost = System.getProperty("http.proxyHost");
+        String proxyPort = System.getProperty("http.proxyPort");
+        if (proxyHost != null && proxyPort != null) {
+            client.getHostConfiguration().setProxy(proxyHost,
+                    Integer.parseInt(proxyPort));
+        }
+        String userAgent = System.getProperty(USER_AGENT_PROPERTY);
+        if (userAgent != null) {
+            client.getParams().setParameter(HttpMethodParams.USER_AGENT,
+                    userAgent);
+        }
+        client.getParams().setCookiePolicy(CookiePolicy.BROWSER_COMPATIBILITY);
+        client.getParams().setBooleanParameter(
+                "http.protocol.single-cookie-header", true);
+        idleCloser.setName("http-client-pool-idle-closer");
+        idleCloser.setDaemon(true);
+        idleCloser.setConnectionTimeout(idleTimeoutMillis);
+        idleCloser.setTimeoutInterval(Math.min(idleTimeoutMillis, 5000));
+        idleCloser.addConnectionManager(manager);
+        idleCloser.start();
+    }
+
+    /**
+     * Does a GET request to <code>url</code>, reading the whole body, and
+     * returns the connection to the pool.
+     *
+     * @param etag
+     *            if not <code>null</code> it's sent as If-None-Match
+     * @param lastModified
+     *            if not <code>null</code> it's sent as If-Modified-Since
+     */
+    Response get(String url, String etag, String lastModified)
+            throws IOException {
+        requests.incrementAndGet();
+        GetMethod get = new GetMethod(url);
+        get.setRequestHeader("Accept-Encoding", "gzip");
+        if (etag != null) {
+            get.setRequestHeader("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            get.setRequestHeader("If-Modified-Since", lastModified);
+        }
+        active.incrementAndGet();
+        try {
+            HttpState cookies = EXECUTION_COOKIES.get();
+            client.executeMethod(null, get, cookies != null ? cookies
+                    : new HttpState());
+            return new Response(get, readBody(get));
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            get.releaseConnection();
+            active.decrementAndGet();
+        }
+    }
+
+    private byte[] readBody(GetMethod get) throws IOException {
+        InputStream raw = get.getResponseBodyAsStream();
+        if (raw == null) {
+            return new byte[0];
+        }
+        CountingInputStream counted = new CountingInputStream(raw);
+        Header encoding = get.getResponseHeader("Content-Encoding");
+        boolean isGzipped = encoding != null
+                && encoding.getValue().toLowerCase().contains("gzip");
+        InputStream input = isGzipped ? new GZIPInputStream(counted)
+                : counted;
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            result.write(buffer, 0, read);
+        }
+        if (isGzipped) {
+            gzipped.incrementAndGet();
+            // the body is read till the end so the connection can be reused
+            while (counted.read(buffer) != -1) {
+                // discarded
+            }
+        }
+        bytesReceived.addAndGet(counted.count);
+        bytesDecoded.addAndGet(result.size());
+        return result.toByteArray();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int result = super.read();
+            if (result != -1) {
+                count++;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                count += result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Closes all the connections. The pool can't be used afterwards.
+     */
+    public void shutdown() {
+        idleCloser.shutdown();
+        manager.shutdown();
+    }
+
+    // ### Counters
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return the number of responses received compressed
+     */
+    public long getGzipped() {
+        return gzipped.get();
+    }
+
+    /**
+     * @return the bytes of the bodies received, compressed or not
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the bytes of the bodies once decompressed
+     */
+    public long getBytesDecoded() {
+        return bytesDecoded.get();
+    }
+
+    /**
+     * @return the number of connections open, both idle and in use
+     */
+    public int getConnectionsOpen() {
+        return manager.getConnectionsInPool();
+    }
+
+    /**
+     * @return the number of requests being done or waiting for a connection
+     */
+    public int getActiveRequests() {
+        return active.get();
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return manager.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    public int getMaxTotalConnections() {
+        return manager.getParams().getMaxTotalConnections();
+    }
+
+    @Override
+    public String toString() {
+        return "HTTPClientPool[connectionsOpen=" + getConnectionsOpen()
+                + ", activeRequests=" + getActiveRequests()
+                + ", requests=" + getRequests() + ", failures="
+                + getFailures() + ", gzipped=" + getGzipped()
+                + ", bytesReceived=" + getBytesReceived()
+                + ", bytesDecoded=" + getBytesDecoded() + "]";
+    }
+
+}
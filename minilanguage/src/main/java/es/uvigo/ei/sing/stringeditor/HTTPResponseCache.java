@@ -0,0 +1,579 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of the pages retrieved by the <code>url</code> transformer, shared
+ * by all the executions done in a JVM once it's {@link #install(HTTPResponseCache)
+ * installed}. Many robots retrieve the same pages within minutes, so the
+ * responses are kept following the rules of HTTP caching: they are used while
+ * they are fresh according to their <code>Cache-Control</code> or
+ * <code>Expires</code> headers, and afterwards they are revalidated with a
+ * conditional request if they have an <code>ETag</code> or a
+ * <code>Last-Modified</code> header.
+ *
+ * The responses are kept in memory up to <code>maxMemoryBytes</code>,
+ * discarding the least recently used ones. Optionally they can also be kept in
+ * a directory up to <code>maxDiskBytes</code>, so they survive a restart and
+ * the ones discarded from memory can be recovered.
+ *
+ * A response without explicit freshness but with a
+ * <code>Last-Modified</code> header is revalidated each time it's used,
+ * unless a <code>maxHeuristicFreshnessMillis</code> is given. Then it's used
+ * without revalidating it for a tenth of the time since it was modified, but
+ * not more than that.
+ */
+public class HTTPResponseCache {
+
+    public static final long DEFAULT_MAX_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    public static final long DEFAULT_MAX_DISK_BYTES = 1024L * 1024 * 1024;
+
+    private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
+    private static volatile HTTPResponseCache installed;
+
+    /**
+     * From now on the <code>url</code> transformers read by
+     * {@link TransformerXML} use <code>cache</code>. It can be
+     * <code>null</code> to stop caching.
+     */
+    public static void install(HTTPResponseCache cache) {
+        installed = cache;
+    }
+
+    /**
+     * @return the cache being used or <code>null</code> if there is none
+     */
+    public static HTTPResponseCache installed() {
+        return installed;
+    }
+
+    /**
+     * A response kept by the cache. It's immutable.
+     */
+    static final class Entry {
+
+        private final byte[] body;
+
+        private final String charset;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final long freshUntilMillis;
+
+        Entry(byte[] body, String charset, String etag, String lastModified,
+                long freshUntilMillis) {
+            if (body == null) {
+                throw new IllegalArgumentException("body cannot be null");
+            }
+            this.body = body;
+            this.charset = charset != null ? charset : DEFAULT_CHARSET;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.freshUntilMillis = freshUntilMillis;
+        }
+
+        boolean isFresh(long nowMillis) {
+            return nowMillis < freshUntilMillis;
+        }
+
+        boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        String getETag() {
+            return etag;
+        }
+
+        String getLastModified() {
+            return lastModified;
+        }
+
+        int size() {
+            return body.length;
+        }
+
+        /**
+         * @return the same response fresh until <code>freshUntilMillis</code>
+         */
+        Entry revalidated(long freshUntilMillis) {
+            return new Entry(body, charset, etag, lastModified,
+                    freshUntilMillis);
+        }
+
+        /**
+         * The body decoded as the <code>url</code> transformer does: with the
+         * charset of the response, or the default one if it's not supported.
+         */
+        String asString() {
+            String upperCased = charset.toUpperCase();
+            String name = Charset.availableCharsets().containsKey(upperCased) ? upperCased
+                    : Charset.defaultCharset().name();
+            try {
+                return new String(body, name);
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void write(DataOutputStream output) throws IOException {
+            output.writeUTF(charset);
+            writeOptional(output, etag);
+            writeOptional(output, lastModified);
+            output.writeLong(freshUntilMillis);
+            output.writeInt(body.length);
+            output.write(body);
+        }
+
+        private static Entry read(DataInputStream input) throws IOException {
+            String charset = input.readUTF();
+            String etag = readOptional(input);
+            String lastModified = readOptional(input);
+            long freshUntil = input.readLong();
+            byte[] body = new byte[input.readInt()];
+            input.readFully(body);
+            return new Entry(body, charset, etag, lastModified, freshUntil);
+        }
+
+        private static void writeOptional(DataOutputStream output,
+                String value) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) {
+                output.writeUTF(value);
+            }
+        }
+
+        private static String readOptional(DataInputStream input)
+                throws IOException {
+            return input.readBoolean() ? input.readUTF() : null;
+        }
+    }
+
+    private final long maxMemoryBytes;
+
+    private final long maxHeuristicFreshnessMillis;
+
+    // guarded by itself
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    // guarded by memory
+    private long memoryBytes = 0;
+
+    private final File directory;
+
+    private final long maxDiskBytes;
+
+    private final Object diskLock = new Object();
+
+    // guarded by diskLock
+    private long diskBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A cache kept only in memory.
+     */
+    public HTTPResponseCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param directory
+     *            where the responses are also kept. If <code>null</code> they
+     *            are only kept in memory.
+     */
+    public HTTPResponseCache(long maxMemoryBytes, File directory,
+            long maxDiskBytes) {
+        this(maxMemoryBytes, directory, maxDiskBytes, 0);
+    }
+
+    /**
+     * @param directory
+     *            where the responses are also kept. If <code>null</code> they
+     *            are only kept in memory.
+     * @param maxHeuristicFreshnessMillis
+     *            the longest a response without explicit freshness is used
+     *            without revalidating it. <code>0</code> revalidates them
+     *            always.
+     */
+    public HTTPResponseCache(long maxMemoryBytes, File directory,
+            long maxDiskBytes, long maxHeuristicFreshnessMillis) {
+        if (maxMemoryBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "maxMemoryBytes must be positive: " + maxMemoryBytes);
+        }
+        if (directory != null && maxDiskBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "maxDiskBytes must be positive: " + maxDiskBytes);
+        }
+        if (maxHeuristicFreshnessMillis < 0) {
+            throw new IllegalArgumentException(
+                    "maxHeuristicFreshnessMillis can't be negative: "
+                            + maxHeuristicFreshnessMillis);
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxHeuristicFreshnessMillis = maxHeuristicFreshnessMillis;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalArgumentException("can't create directory "
+                        + directory);
+            }
+            for (File each : diskFiles()) {
+                diskBytes += each.length();
+            }
+        }
+    }
+
+    /**
+     * @return the response kept for <code>url</code>, fresh or not, or
+     *         <code>null</code> if there is none
+     */
+    Entry get(String url) {
+        Entry result;
+        synchronized (memory) {
+            result = memory.get(url);
+        }
+        if (result == null && directory != null) {
+            result = readFromDisk(url);
+            if (result != null) {
+                putInMemory(url, result);
+            }
+        }
+        return result;
+    }
+
+    void put(String url, Entry entry) {
+        putInMemory(url, entry);
+        if (directory != null) {
+            writeToDisk(url, entry);
+        }
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void revalidated() {
+        revalidations.incrementAndGet();
+    }
+
+    void missed() {
+        misses.incrementAndGet();
+    }
+
+    private void putInMemory(String url, Entry entry) {
+        if (entry.size() > maxMemoryBytes) {
+            return;
+        }
+        synchronized (memory) {
+            Entry previous = memory.put(url, entry);
+            if (previous != null) {
+                memoryBytes -= previous.size();
+            }
+            memoryBytes += entry.size();
+            Iterator<Entry> eldest = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes) {
+                memoryBytes -= eldest.next().size();
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // ### Disk tier
+
+    private File fileFor(String url) {
+        return new File(directory, sha1(url));
+    }
+
+    private File[] diskFiles() {
+        File[] result = directory.listFiles();
+        return result != null ? result : new File[0];
+    }
+
+    private Entry readFromDisk(String url) {
+        File file = fileFor(url);
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            // the name is a hash, so the url is checked
+            if (!input.readUTF().equals(url)) {
+                return null;
+            }
+            return Entry.read(input);
+        } catch (IOException e) {
+            // a file partially written or corrupt is a miss
+            return null;
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    private void writeToDisk(String url, Entry entry) {
+        synchronized (diskLock) {
+            File file = fileFor(url);
+            File temporary = new File(directory, file.getName() + ".tmp");
+            long previousSize = file.length();
+            try {
+                DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(
+                                temporary)));
+                try {
+                    output.writeUTF(url);
+                    entry.write(output);
+                } finally {
+                    output.close();
+                }
+                file.delete();
+                if (!temporary.renameTo(file)) {
+                    temporary.delete();
+                    diskBytes -= previousSize;
+                    return;
+                }
+            } catch (IOException e) {
+                temporary.delete();
+                return;
+            }
+            diskBytes += file.length() - previousSize;
+            if (diskBytes > maxDiskBytes) {
+                evictFromDisk();
+            }
+        }
+    }
+
+    // the least recently written files are removed first
+    private void evictFromDisk() {
+        File[] files = diskFiles();
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File o1, File o2) {
+                long difference = o1.lastModified() - o2.lastModified();
+                return difference < 0 ? -1 : difference == 0 ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < files.length && diskBytes > maxDiskBytes; i++) {
+            long size = files[i].length();
+            if (files[i].delete()) {
+                diskBytes -= size;
+            }
+        }
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    value.getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder();
+            for (byte each : digest) {
+                result.append(String.format("%02x", each & 0xff));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void closeQuietly(DataInputStream input) {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // ### Freshness
+
+    /**
+     * Calculates for how long a response can be used without revalidating it,
+     * as a shared cache does.
+     *
+     * @param cacheControl
+     *            the value of the Cache-Control header or <code>null</code>.
+     *            The same for the rest of the headers.
+     * @return the milliseconds the response is fresh for, <code>0</code> if
+     *         it must be revalidated before using it, or <code>-1</code> if
+     *         it can't be stored
+     */
+    long freshnessLifetime(long nowMillis, String cacheControl,
+            String expires, String date, String lastModified, String age) {
+        return freshnessLifetime(nowMillis, cacheControl, expires, date,
+                lastModified, age, maxHeuristicFreshnessMillis);
+    }
+
+    /**
+     * @param maxHeuristicMillis
+     *            the longest a response is fresh for using only its
+     *            <code>Last-Modified</code> header
+     * @see #freshnessLifetime(long, String, String, String, String, String)
+     */
+    static long freshnessLifetime(long nowMillis, String cacheControl,
+            String expires, String date, String lastModified, String age,
+            long maxHeuristicMillis) {
+        Long maxAge = null;
+        Long sharedMaxAge = null;
+        boolean noCache = false;
+        if (cacheControl != null) {
+            for (String each : cacheControl.split(",")) {
+                String directive = each.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-store")
+                        || directive.startsWith("private")) {
+                    return -1;
+                } else if (directive.startsWith("no-cache")) {
+                    noCache = true;
+                } else if (directive.startsWith("s-maxage=")) {
+                    sharedMaxAge = millis(directive.substring("s-maxage="
+                            .length()));
+                } else if (directive.startsWith("max-age=")) {
+                    maxAge = millis(directive.substring("max-age=".length()));
+                }
+            }
+        }
+        if (noCache) {
+            return 0;
+        }
+        Long dateHeader = parseDate(date);
+        long dateMillis = dateHeader != null ? dateHeader : nowMillis;
+        long lifetime;
+        if (sharedMaxAge != null || maxAge != null) {
+            lifetime = sharedMaxAge != null ? sharedMaxAge : maxAge;
+        } else if (expires != null) {
+            // an invalid date, e.g. "0", means already expired
+            Long expiresMillis = parseDate(expires);
+            lifetime = expiresMillis != null ? expiresMillis - dateMillis : 0;
+        } else if (lastModified != null && parseDate(lastModified) != null) {
+            lifetime = Math.min((dateMillis - parseDate(lastModified)) / 10,
+                    maxHeuristicMillis);
+        } else {
+            lifetime = 0;
+        }
+        Long ageMillis = age != null ? millis(age) : null;
+        if (ageMillis != null) {
+            lifetime -= ageMillis;
+        }
+        return Math.max(0, lifetime);
+    }
+
+    private static Long millis(String seconds) {
+        try {
+            return Math.max(0, Long.parseLong(seconds.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Long parseDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    // ### Counters
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    public int size() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    public long getDiskBytes() {
+        synchronized (diskLock) {
+            return diskBytes;
+        }
+    }
+
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+        if (directory != null) {
+            synchronized (diskLock) {
+                for (File each : diskFiles()) {
+                    each.delete();
+                }
+                diskBytes = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HTTPResponseCache[size=" + size() + ", memoryBytes="
+                + getMemoryBytes() + ", diskBytes=" + getDiskBytes()
+                + ", hits=" + getHits() + ", revalidations="
+                + getRevalidations() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "]";
+    }
+
+}
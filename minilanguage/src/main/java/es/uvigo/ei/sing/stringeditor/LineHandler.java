@@ -0,0 +1,12 @@
+package es.uvigo.ei.sing.stringeditor;
+
+/**
+ * Receives the result lines of a robot as soon as they are produced. The robot
+ * doesn't go on until {@link #line(String)} returns, so a slow handler slows
+ * down the execution instead of making the lines pile up in memory.
+ */
+public interface LineHandler {
+
+    void line(String line);
+
+}
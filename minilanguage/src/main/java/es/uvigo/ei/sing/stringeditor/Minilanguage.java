@@ -22,12 +22,47 @@ import java.security.cert.Certificate;
 import java.util.PropertyPermission;
 
 import org.jruby.CompatVersion;
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig.CompileMode;
 import org.jruby.embed.LocalContextScope;
 import org.jruby.embed.ScriptingContainer;
+import org.jruby.runtime.EventHook;
+import org.jruby.runtime.RubyEvent;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
 import org.w3c.dom.Document;
 
 public class Minilanguage {
 
+    /**
+     * The implementations available for evaluating minilanguage programs.
+     */
+    public enum Engine {
+        /**
+         * The programs are run as Ruby code by <code>transformer.rb</code>.
+         * Any Ruby code is allowed.
+         */
+        JRUBY,
+        /**
+         * The programs are interpreted in Java, without booting a Ruby
+         * runtime. Only the minilanguage constructs are allowed.
+         */
+        NATIVE;
+    }
+
+    /**
+     * The system property that selects the engine used by default.
+     */
+    public static final String ENGINE_PROPERTY = "minilanguage.engine";
+
+    public static Engine defaultEngine() {
+        String value = System.getProperty(ENGINE_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return Engine.JRUBY;
+        }
+        return Engine.valueOf(value.trim().toUpperCase());
+    }
+
     private static String extractString(Reader reader) {
         StringBuilder result = new StringBuilder();
         char[] buffer = new char[1024];
@@ -55,12 +90,99 @@ public class Minilanguage {
 
     private static final String TRANSFORMER_RB = extractString(loadFile("transformer.rb"));
 
+    private final Engine kind;
+
+    // only present for the JRUBY engine
     private final ScriptingContainer engine;
 
+    // the budget of the evaluation in progress in the JRUBY engine, if any
+    private volatile StepBudget evaluationBudget;
+
     public Minilanguage() {
-        engine = new ScriptingContainer(LocalContextScope.SINGLETHREAD);
-        engine.setCompatVersion(CompatVersion.RUBY1_9);
-        engine.runScriptlet(TRANSFORMER_RB);
+        this(defaultEngine());
+    }
+
+    public Minilanguage(Engine kind) {
+        if (kind == null) {
+            throw new IllegalArgumentException("kind cannot be null");
+        }
+        this.kind = kind;
+        this.engine = kind == Engine.JRUBY ? createRubyEngine() : null;
+    }
+
+    private ScriptingContainer createRubyEngine() {
+        ScriptingContainer result = new ScriptingContainer(
+                LocalContextScope.SINGLETHREAD);
+        result.setCompatVersion(CompatVersion.RUBY1_9);
+        result.runScriptlet(TRANSFORMER_RB);
+        return result;
+    }
+
+    /**
+     * Thrown from the Ruby event hook to abort an evaluation. It's an
+     * {@link Error} so the Ruby code being evaluated can't rescue it.
+     */
+    private static class BudgetExhausted extends Error {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private final EventHook budgetHook = new EventHook() {
+
+        @Override
+        public void eventHandler(ThreadContext context, String eventName,
+                String file, int line, String name, IRubyObject type) {
+            StepBudget budget = evaluationBudget;
+            if (budget != null && !budget.tryStep()) {
+                throw new BudgetExhausted();
+            }
+        }
+
+        @Override
+        public boolean isInterestedInEvent(RubyEvent event) {
+            return true;
+        }
+    };
+
+    /**
+     * The hook is only installed while an evaluation with a budget is in
+     * progress, since the interpreter calls the hooks on every line and call
+     * once there is any. The compiled code doesn't call them, so the methods
+     * aren't compiled meanwhile.
+     *
+     * @return the compile mode to restore with
+     *         {@link #stopTakingSteps(CompileMode)}
+     */
+    private CompileMode startTakingSteps(StepBudget budget) {
+        evaluationBudget = budget;
+        Ruby runtime = engine.getProvider().getRuntime();
+        CompileMode previous = runtime.getInstanceConfig().getCompileMode();
+        runtime.getInstanceConfig().setCompileMode(CompileMode.OFF);
+        IRubyObject verbose = runtime.getVerbose();
+        // avoids the warning about tracing without the debug flag
+        runtime.setVerbose(runtime.getNil());
+        try {
+            runtime.addEventHook(budgetHook);
+        } finally {
+            runtime.setVerbose(verbose);
+        }
+        return previous;
+    }
+
+    private void stopTakingSteps(CompileMode previous) {
+        Ruby runtime = engine.getProvider().getRuntime();
+        runtime.removeEventHook(budgetHook);
+        runtime.getInstanceConfig().setCompileMode(previous);
+        evaluationBudget = null;
+    }
+
+    public Engine getEngine() {
+        return kind;
     }
 
     public Transformer eval(File file) {
@@ -90,15 +212,66 @@ public class Minilanguage {
 
     public Transformer eval(String minilanguageProgram, String fileName,
             Integer lineNumber) {
+        return eval(minilanguageProgram, fileName, lineNumber, null);
+    }
+
+    /**
+     * Evaluates the program taking its steps from <code>budget</code>. If
+     * the budget is exceeded the evaluation is aborted in the calling thread.
+     * With the JRuby engine, loops without any code inside don't take steps,
+     * so they must be bounded by other means. Neither do the methods compiled
+     * by previous evaluations without budget in the same engine.
+     *
+     * @param budget
+     *            it can be <code>null</code> for no limit
+     * @throws BudgetExceededException
+     *             if the evaluation takes more steps than allowed
+     */
+    public Transformer eval(String minilanguageProgram, String fileName,
+            Integer lineNumber, StepBudget budget) {
+        if (kind == Engine.NATIVE) {
+            return MinilanguageParser.parse(minilanguageProgram, fileName,
+                    lineNumber, budget);
+        }
+        if (budget == null) {
+            return evalRuby(minilanguageProgram, fileName, lineNumber);
+        }
+        CompileMode previous = startTakingSteps(budget);
+        try {
+            return evalRuby(minilanguageProgram, fileName, lineNumber);
+        } catch (RuntimeException e) {
+            checkNotExceeded(budget);
+            throw e;
+        } catch (Error e) {
+            checkNotExceeded(budget);
+            throw e;
+        } finally {
+            stopTakingSteps(previous);
+        }
+    }
+
+    private Transformer evalRuby(String minilanguageProgram, String fileName,
+            Integer lineNumber) {
         return XMLInputOutput.loadTransformer(callScriptFunction(
                 Document.class, "get_xml", minilanguageProgram, fileName,
                 lineNumber));
     }
 
+    // the error thrown by the hook arrives wrapped by JRuby
+    private static void checkNotExceeded(StepBudget budget) {
+        if (budget != null && budget.isExceeded()) {
+            throw new BudgetExceededException(budget.getMaxSteps());
+        }
+    }
+
     public Transformer eval(String minilanguageProgram) {
         return eval(minilanguageProgram, null, null);
     }
 
+    public Transformer eval(String minilanguageProgram, StepBudget budget) {
+        return eval(minilanguageProgram, null, null, budget);
+    }
+
     public String[] exec(String minilanguageProgram, String... input) {
         return Util.runRobot(eval(minilanguageProgram), input);
     }
@@ -116,6 +289,28 @@ public class Minilanguage {
         return Util.runRobot(eval(minilanguageProgram, name, line), input);
     }
 
+    /**
+     * Clears the variables left in the engine by previous evaluations. It
+     * doesn't undo the changes the programs may have done to the Ruby
+     * runtime, like reopened classes, globals or constants, so it doesn't
+     * make the engine safe to be reused for programs that aren't trusted.
+     */
+    public void reset() {
+        if (engine != null) {
+            engine.clear();
+        }
+    }
+
+    /**
+     * Releases the resources held by the underlying Ruby runtime. The
+     * instance cannot be used afterwards.
+     */
+    public void terminate() {
+        if (engine != null) {
+            engine.terminate();
+        }
+    }
+
     public String xmlToLanguage(File file) {
         try {
             return xmlToLanguage(new BufferedInputStream(new FileInputStream(
@@ -130,6 +325,9 @@ public class Minilanguage {
     }
 
     public String xmlToLanguage(Document document) {
+        if (kind == Engine.NATIVE) {
+            return MinilanguageDecompiler.toMinilanguage(document);
+        }
         return callScriptFunction(String.class, "to_minilanguage", document);
     }
 
@@ -0,0 +1,321 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import es.uvigo.ei.sing.stringeditor.TransformerDefinition.ParamDefinition;
+
+/**
+ * Converts the XML of a robot to a minilanguage program that would generate
+ * it. It produces the same programs as the <code>to_minilanguage</code>
+ * function of <code>transformer.rb</code>, but it doesn't need a Ruby
+ * runtime.
+ *
+ * It has no state, so it can be used concurrently from any number of
+ * threads. The {@link Document} provided must not be modified while it's
+ * being converted.
+ */
+public final class MinilanguageDecompiler {
+
+    private static final String BRANCH_TYPE = "branchtype";
+
+    private static final String BRANCH_MERGE_MODE = "branchmergemode";
+
+    private static final String DEFAULT_BRANCH_TYPE = "CASCADE";
+
+    private static final String DEFAULT_BRANCH_MERGE_MODE = "SCATTERED";
+
+    private MinilanguageDecompiler() {
+        // utility class, not instantiable
+    }
+
+    /**
+     * @param robotXML
+     *            a document whose root element contains the transformers
+     * @throws IllegalArgumentException
+     *             if the document contains an unknown transformer
+     */
+    public static String toMinilanguage(Document robotXML) {
+        if (robotXML == null) {
+            throw new IllegalArgumentException("robotXML cannot be null");
+        }
+        StringBuilder result = new StringBuilder();
+        childrenToMinilanguage(result, robotXML.getDocumentElement(), " | ");
+        return result.toString();
+    }
+
+    private static void childrenToMinilanguage(StringBuilder result,
+            Element parent, String separator) {
+        List<Element> all = transformerElements(parent);
+        int first = isLoop(parent) && !all.isEmpty() ? 1 : 0;
+        for (int i = first; i < all.size(); i++) {
+            if (i > first) {
+                result.append(separator);
+            }
+            elementToMinilanguage(result, all.get(i));
+        }
+    }
+
+    // It converts a transformer element along its loop control, if any
+    private static void elementToMinilanguage(StringBuilder result,
+            Element element) {
+        TransformerDefinition definition = definitionFor(element);
+        List<Element> all = transformerElements(element);
+        boolean isLoop = isLoop(element) && !all.isEmpty();
+        boolean hasChildren = all.size() > (isLoop ? 1 : 0);
+        Map<String, String> params = extractParams(definition, element);
+        if (!hasChildren) {
+            asCall(result, definition, params);
+        } else if (!params.containsKey(BRANCH_TYPE)
+                && !params.containsKey(BRANCH_MERGE_MODE)) {
+            generatePipe(result, definition, params, element);
+        } else {
+            generateBranch(result, definition, params, element);
+        }
+        if (isLoop) {
+            result.append(".repeat?{\n");
+            elementToMinilanguage(result, all.get(0));
+            result.append("}");
+        }
+    }
+
+    private static TransformerDefinition definitionFor(Element element) {
+        String className = element.getAttribute("class");
+        TransformerDefinition result = TransformerDefinition
+                .forClassName(className);
+        if (result == null) {
+            throw new IllegalArgumentException("not found class for "
+                    + className);
+        }
+        return result;
+    }
+
+    private static boolean isLoop(Element element) {
+        return element.getAttribute("loop").contains("true");
+    }
+
+    private static List<Element> transformerElements(Element parent) {
+        return childElements(parent, "transformer");
+    }
+
+    private static List<Element> childElements(Element parent, String name) {
+        List<Element> result = new ArrayList<Element>();
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node each = children.item(i);
+            if (each.getNodeType() == Node.ELEMENT_NODE
+                    && name.equals(each.getNodeName())) {
+                result.add((Element) each);
+            }
+        }
+        return result;
+    }
+
+    private static void asCall(StringBuilder result,
+            TransformerDefinition definition, Map<String, String> params) {
+        result.append(definition.getMethodName());
+        if (!params.isEmpty()) {
+            result.append("(");
+            asNamedArguments(result, params);
+            result.append(")");
+        }
+    }
+
+    // A SimpleTransformer is written as a pipe call. Otherwise the
+    // transformer's own method is used.
+    private static void generatePipe(StringBuilder result,
+            TransformerDefinition definition, Map<String, String> params,
+            Element element) {
+        boolean isSimple = definition == TransformerDefinition.SIMPLE_TRANSFORMER;
+        result.append(isSimple ? "pipe" : definition.getMethodName());
+        if (!params.isEmpty() && !isSimple) {
+            result.append("(");
+            asNamedArguments(result, params);
+            result.append(")");
+        }
+        result.append(" {");
+        childrenToMinilanguage(result, element, " | ");
+        result.append("}");
+    }
+
+    // A SimpleTransformer is written as a branch call. Otherwise the
+    // transformer's own method is used.
+    private static void generateBranch(StringBuilder result,
+            TransformerDefinition definition, Map<String, String> params,
+            Element element) {
+        boolean isSimple = definition == TransformerDefinition.SIMPLE_TRANSFORMER;
+        result.append(isSimple ? "branch" : definition.getMethodName());
+        result.append("(");
+        inspectSymbol(result, valueOr(params, BRANCH_TYPE,
+                DEFAULT_BRANCH_TYPE));
+        result.append(", ");
+        inspectSymbol(result, valueOr(params, BRANCH_MERGE_MODE,
+                DEFAULT_BRANCH_MERGE_MODE));
+        if (!params.isEmpty() && !isSimple) {
+            result.append(",");
+            asNamedArguments(result, params);
+        }
+        result.append(") {\n  ");
+        childrenToMinilanguage(result, element, "\n  ");
+        result.append("\n}");
+    }
+
+    private static String valueOr(Map<String, String> params, String key,
+            String defaultValue) {
+        String result = params.get(key);
+        return result != null ? result : defaultValue;
+    }
+
+    // ### Params extraction
+
+    // Only the params whose value differs from the default are kept, so the
+    // generated program is as short as possible. The loop attribute is
+    // ignored since the loop is generated with a repeat? clause.
+    private static Map<String, String> extractParams(
+            TransformerDefinition definition, Element element) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        String branchType = element.getAttribute(BRANCH_TYPE);
+        if (!branchType.equals(DEFAULT_BRANCH_TYPE)) {
+            result.put(BRANCH_TYPE, branchType);
+        }
+        String branchMergeMode = element.getAttribute(BRANCH_MERGE_MODE);
+        if (!branchMergeMode.equals(DEFAULT_BRANCH_MERGE_MODE)) {
+            result.put(BRANCH_MERGE_MODE, branchMergeMode);
+        }
+        for (Element each : childElements(element, "param")) {
+            String key = each.getAttribute("key");
+            String value = each.getTextContent().trim();
+            if (!value.equals(defaultValue(definition, key))) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private static String defaultValue(TransformerDefinition definition,
+            String key) {
+        if (key.equals("description")) {
+            return definition.getClassName();
+        }
+        if (key.equals(BRANCH_TYPE)) {
+            return DEFAULT_BRANCH_TYPE;
+        }
+        if (key.equals(BRANCH_MERGE_MODE)) {
+            return DEFAULT_BRANCH_MERGE_MODE;
+        }
+        ParamDefinition param = definition.find(key);
+        if (param == null || param.getDefaultValue() == null) {
+            return "";
+        }
+        return param.getDefaultValue().toString();
+    }
+
+    // ### Ruby literals
+
+    // The params are written as a Ruby hash without braces:
+    // :key=>"value", :other=>"value"
+    private static void asNamedArguments(StringBuilder result,
+            Map<String, String> params) {
+        boolean first = true;
+        for (Entry<String, String> each : params.entrySet()) {
+            if (!first) {
+                result.append(", ");
+            }
+            first = false;
+            inspectSymbol(result, each.getKey());
+            result.append("=>");
+            inspectString(result, each.getValue());
+        }
+    }
+
+    private static void inspectSymbol(StringBuilder result, String name) {
+        result.append(':');
+        if (isPlainSymbol(name)) {
+            result.append(name);
+        } else {
+            inspectString(result, name);
+        }
+    }
+
+    private static boolean isPlainSymbol(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        char first = name.charAt(0);
+        if (!Character.isLetter(first) && first != '_') {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean isLast = i == name.length() - 1;
+            if (!Character.isLetterOrDigit(c) && c != '_'
+                    && !(isLast && (c == '?' || c == '!' || c == '='))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void inspectString(StringBuilder result, String value) {
+        result.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                result.append("\\\"");
+                break;
+            case '\\':
+                result.append("\\\\");
+                break;
+            case '\n':
+                result.append("\\n");
+                break;
+            case '\t':
+                result.append("\\t");
+                break;
+            case '\r':
+                result.append("\\r");
+                break;
+            case '\f':
+                result.append("\\f");
+                break;
+            case '\u000b':
+                result.append("\\v");
+                break;
+            case '\b':
+                result.append("\\b");
+                break;
+            case '\u0007':
+                result.append("\\a");
+                break;
+            case '\u001b':
+                result.append("\\e");
+                break;
+            case '#':
+                // it would start an interpolation
+                char next = i + 1 < value.length() ? value.charAt(i + 1) : 0;
+                if (next == '{' || next == '$' || next == '@') {
+                    result.append('\\');
+                }
+                result.append(c);
+                break;
+            default:
+                if (c < 0x20 || c == 0x7f) {
+                    result.append(String.format("\\u%04X", (int) c));
+                } else {
+                    result.append(c);
+                }
+            }
+        }
+        result.append('"');
+    }
+
+}
@@ -0,0 +1,360 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a minilanguage program into tokens. It recognizes the subset of
+ * Ruby syntax used by the minilanguage: method calls, blocks, string,
+ * symbol and number literals, hashes and the <code>|</code> and
+ * <code>&gt;</code> separators.
+ */
+final class MinilanguageLexer {
+
+    enum TokenType {
+        IDENTIFIER, LABEL, SYMBOL, STRING, INTEGER, FLOAT, PIPE, GREATER,
+        HASH_ROCKET, LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COMMA,
+        DOT, SEMICOLON, MINUS, NEWLINE, EOF
+    }
+
+    static final class Token {
+
+        final TokenType type;
+
+        final String text;
+
+        final int line;
+
+        final int column;
+
+        Token(TokenType type, String text, int line, int column) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+            this.column = column;
+        }
+
+        boolean is(TokenType type) {
+            return this.type == type;
+        }
+
+        boolean isIdentifier(String name) {
+            return type == TokenType.IDENTIFIER && text.equals(name);
+        }
+
+        String describe() {
+            switch (type) {
+            case EOF:
+                return "end of input";
+            case NEWLINE:
+                return "end of line";
+            case STRING:
+                return "string literal";
+            default:
+                return "'" + text + "'";
+            }
+        }
+    }
+
+    private final String source;
+
+    private final String fileName;
+
+    private int position = 0;
+
+    private int line;
+
+    private int lineStart = 0;
+
+    private final List<Token> tokens = new ArrayList<Token>();
+
+    MinilanguageLexer(String source, String fileName, int firstLine) {
+        this.source = source;
+        this.fileName = fileName;
+        this.line = firstLine;
+    }
+
+    List<Token> tokenize() {
+        while (position < source.length()) {
+            char c = source.charAt(position);
+            if (c == '\n') {
+                add(TokenType.NEWLINE, "\n", position);
+                position++;
+                line++;
+                lineStart = position;
+            } else if (c == '\\' && peek(1) == '\n') {
+                // explicit line continuation
+                position += 2;
+                line++;
+                lineStart = position;
+            } else if (Character.isWhitespace(c)) {
+                position++;
+            } else if (c == '#') {
+                skipComment();
+            } else if (isIdentifierStart(c)) {
+                identifier();
+            } else if (Character.isDigit(c)) {
+                number();
+            } else if (c == '\'' || c == '"') {
+                string(c);
+            } else if (c == ':' && peek(1) != ':') {
+                symbol();
+            } else if (c == '=' && peek(1) == '>') {
+                add(TokenType.HASH_ROCKET, "=>", position);
+                position += 2;
+            } else {
+                punctuation(c);
+            }
+        }
+        add(TokenType.EOF, "", position);
+        return tokens;
+    }
+
+    private void punctuation(char c) {
+        TokenType type;
+        switch (c) {
+        case '|':
+            type = TokenType.PIPE;
+            break;
+        case '>':
+            type = TokenType.GREATER;
+            break;
+        case '(':
+            type = TokenType.LEFT_PAREN;
+            break;
+        case ')':
+            type = TokenType.RIGHT_PAREN;
+            break;
+        case '{':
+            type = TokenType.LEFT_BRACE;
+            break;
+        case '}':
+            type = TokenType.RIGHT_BRACE;
+            break;
+        case ',':
+            type = TokenType.COMMA;
+            break;
+        case '.':
+            type = TokenType.DOT;
+            break;
+        case ';':
+            type = TokenType.SEMICOLON;
+            break;
+        case '-':
+            type = TokenType.MINUS;
+            break;
+        default:
+            throw error(position, "unexpected character '" + c + "'");
+        }
+        add(type, String.valueOf(c), position);
+        position++;
+    }
+
+    private void skipComment() {
+        while (position < source.length() && source.charAt(position) != '\n') {
+            position++;
+        }
+    }
+
+    private void identifier() {
+        int start = position;
+        while (position < source.length()
+                && isIdentifierPart(source.charAt(position))) {
+            position++;
+        }
+        // method names such as repeat? can end with ? or !
+        if ((peek(0) == '?' || peek(0) == '!') && peek(1) != '=') {
+            position++;
+        }
+        String name = source.substring(start, position);
+        if (peek(0) == ':' && peek(1) != ':') {
+            // Ruby 1.9 hash syntax: key: value
+            position++;
+            add(TokenType.LABEL, name, start);
+        } else {
+            add(TokenType.IDENTIFIER, name, start);
+        }
+    }
+
+    private void number() {
+        int start = position;
+        boolean isFloat = false;
+        while (Character.isDigit(peek(0)) || peek(0) == '_') {
+            position++;
+        }
+        if (peek(0) == '.' && Character.isDigit(peek(1))) {
+            isFloat = true;
+            position++;
+            while (Character.isDigit(peek(0)) || peek(0) == '_') {
+                position++;
+            }
+        }
+        if ((peek(0) == 'e' || peek(0) == 'E')
+                && (Character.isDigit(peek(1)) || ((peek(1) == '-' || peek(1) == '+') && Character
+                        .isDigit(peek(2))))) {
+            isFloat = true;
+            position += 2;
+            while (Character.isDigit(peek(0))) {
+                position++;
+            }
+        }
+        String text = source.substring(start, position).replace("_", "");
+        add(isFloat ? TokenType.FLOAT : TokenType.INTEGER, text, start);
+    }
+
+    private void symbol() {
+        int start = position;
+        position++;
+        char c = peek(0);
+        if (c == '"' || c == '\'') {
+            String name = readString(c);
+            add(TokenType.SYMBOL, name, start);
+        } else if (isIdentifierStart(c)) {
+            int nameStart = position;
+            while (position < source.length()
+                    && isIdentifierPart(source.charAt(position))) {
+                position++;
+            }
+            // as in Ruby, :key=>value is the symbol :key followed by =>
+            if (peek(0) == '?' || peek(0) == '!'
+                    || (peek(0) == '=' && peek(1) != '>')) {
+                position++;
+            }
+            add(TokenType.SYMBOL, source.substring(nameStart, position), start);
+        } else {
+            throw error(start, "unexpected ':'");
+        }
+    }
+
+    private void string(char quote) {
+        int start = position;
+        add(TokenType.STRING, readString(quote), start);
+    }
+
+    private String readString(char quote) {
+        int start = position;
+        int startLine = line;
+        int startLineStart = lineStart;
+        position++;
+        StringBuilder result = new StringBuilder();
+        while (true) {
+            if (position >= source.length()) {
+                line = startLine;
+                lineStart = startLineStart;
+                throw error(start, "unterminated string");
+            }
+            char c = source.charAt(position);
+            if (c == quote) {
+                position++;
+                return result.toString();
+            }
+            if (c == '\n') {
+                line++;
+                lineStart = position + 1;
+            }
+            if (c == '\\' && position + 1 < source.length()) {
+                char next = source.charAt(position + 1);
+                position += 2;
+                if (quote == '\'') {
+                    if (next != '\\' && next != '\'') {
+                        result.append('\\');
+                    }
+                    result.append(next);
+                } else {
+                    escape(next, result);
+                }
+                continue;
+            }
+            if (quote == '"' && c == '#' && peek(1) == '{') {
+                throw error(position, "string interpolation is not supported");
+            }
+            result.append(c);
+            position++;
+        }
+    }
+
+    private void escape(char escaped, StringBuilder result) {
+        switch (escaped) {
+        case 'n':
+            result.append('\n');
+            break;
+        case 't':
+            result.append('\t');
+            break;
+        case 'r':
+            result.append('\r');
+            break;
+        case 's':
+            result.append(' ');
+            break;
+        case '0':
+            result.append('\0');
+            break;
+        case 'e':
+            result.append('\u001b');
+            break;
+        case 'a':
+            result.append('\u0007');
+            break;
+        case 'b':
+            result.append('\b');
+            break;
+        case 'f':
+            result.append('\f');
+            break;
+        case 'v':
+            result.append('\u000b');
+            break;
+        case 'u':
+            result.append((char) hex(4));
+            break;
+        case 'x':
+            result.append((char) hex(2));
+            break;
+        case '\n':
+            line++;
+            lineStart = position;
+            break;
+        default:
+            result.append(escaped);
+        }
+    }
+
+    private int hex(int digits) {
+        int end = Math.min(position + digits, source.length());
+        int result = 0;
+        int read = 0;
+        while (position < end && Character.digit(source.charAt(position), 16) >= 0) {
+            result = result * 16 + Character.digit(source.charAt(position), 16);
+            position++;
+            read++;
+        }
+        if (read == 0) {
+            throw error(position, "invalid escape sequence");
+        }
+        return result;
+    }
+
+    private char peek(int offset) {
+        int index = position + offset;
+        return index < source.length() ? source.charAt(index) : '\0';
+    }
+
+    private void add(TokenType type, String text, int start) {
+        tokens.add(new Token(type, text, line, start - lineStart + 1));
+    }
+
+    private MinilanguageSyntaxException error(int at, String message) {
+        return new MinilanguageSyntaxException(fileName, line, at - lineStart
+                + 1, message);
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+}
@@ -0,0 +1,667 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static es.uvigo.ei.sing.stringeditor.TransformerDefinition.SIMPLE_TRANSFORMER;
+import static es.uvigo.ei.sing.stringeditor.TransformerProperties.branchType;
+import static es.uvigo.ei.sing.stringeditor.TransformerProperties.isTrue;
+import static es.uvigo.ei.sing.stringeditor.TransformerProperties.mergeMode;
+import static es.uvigo.ei.sing.stringeditor.TransformerProperties.setParam;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import es.uvigo.ei.sing.stringeditor.MinilanguageLexer.Token;
+import es.uvigo.ei.sing.stringeditor.MinilanguageLexer.TokenType;
+import es.uvigo.ei.sing.stringeditor.TransformerDefinition.ParamDefinition;
+
+/**
+ * A native interpreter for the minilanguage. It produces the same
+ * {@link Transformer} trees as the <code>transformer.rb</code> script without
+ * needing a Ruby runtime: the program is parsed and interpreted in a single
+ * pass and the transformers are built directly, instead of going through an
+ * intermediate XML document.
+ *
+ * Only the minilanguage constructs are supported: the transformer calls,
+ * <code>pipe</code>, <code>branch</code>, <code>repeat?</code> and the
+ * <code>|</code> and <code>&gt;</code> separators. Arbitrary Ruby code is
+ * rejected.
+ */
+final class MinilanguageParser {
+
+    /**
+     * Parses the given program.
+     *
+     * @param fileName
+     *            used for reporting errors. It can be <code>null</code>.
+     * @param lineNumber
+     *            the line on which the program starts. It can be
+     *            <code>null</code>.
+     * @param budget
+     *            the steps the parsing can take. It can be <code>null</code>
+     *            for no limit.
+     * @throws MinilanguageSyntaxException
+     *             if the program is not valid
+     * @throws BudgetExceededException
+     *             if the parsing takes more steps than allowed
+     */
+    static Transformer parse(String program, String fileName,
+            Integer lineNumber, StepBudget budget) {
+        if (program == null) {
+            throw new IllegalArgumentException("program cannot be null");
+        }
+        List<Token> tokens = new MinilanguageLexer(program, fileName,
+                lineNumber != null ? lineNumber : 1).tokenize();
+        return new MinilanguageParser(tokens, fileName, budget)
+                .parseProgram();
+    }
+
+    // ### Ruby values
+
+    // The arguments are interpreted as Ruby values: strings, symbols,
+    // numbers, booleans, nil and hashes. They are represented by String,
+    // Symbol, Long, Double, Boolean, null and Map respectively.
+
+    static final class Symbol {
+
+        final String name;
+
+        Symbol(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Symbol && ((Symbol) obj).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static Symbol symbol(String name) {
+        return new Symbol(name);
+    }
+
+    private static boolean isTruthy(Object value) {
+        return value != null && !Boolean.FALSE.equals(value);
+    }
+
+    private static String toS(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof Map<?, ?>) {
+            return inspect(value);
+        }
+        return value.toString();
+    }
+
+    private static String inspect(Object value) {
+        if (value == null) {
+            return "nil";
+        }
+        if (value instanceof Symbol) {
+            return ":" + value;
+        }
+        if (value instanceof String) {
+            return "\"" + ((String) value).replace("\\", "\\\\")
+                    .replace("\"", "\\\"") + "\"";
+        }
+        if (value instanceof Map<?, ?>) {
+            StringBuilder result = new StringBuilder("{");
+            boolean first = true;
+            for (Entry<?, ?> each : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    result.append(", ");
+                }
+                first = false;
+                result.append(inspect(each.getKey())).append("=>")
+                        .append(inspect(each.getValue()));
+            }
+            return result.append("}").toString();
+        }
+        return value.toString();
+    }
+
+    // ### Transformer nodes
+
+    // While interpreting, the transformers are kept as nodes holding the
+    // Ruby values. Once the program has been fully interpreted they are
+    // converted to Transformer instances, in the same way as
+    // XMLInputOutput would do with the XML produced by transformer.rb.
+
+    private static final class Node {
+
+        private final TransformerDefinition definition;
+
+        private final String branchType;
+
+        private final String branchMergeMode;
+
+        private Object loop;
+
+        private final Map<Object, Object> params;
+
+        private final List<Node> children = new ArrayList<Node>();
+
+        Node(TransformerDefinition definition, String branchType,
+                String branchMergeMode, Object loop, Map<Object, Object> params) {
+            this.definition = definition;
+            this.branchType = branchType;
+            this.branchMergeMode = branchMergeMode;
+            this.loop = loop;
+            this.params = params;
+        }
+
+        Node last() {
+            return children.isEmpty() ? null : children
+                    .get(children.size() - 1);
+        }
+
+        void doLoopWith(Node loopControl) {
+            children.add(0, loopControl);
+            loop = Boolean.TRUE;
+        }
+    }
+
+    /**
+     * The equivalent to a <code>Language</code> instance in
+     * <code>transformer.rb</code>. The transformers created in a scope are
+     * added to its container, unless it's the scope of a
+     * <code>repeat?</code> clause. In that case they're collected and added
+     * at the end.
+     */
+    private static final class Scope {
+
+        private final Node container;
+
+        private final boolean repeatClause;
+
+        private final List<Node> collected = new ArrayList<Node>();
+
+        Scope(Node container, boolean repeatClause) {
+            this.container = container;
+            this.repeatClause = repeatClause;
+        }
+
+        void transformerAdded(Node node) {
+            if (repeatClause) {
+                collected.add(node);
+            } else {
+                container.children.add(node);
+            }
+        }
+
+        Node repeatClauseTransformer() {
+            container.children.addAll(collected);
+            collected.clear();
+            if (container.children.size() == 1) {
+                return container.children.get(0);
+            }
+            return container;
+        }
+    }
+
+    // ### Parsing
+
+    private final List<Token> tokens;
+
+    private final String fileName;
+
+    private final StepBudget budget;
+
+    private int current = 0;
+
+    private MinilanguageParser(List<Token> tokens, String fileName,
+            StepBudget budget) {
+        this.tokens = tokens;
+        this.fileName = fileName;
+        this.budget = budget;
+    }
+
+    private Transformer parseProgram() {
+        List<Object> noArguments = new ArrayList<Object>();
+        noArguments.add(new LinkedHashMap<Object, Object>());
+        Node root = createNode(SIMPLE_TRANSFORMER, noArguments, peek());
+        parseStatements(new Scope(root, false), TokenType.EOF);
+        return toTransformer(root);
+    }
+
+    private void parseStatements(Scope scope, TokenType terminator) {
+        while (true) {
+            skipSeparators();
+            if (isTerminator(terminator)) {
+                return;
+            }
+            parseChain(scope);
+            if (!peek().is(TokenType.NEWLINE)
+                    && !peek().is(TokenType.SEMICOLON)
+                    && !isTerminator(terminator)) {
+                throw unexpected(peek());
+            }
+        }
+    }
+
+    private boolean isTerminator(TokenType terminator) {
+        Token token = peek();
+        if (terminator == null) {
+            return token.isIdentifier("end");
+        }
+        return token.is(terminator);
+    }
+
+    private void skipSeparators() {
+        while (peek().is(TokenType.NEWLINE) || peek().is(TokenType.SEMICOLON)) {
+            advance();
+        }
+    }
+
+    private void skipNewlines() {
+        while (peek().is(TokenType.NEWLINE)) {
+            advance();
+        }
+    }
+
+    // `a | b > c`: each operand is interpreted in order and then the
+    // separator is checked, as Ruby would do calling the `|` method.
+    private void parseChain(Scope scope) {
+        parsePostfix(scope);
+        while (peek().is(TokenType.PIPE) || peek().is(TokenType.GREATER)) {
+            Token separator = advance();
+            skipNewlines();
+            parsePostfix(scope);
+            if (!"CASCADE".equals(scope.container.branchType)) {
+                throw error(separator, "| can't be used in a pipe branch");
+            }
+        }
+    }
+
+    private void parsePostfix(Scope scope) {
+        parsePrimary(scope);
+        while (isFollowedByMethodCall()) {
+            skipNewlines();
+            advance();
+            Token name = peek();
+            if (!name.is(TokenType.IDENTIFIER)) {
+                throw unexpected(name);
+            }
+            parseCall(scope);
+        }
+    }
+
+    private boolean isFollowedByMethodCall() {
+        int index = current;
+        // a method call can continue in the next line: `\n .repeat?{}`
+        while (tokens.get(index).is(TokenType.NEWLINE)) {
+            index++;
+        }
+        return tokens.get(index).is(TokenType.DOT);
+    }
+
+    private void parsePrimary(Scope scope) {
+        Token token = peek();
+        if (token.isIdentifier("self")) {
+            advance();
+            return;
+        }
+        if (!token.is(TokenType.IDENTIFIER)) {
+            throw unexpected(token);
+        }
+        parseCall(scope);
+    }
+
+    private void parseCall(Scope scope) {
+        Token name = advance();
+        List<Object> arguments = parseArguments(name);
+        String method = name.text;
+        if (method.equals("pipe")) {
+            if (!arguments.isEmpty()) {
+                throw error(name, "wrong number of arguments ("
+                        + arguments.size() + " for 0)");
+            }
+            Node pipe = createNode(SIMPLE_TRANSFORMER, arguments, name);
+            parseOptionalBlock(new Scope(pipe, false));
+            scope.container.children.add(pipe);
+        } else if (method.equals("branch")) {
+            if (arguments.size() < 2 || !isTruthy(arguments.get(0))
+                    || !isTruthy(arguments.get(1))) {
+                throw error(name,
+                        "branchtype and branchmerge mode required");
+            }
+            Node branch = createNode(SIMPLE_TRANSFORMER, arguments, name);
+            parseOptionalBlock(new Scope(branch, false));
+            scope.container.children.add(branch);
+        } else if (method.equals("repeat?")) {
+            Node last = scope.container.last();
+            if (last == null) {
+                throw error(name,
+                        "no transformer to which apply a repeat? clause");
+            }
+            Scope clause = new Scope(createNode(SIMPLE_TRANSFORMER,
+                    arguments, name), true);
+            parseOptionalBlock(clause);
+            last.doLoopWith(clause.repeatClauseTransformer());
+        } else if (TransformerDefinition.forMethodName(method) != null) {
+            Node node = createNode(
+                    TransformerDefinition.forMethodName(method), arguments,
+                    name);
+            scope.transformerAdded(node);
+            parseOptionalBlock(new Scope(node, false));
+        } else {
+            throw error(name, "undefined method `" + method + "'");
+        }
+    }
+
+    private void parseOptionalBlock(Scope scope) {
+        if (peek().is(TokenType.LEFT_BRACE)) {
+            advance();
+            parseStatements(scope, TokenType.RIGHT_BRACE);
+            advance();
+        } else if (peek().isIdentifier("do")) {
+            advance();
+            parseStatements(scope, null);
+            advance();
+        }
+    }
+
+    private List<Object> parseArguments(Token name) {
+        if (peek().is(TokenType.LEFT_PAREN)) {
+            advance();
+            skipNewlines();
+            List<Object> result = parseArgumentList(TokenType.RIGHT_PAREN);
+            skipNewlines();
+            expect(TokenType.RIGHT_PAREN);
+            return result;
+        }
+        if (startsCommandArgument(peek())) {
+            // a call without parentheses: `decorator :head => '<p>'`
+            return parseArgumentList(null);
+        }
+        return new ArrayList<Object>();
+    }
+
+    private boolean startsCommandArgument(Token token) {
+        switch (token.type) {
+        case STRING:
+        case SYMBOL:
+        case INTEGER:
+        case FLOAT:
+        case LABEL:
+        case MINUS:
+            return true;
+        case IDENTIFIER:
+            return token.text.equals("true") || token.text.equals("false")
+                    || token.text.equals("nil");
+        default:
+            return false;
+        }
+    }
+
+    // The trailing key/value pairs are collected in a hash, that is passed
+    // as the last argument.
+    private List<Object> parseArgumentList(TokenType closing) {
+        List<Object> result = new ArrayList<Object>();
+        if (closing != null && peek().is(closing)) {
+            return result;
+        }
+        Map<Object, Object> hash = null;
+        while (true) {
+            Token start = peek();
+            if (start.is(TokenType.LABEL)) {
+                advance();
+                if (hash == null) {
+                    hash = new LinkedHashMap<Object, Object>();
+                }
+                skipNewlines();
+                hash.put(symbol(start.text), parseValue());
+            } else {
+                Object value = parseValue();
+                if (peek().is(TokenType.HASH_ROCKET)) {
+                    advance();
+                    skipNewlines();
+                    if (hash == null) {
+                        hash = new LinkedHashMap<Object, Object>();
+                    }
+                    hash.put(value, parseValue());
+                } else if (hash != null) {
+                    throw unexpected(start);
+                } else {
+                    result.add(value);
+                }
+            }
+            if (closing != null) {
+                skipNewlines();
+            }
+            if (!peek().is(TokenType.COMMA)) {
+                break;
+            }
+            advance();
+            skipNewlines();
+        }
+        if (hash != null) {
+            result.add(hash);
+        }
+        return result;
+    }
+
+    private Object parseValue() {
+        Token token = advance();
+        switch (token.type) {
+        case STRING:
+            StringBuilder result = new StringBuilder(token.text);
+            // adjacent literals are concatenated: 'a' 'b'
+            while (peek().is(TokenType.STRING)) {
+                result.append(advance().text);
+            }
+            return result.toString();
+        case SYMBOL:
+            return symbol(token.text);
+        case INTEGER:
+            return parseInteger(token, false);
+        case FLOAT:
+            return Double.valueOf(token.text);
+        case MINUS:
+            Token number = advance();
+            if (number.is(TokenType.INTEGER)) {
+                return parseInteger(number, true);
+            }
+            if (number.is(TokenType.FLOAT)) {
+                return Double.valueOf("-" + number.text);
+            }
+            throw unexpected(number);
+        case LEFT_BRACE:
+            return parseHash();
+        case IDENTIFIER:
+            if (token.text.equals("true")) {
+                return Boolean.TRUE;
+            }
+            if (token.text.equals("false")) {
+                return Boolean.FALSE;
+            }
+            if (token.text.equals("nil")) {
+                return null;
+            }
+            throw error(token, "only literals are allowed as arguments, found `"
+                    + token.text + "'");
+        default:
+            throw unexpected(token);
+        }
+    }
+
+    private Long parseInteger(Token token, boolean negative) {
+        try {
+            return Long.valueOf((negative ? "-" : "") + token.text);
+        } catch (NumberFormatException e) {
+            throw error(token, "integer too big: " + token.text);
+        }
+    }
+
+    private Map<Object, Object> parseHash() {
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+        skipNewlines();
+        while (!peek().is(TokenType.RIGHT_BRACE)) {
+            Token start = peek();
+            Object key;
+            if (start.is(TokenType.LABEL)) {
+                advance();
+                key = symbol(start.text);
+            } else {
+                key = parseValue();
+                skipNewlines();
+                expect(TokenType.HASH_ROCKET);
+            }
+            skipNewlines();
+            result.put(key, parseValue());
+            skipNewlines();
+            if (!peek().is(TokenType.COMMA)) {
+                break;
+            }
+            advance();
+            skipNewlines();
+        }
+        expect(TokenType.RIGHT_BRACE);
+        return result;
+    }
+
+    // ### Transformer creation
+
+    // It follows the rules of the Transformer constructor in
+    // transformer.rb. The arguments can be: the params, the branch type and
+    // merge mode, or the branch type and merge mode followed by the params.
+    private Node createNode(TransformerDefinition definition,
+            List<Object> arguments, Token at) {
+        step();
+        int size = arguments.size();
+        Object params = (size == 1 || size == 3) ? arguments.get(size - 1)
+                : Boolean.FALSE;
+        Map<Object, Object> hash = ensureParamsIsHash(definition, params);
+        if (size >= 2) {
+            if (isTruthy(arguments.get(0))) {
+                hash.put(symbol("branchtype"), arguments.get(0));
+            }
+            if (isTruthy(arguments.get(1))) {
+                hash.put(symbol("branchmergemode"), arguments.get(1));
+            }
+        }
+        String branchType = toSymbolName(
+                valueOrDefault(hash, "branchtype", symbol("CASCADE")), at);
+        String branchMergeMode = toSymbolName(
+                valueOrDefault(hash, "branchmergemode", symbol("SCATTERED")),
+                at);
+        Object loop = valueOrDefault(hash, "loop", null);
+        return new Node(definition, branchType, branchMergeMode, loop,
+                valuesForParamDefinitions(definition, hash, at));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> ensureParamsIsHash(
+            TransformerDefinition definition, Object params) {
+        if (params instanceof Map<?, ?>) {
+            return new LinkedHashMap<Object, Object>(
+                    (Map<Object, Object>) params);
+        }
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>();
+        List<ParamDefinition> required = definition.getRequired();
+        // a single value is allowed if there is only one required param
+        if (required.size() == 1) {
+            result.put(symbol(required.get(0).getName()), params);
+        }
+        return result;
+    }
+
+    private Object valueOrDefault(Map<Object, Object> hash, String key,
+            Object defaultValue) {
+        Symbol symbol = symbol(key);
+        return hash.containsKey(symbol) ? hash.get(symbol) : defaultValue;
+    }
+
+    private String toSymbolName(Object value, Token at) {
+        if (value instanceof Symbol || value instanceof String) {
+            return value.toString();
+        }
+        throw error(at, "undefined method `to_sym' for " + inspect(value));
+    }
+
+    private Map<Object, Object> valuesForParamDefinitions(
+            TransformerDefinition definition, Map<Object, Object> provided,
+            Token at) {
+        Map<Object, Object> result = new LinkedHashMap<Object, Object>(
+                provided);
+        for (ParamDefinition each : definition.getParams()) {
+            Symbol key = symbol(each.getName());
+            Object defaultValue = each.getDefaultValue();
+            Object value = result.containsKey(key) ? result.get(key)
+                    : defaultValue;
+            if (!isTruthy(value) && each.isRequired()
+                    && !isTruthy(defaultValue)) {
+                throw error(at, each.getName() + " parameter is required");
+            }
+            result.put(key, isTruthy(value) ? value : defaultValue);
+        }
+        return result;
+    }
+
+    // ### Conversion to Transformer
+
+    private Transformer toTransformer(Node node) {
+        Transformer result = node.definition.newTransformer();
+        result.setBranchType(branchType(node.branchType));
+        result.setBranchMergeMode(mergeMode(node.branchMergeMode));
+        result.setLoop(isTrue(toS(node.loop)));
+        for (Entry<Object, Object> each : node.params.entrySet()) {
+            setParam(result, toS(each.getKey()), toS(each.getValue()));
+        }
+        for (Node child : node.children) {
+            result.add(toTransformer(child));
+        }
+        return result;
+    }
+
+    // ### Tokens handling
+
+    private Token peek() {
+        return tokens.get(current);
+    }
+
+    private Token advance() {
+        step();
+        Token result = tokens.get(current);
+        if (!result.is(TokenType.EOF)) {
+            current++;
+        }
+        return result;
+    }
+
+    private void step() {
+        if (budget != null) {
+            budget.step();
+        }
+    }
+
+    private Token expect(TokenType type) {
+        Token token = peek();
+        if (!token.is(type)) {
+            throw unexpected(token);
+        }
+        return advance();
+    }
+
+    private MinilanguageSyntaxException unexpected(Token token) {
+        return error(token, "syntax error, unexpected " + token.describe());
+    }
+
+    private MinilanguageSyntaxException error(Token token, String message) {
+        return new MinilanguageSyntaxException(fileName, token.line,
+                token.column, message);
+    }
+
+}
@@ -0,0 +1,38 @@
+package es.uvigo.ei.sing.stringeditor;
+
+/**
+ * Thrown by the native minilanguage engine when a program cannot be
+ * interpreted. It tells where the problem was found.
+ */
+public class MinilanguageSyntaxException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+
+    private final int line;
+
+    private final int column;
+
+    public MinilanguageSyntaxException(String fileName, int line, int column,
+            String message) {
+        super((fileName != null ? fileName : "minilanguage") + ":" + line
+                + ":" + column + ": " + message);
+        this.fileName = fileName;
+        this.line = line;
+        this.column = column;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+}
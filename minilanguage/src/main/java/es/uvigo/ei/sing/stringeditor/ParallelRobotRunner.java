@@ -0,0 +1,713 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpState;
+
+/**
+ * Executes robots like {@link Util#runRobot(Transformer, String[])} but
+ * running concurrently the parts of the robot that are independent:
+ * <ul>
+ * <li>the children of a <code>BRANCH_DUPLICATED</code> branch, since each
+ * one receives all the output of the branch. Their results are merged in the
+ * order of the children, as the <code>ORDERED</code> merge mode does.</li>
+ * <li>the inputs of a <code>url</code> transformer, each one being retrieved
+ * on its own. The pages are given in the same order as the inputs.</li>
+ * </ul>
+ *
+ * The rest of branch types and merge modes, and the loops, depend on the
+ * order in which the lines arrive. A robot containing any of them is
+ * executed by {@link Util#runRobot(Transformer, String[])} as a whole, so
+ * the result is always the same as the sequential one.
+ *
+ * If the output for each input of a robot only depends on that input, the
+ * robot is executed for each input on its own instead, concurrently. The
+ * lines are given in the same order as the inputs and the time each input
+ * took is {@link Execution#getInputMillis() reported}. This is not the case
+ * for robots with branches, loops, appenders or mergers. At most
+ * <code>maxInputsPerHost</code> inputs that are URLs of the same host are
+ * executed at the same time, so a robot with many seed URLs of a site
+ * doesn't take all the threads. The rest wait in a queue of their host
+ * without taking a thread, so they don't delay the other robots.
+ *
+ * At most <code>parallelism</code> tasks are executed at the same time. A
+ * thread waiting for the result of a task that hasn't started yet runs it
+ * itself, so nested branches can't exhaust the threads. All the tasks of an
+ * execution share the cookies of the {@link HTTPClientPool} execution.
+ */
+public class ParallelRobotRunner {
+
+    public static final int DEFAULT_MAX_INPUTS_PER_HOST = HTTPClientPool.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    private static final long[] NO_TIMES = new long[0];
+
+    // their output for an input only depends on the input
+    private static final Set<Class<?>> INDEPENDENT_INPUTS = new HashSet<Class<?>>(
+            Arrays.<Class<?>> asList(SimpleTransformer.class,
+                    PatternMatcher.class, Replacer.class, Decorator.class,
+                    HTMLMatcher.class, Comparator.class, URLRetriever.class,
+                    PooledURLRetriever.class, URLDownload.class));
+
+    private static volatile ParallelRobotRunner installed;
+
+    /**
+     * From now on the robots executed through {@link TransformerCache} use
+     * <code>runner</code>. It can be <code>null</code> to execute them
+     * sequentially again.
+     */
+    public static void install(ParallelRobotRunner runner) {
+        installed = runner;
+    }
+
+    /**
+     * @return the runner installed or <code>null</code> if there is none
+     */
+    public static ParallelRobotRunner installed() {
+        return installed;
+    }
+
+    /**
+     * @return whether executing <code>robot</code> for each input on its own
+     *         and concatenating the results gives the same result as
+     *         executing it for all the inputs at once
+     */
+    public static boolean canSplitInputs(Transformer robot) {
+        if (robot.isLoop() || !INDEPENDENT_INPUTS.contains(robot.getClass())) {
+            return false;
+        }
+        if (!robot.getChilds().isEmpty()
+                && robot.getBranchType() != BranchType.CASCADE) {
+            return false;
+        }
+        for (Transformer each : robot.getChilds()) {
+            if (!canSplitInputs(each)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The result of {@link ParallelRobotRunner#execute(Transformer, String...)}
+     */
+    public static final class Execution {
+
+        private final String[] lines;
+
+        private final long[] inputMillis;
+
+        private Execution(String[] lines, long[] inputMillis) {
+            this.lines = lines;
+            this.inputMillis = inputMillis;
+        }
+
+        /**
+         * @return the execution of a robot whose inputs weren't executed on
+         *         their own
+         */
+        static Execution of(String[] lines) {
+            return new Execution(lines, NO_TIMES);
+        }
+
+        public String[] getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the milliseconds the execution for each input took, in the
+         *         order of the inputs. It's empty if the inputs weren't
+         *         executed on their own.
+         */
+        public long[] getInputMillis() {
+            return inputMillis;
+        }
+    }
+
+    /**
+     * Submits the inputs of the same host to the executor only while there
+     * are less than <code>maxPerHost</code> of them running. The rest wait in
+     * a queue of the host, without taking a thread, and are submitted as the
+     * running ones finish.
+     */
+    private class HostQueues {
+
+        private final int maxPerHost;
+
+        private final Map<String, Integer> running = new HashMap<String, Integer>();
+
+        private final Map<String, Queue<Runnable>> waiting = new HashMap<String, Queue<Runnable>>();
+
+        HostQueues(int maxPerHost) {
+            this.maxPerHost = maxPerHost;
+        }
+
+        void submit(String host, Runnable task) {
+            if (host == null) {
+                executeOrRun(task);
+                return;
+            }
+            synchronized (this) {
+                if (runningFor(host) >= maxPerHost) {
+                    queueFor(host).add(task);
+                    return;
+                }
+                running.put(host, runningFor(host) + 1);
+            }
+            executeOrRun(releasingAfter(host, task));
+        }
+
+        private Runnable releasingAfter(final String host, final Runnable task) {
+            return new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        finished(host);
+                    }
+                }
+            };
+        }
+
+        private void finished(String host) {
+            Runnable next;
+            synchronized (this) {
+                Queue<Runnable> queue = waiting.get(host);
+                next = queue == null ? null : queue.poll();
+                if (queue != null && queue.isEmpty()) {
+                    waiting.remove(host);
+                }
+                if (next == null) {
+                    int remaining = runningFor(host) - 1;
+                    if (remaining > 0) {
+                        running.put(host, remaining);
+                    } else {
+                        running.remove(host);
+                    }
+                }
+            }
+            // the slot passes to the next input of the host
+            if (next != null) {
+                executeOrRun(releasingAfter(host, next));
+            }
+        }
+
+        private Queue<Runnable> queueFor(String host) {
+            Queue<Runnable> result = waiting.get(host);
+            if (result == null) {
+                result = new LinkedList<Runnable>();
+                waiting.put(host, result);
+            }
+            return result;
+        }
+
+        private int runningFor(String host) {
+            Integer result = running.get(host);
+            return result == null ? 0 : result;
+        }
+
+        synchronized int getWaiting() {
+            int result = 0;
+            for (Queue<Runnable> each : waiting.values()) {
+                result += each.size();
+            }
+            return result;
+        }
+    }
+
+    private void executeOrRun(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // the runner has been shut down
+            task.run();
+        }
+    }
+
+    /**
+     * @return the host of <code>input</code> or <code>null</code> if it isn't
+     *         an URL
+     */
+    static String hostOf(String input) {
+        try {
+            String result = new URL(input.trim()).getHost();
+            return result == null || result.isEmpty() ? null : result
+                    .toLowerCase();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether all the branches of <code>robot</code> can be
+     *         evaluated independently, giving the same result as
+     *         {@link Util#runRobot(Transformer, String[])}
+     */
+    public static boolean canRunInParallel(Transformer robot) {
+        if (robot.isLoop()) {
+            return false;
+        }
+        if (!robot.getChilds().isEmpty()
+                && robot.getBranchType() != BranchType.CASCADE
+                && !(robot.getBranchType() == BranchType.BRANCH_DUPLICATED && robot
+                        .getBranchMergeMode() == MergeMode.ORDERED)) {
+            return false;
+        }
+        for (Transformer each : robot.getChilds()) {
+            if (!canRunInParallel(each)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final int parallelism;
+
+    private final int maxInputsPerHost;
+
+    private final ThreadPoolExecutor executor;
+
+    private final HostQueues hostQueues;
+
+    private final AtomicLong parallelExecutions = new AtomicLong();
+
+    private final AtomicLong sequentialExecutions = new AtomicLong();
+
+    private final AtomicLong perInputExecutions = new AtomicLong();
+
+    private final AtomicLong tasks = new AtomicLong();
+
+    private final AtomicLong inputsExecuted = new AtomicLong();
+
+    private final AtomicLong inputsMillis = new AtomicLong();
+
+    private final AtomicLong maxInputMillis = new AtomicLong();
+
+    public ParallelRobotRunner(int parallelism) {
+        this(parallelism, DEFAULT_MAX_INPUTS_PER_HOST);
+    }
+
+    public ParallelRobotRunner(int parallelism, int maxInputsPerHost) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive: "
+                    + parallelism);
+        }
+        if (maxInputsPerHost <= 0) {
+            throw new IllegalArgumentException(
+                    "maxInputsPerHost must be positive: " + maxInputsPerHost);
+        }
+        this.parallelism = parallelism;
+        this.maxInputsPerHost = maxInputsPerHost;
+        this.hostQueues = new HostQueues(maxInputsPerHost);
+        this.executor = new ThreadPoolExecutor(parallelism, parallelism, 1,
+                TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                new DaemonThreadFactory());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger created = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread result = new Thread(runnable, "parallel-robot-runner-"
+                    + created.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    /**
+     * Executes <code>robot</code> with the given inputs. If the calling thread
+     * is interrupted, the tasks not finished yet are cancelled.
+     *
+     * @return the same lines {@link Util#runRobot(Transformer, String[])}
+     *         would return
+     */
+    public String[] run(Transformer robot, String... inputs)
+            throws InterruptedException {
+        return execute(robot, inputs).getLines();
+    }
+
+    /**
+     * Like {@link #run(Transformer, String...)} but also reporting the time
+     * each input took if they have been executed on their own.
+     */
+    public Execution execute(Transformer robot, String... inputs)
+            throws InterruptedException {
+        return execute(robot, null, inputs);
+    }
+
+    /**
+     * Like {@link #execute(Transformer, String...)} but all the tasks take
+     * their steps from <code>budget</code>. If it's exceeded the rest of the
+     * tasks are cancelled.
+     *
+     * @param budget
+     *            it can be <code>null</code> for no limit
+     * @throws BudgetExceededException
+     *             if the execution takes more steps than allowed
+     */
+    public Execution execute(Transformer robot, StepBudget budget,
+            String... inputs) throws InterruptedException {
+        HttpState previous = HTTPClientPool.startExecution();
+        try {
+            return dispatch(robot, budget, inputs);
+        } finally {
+            HTTPClientPool.endExecution(previous);
+        }
+    }
+
+    private Execution dispatch(Transformer robot, StepBudget budget,
+            String... inputs) throws InterruptedException {
+        if (inputs.length > 1 && canSplitInputs(robot)) {
+            perInputExecutions.incrementAndGet();
+            return executeEachInput(robot, budget, inputs);
+        }
+        if (!canRunInParallel(robot)) {
+            sequentialExecutions.incrementAndGet();
+            return new Execution(runRobot(robot, budget, inputs), NO_TIMES);
+        }
+        parallelExecutions.incrementAndGet();
+        return new Execution(evaluate(robot, budget, inputs), NO_TIMES);
+    }
+
+    private static String[] runRobot(Transformer robot, StepBudget budget,
+            String... inputs) {
+        if (budget == null) {
+            return Util.runRobot(robot, inputs);
+        }
+        return budget.runRobot(robot, inputs);
+    }
+
+    private Execution executeEachInput(final Transformer robot,
+            final StepBudget budget, String[] inputs)
+            throws InterruptedException {
+        final long[] inputMillis = new long[inputs.length];
+        HttpState cookies = HTTPClientPool.executionCookies();
+        List<FutureTask<String[]>> futures = new ArrayList<FutureTask<String[]>>();
+        List<String> hosts = new ArrayList<String>();
+        for (int i = 0; i < inputs.length; i++) {
+            final int index = i;
+            final String input = inputs[i];
+            FutureTask<String[]> future = new FutureTask<String[]>(
+                    withCookies(cookies, new Callable<String[]>() {
+
+                        @Override
+                        public String[] call() throws Exception {
+                            long start = System.currentTimeMillis();
+                            String[] result = runRobot(TransformerCache
+                                    .copyOf(robot), budget, input);
+                            inputMillis[index] = System.currentTimeMillis()
+                                    - start;
+                            return result;
+                        }
+                    }));
+            futures.add(future);
+            hosts.add(hostOf(input));
+            tasks.incrementAndGet();
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            hostQueues.submit(hosts.get(i), futures.get(i));
+        }
+        // the inputs that aren't URLs are run by this thread if they haven't
+        // started yet, the rest wait for a free slot of their host
+        String[] lines = concatenate(join(futures, hosts));
+        for (long each : inputMillis) {
+            recordInputTime(each);
+        }
+        return new Execution(lines, inputMillis);
+    }
+
+    private void recordInputTime(long millis) {
+        inputsExecuted.incrementAndGet();
+        inputsMillis.addAndGet(millis);
+        long max;
+        while ((max = maxInputMillis.get()) < millis
+                && !maxInputMillis.compareAndSet(max, millis)) {
+            // retried
+        }
+    }
+
+    private String[] evaluate(Transformer node, StepBudget budget,
+            String[] inputs) throws InterruptedException {
+        checkForInterruption();
+        String[] output = applyOwn(node, budget, inputs);
+        List<Transformer> children = node.getChilds();
+        if (children.isEmpty()) {
+            return output;
+        }
+        if (node.getBranchType() == BranchType.CASCADE) {
+            for (Transformer each : children) {
+                output = evaluate(each, budget, output);
+            }
+            return output;
+        }
+        List<Callable<String[]>> branches = new ArrayList<Callable<String[]>>();
+        for (Transformer each : children) {
+            branches.add(evaluation(each, budget, output));
+        }
+        return concatenate(runAll(branches));
+    }
+
+    private Callable<String[]> evaluation(final Transformer node,
+            final StepBudget budget, final String[] inputs) {
+        return new Callable<String[]>() {
+
+            @Override
+            public String[] call() throws Exception {
+                return evaluate(node, budget, inputs);
+            }
+        };
+    }
+
+    /**
+     * Applies the transformation of the node on its own, without its
+     * children.
+     */
+    private String[] applyOwn(Transformer node, final StepBudget budget,
+            String[] inputs) throws InterruptedException {
+        if (inputs.length < 2 || !retrievesEachInputOnItsOwn(node)) {
+            return runRobot(detached(node), budget, inputs);
+        }
+        List<Callable<String[]>> retrievals = new ArrayList<Callable<String[]>>();
+        for (final String each : inputs) {
+            final Transformer retriever = detached(node);
+            retrievals.add(new Callable<String[]>() {
+
+                @Override
+                public String[] call() throws Exception {
+                    return runRobot(retriever, budget, each);
+                }
+            });
+        }
+        return concatenate(runAll(retrievals));
+    }
+
+    private static boolean retrievesEachInputOnItsOwn(Transformer node) {
+        String filter = node.getInputFilter();
+        return node instanceof URLRetriever
+                && (filter == null || filter.trim().isEmpty());
+    }
+
+    private static Transformer detached(Transformer node) {
+        Transformer result = TransformerCache.copyOf(node);
+        while (!result.getChilds().isEmpty()) {
+            result.remove(0);
+        }
+        return result;
+    }
+
+    private List<String[]> runAll(List<Callable<String[]>> callables)
+            throws InterruptedException {
+        HttpState cookies = HTTPClientPool.executionCookies();
+        List<FutureTask<String[]>> futures = new ArrayList<FutureTask<String[]>>();
+        for (Callable<String[]> each : callables) {
+            FutureTask<String[]> future = new FutureTask<String[]>(
+                    withCookies(cookies, each));
+            futures.add(future);
+            tasks.incrementAndGet();
+            // the first one is run by this thread
+            if (futures.size() > 1) {
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException e) {
+                    // it will be run by this thread when joining
+                }
+            }
+        }
+        return join(futures, null);
+    }
+
+    /**
+     * Waits for the results of <code>futures</code>, running those not
+     * started yet unless they belong to a host in <code>hosts</code>.
+     *
+     * @param hosts
+     *            the host of each future or <code>null</code> if they all can
+     *            be run by this thread
+     */
+    private static List<String[]> join(List<FutureTask<String[]>> futures,
+            List<String> hosts) throws InterruptedException {
+        List<String[]> result = new ArrayList<String[]>(futures.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                FutureTask<String[]> each = futures.get(i);
+                if (hosts == null || hosts.get(i) == null) {
+                    // does nothing if it has already been started by other
+                    // thread
+                    each.run();
+                }
+                result.add(each.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            throw e;
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // the tasks are part of the same execution, whatever the thread
+    private static Callable<String[]> withCookies(final HttpState cookies,
+            final Callable<String[]> task) {
+        return new Callable<String[]>() {
+
+            @Override
+            public String[] call() throws Exception {
+                HttpState previous = HTTPClientPool.joinExecution(cookies);
+                try {
+                    return task.call();
+                } finally {
+                    HTTPClientPool.endExecution(previous);
+                }
+            }
+        };
+    }
+
+    private static void cancelAll(List<FutureTask<String[]>> futures) {
+        for (FutureTask<String[]> each : futures) {
+            each.cancel(true);
+        }
+    }
+
+    private static String[] concatenate(List<String[]> parts) {
+        List<String> result = new ArrayList<String>();
+        for (String[] each : parts) {
+            result.addAll(Arrays.asList(each));
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static void checkForInterruption() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    /**
+     * Stops the threads. The runner can't be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getMaxInputsPerHost() {
+        return maxInputsPerHost;
+    }
+
+    /**
+     * @return the number of robots executed for each input on its own
+     */
+    public long getPerInputExecutions() {
+        return perInputExecutions.get();
+    }
+
+    /**
+     * @return the number of inputs executed on their own
+     */
+    public long getInputsExecuted() {
+        return inputsExecuted.get();
+    }
+
+    /**
+     * @return the milliseconds taken by all the inputs executed on their own
+     */
+    public long getInputsMillis() {
+        return inputsMillis.get();
+    }
+
+    /**
+     * @return the milliseconds taken by the slowest input executed on its own
+     */
+    public long getMaxInputMillis() {
+        return maxInputMillis.get();
+    }
+
+    /**
+     * @return the number of robots executed with their branches in parallel
+     */
+    public long getParallelExecutions() {
+        return parallelExecutions.get();
+    }
+
+    /**
+     * @return the number of robots executed sequentially since they have
+     *         branches that can't be evaluated independently
+     */
+    public long getSequentialExecutions() {
+        return sequentialExecutions.get();
+    }
+
+    /**
+     * @return the number of branches and inputs evaluated as separate tasks
+     */
+    public long getTasks() {
+        return tasks.get();
+    }
+
+    /**
+     * @return the number of tasks waiting for a free thread
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of inputs waiting for a free slot of their host
+     */
+    public int getWaitingForHost() {
+        return hostQueues.getWaiting();
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelRobotRunner[parallelism=" + parallelism
+                + ", parallelExecutions=" + getParallelExecutions()
+                + ", sequentialExecutions=" + getSequentialExecutions()
+                + ", perInputExecutions=" + getPerInputExecutions()
+                + ", inputsExecuted=" + getInputsExecuted()
+                + ", maxInputMillis=" + getMaxInputMillis()
+                + ", tasks=" + getTasks() + ", queued=" + getQueued()
+                + ", waitingForHost=" + getWaitingForHost() + "]";
+    }
+
+}
@@ -0,0 +1,117 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.io.IOException;
+
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link URLRetriever} that retrieves the pages with the
+ * {@link HTTPClientPool} installed and through the {@link HTTPResponseCache}
+ * installed, if any. The pages requested with cookies or setting them aren't
+ * cached. It's used instead of {@link URLRetriever} by
+ * {@link TransformerXML} and {@link Minilanguage} while any of them is
+ * installed, and it's written in the XML of the robots as a
+ * {@link URLRetriever}.
+ */
+public class PooledURLRetriever extends URLRetriever {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log LOG = LogFactory.getLog(PooledURLRetriever.class);
+
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * @return if a {@link PooledURLRetriever} must be created instead of a
+     *         transformer of class <code>transformerClass</code>
+     */
+    static boolean replaces(Class<?> transformerClass) {
+        return transformerClass == URLRetriever.class
+                && (HTTPClientPool.installed() != null || HTTPResponseCache
+                        .installed() != null);
+    }
+
+    @Override
+    protected String[] _apply(String[] inputs) {
+        String[] result = new String[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            try {
+                result[i] = retrieve(inputs[i]).asString();
+            } catch (Exception e) {
+                LOG.warn("error retrieving " + inputs[i] + ": " + e);
+                result[i] = "<exception>";
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected void _closeOneInput() {
+        String url = null;
+        try {
+            url = getAndClearCurrentString();
+            String body = retrieve(url).asString();
+            for (int i = 0; i < body.length() && !isStopped(); i += CHUNK_SIZE) {
+                getOutputHandler().pushOutput(
+                        body.substring(i, Math.min(body.length(), i
+                                + CHUNK_SIZE)));
+            }
+        } catch (Exception e) {
+            LOG.warn("error retrieving " + url + ": " + e);
+            getOutputHandler().pushOutput("<exception>" + e);
+        } finally {
+            getOutputHandler().outputFinished();
+        }
+    }
+
+    private HTTPResponseCache.Entry retrieve(String url) throws IOException {
+        HTTPClientPool pool = HTTPClientPool.installedOrDefault();
+        // the pages depending on the cookies of an execution aren't shared
+        HTTPResponseCache cache = HTTPClientPool.sendsCookies() ? null
+                : HTTPResponseCache.installed();
+        HTTPResponseCache.Entry cached = cache != null ? cache.get(url) : null;
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            cache.hit();
+            return cached;
+        }
+        boolean conditional = cached != null && cached.hasValidators();
+        HTTPClientPool.Response response = pool.get(url,
+                conditional ? cached.getETag() : null,
+                conditional ? cached.getLastModified() : null);
+        long now = System.currentTimeMillis();
+        if (response.getStatus() == HttpStatus.SC_NOT_MODIFIED && conditional) {
+            cache.revalidated();
+            HTTPResponseCache.Entry result = cached.revalidated(now
+                    + Math.max(0, lifetime(cache, response, now)));
+            cache.put(url, result);
+            return result;
+        }
+        HTTPResponseCache.Entry result = new HTTPResponseCache.Entry(response
+                .getBody(), response.getCharset(), response.header("ETag"),
+                response.header("Last-Modified"), 0);
+        if (cache == null) {
+            return result;
+        }
+        cache.missed();
+        long lifetime = lifetime(cache, response, now);
+        if (response.getStatus() == HttpStatus.SC_OK && lifetime >= 0
+                && !"*".equals(response.header("Vary"))
+                && response.header("Set-Cookie") == null
+                && (lifetime > 0 || result.hasValidators())) {
+            result = result.revalidated(now + lifetime);
+            cache.put(url, result);
+        }
+        return result;
+    }
+
+    private static long lifetime(HTTPResponseCache cache,
+            HTTPClientPool.Response response, long now) {
+        return cache.freshnessLifetime(now, response
+                .header("Cache-Control"), response.header("Expires"),
+                response.header("Date"), response.header("Last-Modified"),
+                response.header("Age"));
+    }
+
+}
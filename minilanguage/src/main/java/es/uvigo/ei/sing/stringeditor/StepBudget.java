@@ -0,0 +1,150 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The maximum number of steps the evaluation of a minilanguage program or the
+ * execution of a robot can take. The budget is checked cooperatively by the
+ * code doing the work at each step, so an over-budget program is aborted with
+ * a {@link BudgetExceededException} in the thread running it, without
+ * interrupting or stopping any thread.
+ *
+ * A step is:
+ * <ul>
+ * <li>for the native engine, a token consumed or a transformer defined.</li>
+ * <li>for the JRuby engine, a line, call or return executed by the Ruby
+ * interpreter.</li>
+ * <li>for the execution of a robot, a string given to one of its transformers
+ * or the end of one of its inputs.</li>
+ * </ul>
+ *
+ * The same budget can be shared by several threads, all of them take their
+ * steps from it.
+ */
+public class StepBudget {
+
+    public static final long DEFAULT_MAX_EVALUATION_STEPS = 1000000;
+
+    public static final long DEFAULT_MAX_EXECUTION_STEPS = 100000000;
+
+    private final long maxSteps;
+
+    private final AtomicLong taken = new AtomicLong();
+
+    public StepBudget(long maxSteps) {
+        if (maxSteps <= 0) {
+            throw new IllegalArgumentException("maxSteps must be positive: "
+                    + maxSteps);
+        }
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * Takes a step from the budget.
+     *
+     * @throws BudgetExceededException
+     *             if there were no steps left
+     */
+    public void step() {
+        if (!tryStep()) {
+            throw new BudgetExceededException(maxSteps);
+        }
+    }
+
+    /**
+     * Like {@link #step()} but telling if the budget has been exceeded
+     * instead of throwing.
+     */
+    public boolean tryStep() {
+        return taken.incrementAndGet() <= maxSteps;
+    }
+
+    public boolean isExceeded() {
+        return taken.get() > maxSteps;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    public long getTaken() {
+        return Math.min(taken.get(), maxSteps);
+    }
+
+    /**
+     * Executes the robot like {@link Util#runRobot(Transformer, String[])}
+     * but taking a step from this budget for each string pushed to any of its
+     * transformers. As with {@link Util#runRobot(Transformer, String[])},
+     * <code>robot</code> is used for the execution, so it must be a fresh
+     * copy not used by anyone else.
+     *
+     * @throws BudgetExceededException
+     *             if the execution takes more steps than allowed
+     */
+    public String[] runRobot(Transformer robot, String... inputs) {
+        return Util.runRobot(counting(robot), inputs);
+    }
+
+    /**
+     * Replaces the children of <code>robot</code>, at any depth, with
+     * transformers taking a step before passing a string on to them. The
+     * robot itself is wrapped too.
+     */
+    Transformer counting(Transformer robot) {
+        List<Transformer> children = new ArrayList<Transformer>(
+                robot.getChilds());
+        while (!robot.getChilds().isEmpty()) {
+            robot.remove(0);
+        }
+        for (Transformer each : children) {
+            robot.add(counting(each));
+        }
+        return countingProxy(robot);
+    }
+
+    private Transformer countingProxy(Transformer transformer) {
+        return (Transformer) Proxy.newProxyInstance(
+                Transformer.class.getClassLoader(),
+                new Class<?>[] { Transformer.class }, new CountingHandler(
+                        transformer));
+    }
+
+    // The transformers call their children through the Transformer
+    // interface, so the steps are taken as the strings flow down the tree.
+    private class CountingHandler implements InvocationHandler {
+
+        private final Transformer target;
+
+        CountingHandler(Transformer target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String name = method.getName();
+            if (name.equals("pushString") || name.equals("closeOneInput")) {
+                step();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("clone")) {
+                // the children of the clone are already counting
+                return countingProxy((Transformer) target.clone());
+            }
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,310 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HttpState;
+
+/**
+ * A bounded, thread safe, LRU cache of compiled {@link Transformer
+ * transformers}. Compiling a robot XML into a {@link Transformer} involves
+ * parsing the XML and building the transformers tree by reflection, and the
+ * same robots are executed again and again.
+ *
+ * The entries are keyed by the robot code and the hash of its XML. The cached
+ * transformer is never executed: it's kept as a prototype and each
+ * {@link #get(String, String)} returns a fresh copy of it, since transformers
+ * hold state while running.
+ */
+public class TransformerCache {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+
+    private static final TransformerCache SHARED = new TransformerCache(
+            DEFAULT_MAX_SIZE);
+
+    /**
+     * @return the cache shared by all the executions in this JVM
+     */
+    public static TransformerCache shared() {
+        return SHARED;
+    }
+
+    private static final Field LAST_VALUES_FIELD = lastValuesField();
+
+    private static Field lastValuesField() {
+        try {
+            Field result = AbstractTransformer.class
+                    .getDeclaredField("lastValues");
+            result.setAccessible(true);
+            return result;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Key {
+
+        private final String robotCode;
+
+        private final int xmlHash;
+
+        Key(String robotCode, String robotXML) {
+            this.robotCode = robotCode;
+            this.xmlHash = robotXML.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (robotCode == null ? 0 : robotCode.hashCode())
+                    + xmlHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return xmlHash == other.xmlHash
+                    && (robotCode == null ? other.robotCode == null
+                            : robotCode.equals(other.robotCode));
+        }
+    }
+
+    private static class CachedTransformer {
+
+        private final String robotXML;
+
+        private final Transformer prototype;
+
+        CachedTransformer(String robotXML, Transformer prototype) {
+            this.robotXML = robotXML;
+            this.prototype = prototype;
+        }
+    }
+
+    private final int maxSize;
+
+    private final Map<Key, CachedTransformer> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public TransformerCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: "
+                    + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, CachedTransformer>(16, 0.75f,
+                true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, CachedTransformer> eldest) {
+                boolean exceeded = size() > TransformerCache.this.maxSize;
+                if (exceeded) {
+                    evictions.incrementAndGet();
+                }
+                return exceeded;
+            }
+        };
+    }
+
+    /**
+     * Retrieves a transformer ready to be executed for the given robot.
+     *
+     * @param robotCode
+     *            the code of the robot. It can be <code>null</code> for robots
+     *            not yet stored, the XML hash is used on its own then.
+     * @param robotXML
+     *            the robot in XML form
+     * @return a new transformer, not shared with any other caller
+     */
+    public Transformer get(String robotCode, String robotXML) {
+        if (robotXML == null) {
+            throw new IllegalArgumentException("robotXML cannot be null");
+        }
+        Key key = new Key(robotCode, robotXML);
+        CachedTransformer entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.robotXML.equals(robotXML)) {
+            hits.incrementAndGet();
+            return copyOf(entry.prototype);
+        }
+        misses.incrementAndGet();
+        // compiled outside the lock, so a slow robot doesn't block the rest
+        Transformer prototype = compile(robotXML);
+        synchronized (entries) {
+            entries.put(key, new CachedTransformer(robotXML, prototype));
+        }
+        return copyOf(prototype);
+    }
+
+    /**
+     * Executes the robot with the {@link ParallelRobotRunner} installed, or
+     * sequentially if there is none.
+     */
+    public String[] runRobot(String robotCode, String robotXML,
+            String... inputs) {
+        return executeRobot(robotCode, robotXML, inputs).getLines();
+    }
+
+    /**
+     * Like {@link #runRobot(String, String, String...)} but also reporting
+     * the time each input took if the runner installed has executed them on
+     * their own.
+     */
+    public ParallelRobotRunner.Execution executeRobot(String robotCode,
+            String robotXML, String... inputs) {
+        Transformer transformer = get(robotCode, robotXML);
+        ParallelRobotRunner runner = ParallelRobotRunner.installed();
+        if (runner == null) {
+            HttpState previous = HTTPClientPool.startExecution();
+            try {
+                return ParallelRobotRunner.Execution.of(Util.runRobot(
+                        transformer, inputs));
+            } finally {
+                HTTPClientPool.endExecution(previous);
+            }
+        }
+        try {
+            return runner.execute(transformer, inputs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Like {@link #runRobot(String, String, String...)} but each result line
+     * is given to the handler as soon as it's produced, instead of collecting
+     * all of them.
+     */
+    public void runRobot(String robotCode, String robotXML,
+            LineHandler handler, String... inputs) {
+        if (handler == null) {
+            throw new IllegalArgumentException("handler cannot be null");
+        }
+        Transformer transformer = get(robotCode, robotXML);
+        transformer.setOutputHandler(new StreamingOutputHandler(handler));
+        HttpState previous = HTTPClientPool.startExecution();
+        try {
+            for (String each : inputs) {
+                transformer.pushString(each);
+                transformer.closeOneInput();
+            }
+            transformer.closeAllInputs();
+        } finally {
+            HTTPClientPool.endExecution(previous);
+        }
+    }
+
+    // The output arrives in pieces, a line is finished on outputFinished. It
+    // mirrors the handler used by Util.runRobot.
+    private static class StreamingOutputHandler implements OutputHandler {
+
+        private final LineHandler handler;
+
+        private StringBuilder current = new StringBuilder();
+
+        StreamingOutputHandler(LineHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void pushOutput(String output) {
+            current.append(output);
+        }
+
+        @Override
+        public void outputFinished() {
+            String line = current.toString();
+            current = new StringBuilder();
+            handler.line(line);
+        }
+
+        @Override
+        public void allFinished() {
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransformerCache[size=" + size() + ", maxSize=" + maxSize
+                + ", hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + "]";
+    }
+
+    private static Transformer compile(String robotXML) {
+        return TransformerXML.fromXML(robotXML);
+    }
+
+    /**
+     * {@link AbstractTransformer#clone()} copies the children but shares some
+     * of the state used while running. That state is replaced so the copy can
+     * be executed concurrently with other copies of the same prototype.
+     */
+    static Transformer copyOf(Transformer prototype) {
+        Transformer result = (Transformer) prototype.clone();
+        detachRunningState(result);
+        return result;
+    }
+
+    private static void detachRunningState(Transformer transformer) {
+        if (transformer instanceof AbstractTransformer) {
+            AbstractTransformer abstractTransformer = (AbstractTransformer) transformer;
+            abstractTransformer.stoppedInputs = new ArrayList<String>();
+            try {
+                LAST_VALUES_FIELD.set(abstractTransformer,
+                        new HashMap<Object, String>());
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        for (Transformer child : transformer.getChilds()) {
+            detachRunningState(child);
+        }
+    }
+
+}
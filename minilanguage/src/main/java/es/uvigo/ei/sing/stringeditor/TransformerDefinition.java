@@ -0,0 +1,158 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transformers available in the minilanguage. They mirror the
+ * Transformer subclasses defined in <code>transformer.rb</code>: each one
+ * defines a method in the minilanguage and the params it accepts.
+ */
+final class TransformerDefinition {
+
+    static final class ParamDefinition {
+
+        private final String name;
+
+        private final boolean required;
+
+        private final Object defaultValue;
+
+        private ParamDefinition(String name, boolean required,
+                Object defaultValue) {
+            this.name = name;
+            this.required = required;
+            this.defaultValue = defaultValue;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        boolean isRequired() {
+            return required;
+        }
+
+        Object getDefaultValue() {
+            return defaultValue;
+        }
+    }
+
+    private static ParamDefinition required(String name) {
+        return new ParamDefinition(name, true, null);
+    }
+
+    private static ParamDefinition optional(String name, Object defaultValue) {
+        return new ParamDefinition(name, false, defaultValue);
+    }
+
+    static final TransformerDefinition SIMPLE_TRANSFORMER = new TransformerDefinition(
+            "simpleTransformer", SimpleTransformer.class);
+
+    private static final Map<String, TransformerDefinition> BY_METHOD_NAME = new HashMap<String, TransformerDefinition>();
+
+    private static final Map<String, TransformerDefinition> BY_CLASS_NAME = new HashMap<String, TransformerDefinition>();
+
+    private static void define(TransformerDefinition definition) {
+        BY_METHOD_NAME.put(definition.methodName, definition);
+        BY_CLASS_NAME.put(definition.getClassName(), definition);
+    }
+
+    static {
+        define(new TransformerDefinition("patternMatcher",
+                PatternMatcher.class, required("pattern"), optional(
+                        "dotAll", Boolean.FALSE)));
+        define(new TransformerDefinition("xpath", HTMLMatcher.class,
+                required("XPath")));
+        define(SIMPLE_TRANSFORMER);
+        define(new TransformerDefinition("appender", Appender.class,
+                required("append")));
+        define(new TransformerDefinition("url", URLRetriever.class));
+        define(new TransformerDefinition("replacer", Replacer.class,
+                required("sourceRE"), required("dest")));
+        define(new TransformerDefinition("decorator", Decorator.class,
+                optional("head", ""), optional("tail", "")));
+        define(new TransformerDefinition("merger", Merger.class));
+    }
+
+    /**
+     * @return the definition for the given minilanguage method or
+     *         <code>null</code> if there is none
+     */
+    static TransformerDefinition forMethodName(String methodName) {
+        return BY_METHOD_NAME.get(methodName);
+    }
+
+    /**
+     * @param className
+     *            the simple name of the transformer class, as it appears in
+     *            the <code>class</code> attribute of the XML
+     * @return the definition for the given class or <code>null</code> if
+     *         there is none
+     */
+    static TransformerDefinition forClassName(String className) {
+        return BY_CLASS_NAME.get(className);
+    }
+
+    private final String methodName;
+
+    private final Class<? extends Transformer> transformerClass;
+
+    private final List<ParamDefinition> params;
+
+    private TransformerDefinition(String methodName,
+            Class<? extends Transformer> transformerClass,
+            ParamDefinition... params) {
+        this.methodName = methodName;
+        this.transformerClass = transformerClass;
+        List<ParamDefinition> list = new ArrayList<ParamDefinition>();
+        Collections.addAll(list, params);
+        this.params = Collections.unmodifiableList(list);
+    }
+
+    String getMethodName() {
+        return methodName;
+    }
+
+    String getClassName() {
+        return transformerClass.getSimpleName();
+    }
+
+    Transformer newTransformer() {
+        if (PooledURLRetriever.replaces(transformerClass)) {
+            return new PooledURLRetriever();
+        }
+        try {
+            return transformerClass.newInstance();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    List<ParamDefinition> getParams() {
+        return params;
+    }
+
+    List<ParamDefinition> getRequired() {
+        List<ParamDefinition> result = new ArrayList<ParamDefinition>();
+        for (ParamDefinition each : params) {
+            if (each.required) {
+                result.add(each);
+            }
+        }
+        return result;
+    }
+
+    ParamDefinition find(String name) {
+        for (ParamDefinition each : params) {
+            if (each.name.equals(name)) {
+                return each;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,160 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Access to the params of the transformers through their bean properties,
+ * following the same rules as {@link XMLInputOutput}. The properties of each
+ * transformer class are introspected once.
+ */
+final class TransformerProperties {
+
+    private static final class ClassProperties {
+
+        private final Map<String, PropertyDescriptor> writable = new HashMap<String, PropertyDescriptor>();
+
+        private final List<PropertyDescriptor> written = new ArrayList<PropertyDescriptor>();
+
+        ClassProperties(Class<?> klass) {
+            PropertyDescriptor[] all;
+            try {
+                all = Introspector.getBeanInfo(klass).getPropertyDescriptors();
+            } catch (IntrospectionException e) {
+                throw new RuntimeException(e);
+            }
+            // the descriptors come sorted by name
+            for (PropertyDescriptor each : all) {
+                if (each.getWriteMethod() != null) {
+                    writable.put(each.getName(), each);
+                }
+                if (isWritten(each)) {
+                    written.add(each);
+                }
+            }
+        }
+
+        private static boolean isWritten(PropertyDescriptor property) {
+            String name = property.getName();
+            return !name.equals("loop") && !name.equals("stopped")
+                    && property.getReadMethod() != null
+                    && isSupported(property.getPropertyType());
+        }
+    }
+
+    private static final Map<Class<?>, ClassProperties> BY_CLASS = new ConcurrentHashMap<Class<?>, ClassProperties>();
+
+    private TransformerProperties() {
+        // utility class, not instantiable
+    }
+
+    private static ClassProperties of(Class<?> klass) {
+        ClassProperties result = BY_CLASS.get(klass);
+        if (result == null) {
+            result = new ClassProperties(klass);
+            BY_CLASS.put(klass, result);
+        }
+        return result;
+    }
+
+    private static boolean isSupported(Class<?> type) {
+        return type == Boolean.TYPE || type == Boolean.class
+                || type == String.class || type == Integer.TYPE
+                || type == Integer.class || type == Long.TYPE
+                || type == Long.class || type == Float.TYPE
+                || type == Float.class || type == Double.TYPE
+                || type == Double.class;
+    }
+
+    static BranchType branchType(String name) {
+        try {
+            return BranchType.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("branchtype unrecognized: "
+                    + name);
+        }
+    }
+
+    static MergeMode mergeMode(String name) {
+        try {
+            return MergeMode.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                    "branchmergemode unrecognized: " + name);
+        }
+    }
+
+    static boolean isTrue(String value) {
+        String trimmed = value.trim();
+        return trimmed.equalsIgnoreCase("yes")
+                || trimmed.equalsIgnoreCase("true");
+    }
+
+    /**
+     * Sets a param of the transformer. The params with no property are
+     * ignored.
+     */
+    static void setParam(Transformer transformer, String key, String value) {
+        if (key.equals("stopped")) {
+            return;
+        }
+        PropertyDescriptor property = of(transformer.getClass()).writable
+                .get(key);
+        if (property == null) {
+            return;
+        }
+        Class<?> type = property.getPropertyType();
+        Object converted;
+        if (type == Boolean.TYPE || type == Boolean.class) {
+            converted = isTrue(value);
+        } else if (type == String.class) {
+            converted = value;
+        } else if (type == Integer.TYPE || type == Integer.class) {
+            converted = Integer.valueOf(value.trim());
+        } else if (type == Long.TYPE || type == Long.class) {
+            converted = Long.valueOf(value.trim());
+        } else if (type == Float.TYPE || type == Float.class) {
+            converted = Float.valueOf(value.trim());
+        } else if (type == Double.TYPE || type == Double.class) {
+            converted = Double.valueOf(value.trim());
+        } else {
+            return;
+        }
+        try {
+            property.getWriteMethod().invoke(transformer, converted);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the params written to the XML for the given transformer, sorted
+     *         by name. A <code>null</code> value is written as "null".
+     */
+    static Map<String, String> paramsToWrite(Transformer transformer) {
+        List<PropertyDescriptor> written = of(transformer.getClass()).written;
+        if (written.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (PropertyDescriptor each : written) {
+            Object value;
+            try {
+                value = each.getReadMethod().invoke(transformer);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            result.put(each.getName(), String.valueOf(value));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,328 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Converts a {@link Transformer} to the XML of a robot and back using StAX,
+ * without building a DOM document in between.
+ *
+ * The XML written is the same one that results from parsing the output of
+ * {@link XMLInputOutput#writeTransformer(Transformer, OutputStream)} and
+ * printing it again, but it's always encoded in UTF-8 instead of the default
+ * charset. The reading follows the same rules as
+ * {@link XMLInputOutput#loadTransformer(org.w3c.dom.Document)}.
+ *
+ * It has no state, so it can be used concurrently from any number of threads.
+ */
+public final class TransformerXML {
+
+    public static final String ENCODING = "UTF-8";
+
+    private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\""
+            + ENCODING + "\" standalone=\"no\"?>";
+
+    private static final String PACKAGE_PREFIX = "es.uvigo.ei.sing.stringeditor.";
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory
+            .newInstance();
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory
+            .newInstance();
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    }
+
+    private TransformerXML() {
+        // utility class, not instantiable
+    }
+
+    // ### Writing
+
+    public static String toXML(Transformer transformer) {
+        StringWriter result = new StringWriter();
+        write(transformer, result);
+        return result.toString();
+    }
+
+    /**
+     * Writes the XML encoded in UTF-8. The stream is not closed.
+     */
+    public static void write(Transformer transformer, OutputStream output) {
+        try {
+            Writer writer = new OutputStreamWriter(output, ENCODING);
+            write(transformer, writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the XML to the given writer. The writer is not closed.
+     */
+    public static void write(Transformer transformer, Writer writer) {
+        if (transformer == null) {
+            throw new IllegalArgumentException("transformer cannot be null");
+        }
+        try {
+            // StAX can't write the standalone pseudo-attribute
+            writer.write(DECLARATION);
+            XMLStreamWriter xml = outputFactory.createXMLStreamWriter(writer);
+            xml.writeStartElement("robot");
+            xml.writeAttribute("version", "1.0");
+            xml.writeCharacters("\n");
+            writeTransformer(xml, transformer, 1);
+            xml.writeEndElement();
+            xml.flush();
+            xml.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (XMLStreamException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeTransformer(XMLStreamWriter xml,
+            Transformer transformer, int depth) throws XMLStreamException {
+        indent(xml, depth);
+        xml.writeStartElement("transformer");
+        // sorted, as a DOM serializer would write them
+        xml.writeAttribute("branchmergemode", transformer
+                .getBranchMergeMode().name());
+        xml.writeAttribute("branchtype", transformer.getBranchType().name());
+        xml.writeAttribute("class", className(transformer));
+        xml.writeAttribute("loop", String.valueOf(transformer.isLoop()));
+        xml.writeCharacters("\n");
+
+        indent(xml, depth + 1);
+        xml.writeStartElement("description");
+        xml.writeCharacters(String.valueOf(transformer.getDescription()));
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+        Map<String, String> params = TransformerProperties
+                .paramsToWrite(transformer);
+        for (Entry<String, String> each : params.entrySet()) {
+            indent(xml, depth + 1);
+            writeParam(xml, each.getKey(), each.getValue());
+            xml.writeCharacters("\n");
+        }
+        for (Transformer child : transformer.getChilds()) {
+            writeTransformer(xml, child, depth + 1);
+        }
+
+        indent(xml, depth);
+        xml.writeEndElement();
+        xml.writeCharacters("\n");
+    }
+
+    private static String className(Transformer transformer) {
+        Class<?> transformerClass = transformer instanceof PooledURLRetriever ? URLRetriever.class
+                : transformer.getClass();
+        String name = transformerClass.getName();
+        return name.startsWith(PACKAGE_PREFIX)
+                && name.indexOf('.', PACKAGE_PREFIX.length()) == -1 ? name
+                .substring(PACKAGE_PREFIX.length()) : name;
+    }
+
+    private static void writeParam(XMLStreamWriter xml, String key,
+            String value) throws XMLStreamException {
+        if (value.isEmpty()) {
+            xml.writeEmptyElement("param");
+            xml.writeAttribute("key", key);
+            return;
+        }
+        xml.writeStartElement("param");
+        xml.writeAttribute("key", key);
+        if (needsCDATA(value)) {
+            xml.writeCData(value);
+        } else {
+            xml.writeCharacters(value);
+        }
+        xml.writeEndElement();
+    }
+
+    // The values with markup are kept readable in a CDATA section, as
+    // XMLInputOutput does, unless they contain its end
+    private static boolean needsCDATA(String value) {
+        if (value.contains("]]>")) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            switch (value.charAt(i)) {
+            case '<':
+            case '>':
+            case '&':
+            case '\'':
+            case '"':
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void indent(XMLStreamWriter xml, int depth)
+            throws XMLStreamException {
+        for (int i = 0; i < depth; i++) {
+            xml.writeCharacters("\t");
+        }
+    }
+
+    // ### Reading
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the XML doesn't contain a valid robot
+     */
+    public static Transformer fromXML(String robotXML) {
+        if (robotXML == null) {
+            throw new IllegalArgumentException("robotXML cannot be null");
+        }
+        return read(new StringReader(robotXML));
+    }
+
+    /**
+     * Reads a robot from a stream. The encoding is taken from the XML
+     * declaration, as usual. The stream is not closed.
+     *
+     * @throws IllegalArgumentException
+     *             if the XML doesn't contain a valid robot
+     */
+    public static Transformer read(InputStream input) {
+        try {
+            return read(inputFactory.createXMLStreamReader(input));
+        } catch (XMLStreamException e) {
+            throw invalid(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the XML doesn't contain a valid robot
+     */
+    public static Transformer read(Reader reader) {
+        try {
+            return read(inputFactory.createXMLStreamReader(reader));
+        } catch (XMLStreamException e) {
+            throw invalid(e);
+        }
+    }
+
+    private static IllegalArgumentException invalid(Exception cause) {
+        return new IllegalArgumentException(
+                "the xml specified doesn't contain a valid robot: "
+                        + cause.getMessage(), cause);
+    }
+
+    private static Transformer read(XMLStreamReader xml) {
+        try {
+            // the first transformer element is the root one, wherever it is
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT
+                        && xml.getLocalName().equals("transformer")) {
+                    return readTransformer(xml);
+                }
+            }
+            throw new IllegalArgumentException(
+                    "the xml specified doesn't contain a transformer");
+        } catch (XMLStreamException e) {
+            throw invalid(e);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw invalid(e);
+        } finally {
+            try {
+                xml.close();
+            } catch (XMLStreamException e) {
+                // nothing to release
+            }
+        }
+    }
+
+    // The reader is positioned on the transformer start element and it's
+    // left on its end element
+    private static Transformer readTransformer(XMLStreamReader xml)
+            throws XMLStreamException {
+        Transformer result = newTransformer(xml.getAttributeValue(null,
+                "class"));
+        String branchType = xml.getAttributeValue(null, "branchtype");
+        result.setBranchType(branchType != null ? TransformerProperties
+                .branchType(branchType) : Transformer.DEFAULT_BRANCH_TYPE);
+        String mergeMode = xml.getAttributeValue(null, "branchmergemode");
+        result.setBranchMergeMode(mergeMode != null ? TransformerProperties
+                .mergeMode(mergeMode) : Transformer.DEFAULT_BRANCH_MERGE_MODE);
+        String loop = xml.getAttributeValue(null, "loop");
+        result.setLoop(loop != null
+                && (loop.equalsIgnoreCase("yes") || loop
+                        .equalsIgnoreCase("true")));
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = xml.getLocalName();
+            if (name.equals("description")) {
+                result.setDescription(xml.getElementText());
+            } else if (name.equals("param")) {
+                String key = xml.getAttributeValue(null, "key");
+                TransformerProperties.setParam(result, key, xml
+                        .getElementText());
+            } else if (name.equals("transformer")) {
+                result.add(readTransformer(xml));
+            } else {
+                skipElement(xml);
+            }
+        }
+        return result;
+    }
+
+    private static void skipElement(XMLStreamReader xml)
+            throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static Transformer newTransformer(String className) {
+        if (className == null) {
+            throw new IllegalArgumentException(
+                    "the transformer has no class attribute");
+        }
+        String fullName = className.indexOf('.') == -1 ? PACKAGE_PREFIX
+                + className : className;
+        try {
+            Class<?> transformerClass = Class.forName(fullName);
+            if (PooledURLRetriever.replaces(transformerClass)) {
+                return new PooledURLRetriever();
+            }
+            return (Transformer) transformerClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(
+                    "Transformer class not found: " + className, e);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(
+                    "Transformer can't be instantiated: " + className, e);
+        }
+    }
+
+}
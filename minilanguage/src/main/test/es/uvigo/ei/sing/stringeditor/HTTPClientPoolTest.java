@@ -0,0 +1,218 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.httpclient.HttpState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HTTPClientPoolTest {
+
+    private static final String BODY = "<html>a page</html>";
+
+    private HttpServer server;
+
+    private String baseURL;
+
+    private HTTPClientPool pool;
+
+    private final Set<Integer> clientPorts = Collections
+            .synchronizedSet(new HashSet<Integer>());
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private final AtomicReference<String> userAgentReceived = new AtomicReference<String>();
+
+    private final AtomicReference<String> cookieReceived = new AtomicReference<String>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                userAgentReceived.set(exchange.getRequestHeaders().getFirst(
+                        "User-Agent"));
+                cookieReceived.set(exchange.getRequestHeaders().getFirst(
+                        "Cookie"));
+                if (exchange.getRequestURI().getPath().equals("/login")) {
+                    exchange.getResponseHeaders().add("Set-Cookie",
+                            "session=1; Path=/");
+                }
+                int current = concurrent.incrementAndGet();
+                synchronized (maxConcurrent) {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+                }
+                try {
+                    Thread.sleep(20);
+                    respond(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        pool = new HTTPClientPool(2, 10, 60000);
+    }
+
+    private static void respond(HttpExchange exchange) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst(
+                "Accept-Encoding");
+        byte[] body = BODY.getBytes("UTF-8");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/html; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+    }
+
+    @After
+    public void stopServer() {
+        HTTPClientPool.install(null);
+        pool.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void theGzippedResponsesAreDecompressed() throws IOException {
+        HTTPClientPool.Response response = pool.get(baseURL, null, null);
+        assertThat(new String(response.getBody(), "UTF-8"), equalTo(BODY));
+        assertThat(pool.getGzipped(), equalTo(1L));
+        assertThat(pool.getBytesDecoded(), equalTo((long) BODY.length()));
+        assertTrue(pool.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void theConnectionsAreReused() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            pool.get(baseURL, null, null);
+        }
+        assertThat(clientPorts.size(), equalTo(1));
+        assertThat(pool.getRequests(), equalTo(5L));
+        assertThat(pool.getConnectionsOpen(), equalTo(1));
+        assertThat(pool.getActiveRequests(), equalTo(0));
+    }
+
+    @Test
+    public void theConnectionsToAHostAreLimited() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Set<Future<HTTPClientPool.Response>> futures = new HashSet<Future<HTTPClientPool.Response>>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor
+                        .submit(new Callable<HTTPClientPool.Response>() {
+
+                            @Override
+                            public HTTPClientPool.Response call()
+                                    throws Exception {
+                                return pool.get(baseURL, null, null);
+                            }
+                        }));
+            }
+            for (Future<HTTPClientPool.Response> each : futures) {
+                assertThat(each.get(10, TimeUnit.SECONDS).getStatus(),
+                        equalTo(200));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(maxConcurrent.get() <= 2);
+        assertTrue(clientPorts.size() <= 2);
+    }
+
+    @Test
+    public void theURLTransformerUsesThePoolInstalled() {
+        HTTPClientPool.install(pool);
+        String[] result = TransformerXML.fromXML(
+                TransformerXML.toXML(new URLRetriever())).apply(
+                new String[] { baseURL, baseURL });
+        assertThat(result[0], equalTo(BODY));
+        assertThat(result[1], equalTo(BODY));
+        assertThat(pool.getRequests(), equalTo(2L));
+    }
+
+    @Test
+    public void theUserAgentOfHTTPUtilsIsSent() throws IOException {
+        pool.get(baseURL, null, null);
+        assertThat(userAgentReceived.get(), containsString("Firefox"));
+    }
+
+    @Test
+    public void theCookiesAreKeptDuringAnExecution() throws IOException {
+        HttpState previous = HTTPClientPool.startExecution();
+        try {
+            pool.get(baseURL + "login", null, null);
+            pool.get(baseURL, null, null);
+            assertThat(cookieReceived.get(), containsString("session=1"));
+        } finally {
+            HTTPClientPool.endExecution(previous);
+        }
+    }
+
+    @Test
+    public void theCookiesArentSharedBetweenExecutions() throws IOException {
+        HttpState previous = HTTPClientPool.startExecution();
+        try {
+            pool.get(baseURL + "login", null, null);
+        } finally {
+            HTTPClientPool.endExecution(previous);
+        }
+        previous = HTTPClientPool.startExecution();
+        try {
+            pool.get(baseURL, null, null);
+            assertThat(cookieReceived.get(), nullValue());
+        } finally {
+            HTTPClientPool.endExecution(previous);
+        }
+    }
+
+    @Test
+    public void theCookiesArentKeptOutsideAnExecution() throws IOException {
+        pool.get(baseURL + "login", null, null);
+        pool.get(baseURL, null, null);
+        assertThat(cookieReceived.get(), nullValue());
+    }
+
+}
@@ -0,0 +1,250 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HTTPResponseCacheTest {
+
+    private static final long NOW = 1300000000000L;
+
+    private static final String DATE = "Sun, 13 Mar 2011 07:06:40 GMT";
+
+    private HttpServer server;
+
+    private String baseURL;
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fresh", new Page("fresh", "max-age=60", null));
+        server.createContext("/etag", new Page("etag", "no-cache", "\"v1\""));
+        server.createContext("/private", new Page("private", "private", null));
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        HTTPResponseCache.install(null);
+        server.stop(0);
+    }
+
+    private class Page implements HttpHandler {
+
+        private final byte[] body;
+
+        private final String cacheControl;
+
+        private final String etag;
+
+        Page(String body, String cacheControl, String etag) {
+            this.body = body.getBytes();
+            this.cacheControl = cacheControl;
+            this.etag = etag;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+            if (etag != null) {
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst(
+                        "If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+        }
+    }
+
+    private String retrieve(String path) {
+        return new PooledURLRetriever().apply(new String[] { baseURL + path })[0];
+    }
+
+    private static long freshnessLifetime(String cacheControl,
+            String expires, String date, String lastModified, String age) {
+        return HTTPResponseCache.freshnessLifetime(NOW, cacheControl,
+                expires, date, lastModified, age, 0);
+    }
+
+    @Test
+    public void theMaxAgeIsUsedAsFreshnessLifetime() {
+        assertThat(freshnessLifetime("max-age=60", null, null, null, null),
+                equalTo(60000L));
+        assertThat(freshnessLifetime("public, max-age=60, s-maxage=120",
+                null, null, null, null), equalTo(120000L));
+        assertThat(freshnessLifetime("max-age=60", null, null, null, "20"),
+                equalTo(40000L));
+    }
+
+    @Test
+    public void theResponsesThatCantBeStoredOrMustBeRevalidatedAreDetected() {
+        assertThat(freshnessLifetime("no-store", null, null, null, null),
+                equalTo(-1L));
+        assertThat(freshnessLifetime("private, max-age=60", null, null, null,
+                null), equalTo(-1L));
+        assertThat(freshnessLifetime("no-cache, max-age=60", null, null, null,
+                null), equalTo(0L));
+    }
+
+    @Test
+    public void withoutMaxAgeTheExpiresHeaderIsUsed() {
+        assertThat(freshnessLifetime(null, "Sun, 13 Mar 2011 08:06:40 GMT",
+                DATE, null, null), equalTo(3600000L));
+        assertThat(freshnessLifetime(null, "0", DATE, null, null),
+                equalTo(0L));
+        assertThat(freshnessLifetime(null, null, DATE, null, null),
+                equalTo(0L));
+    }
+
+    @Test
+    public void byDefaultTheLastModifiedHeaderDoesntMakeAResponseFresh() {
+        assertThat(freshnessLifetime(null, null, DATE,
+                "Sun, 13 Mar 2011 06:06:40 GMT", null), equalTo(0L));
+        assertThat(new HTTPResponseCache(10).freshnessLifetime(NOW, null,
+                null, DATE, "Sun, 13 Mar 2011 06:06:40 GMT", null),
+                equalTo(0L));
+    }
+
+    @Test
+    public void theHeuristicFreshnessIsATenthOfTheTimeSinceModifiedUpToTheMaximum() {
+        HTTPResponseCache cache = new HTTPResponseCache(10, null, 0,
+                24L * 60 * 60 * 1000);
+        assertThat(cache.freshnessLifetime(NOW, null, null, DATE,
+                "Sun, 13 Mar 2011 06:06:40 GMT", null), equalTo(360000L));
+        assertThat(HTTPResponseCache.freshnessLifetime(NOW, null, null, DATE,
+                "Sun, 13 Mar 2011 06:06:40 GMT", null, 60000), equalTo(60000L));
+    }
+
+    @Test
+    public void theLeastRecentlyUsedResponsesAreEvictedFromMemory() {
+        HTTPResponseCache cache = new HTTPResponseCache(10);
+        cache.put("a", entry("aaaa"));
+        cache.put("b", entry("bbbb"));
+        cache.get("a");
+        cache.put("c", entry("cccc"));
+        assertThat(cache.get("b"), nullValue());
+        assertThat(cache.get("a"), notNullValue());
+        assertThat(cache.get("c"), notNullValue());
+        assertThat(cache.getMemoryBytes(), equalTo(8L));
+        assertThat(cache.getEvictions(), equalTo(1L));
+    }
+
+    @Test
+    public void theResponsesKeptOnDiskSurviveANewCache() throws IOException {
+        File directory = File.createTempFile("http-cache", "");
+        directory.delete();
+        try {
+            new HTTPResponseCache(100, directory, 1000).put("a", entry("aaaa"));
+            HTTPResponseCache reopened = new HTTPResponseCache(100,
+                    directory, 1000);
+            assertThat(reopened.getDiskBytes() > 0, is(true));
+            assertThat(reopened.get("a").asString(), equalTo("aaaa"));
+            assertThat(reopened.get("b"), nullValue());
+        } finally {
+            for (File each : directory.listFiles()) {
+                each.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void theDiskTierIsBounded() throws IOException {
+        File directory = File.createTempFile("http-cache", "");
+        directory.delete();
+        try {
+            HTTPResponseCache cache = new HTTPResponseCache(100, directory,
+                    100);
+            for (int i = 0; i < 10; i++) {
+                cache.put("url" + i, entry("0123456789"));
+            }
+            assertTrue(cache.getDiskBytes() <= 100);
+            assertTrue(directory.listFiles().length < 10);
+        } finally {
+            for (File each : directory.listFiles()) {
+                each.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void aFreshResponseIsRetrievedOnlyOnce() {
+        HTTPResponseCache cache = new HTTPResponseCache(1024);
+        HTTPResponseCache.install(cache);
+        assertThat(retrieve("/fresh"), equalTo("fresh"));
+        assertThat(retrieve("/fresh"), equalTo("fresh"));
+        assertThat(requests.get(), equalTo(1));
+        assertThat(cache.getMisses(), equalTo(1L));
+        assertThat(cache.getHits(), equalTo(1L));
+    }
+
+    @Test
+    public void aResponseWithETagIsRevalidated() {
+        HTTPResponseCache cache = new HTTPResponseCache(1024);
+        HTTPResponseCache.install(cache);
+        assertThat(retrieve("/etag"), equalTo("etag"));
+        assertThat(retrieve("/etag"), equalTo("etag"));
+        assertThat(requests.get(), equalTo(2));
+        assertThat(notModified.get(), equalTo(1));
+        assertThat(cache.getRevalidations(), equalTo(1L));
+    }
+
+    @Test
+    public void aPrivateResponseIsNotStored() {
+        HTTPResponseCache cache = new HTTPResponseCache(1024);
+        HTTPResponseCache.install(cache);
+        retrieve("/private");
+        retrieve("/private");
+        assertThat(requests.get(), equalTo(2));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void theURLRetrieverIsReplacedOnlyWhileACacheIsInstalled() {
+        String xml = TransformerXML.toXML(new URLRetriever());
+        assertThat(TransformerXML.fromXML(xml).getClass().getName(),
+                equalTo(URLRetriever.class.getName()));
+        HTTPResponseCache.install(new HTTPResponseCache(1024));
+        Transformer replaced = TransformerXML.fromXML(xml);
+        assertThat(replaced.getClass().getName(),
+                equalTo(PooledURLRetriever.class.getName()));
+        assertThat(TransformerXML.toXML(replaced), equalTo(xml));
+    }
+
+    private static HTTPResponseCache.Entry entry(String body) {
+        return new HTTPResponseCache.Entry(body.getBytes(), "UTF-8", null,
+                null, Long.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,100 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+public class MinilanguageDecompilerTest {
+
+    private static Minilanguage jruby;
+
+    @BeforeClass
+    public static void createEngine() {
+        jruby = new Minilanguage(Engine.JRUBY);
+    }
+
+    @AfterClass
+    public static void terminateEngine() {
+        jruby.terminate();
+    }
+
+    private static Document asDocument(Transformer transformer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XMLInputOutput.writeTransformer(transformer, output);
+        return XMLInputOutput.asDoc(new ByteArrayInputStream(output
+                .toByteArray()));
+    }
+
+    private static void assertSameAsJRuby(String program) {
+        Document document = asDocument(jruby.eval(program));
+        assertThat(MinilanguageDecompiler.toMinilanguage(document),
+                equalTo(jruby.xmlToLanguage(document)));
+    }
+
+    @Test
+    public void theRootTransformerIsGeneratedAsAPipe() {
+        Document document = asDocument(jruby.eval("url | patternMatcher('a')"));
+        assertThat(MinilanguageDecompiler.toMinilanguage(document),
+                equalTo("pipe {url | patternMatcher(:pattern=>\"a\")}"));
+    }
+
+    @Test
+    public void theTransformersInCascadeAreSeparatedByPipes() {
+        assertSameAsJRuby("url | patternMatcher('(http://.*)') | merger");
+    }
+
+    @Test
+    public void theParamsWithDefaultValuesAreOmitted() {
+        assertSameAsJRuby("patternMatcher(:pattern => 'a', :dotAll => false)");
+        assertSameAsJRuby("patternMatcher(:pattern => 'a', :dotAll => true)");
+        assertSameAsJRuby("decorator(:head => '<p>', :description => 'wrap')");
+        assertSameAsJRuby("replacer(:sourceRE => 'a', :dest => 'b')");
+    }
+
+    @Test
+    public void theValuesAreEscaped() {
+        assertSameAsJRuby("appender(\"\\\"quoted\\\" \\\\ \\t #{1}\")".replace(
+                "#{1}", "\\#{1}"));
+        assertSameAsJRuby("patternMatcher('(\\d+)#@x ñ')");
+    }
+
+    @Test
+    public void pipesAndBranchesAreGenerated() {
+        assertSameAsJRuby("url | pipe { patternMatcher('a') | merger }");
+        assertSameAsJRuby("url > branch(:BRANCH_DUPLICATED, :SCATTERED) {\n"
+                + "  patternMatcher('bla')\n"
+                + "  pipe { url > patternMatcher('eoo') }\n"
+                + "} > appender('bla')");
+        assertSameAsJRuby("url(:BRANCH_DUPLICATED, :ORDERED) {\n"
+                + "  appender('a'); appender('b')\n" + "}");
+        assertSameAsJRuby("url(:description => 'retrieve') { merger }");
+    }
+
+    @Test
+    public void theLoopsAreGeneratedAsRepeatClauses() {
+        assertSameAsJRuby("url |\n"
+                + "  pipe{ patternMatcher('bar') | url}.repeat?{\n"
+                + "    patternMatcher('foo') > url\n"
+                + "  } | appender('bar')");
+        assertSameAsJRuby("url.repeat? { patternMatcher('next') }");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anUnknownTransformerIsRejected() {
+        String xml = "<robot version=\"1.0\">"
+                + "<transformer class=\"Unknown\" branchtype=\"CASCADE\" "
+                + "branchmergemode=\"SCATTERED\" loop=\"false\"/></robot>";
+        MinilanguageDecompiler.toMinilanguage(XMLInputOutput
+                .asDoc(new ByteArrayInputStream(xml.getBytes())));
+    }
+
+}
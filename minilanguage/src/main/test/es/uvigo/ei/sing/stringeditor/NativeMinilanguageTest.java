@@ -0,0 +1,171 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+public class NativeMinilanguageTest {
+
+    private static Minilanguage jruby;
+
+    private static Minilanguage nativeEngine;
+
+    @BeforeClass
+    public static void createEngines() {
+        jruby = new Minilanguage(Engine.JRUBY);
+        nativeEngine = new Minilanguage(Engine.NATIVE);
+    }
+
+    @AfterClass
+    public static void terminateEngines() {
+        jruby.terminate();
+        nativeEngine.terminate();
+    }
+
+    private static String asXML(Transformer transformer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XMLInputOutput.writeTransformer(transformer, output);
+        try {
+            return output.toString("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void assertSameAsJRuby(String program) {
+        assertThat(asXML(nativeEngine.eval(program)),
+                equalTo(asXML(jruby.eval(program))));
+    }
+
+    @Test
+    public void theTransformersCanBeConnectedInCascade() {
+        assertSameAsJRuby("url > patternMatcher(:pattern => \"bla\") >\n"
+                + "  replacer(:sourceRE => \"e\", :dest => \"a\")");
+        assertSameAsJRuby("url | xpath('//a/@href') | patternMatcher('(http://.*)')");
+    }
+
+    @Test
+    public void theParamsCanBeProvidedInSeveralWays() {
+        assertSameAsJRuby("patternMatcher('bla')");
+        assertSameAsJRuby("patternMatcher 'bla'");
+        assertSameAsJRuby("patternMatcher(pattern: 'bla', dotAll: true)");
+        assertSameAsJRuby("patternMatcher :pattern => 'bla', :bla => \"a\"");
+        assertSameAsJRuby("decorator(:head => '<p>')");
+        assertSameAsJRuby("decorator(:tail => 'a' \"b\\n\", 'description' => 1)");
+        assertSameAsJRuby("appender(:append => :bar, :loop => true)");
+        assertSameAsJRuby("patternMatcher(:pattern => 'a', :description => 'x', :dotAll => nil)");
+        assertSameAsJRuby("patternMatcher(:pattern=>\"a\", :dotAll=>true)");
+    }
+
+    @Test
+    public void theTransformersCanHaveChildren() {
+        assertSameAsJRuby("url {patternMatcher(:pattern => \"bla\") >\n"
+                + "  replacer(:sourceRE => \"e\", :dest => \"a\")}");
+        assertSameAsJRuby("url(:BRANCH_DUPLICATED,:SCATTERED) do\n"
+                + "  patternMatcher(:pattern => \"bla\")\n"
+                + "  patternMatcher(:pattern => \"eoo\")\n"
+                + "end > appender(:append => \"bla\")");
+    }
+
+    @Test
+    public void pipesAndBranchesCanBeUsed() {
+        assertSameAsJRuby("pipe {url > patternMatcher(:pattern => \"bla\")} |\n"
+                + "  pipe {url > patternMatcher(:pattern => \"bla\")}");
+        assertSameAsJRuby("url > branch(:BRANCH_DUPLICATED,:SCATTERED) {\n"
+                + "  patternMatcher(:pattern => \"bla\")\n"
+                + "  patternMatcher(:pattern => \"eoo\")\n"
+                + "  pipe{url > patternMatcher(:pattern => \"bla\")}\n"
+                + "} > appender(:append => \"bla\")");
+    }
+
+    @Test
+    public void loopsCanBeUsed() {
+        assertSameAsJRuby("url |\n"
+                + "  pipe{ patternMatcher(:pattern => \"bar\") | url}.repeat?{\n"
+                + "    patternMatcher(:pattern => \"foo\")\n"
+                + "  } | appender(:append => \"bar\")");
+        assertSameAsJRuby("url(:BRANCH_DUPLICATED,:SCATTERED) {\n"
+                + "  appender(:append => \"appender\")\n"
+                + "}\n" + "  .repeat? { patternMatcher('inside-repeat') }");
+        assertSameAsJRuby("url |\n"
+                + "  pipe{ patternMatcher(:pattern => \"bla\") | url}.repeat?(:BRANCH_DUPLICATED,\n"
+                + "      :SCATTERED){\n"
+                + "    patternMatcher(:pattern => \"prueba\")\n"
+                + "    url\n" + "  } | appender(:append => \"bla\")");
+    }
+
+    @Test
+    public void commentsAndSeparatorsAreIgnored() {
+        assertSameAsJRuby("# retrieves the page\nurl; patternMatcher('a') # done\n");
+        assertSameAsJRuby("");
+    }
+
+    @Test
+    public void theNativeEngineRunsThePrograms() {
+        assertThat(
+                nativeEngine.exec("patternMatcher('(\\\\d+)')", "a1 b22"),
+                equalTo(new String[] { "1", "22" }));
+    }
+
+    @Test
+    public void aPipeCannotBeUsedInsideABranch() {
+        assertErrorContaining(
+                "url > branch(:BRANCH_DUPLICATED,:SCATTERED) {\n"
+                        + "  patternMatcher('bla') | patternMatcher('eoo') }",
+                "| can't be used in a pipe branch");
+    }
+
+    @Test
+    public void aRepeatClauseNeedsAPreviousTransformer() {
+        assertErrorContaining("url | pipe{self.repeat? { url }}",
+                "no transformer to which apply a repeat? clause");
+    }
+
+    @Test
+    public void theRequiredParamsMustBeProvided() {
+        assertErrorContaining("replacer(:sourceRE => 'a')",
+                "dest parameter is required");
+        assertErrorContaining("branch(:BRANCH_DUPLICATED) { url }",
+                "branchtype and branchmerge mode required");
+    }
+
+    @Test
+    public void arbitraryRubyCodeIsRejected() {
+        assertErrorContaining("sleep(10); url", "undefined method `sleep'");
+    }
+
+    @Test
+    public void theErrorsTellWhereTheyHappened() {
+        try {
+            nativeEngine.eval("url |\n  xpath('a') }", "robot.rb", 3);
+            fail("a syntax error was expected");
+        } catch (MinilanguageSyntaxException e) {
+            assertThat(e.getFileName(), equalTo("robot.rb"));
+            assertThat(e.getLine(), equalTo(4));
+            assertThat(e.getColumn(), equalTo(14));
+        }
+    }
+
+    private void assertErrorContaining(String program, String message) {
+        try {
+            nativeEngine.eval(program);
+            fail("an error was expected evaluating: " + program);
+        } catch (IllegalArgumentException e) {
+            assertThat(e, instanceOf(MinilanguageSyntaxException.class));
+            assertTrue(e.getMessage() + " should contain " + message, e
+                    .getMessage().contains(message));
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+public class ParallelRobotRunnerTest {
+
+    private static final String[] INPUTS = { "abcxyz", "xyz", "ab" };
+
+    private static Minilanguage minilanguage;
+
+    @BeforeClass
+    public static void createEngine() {
+        minilanguage = new Minilanguage(Engine.NATIVE);
+    }
+
+    @AfterClass
+    public static void terminateEngine() {
+        minilanguage.terminate();
+    }
+
+    private ParallelRobotRunner runner;
+
+    private HttpServer server;
+
+    private String baseURL;
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        runner = new ParallelRobotRunner(4);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int current = concurrent.incrementAndGet();
+                synchronized (maxConcurrent) {
+                    maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+                }
+                try {
+                    Thread.sleep(100);
+                    byte[] body = exchange.getRequestURI().getPath()
+                            .getBytes("UTF-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream output = exchange.getResponseBody();
+                    output.write(body);
+                    output.close();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    concurrent.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        HTTPClientPool.install(null);
+        runner.shutdown();
+        server.stop(0);
+    }
+
+    private void assertSameAsSequential(String program, String... inputs)
+            throws InterruptedException {
+        String[] expected = Util.runRobot(minilanguage.eval(program), inputs);
+        String[] result = runner.run(minilanguage.eval(program), inputs);
+        assertThat(Arrays.asList(result), equalTo(Arrays.asList(expected)));
+    }
+
+    @Test
+    public void theBranchesAreMergedInTheSameOrder()
+            throws InterruptedException {
+        String program = "patternMatcher('([a-z]+)') > "
+                + "branch(:BRANCH_DUPLICATED, :ORDERED) {\n"
+                + " pipe { patternMatcher('(a)') | decorator(:head => '[', :tail => ']') }\n"
+                + " branch(:BRANCH_DUPLICATED, :ORDERED) {\n"
+                + "  replacer(:sourceRE => 'x', :dest => 'X')\n"
+                + "  appender('k')\n" + " }\n" + "} | appender('end')";
+        assertSameAsSequential(program, INPUTS);
+        assertSameAsSequential(program, "zzz");
+        assertSameAsSequential(program);
+        assertThat(runner.getParallelExecutions(), equalTo(3L));
+    }
+
+    @Test
+    public void theMergersInsideABranchGiveTheSameResult()
+            throws InterruptedException {
+        assertSameAsSequential("patternMatcher('([a-z])') > "
+                + "branch(:BRANCH_DUPLICATED, :ORDERED) {\n"
+                + " decorator(:head => '<', :tail => '>')\n"
+                + " pipe { patternMatcher('(a)') | merger }\n" + "}", INPUTS);
+    }
+
+    @Test
+    public void theRobotsWithOtherBranchesAreExecutedSequentially()
+            throws InterruptedException {
+        String scattered = "patternMatcher('(a)') > "
+                + "branch(:BRANCH_SCATTERED, :ORDERED) {\n"
+                + " decorator(:head => '<', :tail => '>')\n"
+                + " appender('!')\n" + "}";
+        String interleaved = "patternMatcher('([a-z])') > "
+                + "branch(:BRANCH_DUPLICATED, :SCATTERED) {\n"
+                + " decorator(:head => '<', :tail => '>')\n"
+                + " replacer(:sourceRE => 'a', :dest => 'A')\n" + "}";
+        assertThat(ParallelRobotRunner.canRunInParallel(minilanguage
+                .eval(scattered)), equalTo(false));
+        assertThat(ParallelRobotRunner.canRunInParallel(minilanguage
+                .eval(interleaved)), equalTo(false));
+        assertSameAsSequential(scattered, INPUTS);
+        assertSameAsSequential(interleaved, INPUTS);
+        assertThat(runner.getSequentialExecutions(), equalTo(2L));
+    }
+
+    @Test
+    public void thePagesAreRetrievedConcurrentlyAndKeepTheirOrder()
+            throws InterruptedException {
+        HTTPClientPool.install(new HTTPClientPool(4, 10, 60000));
+        String[] urls = new String[8];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = baseURL + "/page" + i;
+        }
+        Transformer robot = TransformerXML.fromXML(TransformerXML
+                .toXML(new URLRetriever()));
+        long start = System.currentTimeMillis();
+        String[] result = runner.run(robot, urls);
+        long elapsed = System.currentTimeMillis() - start;
+        for (int i = 0; i < urls.length; i++) {
+            assertThat(result[i], equalTo("/page" + i));
+        }
+        assertTrue(maxConcurrent.get() > 1);
+        assertTrue(maxConcurrent.get() <= 4);
+        assertTrue(elapsed < urls.length * 100);
+    }
+
+    @Test
+    public void theInputsAreExecutedOnTheirOwnIfTheyAreIndependent()
+            throws InterruptedException {
+        String program = "patternMatcher('([a-z]+)') | decorator(:head => '<', :tail => '>')"
+                + " | replacer(:sourceRE => 'a', :dest => 'A')";
+        assertThat(ParallelRobotRunner.canSplitInputs(minilanguage
+                .eval(program)), equalTo(true));
+        assertSameAsSequential(program, INPUTS);
+        ParallelRobotRunner.Execution execution = runner.execute(
+                minilanguage.eval(program), INPUTS);
+        assertThat(execution.getInputMillis().length, equalTo(INPUTS.length));
+        assertThat(runner.getPerInputExecutions(), equalTo(2L));
+        assertThat(runner.getInputsExecuted(), equalTo(6L));
+    }
+
+    @Test
+    public void theInputsAreExecutedTogetherIfTheOutputDependsOnThemAll() {
+        assertThat(ParallelRobotRunner.canSplitInputs(minilanguage
+                .eval("patternMatcher('([a-z])') | appender('!')")),
+                equalTo(false));
+        assertThat(ParallelRobotRunner.canSplitInputs(minilanguage
+                .eval("patternMatcher('([a-z])') | merger")), equalTo(false));
+        assertThat(ParallelRobotRunner.canSplitInputs(minilanguage
+                .eval("branch(:BRANCH_DUPLICATED, :ORDERED) {\n"
+                        + " patternMatcher('([a-c])')\n"
+                        + " decorator(:head => '<', :tail => '>')\n" + "}")),
+                equalTo(false));
+    }
+
+    @Test
+    public void theInputsOfTheSameHostExecutedAtOnceAreLimited()
+            throws InterruptedException {
+        runner.shutdown();
+        runner = new ParallelRobotRunner(8, 2);
+        HTTPClientPool.install(new HTTPClientPool(8, 10, 60000));
+        String[] urls = new String[8];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = baseURL + "/page" + i;
+        }
+        String[] result = runner.run(TransformerXML.fromXML(TransformerXML
+                .toXML(new URLRetriever())), urls);
+        assertThat(result.length, equalTo(urls.length));
+        assertThat(maxConcurrent.get(), equalTo(2));
+        assertThat(ParallelRobotRunner.hostOf(urls[0]), equalTo("127.0.0.1"));
+        assertThat(ParallelRobotRunner.hostOf("abc"), nullValue());
+    }
+
+    @Test
+    public void theInputsWaitingForTheirHostDontTakeThreads()
+            throws Exception {
+        runner.shutdown();
+        runner = new ParallelRobotRunner(2, 1);
+        HTTPClientPool.install(new HTTPClientPool(8, 10, 60000));
+        final Transformer robot = TransformerXML.fromXML(TransformerXML
+                .toXML(new URLRetriever()));
+        final String[] sameHost = new String[6];
+        for (int i = 0; i < sameHost.length; i++) {
+            sameHost[i] = baseURL + "/page" + i;
+        }
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Future<String[]> slow = other.submit(new Callable<String[]>() {
+
+                @Override
+                public String[] call() throws Exception {
+                    return runner.run(robot, sameHost);
+                }
+            });
+            Thread.sleep(50);
+            assertTrue(runner.getWaitingForHost() > 0);
+            String otherHost = baseURL.replace("127.0.0.1", "localhost");
+            long start = System.currentTimeMillis();
+            String[] result = runner.run(TransformerXML.fromXML(TransformerXML
+                    .toXML(new URLRetriever())), otherHost + "/a", otherHost
+                    + "/b");
+            long elapsed = System.currentTimeMillis() - start;
+            assertThat(Arrays.asList(result), equalTo(Arrays.asList("/a",
+                    "/b")));
+            // it doesn't wait for the inputs of the other host
+            assertTrue(elapsed < 4 * 100);
+            assertThat(slow.get(10, TimeUnit.SECONDS).length,
+                    equalTo(sameHost.length));
+        } finally {
+            other.shutdownNow();
+        }
+        assertThat(runner.getWaitingForHost(), equalTo(0));
+    }
+
+}
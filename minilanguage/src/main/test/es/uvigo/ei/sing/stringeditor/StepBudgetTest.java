@@ -0,0 +1,105 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+public class StepBudgetTest {
+
+    private static final String PROGRAM = "patternMatcher('([a-z])') > "
+            + "branch(:BRANCH_DUPLICATED, :ORDERED) {\n"
+            + " decorator(:head => '<', :tail => '>')\n"
+            + " pipe { patternMatcher('(a)') | merger }\n" + "}";
+
+    private static final String[] INPUTS = { "abcxyz", "xyz", "ab" };
+
+    private static Minilanguage jruby;
+
+    private static Minilanguage nativeEngine;
+
+    @BeforeClass
+    public static void createEngines() {
+        jruby = new Minilanguage(Engine.JRUBY);
+        nativeEngine = new Minilanguage(Engine.NATIVE);
+    }
+
+    @AfterClass
+    public static void terminateEngines() {
+        jruby.terminate();
+        nativeEngine.terminate();
+    }
+
+    @Test
+    public void aRobotWithinTheBudgetGivesTheSameResult() {
+        String[] expected = Util.runRobot(nativeEngine.eval(PROGRAM), INPUTS);
+        StepBudget budget = new StepBudget(1000);
+        String[] result = budget.runRobot(nativeEngine.eval(PROGRAM), INPUTS);
+        assertThat(Arrays.asList(result), equalTo(Arrays.asList(expected)));
+        assertTrue(budget.getTaken() > INPUTS.length);
+        assertThat(budget.isExceeded(), equalTo(false));
+    }
+
+    @Test
+    public void aRobotExceedingTheBudgetIsAborted() {
+        StepBudget budget = new StepBudget(10);
+        try {
+            budget.runRobot(nativeEngine.eval(PROGRAM), INPUTS);
+            fail("it should have been aborted");
+        } catch (BudgetExceededException e) {
+            assertThat(e.getMaxSteps(), equalTo(10L));
+        }
+        assertThat(budget.isExceeded(), equalTo(true));
+    }
+
+    @Test(expected = BudgetExceededException.class)
+    public void theTasksOfAParallelExecutionShareTheBudget()
+            throws InterruptedException {
+        ParallelRobotRunner runner = new ParallelRobotRunner(4);
+        try {
+            runner.execute(nativeEngine.eval(PROGRAM), new StepBudget(10),
+                    INPUTS);
+        } finally {
+            runner.shutdown();
+        }
+    }
+
+    @Test(expected = BudgetExceededException.class)
+    public void theNativeEvaluationIsAbortedIfItExceedsTheBudget() {
+        nativeEngine.eval(PROGRAM, new StepBudget(5));
+    }
+
+    @Test
+    public void theRubyEvaluationIsAbortedEvenIfTheProgramRescuesIt() {
+        String program = "begin\n" + " while true\n" + "  begin\n"
+                + "   x = 1\n" + "  rescue Exception\n" + "  end\n"
+                + " end\n" + "rescue Exception\n" + "end\n" + "url";
+        try {
+            jruby.eval(program, new StepBudget(10000));
+            fail("it should have been aborted");
+        } catch (BudgetExceededException e) {
+            // expected
+        }
+        assertThat(TransformerXML.toXML(jruby.eval(PROGRAM)),
+                equalTo(TransformerXML.toXML(nativeEngine.eval(PROGRAM))));
+    }
+
+    @Test
+    public void theEvaluationWithinTheBudgetIsNotAffected() {
+        String expected = TransformerXML.toXML(nativeEngine.eval(PROGRAM));
+        assertThat(TransformerXML.toXML(jruby.eval(PROGRAM, new StepBudget(
+                StepBudget.DEFAULT_MAX_EVALUATION_STEPS))), equalTo(expected));
+        assertThat(TransformerXML.toXML(nativeEngine.eval(PROGRAM,
+                new StepBudget(StepBudget.DEFAULT_MAX_EVALUATION_STEPS))),
+                equalTo(expected));
+    }
+
+}
@@ -0,0 +1,139 @@
+package es.uvigo.ei.sing.stringeditor;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import es.uvigo.ei.sing.stringeditor.Minilanguage.Engine;
+
+public class TransformerXMLTest {
+
+    private static final String[] PROGRAMS = {
+            "url | patternMatcher('(http://.*)') | merger",
+            "url | pipe { patternMatcher(:pattern => '<td>(.*)</td>', :dotAll => true) | merger }",
+            "url > branch(:BRANCH_DUPLICATED, :SCATTERED) {\n"
+                    + "  decorator(:head => '<p>', :tail => '</p>')\n"
+                    + "  replacer(:sourceRE => 'e', :dest => 'a')\n"
+                    + "} > appender('bla')",
+            "url | pipe{ patternMatcher('bar') | url}.repeat?{\n"
+                    + "  patternMatcher('foo')\n" + "} | appender('bar')",
+            "appender(:append => 'a&b', :description => 'x>y')" };
+
+    private static Minilanguage nativeEngine;
+
+    @BeforeClass
+    public static void createEngine() {
+        nativeEngine = new Minilanguage(Engine.NATIVE);
+    }
+
+    @AfterClass
+    public static void terminateEngine() {
+        nativeEngine.terminate();
+    }
+
+    private static String asXMLInputOutputDoes(Transformer transformer) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        XMLInputOutput.writeTransformer(transformer, output);
+        return output.toString();
+    }
+
+    // what the robots stored until now contain
+    private static String parsedAndPrinted(Transformer transformer)
+            throws Exception {
+        Document document = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().parse(
+                        new InputSource(new StringReader(
+                                asXMLInputOutputDoes(transformer))));
+        StringWriter result = new StringWriter();
+        TransformerFactory.newInstance().newTransformer()
+                .transform(new DOMSource(document), new StreamResult(result));
+        return result.toString();
+    }
+
+    @Test
+    public void itWritesTheSameXMLAsParsingAndPrintingTheOldOutput()
+            throws Exception {
+        for (String each : PROGRAMS) {
+            Transformer transformer = nativeEngine.eval(each);
+            assertThat(TransformerXML.toXML(transformer),
+                    equalTo(parsedAndPrinted(transformer)));
+        }
+    }
+
+    @Test
+    public void itReadsTheSameTransformersAsXMLInputOutput() {
+        for (String each : PROGRAMS) {
+            String xml = TransformerXML.toXML(nativeEngine.eval(each));
+            Transformer loaded = XMLInputOutput.loadTransformer(XMLInputOutput
+                    .asDoc(new ByteArrayInputStream(utf8(xml))));
+            assertThat(asXMLInputOutputDoes(TransformerXML.fromXML(xml)),
+                    equalTo(asXMLInputOutputDoes(loaded)));
+        }
+    }
+
+    @Test
+    public void theStreamsAreEncodedInUTF8() throws Exception {
+        Transformer transformer = nativeEngine
+                .eval("patternMatcher(:pattern => 'ñ €', :description => 'año')");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        TransformerXML.write(transformer, output);
+        assertThat(output.toString("UTF-8"), equalTo(TransformerXML
+                .toXML(transformer)));
+
+        Transformer read = rootOf(TransformerXML
+                .read(new ByteArrayInputStream(output.toByteArray())));
+        assertThat(read.getDescription(), equalTo("año"));
+        assertThat(((PatternMatcher) read).getPattern(), equalTo("ñ €"));
+    }
+
+    @Test
+    public void theValuesWithMarkupAreEscaped() {
+        Transformer transformer = nativeEngine
+                .eval("appender(:append => 'a]]>b', :description => '<x>')");
+        Transformer read = rootOf(TransformerXML.fromXML(TransformerXML
+                .toXML(transformer)));
+        assertThat(read.getDescription(), equalTo("<x>"));
+        assertThat(((Appender) read).getAppend(), equalTo("a]]>b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anUnknownTransformerIsRejected() {
+        TransformerXML.fromXML("<robot version=\"1.0\">"
+                + "<transformer class=\"Unknown\"/></robot>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedXMLIsRejected() {
+        TransformerXML.fromXML("<robot><transformer class=\"URLRetriever\">");
+    }
+
+    // the programs are wrapped in a pipe
+    private static Transformer rootOf(Transformer pipe) {
+        return pipe.getChilds().get(0);
+    }
+
+    private static byte[] utf8(String xml) {
+        try {
+            return xml.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}